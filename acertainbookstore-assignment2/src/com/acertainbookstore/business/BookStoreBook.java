@@ -1,11 +1,25 @@
 package com.acertainbookstore.business;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
 import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.VersionedBook;
 
 /**
  * {@link BookStoreBook} implements all parts of the book. Only parts of it are
  * available in the bookstore client and stock manager, cf. the {@link Book} and
  * {@link StockBook} interfaces.
+ *
+ * The ratings and the sale misses are counted in {@link LongAdder}s, so that
+ * they can be added concurrently with each other and with the readers of the
+ * book. Each rating adds its count and its value to the same adder, packed in
+ * one long, so that a reader always sees the count and the total of the same
+ * ratings.
+ *
+ * Every book carries a version, drawn anew by each of its modifications from
+ * one sequence shared by all books, so that a client holding a copy of a book
+ * can tell whether it is still current.
  * 
  * @see Book
  * @see StockBook
@@ -13,21 +27,46 @@ import com.acertainbookstore.utils.BookStoreUtility;
  */
 public class BookStoreBook extends ImmutableBook {
 
+	/**
+	 * The sequence the versions of all books are drawn from. It starts from
+	 * the start time, so that neither a book removed and added again nor a
+	 * restarted server issues a version issued before.
+	 */
+	private static final AtomicLong VERSION_SEQUENCE = new AtomicLong(System.currentTimeMillis() << 20);
+
+	/** The version, drawn anew by every modification. */
+	private volatile long version;
+
 	/** The number of copies. */
 	private int numCopies;
 
-	/** The total rating. */
-	private long totalRating;
+	/** The number of low bits of a packed rating holding the total rating. */
+	private static final int TOTAL_RATING_BITS = 34;
+
+	/** The mask of the total rating of a packed rating. */
+	private static final long TOTAL_RATING_MASK = (1L << TOTAL_RATING_BITS) - 1;
 
-	/** The number of times rated. */
-	private long numTimesRated;
+	/** The total rating when the book was created. */
+	private long baseTotalRating;
+
+	/** The number of times rated when the book was created. */
+	private long baseNumTimesRated;
+
+	/**
+	 * The ratings added since the book was created, each packed as one count
+	 * above {@link #TOTAL_RATING_BITS} plus its value.
+	 */
+	private final LongAdder ratings = new LongAdder();
 
 	/** The number of sale misses. */
-	private long numSaleMisses;
+	private final LongAdder numSaleMisses = new LongAdder();
 
 	/** Whether the book is editor picked. */
 	private boolean editorPick;
 
+	/** The escrow holding the copies of a hot book, null if not escrowed. */
+	private BookStoreStockEscrow escrow;
+
 	/**
 	 * Instantiates a new {@link BookStoreBook}.
 	 *
@@ -50,6 +89,7 @@ public class BookStoreBook extends ImmutableBook {
 		this.setNumCopies(numCopies);
 		this.setTotalRating(0);
 		this.setEditorPick(false);
+		this.newVersion();
 	}
 
 	/**
@@ -67,6 +107,32 @@ public class BookStoreBook extends ImmutableBook {
 		this.setNumCopies(bookToCopy.getNumCopies());
 		this.setTotalRating(bookToCopy.getTotalRating());
 		this.setEditorPick(bookToCopy.isEditorPick());
+		this.newVersion();
+	}
+
+	/**
+	 * Draws a new version from the sequence shared by all books.
+	 *
+	 * @return the version
+	 */
+	static long nextVersion() {
+		return VERSION_SEQUENCE.incrementAndGet();
+	}
+
+	/**
+	 * Gives the book a new version, after it was modified.
+	 */
+	private void newVersion() {
+		this.version = nextVersion();
+	}
+
+	/**
+	 * Gets the version, which changes whenever the book is modified.
+	 *
+	 * @return the version
+	 */
+	public long getVersion() {
+		return version;
 	}
 
 	/**
@@ -75,7 +141,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the total rating
 	 */
 	public long getTotalRating() {
-		return totalRating;
+		return baseTotalRating + (ratings.sum() & TOTAL_RATING_MASK);
 	}
 
 	/**
@@ -84,7 +150,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the number of times rated
 	 */
 	public long getNumTimesRated() {
-		return numTimesRated;
+		return baseNumTimesRated + (ratings.sum() >>> TOTAL_RATING_BITS);
 	}
 
 	/**
@@ -93,7 +159,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the number of copies
 	 */
 	public int getNumCopies() {
-		return numCopies;
+		return escrow == null ? numCopies : escrow.getCopies();
 	}
 
 	/**
@@ -102,7 +168,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the number of sale misses
 	 */
 	public long getNumSaleMisses() {
-		return numSaleMisses;
+		return numSaleMisses.sum();
 	}
 
 	/**
@@ -111,6 +177,9 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the average rating
 	 */
 	public float getAverageRating() {
+		long packedRatings = ratings.sum();
+		long numTimesRated = baseNumTimesRated + (packedRatings >>> TOTAL_RATING_BITS);
+		long totalRating = baseTotalRating + (packedRatings & TOTAL_RATING_MASK);
 		return (numTimesRated == 0 ? -1.0f : (float) totalRating / numTimesRated);
 	}
 
@@ -130,7 +199,7 @@ public class BookStoreBook extends ImmutableBook {
 	 *            the new total rating
 	 */
 	private void setTotalRating(long totalRating) {
-		this.totalRating = totalRating;
+		this.baseTotalRating = totalRating;
 	}
 
 	/**
@@ -140,7 +209,7 @@ public class BookStoreBook extends ImmutableBook {
 	 *            the new number of times rated
 	 */
 	private void setNumTimesRated(long numTimesRated) {
-		this.numTimesRated = numTimesRated;
+		this.baseNumTimesRated = numTimesRated;
 	}
 
 	/**
@@ -161,7 +230,8 @@ public class BookStoreBook extends ImmutableBook {
 	 *            the new sale misses
 	 */
 	private void setNumSaleMisses(long numSaleMisses) {
-		this.numSaleMisses = numSaleMisses;
+		this.numSaleMisses.reset();
+		this.numSaleMisses.add(numSaleMisses);
 	}
 
 	/**
@@ -173,6 +243,7 @@ public class BookStoreBook extends ImmutableBook {
 	 */
 	public void setEditorPick(boolean editorPick) {
 		this.editorPick = editorPick;
+		this.newVersion();
 	}
 
 	/**
@@ -183,7 +254,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return true, if successful
 	 */
 	public boolean areCopiesInStore(int numCopies) {
-		return this.numCopies >= numCopies;
+		return getNumCopies() >= numCopies;
 	}
 
 	/**
@@ -194,7 +265,27 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return true, if successful
 	 */
 	public boolean buyCopies(int numCopies) {
-		if (!BookStoreUtility.isInvalidNoCopies(numCopies) && areCopiesInStore(numCopies)) {
+		if (BookStoreUtility.isInvalidNoCopies(numCopies)) {
+			return false;
+		}
+
+		if (escrow != null ? escrow.draw(numCopies) : buyUnescrowedCopies(numCopies)) {
+			this.newVersion();
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Reduces the number of copies of a book that is not escrowed.
+	 *
+	 * @param numCopies
+	 *            the number of copies
+	 * @return true, if successful
+	 */
+	private boolean buyUnescrowedCopies(int numCopies) {
+		if (areCopiesInStore(numCopies)) {
 			this.numCopies -= numCopies;
 			return true;
 		}
@@ -210,11 +301,51 @@ public class BookStoreBook extends ImmutableBook {
 	 */
 	public void addCopies(int numNewCopies) {
 		if (!BookStoreUtility.isInvalidNoCopies(numNewCopies)) {
-			this.numCopies += numNewCopies;
-			this.numSaleMisses = 0;
+			if (escrow != null) {
+				escrow.add(numNewCopies);
+			} else {
+				this.numCopies += numNewCopies;
+			}
+
+			this.numSaleMisses.reset();
+			this.newVersion();
+		}
+	}
+
+	/**
+	 * Moves the copies of the book into an escrow split into slices. The
+	 * caller must hold the book exclusively.
+	 *
+	 * @param numSlices
+	 *            the number of slices
+	 */
+	void startEscrow(int numSlices) {
+		if (escrow == null) {
+			escrow = new BookStoreStockEscrow(numCopies, numSlices);
+			numCopies = 0;
 		}
 	}
 
+	/**
+	 * Moves the copies of the book out of its escrow. The caller must hold
+	 * the book exclusively.
+	 */
+	void stopEscrow() {
+		if (escrow != null) {
+			numCopies = escrow.getCopies();
+			escrow = null;
+		}
+	}
+
+	/**
+	 * Gets the escrow holding the copies of the book.
+	 *
+	 * @return the escrow, or null if the book is not escrowed
+	 */
+	BookStoreStockEscrow getEscrow() {
+		return escrow;
+	}
+
 	/**
 	 * Increments the amount of missed sales of the book.
 	 * 
@@ -222,7 +353,8 @@ public class BookStoreBook extends ImmutableBook {
 	 *            the number of sales misses encountered
 	 */
 	public void addSaleMiss(int numSaleMisses) {
-		this.numSaleMisses += numSaleMisses;
+		this.numSaleMisses.add(numSaleMisses);
+		this.newVersion();
 	}
 
 	/**
@@ -233,8 +365,8 @@ public class BookStoreBook extends ImmutableBook {
 	 */
 	public void addRating(int rating) {
 		if (!BookStoreUtility.isInvalidRating(rating)) {
-			this.totalRating += rating;
-			this.numTimesRated++;
+			this.ratings.add((1L << TOTAL_RATING_BITS) + rating);
+			this.newVersion();
 		}
 	}
 
@@ -245,7 +377,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return true, if successful
 	 */
 	public boolean hadSaleMiss() {
-		return this.numSaleMisses > 0;
+		return getNumSaleMisses() > 0;
 	}
 
 	/**
@@ -269,15 +401,27 @@ public class BookStoreBook extends ImmutableBook {
 				this.getPrice());
 	}
 
+	/**
+	 * Returns a {@link VersionedBook} copy of the book with its version.
+	 *
+	 * @return the versioned book
+	 */
+	public VersionedBook versionedBook() {
+		long currentVersion = version;
+		return new VersionedBook(immutableBook(), currentVersion);
+	}
+
 	/**
 	 * Returns a {@link StockBook} copy of the book.
 	 *
 	 * @return the stock book
 	 */
 	public StockBook immutableStockBook() {
+		long packedRatings = ratings.sum();
 		return new ImmutableStockBook(this.getISBN(), new String(this.getTitle()), new String(this.getAuthor()),
-				this.getPrice(), this.numCopies, this.numSaleMisses, this.numTimesRated, this.totalRating,
-				this.editorPick);
+				this.getPrice(), this.getNumCopies(), this.getNumSaleMisses(),
+				baseNumTimesRated + (packedRatings >>> TOTAL_RATING_BITS),
+				baseTotalRating + (packedRatings & TOTAL_RATING_MASK), this.editorPick);
 	}
 
 	/**
@@ -287,6 +431,6 @@ public class BookStoreBook extends ImmutableBook {
 	 */
 	public BookStoreBook copy() {
 		return new BookStoreBook(this.getISBN(), new String(this.getTitle()), new String(this.getAuthor()),
-				this.getPrice(), this.numCopies);
+				this.getPrice(), this.getNumCopies());
 	}
 }
@@ -0,0 +1,344 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * {@link BookStoreCatalogTrie} is a persistent hash array mapped trie of
+ * immutable books and their versions, keyed by ISBN. A trie is never changed:
+ * adding or removing a book copies the nodes on the path to it and shares all
+ * other nodes with the trie it was derived from, so that any trie is a
+ * snapshot of the catalog that can be read without locks while newer tries are
+ * built.
+ *
+ * Each level of the trie consumes {@link #BITS_PER_LEVEL} bits of the hash of
+ * the ISBN. A node holds a bitmap of its occupied slots and an array of just
+ * those slots, each a leaf holding a book or a child node. The hash is a
+ * bijection of the ISBN, so two books never share a full hash and no
+ * collision nodes are needed.
+ */
+final class BookStoreCatalogTrie {
+
+	/** The number of hash bits consumed by each level. */
+	private static final int BITS_PER_LEVEL = 5;
+
+	/** The mask of the hash bits of a level. */
+	private static final int LEVEL_MASK = (1 << BITS_PER_LEVEL) - 1;
+
+	/** The empty trie. */
+	static final BookStoreCatalogTrie EMPTY = new BookStoreCatalogTrie(new Node(0, new Object[0]), 0);
+
+	/** The root node. */
+	private final Node root;
+
+	/** The number of books. */
+	private final int size;
+
+	/**
+	 * Instantiates a new {@link BookStoreCatalogTrie}.
+	 *
+	 * @param root
+	 *            the root node
+	 * @param size
+	 *            the number of books
+	 */
+	private BookStoreCatalogTrie(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * Gets the number of books.
+	 *
+	 * @return the number of books
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Gets a book.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the book, or null if it is not in the trie
+	 */
+	StockBook get(int isbn) {
+		Leaf leaf = getLeaf(isbn);
+		return leaf != null ? leaf.book : null;
+	}
+
+	/**
+	 * Gets the version of a book.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the version, or 0 if the book is not in the trie
+	 */
+	long getVersion(int isbn) {
+		Leaf leaf = getLeaf(isbn);
+		return leaf != null ? leaf.version : 0;
+	}
+
+	/**
+	 * Gets the leaf of a book.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the leaf, or null if the book is not in the trie
+	 */
+	private Leaf getLeaf(int isbn) {
+		int hash = hash(isbn);
+		Node node = root;
+
+		for (int shift = 0;; shift += BITS_PER_LEVEL) {
+			int bit = bit(hash, shift);
+
+			if ((node.bitmap & bit) == 0) {
+				return null;
+			}
+
+			Object slot = node.slots[node.index(bit)];
+
+			if (!(slot instanceof Node)) {
+				Leaf leaf = (Leaf) slot;
+				return leaf.book.getISBN() == isbn ? leaf : null;
+			}
+
+			node = (Node) slot;
+		}
+	}
+
+	/**
+	 * Returns a trie holding the book in place of any book of the same ISBN.
+	 *
+	 * @param book
+	 *            the book, not to be changed once added
+	 * @param version
+	 *            the version of the book
+	 * @return the new trie
+	 */
+	BookStoreCatalogTrie with(StockBook book, long version) {
+		int newSize = get(book.getISBN()) == null ? size + 1 : size;
+		return new BookStoreCatalogTrie(with(root, new Leaf(book, version), hash(book.getISBN()), 0), newSize);
+	}
+
+	/**
+	 * Returns a trie without the book of the given ISBN.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the new trie, or this trie if the book is not in it
+	 */
+	BookStoreCatalogTrie without(int isbn) {
+		if (get(isbn) == null) {
+			return this;
+		}
+
+		return new BookStoreCatalogTrie((Node) without(root, isbn, hash(isbn), 0), size - 1);
+	}
+
+	/**
+	 * Passes every book of the trie to the action.
+	 *
+	 * @param action
+	 *            the action
+	 */
+	void forEach(Consumer<StockBook> action) {
+		forEach(root, action);
+	}
+
+	/**
+	 * Gets all books of the trie.
+	 *
+	 * @return the books
+	 */
+	List<StockBook> values() {
+		List<StockBook> books = new ArrayList<>(size);
+		forEach(books::add);
+		return books;
+	}
+
+	/**
+	 * Mixes the ISBN into a hash. Multiplying by an odd constant is a
+	 * bijection, so distinct ISBNs get distinct hashes, and it spreads the
+	 * consecutive ISBNs of a catalog over the slots of the upper levels.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the hash
+	 */
+	private static int hash(int isbn) {
+		return isbn * 0x9E3779B9;
+	}
+
+	/**
+	 * Gets the bit of the slot of a hash in a node of a level.
+	 *
+	 * @param hash
+	 *            the hash
+	 * @param shift
+	 *            the number of hash bits consumed by the levels above
+	 * @return the bit
+	 */
+	private static int bit(int hash, int shift) {
+		return 1 << ((hash >>> shift) & LEVEL_MASK);
+	}
+
+	private static Node with(Node node, Leaf leaf, int hash, int shift) {
+		int bit = bit(hash, shift);
+		int index = node.index(bit);
+
+		if ((node.bitmap & bit) == 0) {
+			return node.inserted(bit, index, leaf);
+		}
+
+		Object slot = node.slots[index];
+
+		if (slot instanceof Node) {
+			return node.replaced(index, with((Node) slot, leaf, hash, shift + BITS_PER_LEVEL));
+		}
+
+		Leaf existing = (Leaf) slot;
+
+		if (existing.book.getISBN() == leaf.book.getISBN()) {
+			return node.replaced(index, leaf);
+		}
+
+		// The slot holds another book: push both down until their hashes part.
+		return node.replaced(index,
+				branch(existing, hash(existing.book.getISBN()), leaf, hash, shift + BITS_PER_LEVEL));
+	}
+
+	private static Node branch(Leaf first, int firstHash, Leaf second, int secondHash, int shift) {
+		int firstSlot = (firstHash >>> shift) & LEVEL_MASK;
+		int secondSlot = (secondHash >>> shift) & LEVEL_MASK;
+
+		if (firstSlot == secondSlot) {
+			return new Node(1 << firstSlot,
+					new Object[] { branch(first, firstHash, second, secondHash, shift + BITS_PER_LEVEL) });
+		}
+
+		Object[] slots = firstSlot < secondSlot ? new Object[] { first, second } : new Object[] { second, first };
+		return new Node((1 << firstSlot) | (1 << secondSlot), slots);
+	}
+
+	/**
+	 * Removes a book from a node known to hold it.
+	 *
+	 * @return the new node, or the remaining leaf if a node below the root is
+	 *         left with a single leaf
+	 */
+	private static Object without(Node node, int isbn, int hash, int shift) {
+		int bit = bit(hash, shift);
+		int index = node.index(bit);
+		Object slot = node.slots[index];
+		Node result;
+
+		if (slot instanceof Node) {
+			result = node.replaced(index, without((Node) slot, isbn, hash, shift + BITS_PER_LEVEL));
+		} else {
+			result = node.removed(bit, index);
+		}
+
+		// A node below the root holding a single leaf collapses into the leaf.
+		if (shift > 0 && result.slots.length == 1 && !(result.slots[0] instanceof Node)) {
+			return result.slots[0];
+		}
+
+		return result;
+	}
+
+	private static void forEach(Node node, Consumer<StockBook> action) {
+		for (Object slot : node.slots) {
+			if (slot instanceof Node) {
+				forEach((Node) slot, action);
+			} else {
+				action.accept(((Leaf) slot).book);
+			}
+		}
+	}
+
+	/**
+	 * {@link Leaf} is a book of the trie with its version.
+	 */
+	private static final class Leaf {
+
+		/** The book. */
+		private final StockBook book;
+
+		/** The version of the book. */
+		private final long version;
+
+		/**
+		 * Instantiates a new {@link Leaf}.
+		 *
+		 * @param book
+		 *            the book
+		 * @param version
+		 *            the version of the book
+		 */
+		private Leaf(StockBook book, long version) {
+			this.book = book;
+			this.version = version;
+		}
+	}
+
+	/**
+	 * {@link Node} is a node of the trie, never changed once built.
+	 */
+	private static final class Node {
+
+		/** The bitmap of the occupied slots. */
+		private final int bitmap;
+
+		/** The occupied slots in order, each a leaf or a child node. */
+		private final Object[] slots;
+
+		/**
+		 * Instantiates a new {@link Node}.
+		 *
+		 * @param bitmap
+		 *            the bitmap of the occupied slots
+		 * @param slots
+		 *            the occupied slots
+		 */
+		private Node(int bitmap, Object[] slots) {
+			this.bitmap = bitmap;
+			this.slots = slots;
+		}
+
+		/**
+		 * Gets the index in the slot array of a slot bit.
+		 *
+		 * @param bit
+		 *            the bit
+		 * @return the index
+		 */
+		private int index(int bit) {
+			return Integer.bitCount(bitmap & (bit - 1));
+		}
+
+		private Node inserted(int bit, int index, Object slot) {
+			Object[] newSlots = new Object[slots.length + 1];
+			System.arraycopy(slots, 0, newSlots, 0, index);
+			newSlots[index] = slot;
+			System.arraycopy(slots, index, newSlots, index + 1, slots.length - index);
+			return new Node(bitmap | bit, newSlots);
+		}
+
+		private Node replaced(int index, Object slot) {
+			Object[] newSlots = slots.clone();
+			newSlots[index] = slot;
+			return new Node(bitmap, newSlots);
+		}
+
+		private Node removed(int bit, int index) {
+			Object[] newSlots = new Object[slots.length - 1];
+			System.arraycopy(slots, 0, newSlots, 0, index);
+			System.arraycopy(slots, index + 1, newSlots, index, slots.length - index - 1);
+			return new Node(bitmap & ~bit, newSlots);
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package com.acertainbookstore.business;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link BookStoreHotBookDetector} counts the purchases of every book over
+ * windows of a fixed length. A book bought at least
+ * {@link #HOT_PURCHASES_PER_WINDOW} times in a window is hot, and cools down
+ * once it is bought less than {@link #COOL_PURCHASES_PER_WINDOW} times in a
+ * window. The gap between the two keeps a book from flapping in and out of
+ * escrow.
+ */
+final class BookStoreHotBookDetector {
+
+	/** The length of a window in milliseconds. */
+	static final long WINDOW_MILLIS = 100;
+
+	/** The purchases per window from which a book is hot. */
+	static final long HOT_PURCHASES_PER_WINDOW = 100;
+
+	/** The purchases per window under which a hot book cools down. */
+	static final long COOL_PURCHASES_PER_WINDOW = 20;
+
+	/** The purchases by ISBN in the current window. */
+	private volatile ConcurrentHashMap<Integer, LongAdder> purchases = new ConcurrentHashMap<>();
+
+	/** The start of the current window in milliseconds. */
+	private final AtomicLong windowStart = new AtomicLong(System.currentTimeMillis());
+
+	/**
+	 * Counts a purchase of a book.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 */
+	void recordPurchase(int isbn) {
+		purchases.computeIfAbsent(isbn, key -> new LongAdder()).increment();
+	}
+
+	/**
+	 * Closes the current window if it is over. Only one of the threads
+	 * calling concurrently gets the rates of the closed window.
+	 *
+	 * @return the purchases per window length by ISBN, or null if the window
+	 *         is not over yet
+	 */
+	Map<Integer, Long> closeWindow() {
+		long start = windowStart.get();
+		long now = System.currentTimeMillis();
+
+		if (now - start < WINDOW_MILLIS || !windowStart.compareAndSet(start, now)) {
+			return null;
+		}
+
+		ConcurrentHashMap<Integer, LongAdder> closed = purchases;
+		purchases = new ConcurrentHashMap<>();
+		Map<Integer, Long> rates = new HashMap<>();
+
+		for (Map.Entry<Integer, LongAdder> entry : closed.entrySet()) {
+			rates.put(entry.getKey(), entry.getValue().sum() * WINDOW_MILLIS / (now - start));
+		}
+
+		return rates;
+	}
+}
@@ -0,0 +1,771 @@
+package com.acertainbookstore.business;
+
+import java.lang.management.ManagementFactory;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.ConcurrentLatencyHistogram;
+import com.acertainbookstore.utils.LatencyHistogram;
+
+/**
+ * {@link BookStoreLockStats} records the contention on the locks of a store:
+ * acquisitions, wait and hold times and queue lengths of the database-level
+ * lock and of the item locks, by lock mode, and the ISBNs whose operations
+ * waited the longest. All counters are striped ({@link LongAdder}) or
+ * lock-free histograms, so recording does not add contention of its own.
+ *
+ * The locks are created by the stats, as {@link InstrumentedReadWriteLock}s,
+ * unless the lockstats system property is false, in which case they are
+ * plain fair {@link ReentrantReadWriteLock}s and nothing is recorded. The
+ * stats of every store class are registered with the platform MBean server.
+ *
+ * The item locks are taken under the database-level lock and released with
+ * it, so only the holds of the database-level lock are timed. An operation is
+ * recorded once it released the database-level lock, so that recording never
+ * lengthens a critical section; an operation that waited for the
+ * database-level lock is charged with that wait on every ISBN it locked.
+ */
+public class BookStoreLockStats implements BookStoreLockStatsMXBean {
+
+	/** The number of ISBNs reported as most contended. */
+	private static final int TOP_CONTENDED_ITEMS = 10;
+
+	/**
+	 * {@link LockLevel} is the granularity of a lock.
+	 */
+	public enum LockLevel {
+
+		/** The lock of the whole store. */
+		DATABASE,
+
+		/** The lock of a book. */
+		ITEM;
+	}
+
+	/**
+	 * {@link LockMode} is the mode a lock is acquired in.
+	 */
+	public enum LockMode {
+
+		/** The shared mode. */
+		READ,
+
+		/** The exclusive mode. */
+		WRITE;
+	}
+
+	/** Whether the locks are instrumented. */
+	private final boolean enabled;
+
+	/** The counters by lock level and mode. */
+	private final Map<LockLevel, Map<LockMode, LockCounters>> counters = new EnumMap<>(LockLevel.class);
+
+	/** The counters of the ISBNs that had contended acquisitions. */
+	private final ConcurrentHashMap<Integer, ItemCounters> items = new ConcurrentHashMap<>();
+
+	/** The lock state of the threads. */
+	private final ThreadLocal<ThreadLockState> threadLockStates = ThreadLocal.withInitial(ThreadLockState::new);
+
+	/**
+	 * Instantiates a new {@link BookStoreLockStats} and registers it with the
+	 * platform MBean server.
+	 *
+	 * @param storeName
+	 *            the name of the store, used in the MBean name
+	 */
+	public BookStoreLockStats(String storeName) {
+		enabled = !"false".equalsIgnoreCase(System.getProperty(BookStoreConstants.PROPERTY_KEY_LOCK_STATS));
+
+		for (LockLevel level : LockLevel.values()) {
+			Map<LockMode, LockCounters> levelCounters = new EnumMap<>(LockMode.class);
+
+			for (LockMode mode : LockMode.values()) {
+				levelCounters.put(mode, new LockCounters());
+			}
+
+			counters.put(level, levelCounters);
+		}
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("com.acertainbookstore:type=LockStats,store=" + storeName));
+		} catch (JMException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Creates the fair database-level lock of the store.
+	 *
+	 * @return the lock
+	 */
+	public ReentrantReadWriteLock newDatabaseLock() {
+		return enabled ? new InstrumentedReadWriteLock(this, LockLevel.DATABASE, null)
+				: new ReentrantReadWriteLock(true);
+	}
+
+	/**
+	 * Creates the fair lock of a book.
+	 *
+	 * @param isbn
+	 *            the ISBN of the book
+	 * @return the lock
+	 */
+	public ReentrantReadWriteLock newItemLock(Integer isbn) {
+		return enabled ? new InstrumentedReadWriteLock(this, LockLevel.ITEM, isbn) : new ReentrantReadWriteLock(true);
+	}
+
+	/**
+	 * Notes an acquisition of the database-level lock by the current thread.
+	 * It is recorded once the lock is released, outside of the critical
+	 * section.
+	 *
+	 * @param mode
+	 *            the lock mode
+	 * @param contended
+	 *            whether the lock was held or had threads queued
+	 * @param queueLength
+	 *            the number of queued threads, if contended
+	 * @param waitNanos
+	 *            the wait in nanoseconds, if contended
+	 * @param acquiredAt
+	 *            the acquisition time in nanoseconds
+	 */
+	void onDatabaseLockAcquired(LockMode mode, boolean contended, int queueLength, long waitNanos,
+			long acquiredAt) {
+		ThreadLockState state = threadLockStates.get();
+		state.contended = contended;
+		state.queueLength = queueLength;
+		state.waitNanos = waitNanos;
+		state.totalWaitNanos += waitNanos;
+		state.acquiredAt = acquiredAt;
+	}
+
+	/**
+	 * Notes an acquisition of an item lock by the current thread, under the
+	 * database-level lock. A contended acquisition is recorded right away,
+	 * the others once the database-level lock is released.
+	 *
+	 * @param mode
+	 *            the lock mode
+	 * @param isbn
+	 *            the ISBN of the book
+	 * @param contended
+	 *            whether the lock was held or had threads queued
+	 * @param queueLength
+	 *            the number of queued threads, if contended
+	 * @param waitNanos
+	 *            the wait in nanoseconds, if contended
+	 */
+	void onItemLockAcquired(LockMode mode, Integer isbn, boolean contended, int queueLength, long waitNanos) {
+		ThreadLockState state = threadLockStates.get();
+
+		if (contended) {
+			recordAcquisition(LockLevel.ITEM, mode, true, queueLength, waitNanos);
+			charge(isbn, waitNanos + state.waitNanos);
+			state.totalWaitNanos += waitNanos;
+		} else {
+			state.itemAcquisitions[mode.ordinal()]++;
+
+			if (state.contended) {
+				state.chargedIsbns.add(isbn);
+			}
+		}
+	}
+
+	/**
+	 * Records the operation of the current thread once it released the
+	 * database-level lock: the acquisition and hold time of that lock, the
+	 * uncontended item lock acquisitions and the wait charged to the ISBNs.
+	 *
+	 * @param mode
+	 *            the lock mode
+	 * @param releasedAt
+	 *            the release time in nanoseconds
+	 */
+	void onDatabaseLockReleased(LockMode mode, long releasedAt) {
+		ThreadLockState state = threadLockStates.get();
+		recordAcquisition(LockLevel.DATABASE, mode, state.contended, state.queueLength, state.waitNanos);
+		counters.get(LockLevel.DATABASE).get(mode).holds.record(releasedAt - state.acquiredAt);
+
+		for (LockMode itemMode : LockMode.values()) {
+			if (state.itemAcquisitions[itemMode.ordinal()] > 0) {
+				counters.get(LockLevel.ITEM).get(itemMode).acquisitions.add(state.itemAcquisitions[itemMode.ordinal()]);
+				state.itemAcquisitions[itemMode.ordinal()] = 0;
+			}
+		}
+
+		for (Integer isbn : state.chargedIsbns) {
+			charge(isbn, state.waitNanos);
+		}
+
+		state.chargedIsbns.clear();
+		state.contended = false;
+		state.waitNanos = 0;
+	}
+
+	/**
+	 * Gets the total time the current thread waited for the locks of the
+	 * store. Only contended acquisitions wait; the difference of two readings
+	 * is the wait of the operations run in between.
+	 *
+	 * @return the total wait in nanoseconds
+	 */
+	public long getThreadWaitNanos() {
+		return threadLockStates.get().totalWaitNanos;
+	}
+
+	/**
+	 * Gets the number of read holds of the database-level lock by the current
+	 * thread, to tell the outermost acquisition and release.
+	 *
+	 * @param delta
+	 *            the change of the number of read holds
+	 * @return the number of read holds after the change
+	 */
+	int updateDatabaseReadHolds(int delta) {
+		ThreadLockState state = threadLockStates.get();
+		state.readHolds += delta;
+		return state.readHolds;
+	}
+
+	/**
+	 * Records an acquisition of a lock.
+	 *
+	 * @param level
+	 *            the lock level
+	 * @param mode
+	 *            the lock mode
+	 * @param contended
+	 *            whether the lock was held or had threads queued
+	 * @param queueLength
+	 *            the number of queued threads, if contended
+	 * @param waitNanos
+	 *            the wait in nanoseconds, if contended
+	 */
+	private void recordAcquisition(LockLevel level, LockMode mode, boolean contended, int queueLength,
+			long waitNanos) {
+		LockCounters lockCounters = counters.get(level).get(mode);
+		lockCounters.acquisitions.increment();
+
+		if (contended) {
+			lockCounters.waits.record(waitNanos);
+			lockCounters.contendedAcquisitions.increment();
+			lockCounters.queueLengths.add(queueLength);
+			lockCounters.maxQueueLength.accumulate(queueLength);
+		}
+	}
+
+	/**
+	 * Charges a contended acquisition and its wait to an ISBN.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @param waitNanos
+	 *            the wait in nanoseconds
+	 */
+	private void charge(Integer isbn, long waitNanos) {
+		ItemCounters itemCounters = items.computeIfAbsent(isbn, key -> new ItemCounters());
+		itemCounters.contendedAcquisitions.increment();
+		itemCounters.waitNanos.add(waitNanos);
+	}
+
+	/**
+	 * Gets the number of acquisitions of a lock level in a mode.
+	 *
+	 * @param level
+	 *            the lock level
+	 * @param mode
+	 *            the lock mode
+	 * @return the number of acquisitions
+	 */
+	public long getAcquisitions(LockLevel level, LockMode mode) {
+		return counters.get(level).get(mode).acquisitions.sum();
+	}
+
+	/**
+	 * Gets the number of contended acquisitions of a lock level in a mode.
+	 *
+	 * @param level
+	 *            the lock level
+	 * @param mode
+	 *            the lock mode
+	 * @return the number of contended acquisitions
+	 */
+	public long getContendedAcquisitions(LockLevel level, LockMode mode) {
+		return counters.get(level).get(mode).contendedAcquisitions.sum();
+	}
+
+	/**
+	 * Gets a snapshot of the waits for a lock level in a mode, including the
+	 * uncontended acquisitions as waits of 0.
+	 *
+	 * @param level
+	 *            the lock level
+	 * @param mode
+	 *            the lock mode
+	 * @return the wait histogram
+	 */
+	public LatencyHistogram getWaits(LockLevel level, LockMode mode) {
+		LockCounters lockCounters = counters.get(level).get(mode);
+		LatencyHistogram waits = lockCounters.waits.snapshot();
+
+		// Uncontended acquisitions are not timed; they count as no wait.
+		waits.record(0, lockCounters.acquisitions.sum() - waits.getTotalCount());
+		return waits;
+	}
+
+	/**
+	 * Gets a snapshot of the hold times of a lock level in a mode; only the
+	 * database-level lock has them.
+	 *
+	 * @param level
+	 *            the lock level
+	 * @param mode
+	 *            the lock mode
+	 * @return the hold time histogram
+	 */
+	public LatencyHistogram getHolds(LockLevel level, LockMode mode) {
+		return counters.get(level).get(mode).holds.snapshot();
+	}
+
+	/**
+	 * Gets the mean queue length seen by the contended acquisitions of a lock
+	 * level in a mode.
+	 *
+	 * @param level
+	 *            the lock level
+	 * @param mode
+	 *            the lock mode
+	 * @return the mean queue length
+	 */
+	public double getMeanQueueLength(LockLevel level, LockMode mode) {
+		long contended = getContendedAcquisitions(level, mode);
+		return contended == 0 ? 0 : (double) counters.get(level).get(mode).queueLengths.sum() / contended;
+	}
+
+	/**
+	 * Gets the longest queue seen by a contended acquisition of a lock level
+	 * in a mode.
+	 *
+	 * @param level
+	 *            the lock level
+	 * @param mode
+	 *            the lock mode
+	 * @return the queue length
+	 */
+	public long getMaxQueueLength(LockLevel level, LockMode mode) {
+		return counters.get(level).get(mode).maxQueueLength.get();
+	}
+
+	/**
+	 * Gets the ISBNs whose operations waited the longest for their locks,
+	 * longest first.
+	 *
+	 * @param numItems
+	 *            the maximum number of ISBNs
+	 * @return the ISBNs
+	 */
+	public List<Integer> getTopContendedIsbns(int numItems) {
+		List<Map.Entry<Integer, Long>> waits = new ArrayList<>();
+
+		for (Map.Entry<Integer, ItemCounters> item : items.entrySet()) {
+			waits.add(new AbstractMap.SimpleEntry<>(item.getKey(), item.getValue().waitNanos.sum()));
+		}
+
+		waits.sort(Map.Entry.<Integer, Long> comparingByValue(Comparator.reverseOrder()));
+		List<Integer> isbns = new ArrayList<>();
+
+		for (int i = 0; i < Math.min(numItems, waits.size()); i++) {
+			isbns.add(waits.get(i).getKey());
+		}
+
+		return isbns;
+	}
+
+	/**
+	 * Gets the number of contended acquisitions charged to an ISBN.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the number of contended acquisitions
+	 */
+	public long getItemContendedAcquisitions(Integer isbn) {
+		ItemCounters itemCounters = items.get(isbn);
+		return itemCounters == null ? 0 : itemCounters.contendedAcquisitions.sum();
+	}
+
+	/**
+	 * Gets the wait charged to an ISBN.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the wait in nanoseconds
+	 */
+	public long getItemWaitNanos(Integer isbn) {
+		ItemCounters itemCounters = items.get(isbn);
+		return itemCounters == null ? 0 : itemCounters.waitNanos.sum();
+	}
+
+	/**
+	 * Renders the metrics as JSON.
+	 *
+	 * @return the JSON document
+	 */
+	public String toJson() {
+		StringBuilder json = new StringBuilder("{");
+
+		for (LockLevel level : LockLevel.values()) {
+			json.append('"').append(getName(level)).append("\":{");
+
+			for (LockMode mode : LockMode.values()) {
+				LatencyHistogram waits = getWaits(level, mode);
+				json.append('"').append(getName(mode)).append("\":{\"acquisitions\":")
+						.append(getAcquisitions(level, mode)).append(",\"contended\":")
+						.append(getContendedAcquisitions(level, mode)).append(",\"waitP50Micros\":")
+						.append(toMicros(waits.getPercentile(0.5))).append(",\"waitP99Micros\":")
+						.append(toMicros(waits.getPercentile(0.99))).append(",\"waitMaxMicros\":")
+						.append(toMicros(waits.getMax()));
+
+				if (level == LockLevel.DATABASE) {
+					LatencyHistogram holds = getHolds(level, mode);
+					json.append(",\"holdP50Micros\":").append(toMicros(holds.getPercentile(0.5)))
+							.append(",\"holdP99Micros\":").append(toMicros(holds.getPercentile(0.99)))
+							.append(",\"holdMaxMicros\":").append(toMicros(holds.getMax()));
+				}
+
+				json.append(",\"meanQueueLength\":").append(Math.round(getMeanQueueLength(level, mode) * 10) / 10.0)
+						.append(",\"maxQueueLength\":").append(getMaxQueueLength(level, mode)).append('}')
+						.append(mode == LockMode.READ ? "," : "");
+			}
+
+			json.append("},");
+		}
+
+		json.append("\"topContendedItems\":[");
+		String separator = "";
+
+		for (Integer isbn : getTopContendedIsbns(TOP_CONTENDED_ITEMS)) {
+			json.append(separator).append("{\"isbn\":").append(isbn).append(",\"contended\":")
+					.append(getItemContendedAcquisitions(isbn)).append(",\"waitMicros\":")
+					.append(toMicros(getItemWaitNanos(isbn))).append('}');
+			separator = ",";
+		}
+
+		return json.append("]}").toString();
+	}
+
+	/**
+	 * Renders the metrics in the Prometheus text exposition format. Every
+	 * metric is labeled with the store, the lock level and the lock mode.
+	 *
+	 * @param store
+	 *            the store label
+	 * @return the metrics
+	 */
+	public String toPrometheus(String store) {
+		StringBuilder metrics = new StringBuilder();
+
+		metrics.append("# TYPE bookstore_lock_acquisitions_total counter\n");
+		appendByLevelAndMode(metrics, "bookstore_lock_acquisitions_total", store, "",
+				(level, mode) -> (double) getAcquisitions(level, mode));
+
+		metrics.append("# TYPE bookstore_lock_contended_acquisitions_total counter\n");
+		appendByLevelAndMode(metrics, "bookstore_lock_contended_acquisitions_total", store, "",
+				(level, mode) -> (double) getContendedAcquisitions(level, mode));
+
+		metrics.append("# TYPE bookstore_lock_wait_seconds summary\n");
+		appendByLevelAndMode(metrics, "bookstore_lock_wait_seconds", store, ",quantile=\"0.99\"",
+				(level, mode) -> getWaits(level, mode).getPercentile(0.99) / 1e9);
+
+		metrics.append("# TYPE bookstore_lock_hold_seconds summary\n");
+		for (LockMode mode : LockMode.values()) {
+			metrics.append("bookstore_lock_hold_seconds{store=\"").append(store).append("\",level=\"")
+					.append(getName(LockLevel.DATABASE)).append("\",mode=\"").append(getName(mode))
+					.append("\",quantile=\"0.99\"} ")
+					.append(getHolds(LockLevel.DATABASE, mode).getPercentile(0.99) / 1e9).append('\n');
+		}
+
+		metrics.append("# TYPE bookstore_lock_max_queue_length gauge\n");
+		appendByLevelAndMode(metrics, "bookstore_lock_max_queue_length", store, "",
+				(level, mode) -> (double) getMaxQueueLength(level, mode));
+
+		metrics.append("# TYPE bookstore_lock_item_wait_seconds_total counter\n");
+
+		for (Integer isbn : getTopContendedIsbns(TOP_CONTENDED_ITEMS)) {
+			metrics.append("bookstore_lock_item_wait_seconds_total{store=\"").append(store).append("\",isbn=\"")
+					.append(isbn).append("\"} ").append(getItemWaitNanos(isbn) / 1e9).append('\n');
+		}
+
+		return metrics.toString();
+	}
+
+	/**
+	 * Appends a sample of a metric for every lock level and mode.
+	 *
+	 * @param metrics
+	 *            the metrics
+	 * @param name
+	 *            the metric name
+	 * @param store
+	 *            the store label
+	 * @param extraLabels
+	 *            the labels after the lock mode, starting with a comma
+	 * @param value
+	 *            the value by lock level and mode
+	 */
+	private static void appendByLevelAndMode(StringBuilder metrics, String name, String store, String extraLabels,
+			BiFunction<LockLevel, LockMode, Double> value) {
+		for (LockLevel level : LockLevel.values()) {
+			for (LockMode mode : LockMode.values()) {
+				metrics.append(name).append("{store=\"").append(store).append("\",level=\"").append(getName(level))
+						.append("\",mode=\"").append(getName(mode)).append('"').append(extraLabels).append("} ")
+						.append(value.apply(level, mode)).append('\n');
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.BookStoreLockStatsMXBean#
+	 * getDatabaseLockAcquisitions()
+	 */
+	@Override
+	public long getDatabaseLockAcquisitions() {
+		return getAcquisitions(LockLevel.DATABASE, LockMode.READ) + getAcquisitions(LockLevel.DATABASE, LockMode.WRITE);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.BookStoreLockStatsMXBean#
+	 * getDatabaseLockContendedAcquisitions()
+	 */
+	@Override
+	public long getDatabaseLockContendedAcquisitions() {
+		return getContendedAcquisitions(LockLevel.DATABASE, LockMode.READ)
+				+ getContendedAcquisitions(LockLevel.DATABASE, LockMode.WRITE);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.BookStoreLockStatsMXBean#
+	 * getDatabaseLockWaitP99Micros()
+	 */
+	@Override
+	public double getDatabaseLockWaitP99Micros() {
+		return getPercentileMicros(LockLevel.DATABASE, true);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.BookStoreLockStatsMXBean#
+	 * getDatabaseLockHoldP99Micros()
+	 */
+	@Override
+	public double getDatabaseLockHoldP99Micros() {
+		return getPercentileMicros(LockLevel.DATABASE, false);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.BookStoreLockStatsMXBean#
+	 * getDatabaseLockMaxQueueLength()
+	 */
+	@Override
+	public long getDatabaseLockMaxQueueLength() {
+		return Math.max(getMaxQueueLength(LockLevel.DATABASE, LockMode.READ),
+				getMaxQueueLength(LockLevel.DATABASE, LockMode.WRITE));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.business.BookStoreLockStatsMXBean#getItemLockAcquisitions()
+	 */
+	@Override
+	public long getItemLockAcquisitions() {
+		return getAcquisitions(LockLevel.ITEM, LockMode.READ) + getAcquisitions(LockLevel.ITEM, LockMode.WRITE);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.BookStoreLockStatsMXBean#
+	 * getItemLockContendedAcquisitions()
+	 */
+	@Override
+	public long getItemLockContendedAcquisitions() {
+		return getContendedAcquisitions(LockLevel.ITEM, LockMode.READ)
+				+ getContendedAcquisitions(LockLevel.ITEM, LockMode.WRITE);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.business.BookStoreLockStatsMXBean#getItemLockWaitP99Micros()
+	 */
+	@Override
+	public double getItemLockWaitP99Micros() {
+		return getPercentileMicros(LockLevel.ITEM, true);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.business.BookStoreLockStatsMXBean#
+	 * getItemLockMaxQueueLength()
+	 */
+	@Override
+	public long getItemLockMaxQueueLength() {
+		return Math.max(getMaxQueueLength(LockLevel.ITEM, LockMode.READ),
+				getMaxQueueLength(LockLevel.ITEM, LockMode.WRITE));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.business.BookStoreLockStatsMXBean#getTopContendedItems()
+	 */
+	@Override
+	public String[] getTopContendedItems() {
+		List<String> descriptions = new ArrayList<>();
+
+		for (Integer isbn : getTopContendedIsbns(TOP_CONTENDED_ITEMS)) {
+			descriptions.add(String.format(Locale.ROOT, "%d: %d contended, %.1f us waited", isbn,
+					getItemContendedAcquisitions(isbn), toMicros(getItemWaitNanos(isbn))));
+		}
+
+		return descriptions.toArray(new String[0]);
+	}
+
+	/**
+	 * Gets the 99th percentile of the waits or hold times of a lock level in
+	 * both modes.
+	 *
+	 * @param level
+	 *            the lock level
+	 * @param waits
+	 *            true for the waits, false for the hold times
+	 * @return the percentile in microseconds
+	 */
+	private double getPercentileMicros(LockLevel level, boolean waits) {
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		for (LockMode mode : LockMode.values()) {
+			histogram.add(waits ? getWaits(level, mode) : getHolds(level, mode));
+		}
+
+		return toMicros(histogram.getPercentile(0.99));
+	}
+
+	/**
+	 * Gets the name of an enumeration constant as used in the metrics.
+	 *
+	 * @param constant
+	 *            the constant
+	 * @return the name
+	 */
+	private static String getName(Enum<?> constant) {
+		return constant.name().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Converts nanoseconds to microseconds.
+	 *
+	 * @param nanos
+	 *            the nanoseconds
+	 * @return the microseconds, rounded to a tenth
+	 */
+	private static double toMicros(double nanos) {
+		return Math.round(nanos / 100.0) / 10.0;
+	}
+
+	/**
+	 * {@link LockCounters} holds the metrics of a lock level in a mode.
+	 */
+	private static final class LockCounters {
+
+		/** The number of acquisitions. */
+		private final LongAdder acquisitions = new LongAdder();
+
+		/** The number of contended acquisitions. */
+		private final LongAdder contendedAcquisitions = new LongAdder();
+
+		/** The sum of the queue lengths seen by contended acquisitions. */
+		private final LongAdder queueLengths = new LongAdder();
+
+		/** The longest queue seen by a contended acquisition. */
+		private final LongAccumulator maxQueueLength = new LongAccumulator(Math::max, 0);
+
+		/** The waits. */
+		private final ConcurrentLatencyHistogram waits = new ConcurrentLatencyHistogram();
+
+		/** The hold times. */
+		private final ConcurrentLatencyHistogram holds = new ConcurrentLatencyHistogram();
+	}
+
+	/**
+	 * {@link ThreadLockState} holds the operation of a thread under the
+	 * database-level lock until it is recorded.
+	 */
+	private static final class ThreadLockState {
+
+		/** The number of read holds of the database-level lock. */
+		private int readHolds = 0;
+
+		/** Whether the database-level lock acquisition was contended. */
+		private boolean contended = false;
+
+		/** The queue length seen by the database-level lock acquisition. */
+		private int queueLength = 0;
+
+		/** The wait for the database-level lock in nanoseconds. */
+		private long waitNanos = 0;
+
+		/** The total wait for the locks of the store in nanoseconds. */
+		private long totalWaitNanos = 0;
+
+		/** The time the database-level lock was acquired. */
+		private long acquiredAt = 0;
+
+		/** The uncontended item lock acquisitions by lock mode. */
+		private final long[] itemAcquisitions = new long[LockMode.values().length];
+
+		/** The ISBNs charged with the wait for the database-level lock. */
+		private final List<Integer> chargedIsbns = new ArrayList<>();
+	}
+
+	/**
+	 * {@link ItemCounters} holds the contention charged to an ISBN.
+	 */
+	private static final class ItemCounters {
+
+		/** The number of contended acquisitions. */
+		private final LongAdder contendedAcquisitions = new LongAdder();
+
+		/** The wait in nanoseconds. */
+		private final LongAdder waitNanos = new LongAdder();
+	}
+}
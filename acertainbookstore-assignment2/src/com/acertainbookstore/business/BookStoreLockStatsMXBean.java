@@ -0,0 +1,83 @@
+package com.acertainbookstore.business;
+
+/**
+ * {@link BookStoreLockStatsMXBean} is the JMX view of the
+ * {@link BookStoreLockStats} of a store. Latencies are in microseconds and
+ * cover both the read and the write mode of the locks.
+ */
+public interface BookStoreLockStatsMXBean {
+
+	/**
+	 * Gets the number of acquisitions of the database-level lock.
+	 *
+	 * @return the number of acquisitions
+	 */
+	public long getDatabaseLockAcquisitions();
+
+	/**
+	 * Gets the number of acquisitions of the database-level lock that found
+	 * it held or other threads queued.
+	 *
+	 * @return the number of contended acquisitions
+	 */
+	public long getDatabaseLockContendedAcquisitions();
+
+	/**
+	 * Gets the 99th percentile of the wait for the database-level lock.
+	 *
+	 * @return the wait in microseconds
+	 */
+	public double getDatabaseLockWaitP99Micros();
+
+	/**
+	 * Gets the 99th percentile of the hold time of the database-level lock.
+	 *
+	 * @return the hold time in microseconds
+	 */
+	public double getDatabaseLockHoldP99Micros();
+
+	/**
+	 * Gets the longest queue seen by a contended acquisition of the
+	 * database-level lock.
+	 *
+	 * @return the queue length
+	 */
+	public long getDatabaseLockMaxQueueLength();
+
+	/**
+	 * Gets the number of acquisitions of the item locks.
+	 *
+	 * @return the number of acquisitions
+	 */
+	public long getItemLockAcquisitions();
+
+	/**
+	 * Gets the number of acquisitions of the item locks that found them held
+	 * or other threads queued.
+	 *
+	 * @return the number of contended acquisitions
+	 */
+	public long getItemLockContendedAcquisitions();
+
+	/**
+	 * Gets the 99th percentile of the wait for an item lock.
+	 *
+	 * @return the wait in microseconds
+	 */
+	public double getItemLockWaitP99Micros();
+
+	/**
+	 * Gets the longest queue seen by a contended acquisition of an item lock.
+	 *
+	 * @return the queue length
+	 */
+	public long getItemLockMaxQueueLength();
+
+	/**
+	 * Gets the most contended ISBNs with their contended acquisitions and
+	 * wait, most waited for first.
+	 *
+	 * @return the descriptions of the most contended ISBNs
+	 */
+	public String[] getTopContendedItems();
+}
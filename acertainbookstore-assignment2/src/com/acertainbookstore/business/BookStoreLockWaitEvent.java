@@ -0,0 +1,37 @@
+package com.acertainbookstore.business;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * {@link BookStoreLockWaitEvent} is the Java Flight Recorder event of a
+ * contended acquisition of a store lock. Its duration is the wait; only waits
+ * longer than the threshold of the recording, 1 ms by default, are recorded.
+ */
+@Name("com.acertainbookstore.LockWait")
+@Label("Bookstore Lock Wait")
+@Category({ "Bookstore", "Store" })
+@Description("A wait for a database-level or item lock of a bookstore store")
+@Threshold("1 ms")
+final class BookStoreLockWaitEvent extends Event {
+
+	/** The lock level. */
+	@Label("Lock Level")
+	String lockLevel;
+
+	/** The lock mode. */
+	@Label("Lock Mode")
+	String lockMode;
+
+	/** The ISBN of an item lock, 0 for the database-level lock. */
+	@Label("ISBN")
+	int isbn;
+
+	/** The number of threads queued before the acquisition. */
+	@Label("Queue Length")
+	int queueLength;
+}
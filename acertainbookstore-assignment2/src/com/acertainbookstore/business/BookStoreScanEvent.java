@@ -0,0 +1,69 @@
+package com.acertainbookstore.business;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * {@link BookStoreScanEvent} is the Java Flight Recorder event of a read of
+ * several books from a store, from taking its locks to copying the books.
+ */
+@Name("com.acertainbookstore.Scan")
+@Label("Bookstore Scan")
+@Category({ "Bookstore", "Store" })
+@Description("A read of several books from a bookstore store")
+@StackTrace(false)
+final class BookStoreScanEvent extends Event {
+
+	/** The scan of the books of a set of ISBNs. */
+	static final String GET_BOOKS = "getBooks";
+
+	/** The scan of the editor picks. */
+	static final String GET_EDITOR_PICKS = "getEditorPicks";
+
+	/** The scan of the whole stock. */
+	static final String LIST_BOOKS = "listBooks";
+
+	/** The store. */
+	@Label("Store")
+	String store;
+
+	/** The operation. */
+	@Label("Operation")
+	String operation;
+
+	/** The number of books requested, or in the store for a full scan. */
+	@Label("Books Requested")
+	int booksRequested;
+
+	/** The number of books returned. */
+	@Label("Books Returned")
+	int booksReturned;
+
+	/**
+	 * Ends the scan and commits the event if the recording wants it.
+	 *
+	 * @param scannedStore
+	 *            the store
+	 * @param scanOperation
+	 *            the operation
+	 * @param requested
+	 *            the number of books requested
+	 * @param returned
+	 *            the number of books returned
+	 */
+	void complete(Object scannedStore, String scanOperation, int requested, int returned) {
+		end();
+
+		if (shouldCommit()) {
+			store = scannedStore.getClass().getSimpleName();
+			operation = scanOperation;
+			booksRequested = requested;
+			booksReturned = returned;
+			commit();
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package com.acertainbookstore.business;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * {@link BookStoreSnapshot} is a catalog snapshot file, mapped read-only into
+ * memory. The replicas of one host that map the same file share its pages in
+ * the page cache, so the catalog is held in memory once however many replicas
+ * serve it, and the books are only decoded when they are read.
+ *
+ * The file starts with a header: the magic number, the format version, the
+ * epoch and sequence number of the change log position of the snapshot and
+ * the number of books. An index of (ISBN, offset) pairs sorted by ISBN
+ * follows, then the records of the books: the price, the number of copies,
+ * sale misses and times rated, the total rating, the editor pick flag, and
+ * the title and the author as length-prefixed UTF-8.
+ */
+public final class BookStoreSnapshot {
+
+	/** The magic number of snapshot files. */
+	private static final int MAGIC = 0x42534e50;
+
+	/** The format version. */
+	private static final int FORMAT_VERSION = 1;
+
+	/** The size of the header in bytes. */
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+
+	/** The size of an index entry in bytes. */
+	private static final int INDEX_ENTRY_SIZE = 4 + 4;
+
+	/** The size of the fixed part of a record in bytes. */
+	private static final int RECORD_FIXED_SIZE = 4 + 4 + 8 + 8 + 8 + 1;
+
+	/** The mapped file, only read with absolute gets. */
+	private final MappedByteBuffer buffer;
+
+	/** The epoch of the change log position. */
+	private final long epoch;
+
+	/** The sequence number of the change log position. */
+	private final long sequence;
+
+	/** The number of books. */
+	private final int size;
+
+	/**
+	 * Instantiates a new {@link BookStoreSnapshot}.
+	 *
+	 * @param buffer
+	 *            the mapped file
+	 * @throws IOException
+	 *             if the file is not a snapshot
+	 */
+	private BookStoreSnapshot(MappedByteBuffer buffer) throws IOException {
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+			throw new IOException("Not a snapshot file of format version " + FORMAT_VERSION);
+		}
+
+		this.buffer = buffer;
+		this.epoch = buffer.getLong(8);
+		this.sequence = buffer.getLong(16);
+		this.size = buffer.getInt(24);
+	}
+
+	/**
+	 * Maps a snapshot file read-only.
+	 *
+	 * @param file
+	 *            the snapshot file
+	 * @return the snapshot
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static BookStoreSnapshot open(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			// The mapping stays valid after the channel is closed.
+			return new BookStoreSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Writes a snapshot file. The file is written next to its final name and
+	 * then moved in place atomically, so that a replica never maps a partly
+	 * written snapshot, and the replicas that mapped the replaced file keep
+	 * reading it.
+	 *
+	 * @param file
+	 *            the snapshot file
+	 * @param epoch
+	 *            the epoch of the change log position
+	 * @param sequence
+	 *            the sequence number of the change log position
+	 * @param books
+	 *            the books
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static void write(Path file, long epoch, long sequence, Collection<? extends StockBook> books)
+			throws IOException {
+		List<StockBook> sortedBooks = new ArrayList<>(books);
+		sortedBooks.sort(Comparator.comparingInt(StockBook::getISBN));
+
+		List<byte[]> titles = new ArrayList<>(sortedBooks.size());
+		List<byte[]> authors = new ArrayList<>(sortedBooks.size());
+		long fileSize = HEADER_SIZE + (long) INDEX_ENTRY_SIZE * sortedBooks.size();
+
+		for (StockBook book : sortedBooks) {
+			byte[] title = book.getTitle().getBytes(StandardCharsets.UTF_8);
+			byte[] author = book.getAuthor().getBytes(StandardCharsets.UTF_8);
+			titles.add(title);
+			authors.add(author);
+			fileSize += RECORD_FIXED_SIZE + 4 + title.length + 4 + author.length;
+		}
+
+		if (fileSize > Integer.MAX_VALUE) {
+			throw new IOException("The snapshot does not fit in one mapping");
+		}
+
+		ByteBuffer out = ByteBuffer.allocate((int) fileSize);
+		out.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(epoch).putLong(sequence).putInt(sortedBooks.size());
+		int offset = HEADER_SIZE + INDEX_ENTRY_SIZE * sortedBooks.size();
+
+		for (int i = 0; i < sortedBooks.size(); i++) {
+			out.putInt(sortedBooks.get(i).getISBN()).putInt(offset);
+			offset += RECORD_FIXED_SIZE + 4 + titles.get(i).length + 4 + authors.get(i).length;
+		}
+
+		for (int i = 0; i < sortedBooks.size(); i++) {
+			StockBook book = sortedBooks.get(i);
+			out.putFloat(book.getPrice()).putInt(book.getNumCopies()).putLong(book.getNumSaleMisses())
+					.putLong(book.getNumTimesRated()).putLong(book.getTotalRating())
+					.put((byte) (book.isEditorPick() ? 1 : 0));
+			out.putInt(titles.get(i).length).put(titles.get(i));
+			out.putInt(authors.get(i).length).put(authors.get(i));
+		}
+
+		Path directory = file.toAbsolutePath().getParent();
+		Path temporaryFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+
+		try {
+			try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+				out.flip();
+
+				while (out.hasRemaining()) {
+					channel.write(out);
+				}
+
+				channel.force(false);
+			}
+
+			Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporaryFile);
+		}
+	}
+
+	/**
+	 * Gets the epoch of the change log position.
+	 *
+	 * @return the epoch
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Gets the sequence number of the change log position.
+	 *
+	 * @return the sequence number
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Gets the number of books.
+	 *
+	 * @return the number of books
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the ISBN of the book at an index, in ISBN order.
+	 *
+	 * @param index
+	 *            the index
+	 * @return the ISBN
+	 */
+	public int getISBN(int index) {
+		return buffer.getInt(HEADER_SIZE + INDEX_ENTRY_SIZE * index);
+	}
+
+	/**
+	 * Finds the index of a book by binary search.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the index, or -1 if the book is not in the snapshot
+	 */
+	public int indexOf(int isbn) {
+		int low = 0;
+		int high = size - 1;
+
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int middleISBN = getISBN(middle);
+
+			if (middleISBN < isbn) {
+				low = middle + 1;
+			} else if (middleISBN > isbn) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Checks whether the book at an index is an editor pick, without decoding
+	 * it.
+	 *
+	 * @param index
+	 *            the index
+	 * @return true, if the book is an editor pick
+	 */
+	public boolean isEditorPick(int index) {
+		return buffer.get(getOffset(index) + RECORD_FIXED_SIZE - 1) != 0;
+	}
+
+	/**
+	 * Decodes the book at an index.
+	 *
+	 * @param index
+	 *            the index
+	 * @return the book
+	 */
+	public StockBook getBook(int index) {
+		int offset = getOffset(index);
+		float price = buffer.getFloat(offset);
+		int numCopies = buffer.getInt(offset + 4);
+		long numSaleMisses = buffer.getLong(offset + 8);
+		long numTimesRated = buffer.getLong(offset + 16);
+		long totalRating = buffer.getLong(offset + 24);
+		boolean editorPick = buffer.get(offset + 32) != 0;
+		offset += RECORD_FIXED_SIZE;
+		String title = getString(offset);
+		offset += 4 + buffer.getInt(offset);
+		String author = getString(offset);
+
+		return new ImmutableStockBook(getISBN(index), title, author, price, numCopies, numSaleMisses, numTimesRated,
+				totalRating, editorPick);
+	}
+
+	/**
+	 * Gets the offset of the record of the book at an index.
+	 *
+	 * @param index
+	 *            the index
+	 * @return the offset
+	 */
+	private int getOffset(int index) {
+		return buffer.getInt(HEADER_SIZE + INDEX_ENTRY_SIZE * index + 4);
+	}
+
+	/**
+	 * Decodes a length-prefixed UTF-8 string.
+	 *
+	 * @param offset
+	 *            the offset of the length
+	 * @return the string
+	 */
+	private String getString(int offset) {
+		byte[] bytes = new byte[buffer.getInt(offset)];
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset + 4);
+		view.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,163 @@
+package com.acertainbookstore.business;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link BookStoreStockEscrow} holds the copies in stock of a hot book split
+ * into slices, each guarded by its own lock. A purchase draws from the slice
+ * of its thread, so concurrent purchases of the book mostly take different
+ * locks. When the slice of a purchase runs dry, the purchase locks all
+ * slices, checks the total and spreads what is left evenly again.
+ *
+ * Reading the exact number of copies locks all slices in index order, like
+ * the rebalancing, so it never sees copies moving between slices.
+ */
+final class BookStoreStockEscrow {
+
+	/** The slices. */
+	private final Slice[] slices;
+
+	/**
+	 * Instantiates a new {@link BookStoreStockEscrow}.
+	 *
+	 * @param numCopies
+	 *            the number of copies
+	 * @param numSlices
+	 *            the number of slices
+	 */
+	BookStoreStockEscrow(int numCopies, int numSlices) {
+		slices = new Slice[numSlices];
+
+		for (int i = 0; i < numSlices; i++) {
+			slices[i] = new Slice();
+		}
+
+		spread(numCopies);
+	}
+
+	/**
+	 * Draws copies, from the slice of the current thread if it has enough.
+	 *
+	 * @param numCopies
+	 *            the number of copies
+	 * @return true, if the copies were drawn, false if there are not enough
+	 *         copies in stock
+	 */
+	boolean draw(int numCopies) {
+		Slice slice = slices[(int) (Thread.currentThread().getId() % slices.length)];
+		slice.lock();
+
+		try {
+			if (slice.copies >= numCopies) {
+				slice.copies -= numCopies;
+				return true;
+			}
+		} finally {
+			slice.unlock();
+		}
+
+		// The slice ran dry, so draw from the total and rebalance.
+		lockAll();
+
+		try {
+			int total = sum();
+
+			if (total < numCopies) {
+				return false;
+			}
+
+			spread(total - numCopies);
+			return true;
+		} finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * Adds copies, spreading them over the slices.
+	 *
+	 * @param numCopies
+	 *            the number of copies
+	 */
+	void add(int numCopies) {
+		lockAll();
+
+		try {
+			spread(sum() + numCopies);
+		} finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * Gets the number of copies in all slices.
+	 *
+	 * @return the number of copies
+	 */
+	int getCopies() {
+		lockAll();
+
+		try {
+			return sum();
+		} finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * Locks all slices in index order, so that the copies can be read or
+	 * moved. The lock is reentrant, so the copies can be read while holding
+	 * it.
+	 */
+	void lockAll() {
+		for (Slice slice : slices) {
+			slice.lock();
+		}
+	}
+
+	/**
+	 * Unlocks all slices.
+	 */
+	void unlockAll() {
+		for (int i = slices.length - 1; i >= 0; i--) {
+			slices[i].unlock();
+		}
+	}
+
+	/**
+	 * Sums the copies of the slices, which must all be locked.
+	 *
+	 * @return the number of copies
+	 */
+	private int sum() {
+		int total = 0;
+
+		for (Slice slice : slices) {
+			total += slice.copies;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Spreads copies evenly over the slices, which must all be locked.
+	 *
+	 * @param numCopies
+	 *            the number of copies
+	 */
+	private void spread(int numCopies) {
+		for (int i = 0; i < slices.length; i++) {
+			slices[i].copies = numCopies / slices.length + (i < numCopies % slices.length ? 1 : 0);
+		}
+	}
+
+	/**
+	 * {@link Slice} is a slice of the copies, guarded by itself.
+	 */
+	@SuppressWarnings("serial")
+	private static final class Slice extends ReentrantLock {
+
+		/** The number of copies. */
+		private int copies;
+	}
+}
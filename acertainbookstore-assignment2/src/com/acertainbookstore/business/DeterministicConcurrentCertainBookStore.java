@@ -0,0 +1,836 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.interfaces.VersionedCatalog;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.VersionedBook;
+
+/**
+ * {@link DeterministicConcurrentCertainBookStore} implements the
+ * {@link BookStore} and {@link StockManager} functionalities with a
+ * deterministic scheduler for the stock updates, in the style of Calvin.
+ *
+ * The buyBooks and addCopies calls are not run by their callers. A sequencer
+ * thread gathers them into epochs of at most {@link #EPOCH_MILLIS} and
+ * {@link #MAX_EPOCH_SIZE} transactions, and the order in which it takes them
+ * is the order in which they are applied. The books are partitioned by ISBN
+ * over one worker per partition. The workers run an epoch together, each
+ * applying the transactions of its partition in epoch order, so that no
+ * book is touched by two workers and no item lock is needed. A transaction
+ * spanning several partitions is applied by the worker of its lowest
+ * partition, once the workers of the other partitions have reached it and
+ * wait for it. As every worker follows the same order, they never wait on
+ * each other in a cycle.
+ *
+ * An epoch runs under the exclusive database lock; the reads and the other
+ * writes take the database lock as in {@link SingleLockConcurrentCertainBookStore}.
+ * A caller waits up to one epoch before its transaction runs, in exchange
+ * for purchases of the same books no longer contending on locks.
+ *
+ * @see BookStore
+ * @see StockManager
+ */
+public class DeterministicConcurrentCertainBookStore implements BookStore, StockManager, VersionedCatalog {
+
+	/** The maximum time in milliseconds a transaction waits for its epoch. */
+	private static final long EPOCH_MILLIS = 1;
+
+	/** The maximum number of transactions of an epoch. */
+	private static final int MAX_EPOCH_SIZE = 1024;
+
+	/** The number of partitions of the books, and of workers. */
+	private static final int NUM_PARTITIONS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	/** The mapping of books from ISBN to {@link BookStoreBook}. */
+	private final Map<Integer, BookStoreBook> bookMap = new HashMap<>();
+
+	/** The read-write lock on the entire database. */
+	private final ReentrantReadWriteLock dbLock = new ReentrantReadWriteLock();
+
+	/**
+	 * The catalog version, also incremented by ratings under the read lock.
+	 */
+	private final AtomicLong catalogVersion = new AtomicLong();
+
+	/** The transactions waiting for their epoch. */
+	private final BlockingQueue<Transaction> pendingTransactions = new LinkedBlockingQueue<>();
+
+	/** The workers of the partitions. */
+	private final ExecutorService partitionWorkers = Executors.newFixedThreadPool(NUM_PARTITIONS, runnable -> {
+		Thread thread = new Thread(runnable, "bookstore-partition-worker");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/** The sequencer thread. */
+	private final Thread sequencer;
+
+	/** Whether the store is running. */
+	private volatile boolean running = true;
+
+	/**
+	 * Instantiates a new {@link DeterministicConcurrentCertainBookStore}.
+	 */
+	public DeterministicConcurrentCertainBookStore() {
+		sequencer = new Thread(this::sequenceEpochs, "bookstore-sequencer");
+		sequencer.setDaemon(true);
+		sequencer.start();
+	}
+
+	/**
+	 * Stops the sequencer and the workers. An epoch running is applied to the
+	 * end; the transactions not applied yet fail, as do the transactions
+	 * handed in while it stops.
+	 */
+	public void stop() {
+		running = false;
+		sequencer.interrupt();
+	}
+
+	private void validate(StockBook book) throws BookStoreException {
+		int isbn = book.getISBN();
+		String bookTitle = book.getTitle();
+		String bookAuthor = book.getAuthor();
+		int noCopies = book.getNumCopies();
+		float bookPrice = book.getPrice();
+
+		if (BookStoreUtility.isInvalidISBN(isbn)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookTitle)) { // Check if the book has valid title
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookAuthor)) { // Check if the book has valid author
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isInvalidNoCopies(noCopies)) { // Check if the book has at least one copy
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (bookPrice < 0.0) { // Check if the price of the book is valid
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (bookMap.containsKey(isbn)) {// Check if the book is not in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.DUPLICATED);
+		}
+	}
+
+	private void validate(BookEditorPick editorPickArg) throws BookStoreException {
+		int isbn = editorPickArg.getISBN();
+		validateISBNInStock(isbn); // Check if the book has valid ISBN and in stock
+	}
+
+	private void validate(BookRating rating) throws BookStoreException {
+		validateISBNInStock(rating.getISBN()); // Check if the book has valid ISBN and in stock
+
+		if (BookStoreUtility.isInvalidRating(rating.getRating())) { // Check if the rating is between 0 and 5
+			throw new BookStoreException(BookStoreConstants.RATING + rating.getRating() + BookStoreConstants.INVALID);
+		}
+	}
+
+	private void validateISBNInStock(Integer ISBN) throws BookStoreException {
+		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+		}
+		if (!bookMap.containsKey(ISBN)) {// Check if the book is in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+		}
+	}
+
+	/**
+	 * Checks the book copies of a transaction before it is sequenced. Whether
+	 * the books are in stock is only known when the transaction is applied.
+	 *
+	 * @param bookCopies
+	 *            the book copies
+	 * @throws BookStoreException
+	 *             if an ISBN or a number of copies is invalid
+	 */
+	private static void validateInput(Set<BookCopy> bookCopies) throws BookStoreException {
+		if (bookCopies == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		for (BookCopy bookCopy : bookCopies) {
+			if (BookStoreUtility.isInvalidISBN(bookCopy.getISBN())) {
+				throw new BookStoreException(BookStoreConstants.ISBN + bookCopy.getISBN() + BookStoreConstants.INVALID);
+			}
+
+			if (BookStoreUtility.isInvalidNoCopies(bookCopy.getNumCopies())) {
+				throw new BookStoreException(
+						BookStoreConstants.NUM_COPIES + bookCopy.getNumCopies() + BookStoreConstants.INVALID);
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
+	 */
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		if (bookSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		dbLock.writeLock().lock();
+		try {
+			for (StockBook book : bookSet) {
+				validate(book);
+			}
+
+			for (StockBook book : bookSet) {
+				bookMap.put(book.getISBN(), new BookStoreBook(book));
+			}
+
+			catalogVersion.incrementAndGet();
+		} finally {
+			dbLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
+	 */
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		validateInput(bookCopiesSet);
+		execute(new Transaction(bookCopiesSet, false));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	public List<StockBook> getBooks() {
+		BookStoreScanEvent event = new BookStoreScanEvent();
+		event.begin();
+		dbLock.readLock().lock();
+		List<StockBook> bookList;
+
+		try {
+			bookList = bookMap.values().stream()
+					.map(book -> book.immutableStockBook())
+					.collect(Collectors.toList());
+		} finally {
+			dbLock.readLock().unlock();
+		}
+
+		event.complete(this, BookStoreScanEvent.LIST_BOOKS, bookList.size(), bookList.size());
+		return bookList;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util
+	 * .Set)
+	 */
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+		if (editorPicks == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		dbLock.writeLock().lock();
+		try {
+			for (BookEditorPick editorPickArg : editorPicks) {
+				validate(editorPickArg);
+			}
+
+			for (BookEditorPick editorPickArg : editorPicks) {
+				bookMap.get(editorPickArg.getISBN()).setEditorPick(editorPickArg.isEditorPick());
+			}
+
+			catalogVersion.incrementAndGet();
+		} finally {
+			dbLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
+	 */
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		validateInput(bookCopiesToBuy);
+		execute(new Transaction(bookCopiesToBuy, true));
+	}
+
+	/**
+	 * Hands a transaction to the sequencer and waits until it is applied.
+	 *
+	 * @param transaction
+	 *            the transaction
+	 * @throws BookStoreException
+	 *             if the transaction failed
+	 */
+	private void execute(Transaction transaction) throws BookStoreException {
+		if (transaction.partitions.length == 0) {
+			return;
+		}
+
+		if (!running) {
+			throw new BookStoreException(BookStoreConstants.STORE_STOPPED);
+		}
+
+		pendingTransactions.add(transaction);
+
+		// The sequencer may have drained the queue for the last time since the
+		// check above; a transaction it cannot see any more fails here instead.
+		if (!running && pendingTransactions.remove(transaction)) {
+			throw new BookStoreException(BookStoreConstants.STORE_STOPPED);
+		}
+
+		try {
+			transaction.result.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new BookStoreException(ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof BookStoreException) {
+				throw (BookStoreException) ex.getCause();
+			}
+
+			throw new BookStoreException(ex.getCause());
+		}
+	}
+
+	/**
+	 * Gathers the pending transactions into epochs and runs them until the
+	 * store is stopped.
+	 */
+	private void sequenceEpochs() {
+		List<Transaction> epoch = new ArrayList<>(MAX_EPOCH_SIZE);
+		long epochNanos = TimeUnit.MILLISECONDS.toNanos(EPOCH_MILLIS);
+
+		try {
+			while (running) {
+				epoch.add(pendingTransactions.take());
+				long deadline = System.nanoTime() + epochNanos;
+
+				while (epoch.size() < MAX_EPOCH_SIZE) {
+					Transaction transaction = pendingTransactions.poll(deadline - System.nanoTime(),
+							TimeUnit.NANOSECONDS);
+
+					if (transaction == null) {
+						break;
+					}
+
+					epoch.add(transaction);
+				}
+
+				boolean stopped = runEpoch(epoch);
+
+				// The epoch is applied in full, so only the transactions still
+				// pending fail below.
+				epoch.clear();
+
+				if (stopped) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		} catch (InterruptedException ex) {
+			// The store was stopped.
+		}
+
+		partitionWorkers.shutdownNow();
+
+		BookStoreException stopped = new BookStoreException(BookStoreConstants.STORE_STOPPED);
+		pendingTransactions.drainTo(epoch);
+
+		for (Transaction transaction : epoch) {
+			transaction.result.completeExceptionally(stopped);
+		}
+	}
+
+	/**
+	 * Runs an epoch under the exclusive database lock, with one worker per
+	 * partition that the transactions of the epoch touch, and then hands each
+	 * transaction its result. A stop does not cancel the workers: the epoch is
+	 * applied to the end under the lock, so that every transaction of the
+	 * epoch gets its real outcome.
+	 *
+	 * @param epoch
+	 *            the transactions in epoch order
+	 * @return true, if the store was stopped while running the epoch
+	 */
+	private boolean runEpoch(List<Transaction> epoch) {
+		List<List<Transaction>> schedules = new ArrayList<>(NUM_PARTITIONS);
+
+		for (int partition = 0; partition < NUM_PARTITIONS; partition++) {
+			schedules.add(new ArrayList<>());
+		}
+
+		for (Transaction transaction : epoch) {
+			for (int partition : transaction.partitions) {
+				schedules.get(partition).add(transaction);
+			}
+		}
+
+		List<Callable<Void>> workers = new ArrayList<>();
+
+		for (int partition = 0; partition < NUM_PARTITIONS; partition++) {
+			int workerPartition = partition;
+			List<Transaction> schedule = schedules.get(partition);
+
+			if (!schedule.isEmpty()) {
+				workers.add(() -> {
+					runSchedule(workerPartition, schedule);
+					return null;
+				});
+			}
+		}
+
+		boolean stopped = false;
+
+		dbLock.writeLock().lock();
+		try {
+			// A single partition has no one to wait for, so it runs here.
+			if (workers.size() == 1) {
+				workers.get(0).call();
+			} else {
+				List<Future<Void>> futures = new ArrayList<>(workers.size());
+
+				for (Callable<Void> worker : workers) {
+					futures.add(partitionWorkers.submit(worker));
+				}
+
+				for (Future<Void> future : futures) {
+					while (true) {
+						try {
+							future.get();
+							break;
+						} catch (InterruptedException ex) {
+							// Keep the lock until the workers are done.
+							stopped = true;
+						}
+					}
+				}
+			}
+
+			catalogVersion.incrementAndGet();
+		} catch (Exception ex) {
+			for (Transaction transaction : epoch) {
+				transaction.result.completeExceptionally(new BookStoreException(ex));
+			}
+		} finally {
+			dbLock.writeLock().unlock();
+		}
+
+		for (Transaction transaction : epoch) {
+			transaction.complete();
+		}
+
+		return stopped;
+	}
+
+	/**
+	 * Applies the transactions of a partition in epoch order. The worker of
+	 * the lowest partition of a transaction spanning several partitions
+	 * applies it once the others have arrived, and the others wait until it
+	 * is applied.
+	 *
+	 * @param partition
+	 *            the partition
+	 * @param schedule
+	 *            the transactions of the partition in epoch order
+	 * @throws InterruptedException
+	 *             if the store was stopped
+	 */
+	private void runSchedule(int partition, List<Transaction> schedule) throws InterruptedException {
+		for (Transaction transaction : schedule) {
+			if (transaction.partitions.length == 1) {
+				apply(transaction);
+			} else if (transaction.partitions[0] == partition) {
+				transaction.arrived.await();
+				apply(transaction);
+				transaction.applied.countDown();
+			} else {
+				transaction.arrived.countDown();
+				transaction.applied.await();
+			}
+		}
+	}
+
+	/**
+	 * Applies a transaction, all or nothing. A purchase of copies that are not
+	 * in stock records the sale misses and fails.
+	 *
+	 * @param transaction
+	 *            the transaction
+	 */
+	private void apply(Transaction transaction) {
+		try {
+			for (BookCopy bookCopy : transaction.bookCopies) {
+				validateISBNInStock(bookCopy.getISBN());
+			}
+
+			if (!transaction.purchase) {
+				for (BookCopy bookCopy : transaction.bookCopies) {
+					bookMap.get(bookCopy.getISBN()).addCopies(bookCopy.getNumCopies());
+				}
+
+				return;
+			}
+
+			boolean saleMiss = false;
+
+			for (BookCopy bookCopy : transaction.bookCopies) {
+				BookStoreBook book = bookMap.get(bookCopy.getISBN());
+
+				if (!book.areCopiesInStore(bookCopy.getNumCopies())) {
+					saleMiss = true;
+				}
+			}
+
+			// We record every book of the order that incurred a miss before
+			// failing, as they are used by books in demand.
+			if (saleMiss) {
+				for (BookCopy bookCopy : transaction.bookCopies) {
+					BookStoreBook book = bookMap.get(bookCopy.getISBN());
+
+					if (!book.areCopiesInStore(bookCopy.getNumCopies())) {
+						book.addSaleMiss(bookCopy.getNumCopies() - book.getNumCopies());
+					}
+				}
+
+				throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+			}
+
+			for (BookCopy bookCopy : transaction.bookCopies) {
+				bookMap.get(bookCopy.getISBN()).buyCopies(bookCopy.getNumCopies());
+			}
+		} catch (BookStoreException ex) {
+			transaction.failure = ex;
+		} catch (RuntimeException ex) {
+			// Failing here must not leave the other workers waiting.
+			transaction.failure = new BookStoreException(ex);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
+	 */
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		dbLock.readLock().lock();
+		try {
+			for (Integer ISBN : isbnSet) {
+				validateISBNInStock(ISBN);
+			}
+
+			return isbnSet.stream()
+					.map(isbn -> bookMap.get(isbn).immutableStockBook())
+					.collect(Collectors.toList());
+		} finally {
+			dbLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		BookStoreScanEvent event = new BookStoreScanEvent();
+		event.begin();
+		dbLock.readLock().lock();
+		List<Book> bookList;
+
+		try {
+			for (Integer ISBN : isbnSet) {
+				validateISBNInStock(ISBN);
+			}
+
+			bookList = isbnSet.stream()
+					.map(isbn -> bookMap.get(isbn).immutableBook())
+					.collect(Collectors.toList());
+		} finally {
+			dbLock.readLock().unlock();
+		}
+
+		event.complete(this, BookStoreScanEvent.GET_BOOKS, isbnSet.size(), bookList.size());
+		return bookList;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
+	 */
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		BookStoreScanEvent event = new BookStoreScanEvent();
+		event.begin();
+		dbLock.readLock().lock();
+		List<Book> randomEditorPicks;
+
+		try {
+			List<BookStoreBook> listAllEditorPicks = bookMap.values().stream()
+					.filter(book -> book.isEditorPick())
+					.collect(Collectors.toList());
+
+			// Find numBooks random indices of books that will be picked.
+			Random rand = new Random();
+			Set<Integer> tobePicked = new HashSet<>();
+			int rangePicks = listAllEditorPicks.size();
+
+			if (rangePicks <= numBooks) {
+
+				// We need to add all books.
+				for (int i = 0; i < listAllEditorPicks.size(); i++) {
+					tobePicked.add(i);
+				}
+			} else {
+
+				// We need to pick randomly the books that need to be returned.
+				while (tobePicked.size() < numBooks) {
+					tobePicked.add(rand.nextInt(rangePicks));
+				}
+			}
+
+			randomEditorPicks = tobePicked.stream()
+					.map(index -> listAllEditorPicks.get(index).immutableBook())
+					.collect(Collectors.toList());
+		} finally {
+			dbLock.readLock().unlock();
+		}
+
+		event.complete(this, BookStoreScanEvent.GET_EDITOR_PICKS, numBooks, randomEditorPicks.size());
+		return randomEditorPicks;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		throw new BookStoreException();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		throw new BookStoreException();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		// The ratings are added to adders, so the shared lock is enough.
+		dbLock.readLock().lock();
+		try {
+			for (BookRating rating : bookRating) {
+				validate(rating);
+			}
+
+			for (BookRating rating : bookRating) {
+				bookMap.get(rating.getISBN()).addRating(rating.getRating());
+			}
+
+			catalogVersion.incrementAndGet();
+		} finally {
+			dbLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
+	 */
+	public void removeAllBooks() throws BookStoreException {
+		dbLock.writeLock().lock();
+		try {
+			bookMap.clear();
+			catalogVersion.incrementAndGet();
+		} finally {
+			dbLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
+	 */
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		dbLock.writeLock().lock();
+		try {
+			for (Integer ISBN : isbnSet) {
+				validateISBNInStock(ISBN);
+			}
+
+			for (int isbn : isbnSet) {
+				bookMap.remove(isbn);
+			}
+
+			catalogVersion.incrementAndGet();
+		} finally {
+			dbLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.VersionedCatalog#getCatalogVersion()
+	 */
+	@Override
+	public long getCatalogVersion() {
+		return catalogVersion.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.VersionedCatalog#getVersionedBooks(java.
+	 * util.Set)
+	 */
+	@Override
+	public List<VersionedBook> getVersionedBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		dbLock.readLock().lock();
+		try {
+			for (Integer ISBN : isbnSet) {
+				validateISBNInStock(ISBN);
+			}
+
+			return isbnSet.stream()
+					.map(isbn -> bookMap.get(isbn).versionedBook())
+					.collect(Collectors.toList());
+		} finally {
+			dbLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * {@link Transaction} is a buyBooks or addCopies call waiting to be
+	 * applied.
+	 */
+	private static final class Transaction {
+
+		/** The book copies to buy or add. */
+		private final Set<BookCopy> bookCopies;
+
+		/** Whether the copies are bought rather than added. */
+		private final boolean purchase;
+
+		/** The partitions of the books, in increasing order. */
+		private final int[] partitions;
+
+		/** Counted down by the workers of the other partitions on arrival. */
+		private final CountDownLatch arrived;
+
+		/** Counted down once the transaction is applied. */
+		private final CountDownLatch applied = new CountDownLatch(1);
+
+		/** The failure, set by the worker applying the transaction. */
+		private BookStoreException failure;
+
+		/** The result handed to the caller. */
+		private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+		/**
+		 * Instantiates a new {@link Transaction}.
+		 *
+		 * @param bookCopies
+		 *            the book copies to buy or add
+		 * @param purchase
+		 *            whether the copies are bought
+		 */
+		private Transaction(Set<BookCopy> bookCopies, boolean purchase) {
+			this.bookCopies = bookCopies;
+			this.purchase = purchase;
+			this.partitions = bookCopies.stream()
+					.mapToInt(bookCopy -> bookCopy.getISBN() % NUM_PARTITIONS)
+					.distinct()
+					.sorted()
+					.toArray();
+			this.arrived = new CountDownLatch(Math.max(0, partitions.length - 1));
+		}
+
+		/**
+		 * Hands the transaction its result, unless it already has one.
+		 */
+		private void complete() {
+			if (failure != null) {
+				result.completeExceptionally(failure);
+			} else {
+				result.complete(null);
+			}
+		}
+	}
+}
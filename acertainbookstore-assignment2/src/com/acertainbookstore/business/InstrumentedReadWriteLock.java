@@ -0,0 +1,243 @@
+package com.acertainbookstore.business;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.acertainbookstore.business.BookStoreLockStats.LockLevel;
+import com.acertainbookstore.business.BookStoreLockStats.LockMode;
+
+/**
+ * {@link InstrumentedReadWriteLock} is a fair {@link ReentrantReadWriteLock}
+ * that reports the wait, hold time and queue length of its acquisitions to
+ * the {@link BookStoreLockStats} of its store. Only {@link ReadLock#lock()},
+ * {@link WriteLock#lock()} and their unlock are instrumented, the calls the
+ * stores make; fairness is unchanged since acquisitions are never attempted
+ * with tryLock first.
+ *
+ * Only the acquisitions that find the lock held or other threads queued are
+ * timed, and only the database-level lock times its holds, so an uncontended
+ * acquisition of an item lock does not read the clock at all. Reentrant
+ * acquisitions are not counted.
+ */
+class InstrumentedReadWriteLock extends ReentrantReadWriteLock {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The stats. */
+	private final transient BookStoreLockStats stats;
+
+	/** The lock level. */
+	private final LockLevel level;
+
+	/** The ISBN of an item lock, null for the database-level lock. */
+	private final Integer isbn;
+
+	/** The read lock. */
+	private final InstrumentedReadLock instrumentedReadLock;
+
+	/** The write lock. */
+	private final InstrumentedWriteLock instrumentedWriteLock;
+
+	/**
+	 * Instantiates a new {@link InstrumentedReadWriteLock}.
+	 *
+	 * @param stats
+	 *            the stats
+	 * @param level
+	 *            the lock level
+	 * @param isbn
+	 *            the ISBN of an item lock, null for the database-level lock
+	 */
+	InstrumentedReadWriteLock(BookStoreLockStats stats, LockLevel level, Integer isbn) {
+		super(true);
+		this.stats = stats;
+		this.level = level;
+		this.isbn = isbn;
+		this.instrumentedReadLock = new InstrumentedReadLock(this);
+		this.instrumentedWriteLock = new InstrumentedWriteLock(this);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.util.concurrent.locks.ReentrantReadWriteLock#readLock()
+	 */
+	@Override
+	public ReentrantReadWriteLock.ReadLock readLock() {
+		return instrumentedReadLock;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.util.concurrent.locks.ReentrantReadWriteLock#writeLock()
+	 */
+	@Override
+	public ReentrantReadWriteLock.WriteLock writeLock() {
+		return instrumentedWriteLock;
+	}
+
+	/**
+	 * Begins the wait event of a contended acquisition.
+	 *
+	 * @return the event
+	 */
+	private BookStoreLockWaitEvent beginWaitEvent() {
+		BookStoreLockWaitEvent event = new BookStoreLockWaitEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Reports an acquisition to the stats and commits the wait event if it
+	 * is longer than the threshold of the recording.
+	 *
+	 * @param mode
+	 *            the lock mode
+	 * @param contended
+	 *            whether the lock was held or had threads queued
+	 * @param queueLength
+	 *            the number of queued threads, if contended
+	 * @param startTime
+	 *            the time the acquisition started, if contended
+	 * @param event
+	 *            the wait event, if contended
+	 */
+	private void onAcquired(LockMode mode, boolean contended, int queueLength, long startTime,
+			BookStoreLockWaitEvent event) {
+		if (event != null) {
+			event.end();
+
+			if (event.shouldCommit()) {
+				event.lockLevel = level.name();
+				event.lockMode = mode.name();
+				event.isbn = isbn == null ? 0 : isbn;
+				event.queueLength = queueLength;
+				event.commit();
+			}
+		}
+
+		if (level == LockLevel.DATABASE) {
+			long acquiredAt = System.nanoTime();
+			stats.onDatabaseLockAcquired(mode, contended, queueLength, contended ? acquiredAt - startTime : 0,
+					acquiredAt);
+		} else {
+			stats.onItemLockAcquired(mode, isbn, contended, queueLength,
+					contended ? System.nanoTime() - startTime : 0);
+		}
+	}
+
+	/**
+	 * {@link InstrumentedReadLock} is the instrumented read lock.
+	 */
+	private static final class InstrumentedReadLock extends ReentrantReadWriteLock.ReadLock {
+
+		private static final long serialVersionUID = 1L;
+
+		/** The lock. */
+		private final InstrumentedReadWriteLock lock;
+
+		/**
+		 * Instantiates a new {@link InstrumentedReadLock}.
+		 *
+		 * @param lock
+		 *            the lock
+		 */
+		private InstrumentedReadLock(InstrumentedReadWriteLock lock) {
+			super(lock);
+			this.lock = lock;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock#lock()
+		 */
+		@Override
+		public void lock() {
+			boolean outermost = lock.level == LockLevel.ITEM || lock.stats.updateDatabaseReadHolds(1) == 1;
+			boolean contended = outermost && (lock.hasQueuedThreads()
+					|| (lock.isWriteLocked() && !lock.isWriteLockedByCurrentThread()));
+			int queueLength = contended ? lock.getQueueLength() : 0;
+			long startTime = contended ? System.nanoTime() : 0;
+			BookStoreLockWaitEvent event = contended ? lock.beginWaitEvent() : null;
+			super.lock();
+
+			if (outermost) {
+				lock.onAcquired(LockMode.READ, contended, queueLength, startTime, event);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock#unlock()
+		 */
+		@Override
+		public void unlock() {
+			long releasedAt = System.nanoTime();
+			super.unlock();
+
+			if (lock.level == LockLevel.DATABASE && lock.stats.updateDatabaseReadHolds(-1) == 0) {
+				lock.stats.onDatabaseLockReleased(LockMode.READ, releasedAt);
+			}
+		}
+	}
+
+	/**
+	 * {@link InstrumentedWriteLock} is the instrumented write lock.
+	 */
+	private static final class InstrumentedWriteLock extends ReentrantReadWriteLock.WriteLock {
+
+		private static final long serialVersionUID = 1L;
+
+		/** The lock. */
+		private final InstrumentedReadWriteLock lock;
+
+		/**
+		 * Instantiates a new {@link InstrumentedWriteLock}.
+		 *
+		 * @param lock
+		 *            the lock
+		 */
+		private InstrumentedWriteLock(InstrumentedReadWriteLock lock) {
+			super(lock);
+			this.lock = lock;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock#lock()
+		 */
+		@Override
+		public void lock() {
+			boolean outermost = !lock.isWriteLockedByCurrentThread();
+			boolean contended = outermost
+					&& (lock.hasQueuedThreads() || lock.isWriteLocked() || lock.getReadLockCount() > 0);
+			int queueLength = contended ? lock.getQueueLength() : 0;
+			long startTime = contended ? System.nanoTime() : 0;
+			BookStoreLockWaitEvent event = contended ? lock.beginWaitEvent() : null;
+			super.lock();
+
+			if (outermost) {
+				lock.onAcquired(LockMode.WRITE, contended, queueLength, startTime, event);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock#unlock()
+		 */
+		@Override
+		public void unlock() {
+			boolean outermost = lock.getWriteHoldCount() == 1;
+			long releasedAt = lock.level == LockLevel.DATABASE ? System.nanoTime() : 0;
+			super.unlock();
+
+			if (outermost && lock.level == LockLevel.DATABASE) {
+				lock.stats.onDatabaseLockReleased(LockMode.WRITE, releasedAt);
+			}
+		}
+	}
+}
@@ -0,0 +1,726 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.interfaces.VersionedCatalog;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.VersionedBook;
+
+/**
+ * {@link OptimisticConcurrentCertainBookStore} implements the
+ * {@link BookStore} and {@link StockManager} functionalities with optimistic
+ * concurrency control and backward validation.
+ *
+ * Every book is held in an immutable record stamped with the version of the
+ * commit that installed it. A transaction starts at the current commit
+ * version and reads the records without locks; a record newer than its start
+ * aborts it, so that it reads a consistent snapshot. Its writes go to copies
+ * of the books, buffered until commit. At commit, under a short critical
+ * section, the transaction checks that none of the records it read was
+ * replaced by a transaction committed since, then installs its copies under
+ * the next version. A transaction that aborts is run again, and runs under
+ * the commit lock after {@link #MAX_OPTIMISTIC_ATTEMPTS}, so that it cannot
+ * starve.
+ *
+ * Reads of distinct books never wait for each other or for writers, but
+ * concurrent writes to the same books abort each other, so the locking
+ * stores win when writers contend on a few books.
+ *
+ * @see BookStore
+ * @see StockManager
+ */
+public class OptimisticConcurrentCertainBookStore implements BookStore, StockManager, VersionedCatalog {
+
+	/** The number of optimistic attempts before running under the commit lock. */
+	private static final int MAX_OPTIMISTIC_ATTEMPTS = 8;
+
+	/** The records of the books by ISBN. */
+	private final ConcurrentHashMap<Integer, BookRecord> bookMap = new ConcurrentHashMap<>();
+
+	/** The lock of the validation and write phases. */
+	private final ReentrantLock commitLock = new ReentrantLock();
+
+	/** The version of the last commit, written after its records are installed. */
+	private volatile long commitVersion = 0;
+
+	/** The version of the last commit that removed books. */
+	private volatile long removalVersion = 0;
+
+	/** The number of aborted transactions. */
+	private final LongAdder abortCount = new LongAdder();
+
+	/**
+	 * Gets the number of transactions aborted by a conflict and run again.
+	 *
+	 * @return the abort count
+	 */
+	public long getAbortCount() {
+		return abortCount.sum();
+	}
+
+	/**
+	 * Runs a transaction until it commits.
+	 *
+	 * @param body
+	 *            the transaction body
+	 * @return the result of the body
+	 * @throws BookStoreException
+	 *             the exception thrown by the body, after its writes are
+	 *             committed
+	 */
+	private <T> T runTransaction(TransactionBody<T> body) throws BookStoreException {
+		for (int attempt = 1;; attempt++) {
+			boolean pessimistic = attempt > MAX_OPTIMISTIC_ATTEMPTS;
+
+			if (pessimistic) {
+				commitLock.lock();
+			}
+
+			try {
+				Transaction transaction = new Transaction();
+				T result = null;
+				BookStoreException failure = null;
+
+				try {
+					result = body.run(transaction);
+				} catch (BookStoreException ex) {
+					failure = ex;
+				}
+
+				// A read-only transaction read a snapshot, so it is valid as is.
+				if (transaction.writes.isEmpty() || transaction.commit()) {
+					if (failure != null) {
+						throw failure;
+					}
+
+					return result;
+				}
+			} catch (ConflictException ex) {
+				// Run the transaction again from a newer snapshot.
+			} finally {
+				if (pessimistic) {
+					commitLock.unlock();
+				}
+			}
+
+			abortCount.increment();
+		}
+	}
+
+	private void validate(Transaction transaction, StockBook book) throws BookStoreException {
+		int isbn = book.getISBN();
+		String bookTitle = book.getTitle();
+		String bookAuthor = book.getAuthor();
+		int noCopies = book.getNumCopies();
+		float bookPrice = book.getPrice();
+
+		if (BookStoreUtility.isInvalidISBN(isbn)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookTitle)) { // Check if the book has valid title
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookAuthor)) { // Check if the book has valid author
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isInvalidNoCopies(noCopies)) { // Check if the book has at least one copy
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (bookPrice < 0.0) { // Check if the price of the book is valid
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (transaction.read(isbn) != null) {// Check if the book is not in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.DUPLICATED);
+		}
+	}
+
+	private void validate(Transaction transaction, BookCopy bookCopy) throws BookStoreException {
+		int isbn = bookCopy.getISBN();
+		int numCopies = bookCopy.getNumCopies();
+
+		validateISBNInStock(transaction, isbn); // Check if the book has valid ISBN and in stock
+
+		if (BookStoreUtility.isInvalidNoCopies(numCopies)) { // Check if the number of the book copy is larger than zero
+			throw new BookStoreException(BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
+		}
+	}
+
+	private BookStoreBook validateISBNInStock(Transaction transaction, Integer ISBN) throws BookStoreException {
+		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+		}
+
+		BookStoreBook book = transaction.read(ISBN);
+
+		if (book == null) {// Check if the book is in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+		}
+
+		return book;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
+	 */
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		if (bookSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		runTransaction(transaction -> {
+			for (StockBook book : bookSet) {
+				validate(transaction, book);
+			}
+
+			for (StockBook book : bookSet) {
+				transaction.put(new BookStoreBook(book));
+			}
+
+			return null;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
+	 */
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		if (bookCopiesSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		runTransaction(transaction -> {
+			for (BookCopy bookCopy : bookCopiesSet) {
+				validate(transaction, bookCopy);
+			}
+
+			for (BookCopy bookCopy : bookCopiesSet) {
+				transaction.write(bookCopy.getISBN()).addCopies(bookCopy.getNumCopies());
+			}
+
+			return null;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	public List<StockBook> getBooks() throws BookStoreException {
+		BookStoreScanEvent event = new BookStoreScanEvent();
+		event.begin();
+		List<StockBook> bookList = runTransaction(transaction -> transaction.scan().stream()
+				.map(book -> book.immutableStockBook())
+				.collect(Collectors.toList()));
+		event.complete(this, BookStoreScanEvent.LIST_BOOKS, bookList.size(), bookList.size());
+		return bookList;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util
+	 * .Set)
+	 */
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+		if (editorPicks == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		runTransaction(transaction -> {
+			for (BookEditorPick editorPickArg : editorPicks) {
+				validateISBNInStock(transaction, editorPickArg.getISBN());
+			}
+
+			for (BookEditorPick editorPickArg : editorPicks) {
+				transaction.write(editorPickArg.getISBN()).setEditorPick(editorPickArg.isEditorPick());
+			}
+
+			return null;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
+	 */
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		runTransaction(transaction -> {
+			Map<Integer, Integer> salesMisses = new HashMap<>();
+
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				validate(transaction, bookCopyToBuy);
+				BookStoreBook book = transaction.read(bookCopyToBuy.getISBN());
+
+				if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
+					// If we cannot sell the copies of the book, it is a miss.
+					salesMisses.put(bookCopyToBuy.getISBN(), bookCopyToBuy.getNumCopies() - book.getNumCopies());
+				}
+			}
+
+			// We throw exception now since we want to see how many books in the
+			// order incurred misses which is used by books in demand; the
+			// misses are committed before it reaches the caller.
+			if (!salesMisses.isEmpty()) {
+				for (Map.Entry<Integer, Integer> saleMissEntry : salesMisses.entrySet()) {
+					transaction.write(saleMissEntry.getKey()).addSaleMiss(saleMissEntry.getValue());
+				}
+
+				throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+			}
+
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				transaction.write(bookCopyToBuy.getISBN()).buyCopies(bookCopyToBuy.getNumCopies());
+			}
+
+			return null;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
+	 */
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		return runTransaction(transaction -> {
+			List<StockBook> bookList = new ArrayList<>(isbnSet.size());
+
+			for (Integer ISBN : isbnSet) {
+				bookList.add(validateISBNInStock(transaction, ISBN).immutableStockBook());
+			}
+
+			return bookList;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		BookStoreScanEvent event = new BookStoreScanEvent();
+		event.begin();
+		List<Book> bookList = runTransaction(transaction -> {
+			List<Book> books = new ArrayList<>(isbnSet.size());
+
+			for (Integer ISBN : isbnSet) {
+				books.add(validateISBNInStock(transaction, ISBN).immutableBook());
+			}
+
+			return books;
+		});
+		event.complete(this, BookStoreScanEvent.GET_BOOKS, isbnSet.size(), bookList.size());
+
+		return bookList;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
+	 */
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		BookStoreScanEvent event = new BookStoreScanEvent();
+		event.begin();
+		List<BookStoreBook> listAllEditorPicks = runTransaction(transaction -> transaction.scan().stream()
+				.filter(book -> book.isEditorPick())
+				.collect(Collectors.toList()));
+
+		// Find numBooks random indices of books that will be picked.
+		Random rand = new Random();
+		Set<Integer> tobePicked = new HashSet<>();
+		int rangePicks = listAllEditorPicks.size();
+
+		if (rangePicks <= numBooks) {
+
+			// We need to add all books.
+			for (int i = 0; i < listAllEditorPicks.size(); i++) {
+				tobePicked.add(i);
+			}
+		} else {
+
+			// We need to pick randomly the books that need to be returned.
+			while (tobePicked.size() < numBooks) {
+				tobePicked.add(rand.nextInt(rangePicks));
+			}
+		}
+
+		List<Book> randomEditorPicks = tobePicked.stream()
+				.map(index -> listAllEditorPicks.get(index).immutableBook())
+				.collect(Collectors.toList());
+		event.complete(this, BookStoreScanEvent.GET_EDITOR_PICKS, numBooks, randomEditorPicks.size());
+
+		return randomEditorPicks;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		throw new BookStoreException();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		throw new BookStoreException();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		throw new BookStoreException();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
+	 */
+	public void removeAllBooks() throws BookStoreException {
+		// Removing everything reads nothing, so it cannot conflict.
+		commitLock.lock();
+		try {
+			long version = commitVersion + 1;
+			removalVersion = version;
+			bookMap.clear();
+			commitVersion = version;
+		} finally {
+			commitLock.unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
+	 */
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		runTransaction(transaction -> {
+			for (Integer ISBN : isbnSet) {
+				validateISBNInStock(transaction, ISBN);
+			}
+
+			for (int isbn : isbnSet) {
+				transaction.remove(isbn);
+			}
+
+			return null;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.VersionedCatalog#getCatalogVersion()
+	 */
+	@Override
+	public long getCatalogVersion() {
+		return commitVersion;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.VersionedCatalog#getVersionedBooks(java.
+	 * util.Set)
+	 */
+	@Override
+	public List<VersionedBook> getVersionedBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		return runTransaction(transaction -> {
+			List<VersionedBook> bookList = new ArrayList<>(isbnSet.size());
+
+			for (Integer ISBN : isbnSet) {
+				bookList.add(validateISBNInStock(transaction, ISBN).versionedBook());
+			}
+
+			return bookList;
+		});
+	}
+
+	/**
+	 * {@link TransactionBody} is the work of a transaction, run again each
+	 * time the transaction aborts.
+	 *
+	 * @param <T>
+	 *            the type of the result
+	 */
+	@FunctionalInterface
+	private interface TransactionBody<T> {
+
+		/**
+		 * Runs the body.
+		 *
+		 * @param transaction
+		 *            the transaction
+		 * @return the result
+		 * @throws BookStoreException
+		 *             the book store exception
+		 */
+		T run(Transaction transaction) throws BookStoreException;
+	}
+
+	/**
+	 * {@link BookRecord} is a book as installed by a commit. Its book is never
+	 * changed once installed.
+	 */
+	private static final class BookRecord {
+
+		/** The book. */
+		private final BookStoreBook book;
+
+		/** The version of the commit that installed the record. */
+		private final long version;
+
+		/**
+		 * Instantiates a new {@link BookRecord}.
+		 *
+		 * @param book
+		 *            the book
+		 * @param version
+		 *            the version of the commit
+		 */
+		private BookRecord(BookStoreBook book, long version) {
+			this.book = book;
+			this.version = version;
+		}
+	}
+
+	/**
+	 * {@link ConflictException} aborts a transaction that read a record newer
+	 * than its snapshot.
+	 */
+	@SuppressWarnings("serial")
+	private static final class ConflictException extends RuntimeException {
+
+		/** The shared instance; aborts are control flow, not errors. */
+		private static final ConflictException INSTANCE = new ConflictException();
+
+		/**
+		 * Instantiates a new {@link ConflictException}.
+		 */
+		private ConflictException() {
+			super(null, null, false, false);
+		}
+	}
+
+	/**
+	 * {@link Transaction} holds the read set and the buffered writes of a
+	 * transaction.
+	 */
+	private final class Transaction {
+
+		/** The version of the snapshot the transaction reads. */
+		private final long startVersion = commitVersion;
+
+		/** The records read by ISBN, null for books that were not there. */
+		private final Map<Integer, BookRecord> reads = new HashMap<>();
+
+		/** The buffered writes by ISBN, null for removed books. */
+		private final Map<Integer, BookStoreBook> writes = new HashMap<>();
+
+		/**
+		 * Reads a book, as written by the transaction if it did.
+		 *
+		 * @param isbn
+		 *            the ISBN
+		 * @return the book, not to be changed, or null if it is not in the
+		 *         store
+		 */
+		private BookStoreBook read(int isbn) {
+			if (writes.containsKey(isbn)) {
+				return writes.get(isbn);
+			}
+
+			BookRecord record = reads.containsKey(isbn) ? reads.get(isbn) : readRecord(isbn);
+			return record != null ? record.book : null;
+		}
+
+		/**
+		 * Reads the record of a book from the snapshot and adds it to the read
+		 * set.
+		 *
+		 * @param isbn
+		 *            the ISBN
+		 * @return the record, or null if the book is not in the store
+		 */
+		private BookRecord readRecord(int isbn) {
+			BookRecord record = bookMap.get(isbn);
+
+			// The book was replaced, or may have been removed, since the start.
+			if (record != null ? record.version > startVersion : removalVersion > startVersion) {
+				throw ConflictException.INSTANCE;
+			}
+
+			reads.put(isbn, record);
+			return record;
+		}
+
+		/**
+		 * Reads all books of the snapshot. Only read-only transactions scan,
+		 * so the scanned records are not added to the read set.
+		 *
+		 * @return the books, not to be changed
+		 */
+		private List<BookStoreBook> scan() {
+			List<BookStoreBook> books = new ArrayList<>(bookMap.size());
+
+			for (BookRecord record : bookMap.values()) {
+				if (record.version > startVersion) {
+					throw ConflictException.INSTANCE;
+				}
+
+				books.add(record.book);
+			}
+
+			// A book removed since the start may have been skipped.
+			if (removalVersion > startVersion) {
+				throw ConflictException.INSTANCE;
+			}
+
+			return books;
+		}
+
+		/**
+		 * Gets the buffered copy of a book in stock, to be changed.
+		 *
+		 * @param isbn
+		 *            the ISBN
+		 * @return the copy of the book
+		 */
+		private BookStoreBook write(int isbn) {
+			BookStoreBook book = writes.get(isbn);
+
+			if (book == null) {
+				book = new BookStoreBook(read(isbn).immutableStockBook());
+				writes.put(isbn, book);
+			}
+
+			return book;
+		}
+
+		/**
+		 * Buffers a new book.
+		 *
+		 * @param book
+		 *            the book
+		 */
+		private void put(BookStoreBook book) {
+			writes.put(book.getISBN(), book);
+		}
+
+		/**
+		 * Buffers the removal of a book.
+		 *
+		 * @param isbn
+		 *            the ISBN
+		 */
+		private void remove(int isbn) {
+			writes.put(isbn, null);
+		}
+
+		/**
+		 * Validates the read set against the transactions committed since the
+		 * start and installs the buffered writes.
+		 *
+		 * @return true, if the transaction committed, false if it conflicts
+		 */
+		private boolean commit() {
+			commitLock.lock();
+			try {
+				for (Map.Entry<Integer, BookRecord> read : reads.entrySet()) {
+					if (bookMap.get(read.getKey()) != read.getValue()) {
+						return false;
+					}
+				}
+
+				long version = commitVersion + 1;
+
+				if (writes.containsValue(null)) {
+					removalVersion = version;
+				}
+
+				for (Map.Entry<Integer, BookStoreBook> write : writes.entrySet()) {
+					if (write.getValue() == null) {
+						bookMap.remove(write.getKey());
+					} else {
+						bookMap.put(write.getKey(), new BookRecord(write.getValue(), version));
+					}
+				}
+
+				commitVersion = version;
+				return true;
+			} finally {
+				commitLock.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,613 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.interfaces.VersionedCatalog;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.VersionedBook;
+
+/**
+ * {@link PersistentCatalogCertainBookStore} implements the {@link BookStore}
+ * and {@link StockManager} functionalities over a persistent catalog: a
+ * {@link BookStoreCatalogTrie} of immutable books, published through a single
+ * atomic reference.
+ *
+ * A reader takes the current catalog once and reads it as a snapshot, without
+ * any lock, however many books it reads and however long it takes. A writer
+ * validates its call against the current catalog, builds a new trie copying
+ * only the paths to the books it changes, and publishes it with a
+ * compare-and-set; if another writer published first, it runs again against
+ * the newer catalog. Readers thus never wait and never see part of a write,
+ * and a full-catalog read never blocks the writers, but concurrent writers
+ * redo their work on every lost race, so the locking stores win when writes
+ * dominate.
+ *
+ * @see BookStore
+ * @see StockManager
+ */
+public class PersistentCatalogCertainBookStore implements BookStore, StockManager, VersionedCatalog {
+
+	/** The current catalog. */
+	private final AtomicReference<Catalog> catalog = new AtomicReference<>(new Catalog(BookStoreCatalogTrie.EMPTY, 0));
+
+	/** The number of writes run again after losing a race to publish. */
+	private final LongAdder retryCount = new LongAdder();
+
+	/**
+	 * Gets the number of writes run again after another writer published a
+	 * catalog first.
+	 *
+	 * @return the retry count
+	 */
+	public long getRetryCount() {
+		return retryCount.sum();
+	}
+
+	/**
+	 * Publishes a new catalog if the current one is still the one it was
+	 * built from.
+	 *
+	 * @param current
+	 *            the catalog the books were derived from
+	 * @param books
+	 *            the new books
+	 * @return true, if published, false if another writer published first
+	 */
+	private boolean publish(Catalog current, BookStoreCatalogTrie books) {
+		if (catalog.compareAndSet(current, new Catalog(books, current.version + 1))) {
+			return true;
+		}
+
+		retryCount.increment();
+		return false;
+	}
+
+	/**
+	 * Applies an update to the catalog until it is published.
+	 *
+	 * @param update
+	 *            the update
+	 * @throws BookStoreException
+	 *             the exception thrown by the update, in which case nothing
+	 *             is published
+	 */
+	private void update(CatalogUpdate update) throws BookStoreException {
+		Catalog current;
+
+		do {
+			current = catalog.get();
+		} while (!publish(current, update.apply(current.books)));
+	}
+
+	/**
+	 * Returns the books with a modified book, under the version the
+	 * modification gave it.
+	 *
+	 * @param books
+	 *            the books
+	 * @param book
+	 *            the modified book
+	 * @return the new books
+	 */
+	private static BookStoreCatalogTrie with(BookStoreCatalogTrie books, BookStoreBook book) {
+		return books.with(book.immutableStockBook(), book.getVersion());
+	}
+
+	private void validate(BookStoreCatalogTrie books, StockBook book) throws BookStoreException {
+		int isbn = book.getISBN();
+		String bookTitle = book.getTitle();
+		String bookAuthor = book.getAuthor();
+		int noCopies = book.getNumCopies();
+		float bookPrice = book.getPrice();
+
+		if (BookStoreUtility.isInvalidISBN(isbn)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookTitle)) { // Check if the book has valid title
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookAuthor)) { // Check if the book has valid author
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isInvalidNoCopies(noCopies)) { // Check if the book has at least one copy
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (bookPrice < 0.0) { // Check if the price of the book is valid
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (books.get(isbn) != null) {// Check if the book is not in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.DUPLICATED);
+		}
+	}
+
+	private void validate(BookStoreCatalogTrie books, BookCopy bookCopy) throws BookStoreException {
+		int isbn = bookCopy.getISBN();
+		int numCopies = bookCopy.getNumCopies();
+
+		validateISBNInStock(books, isbn); // Check if the book has valid ISBN and in stock
+
+		if (BookStoreUtility.isInvalidNoCopies(numCopies)) { // Check if the number of the book copy is larger than zero
+			throw new BookStoreException(BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
+		}
+	}
+
+	private void validate(BookStoreCatalogTrie books, BookRating rating) throws BookStoreException {
+		validateISBNInStock(books, rating.getISBN()); // Check if the book has valid ISBN and in stock
+
+		if (BookStoreUtility.isInvalidRating(rating.getRating())) { // Check if the rating is between 0 and 5
+			throw new BookStoreException(BookStoreConstants.RATING + rating.getRating() + BookStoreConstants.INVALID);
+		}
+	}
+
+	private StockBook validateISBNInStock(BookStoreCatalogTrie books, Integer ISBN) throws BookStoreException {
+		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+		}
+
+		StockBook book = books.get(ISBN);
+
+		if (book == null) {// Check if the book is in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+		}
+
+		return book;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
+	 */
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		if (bookSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		update(books -> {
+			for (StockBook book : bookSet) {
+				validate(books, book);
+			}
+
+			for (StockBook book : bookSet) {
+				books = with(books, new BookStoreBook(book));
+			}
+
+			return books;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
+	 */
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		if (bookCopiesSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		update(books -> {
+			for (BookCopy bookCopy : bookCopiesSet) {
+				validate(books, bookCopy);
+			}
+
+			for (BookCopy bookCopy : bookCopiesSet) {
+				BookStoreBook book = new BookStoreBook(books.get(bookCopy.getISBN()));
+				book.addCopies(bookCopy.getNumCopies());
+				books = with(books, book);
+			}
+
+			return books;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	public List<StockBook> getBooks() throws BookStoreException {
+		BookStoreScanEvent event = new BookStoreScanEvent();
+		event.begin();
+		List<StockBook> bookList = catalog.get().books.values();
+		event.complete(this, BookStoreScanEvent.LIST_BOOKS, bookList.size(), bookList.size());
+		return bookList;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util
+	 * .Set)
+	 */
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+		if (editorPicks == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		update(books -> {
+			for (BookEditorPick editorPickArg : editorPicks) {
+				validateISBNInStock(books, editorPickArg.getISBN());
+			}
+
+			for (BookEditorPick editorPickArg : editorPicks) {
+				BookStoreBook book = new BookStoreBook(books.get(editorPickArg.getISBN()));
+				book.setEditorPick(editorPickArg.isEditorPick());
+				books = with(books, book);
+			}
+
+			return books;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
+	 */
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		while (true) {
+			Catalog current = catalog.get();
+			BookStoreCatalogTrie books = current.books;
+			Map<Integer, Integer> salesMisses = new HashMap<>();
+
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				validate(books, bookCopyToBuy);
+				StockBook book = books.get(bookCopyToBuy.getISBN());
+
+				if (book.getNumCopies() < bookCopyToBuy.getNumCopies()) {
+					// If we cannot sell the copies of the book, it is a miss.
+					salesMisses.put(bookCopyToBuy.getISBN(), bookCopyToBuy.getNumCopies() - book.getNumCopies());
+				}
+			}
+
+			// We throw exception now since we want to see how many books in the
+			// order incurred misses which is used by books in demand; the
+			// misses are published before it reaches the caller.
+			if (!salesMisses.isEmpty()) {
+				for (Map.Entry<Integer, Integer> saleMissEntry : salesMisses.entrySet()) {
+					BookStoreBook book = new BookStoreBook(books.get(saleMissEntry.getKey()));
+					book.addSaleMiss(saleMissEntry.getValue());
+					books = with(books, book);
+				}
+
+				if (publish(current, books)) {
+					throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+				}
+
+				continue;
+			}
+
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				BookStoreBook book = new BookStoreBook(books.get(bookCopyToBuy.getISBN()));
+				book.buyCopies(bookCopyToBuy.getNumCopies());
+				books = with(books, book);
+			}
+
+			if (publish(current, books)) {
+				return;
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
+	 */
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		BookStoreCatalogTrie books = catalog.get().books;
+		List<StockBook> bookList = new ArrayList<>(isbnSet.size());
+
+		for (Integer ISBN : isbnSet) {
+			bookList.add(validateISBNInStock(books, ISBN));
+		}
+
+		return bookList;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		BookStoreScanEvent event = new BookStoreScanEvent();
+		event.begin();
+		BookStoreCatalogTrie books = catalog.get().books;
+		List<Book> bookList = new ArrayList<>(isbnSet.size());
+
+		for (Integer ISBN : isbnSet) {
+			bookList.add(toBook(validateISBNInStock(books, ISBN)));
+		}
+
+		event.complete(this, BookStoreScanEvent.GET_BOOKS, isbnSet.size(), bookList.size());
+		return bookList;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
+	 */
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		BookStoreScanEvent event = new BookStoreScanEvent();
+		event.begin();
+		List<StockBook> listAllEditorPicks = new ArrayList<>();
+		catalog.get().books.forEach(book -> {
+			if (book.isEditorPick()) {
+				listAllEditorPicks.add(book);
+			}
+		});
+
+		// Find numBooks random indices of books that will be picked.
+		Set<Integer> tobePicked = new HashSet<>();
+		int rangePicks = listAllEditorPicks.size();
+
+		if (rangePicks <= numBooks) {
+
+			// We need to add all books.
+			for (int i = 0; i < listAllEditorPicks.size(); i++) {
+				tobePicked.add(i);
+			}
+		} else {
+
+			// We need to pick randomly the books that need to be returned.
+			while (tobePicked.size() < numBooks) {
+				tobePicked.add(ThreadLocalRandom.current().nextInt(rangePicks));
+			}
+		}
+
+		List<Book> randomEditorPicks = new ArrayList<>(tobePicked.size());
+
+		for (int index : tobePicked) {
+			randomEditorPicks.add(toBook(listAllEditorPicks.get(index)));
+		}
+
+		event.complete(this, BookStoreScanEvent.GET_EDITOR_PICKS, numBooks, randomEditorPicks.size());
+		return randomEditorPicks;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		// Keep the numBooks best rated books seen so far, the worst on top.
+		Comparator<StockBook> byRating = Comparator.comparingDouble(StockBook::getAverageRating);
+		PriorityQueue<StockBook> topRated = new PriorityQueue<>(Math.max(1, numBooks), byRating);
+
+		catalog.get().books.forEach(book -> {
+			if (book.getNumTimesRated() > 0) {
+				topRated.add(book);
+
+				if (topRated.size() > numBooks) {
+					topRated.poll();
+				}
+			}
+		});
+
+		List<StockBook> sortedBooks = new ArrayList<>(topRated);
+		sortedBooks.sort(byRating.reversed());
+		List<Book> bookList = new ArrayList<>(sortedBooks.size());
+
+		for (StockBook book : sortedBooks) {
+			bookList.add(toBook(book));
+		}
+
+		return bookList;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		List<StockBook> bookList = new ArrayList<>();
+
+		catalog.get().books.forEach(book -> {
+			if (book.getNumSaleMisses() > 0) {
+				bookList.add(book);
+			}
+		});
+
+		return bookList;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		update(books -> {
+			for (BookRating rating : bookRating) {
+				validate(books, rating);
+			}
+
+			for (BookRating rating : bookRating) {
+				BookStoreBook book = new BookStoreBook(books.get(rating.getISBN()));
+				book.addRating(rating.getRating());
+				books = with(books, book);
+			}
+
+			return books;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
+	 */
+	public void removeAllBooks() throws BookStoreException {
+		update(books -> BookStoreCatalogTrie.EMPTY);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
+	 */
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		update(books -> {
+			for (Integer ISBN : isbnSet) {
+				validateISBNInStock(books, ISBN);
+			}
+
+			for (int isbn : isbnSet) {
+				books = books.without(isbn);
+			}
+
+			return books;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.VersionedCatalog#getCatalogVersion()
+	 */
+	@Override
+	public long getCatalogVersion() {
+		return catalog.get().version;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.VersionedCatalog#getVersionedBooks(java.
+	 * util.Set)
+	 */
+	@Override
+	public List<VersionedBook> getVersionedBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		BookStoreCatalogTrie books = catalog.get().books;
+		List<VersionedBook> bookList = new ArrayList<>(isbnSet.size());
+
+		for (Integer ISBN : isbnSet) {
+			bookList.add(new VersionedBook(toBook(validateISBNInStock(books, ISBN)), books.getVersion(ISBN)));
+		}
+
+		return bookList;
+	}
+
+	/**
+	 * Converts a book of the catalog into the {@link Book} sent to the
+	 * clients.
+	 *
+	 * @param book
+	 *            the book
+	 * @return the book without its stock information
+	 */
+	private static Book toBook(StockBook book) {
+		return new ImmutableBook(book.getISBN(), book.getTitle(), book.getAuthor(), book.getPrice());
+	}
+
+	/**
+	 * {@link CatalogUpdate} derives the books of a new catalog from the
+	 * current ones, and is applied again each time the publication loses a
+	 * race.
+	 */
+	@FunctionalInterface
+	private interface CatalogUpdate {
+
+		/**
+		 * Applies the update.
+		 *
+		 * @param books
+		 *            the current books
+		 * @return the new books
+		 * @throws BookStoreException
+		 *             the book store exception
+		 */
+		BookStoreCatalogTrie apply(BookStoreCatalogTrie books) throws BookStoreException;
+	}
+
+	/**
+	 * {@link Catalog} is a published catalog: its books and its version.
+	 */
+	private static final class Catalog {
+
+		/** The books. */
+		private final BookStoreCatalogTrie books;
+
+		/** The catalog version, incremented by every publication. */
+		private final long version;
+
+		/**
+		 * Instantiates a new {@link Catalog}.
+		 *
+		 * @param books
+		 *            the books
+		 * @param version
+		 *            the catalog version
+		 */
+		private Catalog(BookStoreCatalogTrie books, long version) {
+			this.books = books;
+			this.version = version;
+		}
+	}
+}
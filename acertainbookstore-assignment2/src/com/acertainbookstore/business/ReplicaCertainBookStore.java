@@ -0,0 +1,611 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.interfaces.VersionedCatalog;
+import com.acertainbookstore.utils.BookStoreCatalogChanges;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.VersionedBook;
+
+/**
+ * {@link ReplicaCertainBookStore} implements the {@link BookStore} and
+ * {@link StockManager} functionalities of a read-only replica. The reads are
+ * served from its own copy of the catalog: a {@link BookStoreSnapshot} mapped
+ * from a file, under an overlay of the books changed since, which the
+ * replication thread of the server updates from the change stream of the
+ * primary. Writes are forwarded to the primary if the replica was given
+ * proxies to it, and rejected otherwise.
+ *
+ * The copy is an immutable view replaced as a whole by every update, so the
+ * reads take no locks and always see the catalog as of one position in the
+ * change stream. Replicas are eventually consistent: a write forwarded to the
+ * primary shows on the replica once its change has been pulled.
+ *
+ * @see BookStore
+ * @see StockManager
+ */
+public class ReplicaCertainBookStore implements BookStore, StockManager, VersionedCatalog {
+
+	/** The book store of the primary, null to reject writes. */
+	private final BookStore primaryBookStore;
+
+	/** The stock manager of the primary, null to reject writes. */
+	private final StockManager primaryStockManager;
+
+	/** The current view of the catalog. */
+	private volatile View view;
+
+	/**
+	 * Instantiates a new {@link ReplicaCertainBookStore}.
+	 *
+	 * @param snapshot
+	 *            the snapshot of the catalog
+	 * @param primaryBookStore
+	 *            the book store of the primary, or null to reject writes
+	 * @param primaryStockManager
+	 *            the stock manager of the primary, or null to reject writes
+	 */
+	public ReplicaCertainBookStore(BookStoreSnapshot snapshot, BookStore primaryBookStore,
+			StockManager primaryStockManager) {
+		this.primaryBookStore = primaryBookStore;
+		this.primaryStockManager = primaryStockManager;
+		this.view = new View(snapshot, 1);
+	}
+
+	/**
+	 * Replaces the copy of the catalog with a new snapshot.
+	 *
+	 * @param snapshot
+	 *            the snapshot
+	 */
+	public synchronized void load(BookStoreSnapshot snapshot) {
+		view = new View(snapshot, view.version + 1);
+	}
+
+	/**
+	 * Applies the changes pulled from the primary to the copy of the catalog.
+	 *
+	 * @param changes
+	 *            the changes
+	 */
+	public synchronized void apply(BookStoreCatalogChanges changes) {
+		view = view.apply(changes);
+	}
+
+	/**
+	 * Gets the epoch of the change log of the primary the copy follows.
+	 *
+	 * @return the epoch
+	 */
+	public long getEpoch() {
+		return view.epoch;
+	}
+
+	/**
+	 * Gets the sequence number of the last change applied to the copy.
+	 *
+	 * @return the sequence number
+	 */
+	public long getSequence() {
+		return view.sequence;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	@Override
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		BookStoreScanEvent event = new BookStoreScanEvent();
+		event.begin();
+		View currentView = view;
+		List<Book> bookList = new ArrayList<>();
+
+		for (StockBook book : currentView.getBooks(isbnSet)) {
+			bookList.add(toBook(book));
+		}
+
+		event.complete(this, BookStoreScanEvent.GET_BOOKS, isbnSet.size(), bookList.size());
+		return bookList;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
+	 */
+	@Override
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
+		return view.getBooks(isbnSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	@Override
+	public List<StockBook> getBooks() {
+		BookStoreScanEvent event = new BookStoreScanEvent();
+		event.begin();
+		List<StockBook> bookList = view.getAllBooks();
+		event.complete(this, BookStoreScanEvent.LIST_BOOKS, bookList.size(), bookList.size());
+		return bookList;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
+	 */
+	@Override
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		BookStoreScanEvent event = new BookStoreScanEvent();
+		event.begin();
+		View currentView = view;
+		List<Integer> editorPicks = currentView.editorPicks;
+		List<Integer> picked;
+
+		if (editorPicks.size() <= numBooks) {
+			picked = editorPicks;
+		} else {
+			// Pick numBooks random indices.
+			Set<Integer> tobePicked = new HashSet<>();
+
+			while (tobePicked.size() < numBooks) {
+				tobePicked.add(ThreadLocalRandom.current().nextInt(editorPicks.size()));
+			}
+
+			picked = new ArrayList<>(numBooks);
+
+			for (int index : tobePicked) {
+				picked.add(editorPicks.get(index));
+			}
+		}
+
+		List<Book> randomEditorPicks = new ArrayList<>(picked.size());
+
+		for (int isbn : picked) {
+			randomEditorPicks.add(toBook(currentView.getBook(isbn)));
+		}
+
+		event.complete(this, BookStoreScanEvent.GET_EDITOR_PICKS, numBooks, randomEditorPicks.size());
+		return randomEditorPicks;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		// Keep the numBooks best rated books seen so far, the worst on top.
+		Comparator<StockBook> byRating = Comparator.comparingDouble(StockBook::getAverageRating);
+		PriorityQueue<StockBook> topRated = new PriorityQueue<>(Math.max(1, numBooks), byRating);
+
+		for (StockBook book : view.getAllBooks()) {
+			if (book.getNumTimesRated() > 0) {
+				topRated.add(book);
+
+				if (topRated.size() > numBooks) {
+					topRated.poll();
+				}
+			}
+		}
+
+		List<StockBook> sortedBooks = new ArrayList<>(topRated);
+		sortedBooks.sort(byRating.reversed());
+		List<Book> bookList = new ArrayList<>(sortedBooks.size());
+
+		for (StockBook book : sortedBooks) {
+			bookList.add(toBook(book));
+		}
+
+		return bookList;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		List<StockBook> bookList = new ArrayList<>();
+
+		for (StockBook book : view.getAllBooks()) {
+			if (book.getNumSaleMisses() > 0) {
+				bookList.add(book);
+			}
+		}
+
+		return bookList;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
+	 */
+	@Override
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		getPrimaryBookStore().buyBooks(bookCopiesToBuy);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		getPrimaryBookStore().rateBooks(bookRating);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
+	 */
+	@Override
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		getPrimaryStockManager().addBooks(bookSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
+	 */
+	@Override
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		getPrimaryStockManager().addCopies(bookCopiesSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util
+	 * .Set)
+	 */
+	@Override
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+		getPrimaryStockManager().updateEditorPicks(editorPicks);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
+	 */
+	@Override
+	public void removeAllBooks() throws BookStoreException {
+		getPrimaryStockManager().removeAllBooks();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
+	 */
+	@Override
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		getPrimaryStockManager().removeBooks(isbnSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.VersionedCatalog#getCatalogVersion()
+	 */
+	@Override
+	public long getCatalogVersion() {
+		return view.version;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.VersionedCatalog#getVersionedBooks(java.
+	 * util.Set)
+	 */
+	@Override
+	public List<VersionedBook> getVersionedBooks(Set<Integer> isbnSet) throws BookStoreException {
+		View currentView = view;
+		List<VersionedBook> bookList = new ArrayList<>();
+
+		for (StockBook book : currentView.getBooks(isbnSet)) {
+			bookList.add(new VersionedBook(toBook(book), currentView.getVersion(book.getISBN())));
+		}
+
+		return bookList;
+	}
+
+	/**
+	 * Gets the book store of the primary writes are forwarded to.
+	 *
+	 * @return the book store of the primary
+	 * @throws BookStoreException
+	 *             if the replica rejects writes
+	 */
+	private BookStore getPrimaryBookStore() throws BookStoreException {
+		if (primaryBookStore == null) {
+			throw new BookStoreException(BookStoreConstants.READ_ONLY_REPLICA);
+		}
+
+		return primaryBookStore;
+	}
+
+	/**
+	 * Gets the stock manager of the primary writes are forwarded to.
+	 *
+	 * @return the stock manager of the primary
+	 * @throws BookStoreException
+	 *             if the replica rejects writes
+	 */
+	private StockManager getPrimaryStockManager() throws BookStoreException {
+		if (primaryStockManager == null) {
+			throw new BookStoreException(BookStoreConstants.READ_ONLY_REPLICA);
+		}
+
+		return primaryStockManager;
+	}
+
+	/**
+	 * Converts a stock book to the book seen by customers.
+	 *
+	 * @param book
+	 *            the stock book
+	 * @return the book
+	 */
+	private static Book toBook(StockBook book) {
+		return new ImmutableBook(book.getISBN(), book.getTitle(), book.getAuthor(), book.getPrice());
+	}
+
+	/**
+	 * {@link View} is an immutable copy of the catalog: a snapshot, the books
+	 * changed since with null for the removed ones, and the ISBNs of the
+	 * editor picks.
+	 *
+	 * The versions of the books are issued by the replica: the books of a
+	 * loaded snapshot share one version, and the books of an applied change
+	 * get a new one.
+	 */
+	private static final class View {
+
+		/** The snapshot, null if all its books were removed. */
+		private final BookStoreSnapshot snapshot;
+
+		/** The books changed since the snapshot, null if removed. */
+		private final Map<Integer, StockBook> overlay;
+
+		/** The versions of the books changed since the snapshot. */
+		private final Map<Integer, Long> overlayVersions;
+
+		/** The version of the books of the snapshot. */
+		private final long snapshotVersion;
+
+		/** The ISBNs of the editor picks. */
+		private final List<Integer> editorPicks;
+
+		/** The epoch of the change log. */
+		private final long epoch;
+
+		/** The sequence number of the last change applied. */
+		private final long sequence;
+
+		/** The catalog version. */
+		private final long version;
+
+		/**
+		 * Instantiates a new {@link View} of a snapshot.
+		 *
+		 * @param snapshot
+		 *            the snapshot
+		 * @param version
+		 *            the catalog version
+		 */
+		private View(BookStoreSnapshot snapshot, long version) {
+			List<Integer> snapshotEditorPicks = new ArrayList<>();
+
+			for (int i = 0; i < snapshot.size(); i++) {
+				if (snapshot.isEditorPick(i)) {
+					snapshotEditorPicks.add(snapshot.getISBN(i));
+				}
+			}
+
+			this.snapshot = snapshot;
+			this.overlay = Collections.emptyMap();
+			this.overlayVersions = Collections.emptyMap();
+			this.snapshotVersion = BookStoreBook.nextVersion();
+			this.editorPicks = snapshotEditorPicks;
+			this.epoch = snapshot.getEpoch();
+			this.sequence = snapshot.getSequence();
+			this.version = version;
+		}
+
+		/**
+		 * Instantiates a new {@link View}.
+		 *
+		 * @param snapshot
+		 *            the snapshot, may be null
+		 * @param overlay
+		 *            the books changed since the snapshot
+		 * @param overlayVersions
+		 *            the versions of the books changed since the snapshot
+		 * @param snapshotVersion
+		 *            the version of the books of the snapshot
+		 * @param editorPicks
+		 *            the ISBNs of the editor picks
+		 * @param epoch
+		 *            the epoch of the change log
+		 * @param sequence
+		 *            the sequence number of the last change applied
+		 * @param version
+		 *            the catalog version
+		 */
+		private View(BookStoreSnapshot snapshot, Map<Integer, StockBook> overlay, Map<Integer, Long> overlayVersions,
+				long snapshotVersion, List<Integer> editorPicks, long epoch, long sequence, long version) {
+			this.snapshot = snapshot;
+			this.overlay = overlay;
+			this.overlayVersions = overlayVersions;
+			this.snapshotVersion = snapshotVersion;
+			this.editorPicks = editorPicks;
+			this.epoch = epoch;
+			this.sequence = sequence;
+			this.version = version;
+		}
+
+		/**
+		 * Creates the view with changes applied.
+		 *
+		 * @param changes
+		 *            the changes
+		 * @return the new view
+		 */
+		private View apply(BookStoreCatalogChanges changes) {
+			BookStoreSnapshot newSnapshot = changes.isReset() ? null : snapshot;
+			Map<Integer, StockBook> newOverlay = changes.isReset() ? new HashMap<>() : new HashMap<>(overlay);
+			Map<Integer, Long> newOverlayVersions = changes.isReset() ? new HashMap<>()
+					: new HashMap<>(overlayVersions);
+			long changeVersion = BookStoreBook.nextVersion();
+			Set<Integer> newEditorPicks = changes.isReset() ? new HashSet<>() : new HashSet<>(editorPicks);
+
+			for (Integer isbn : changes.getRemovedISBNs()) {
+				newOverlay.put(isbn, null);
+				newOverlayVersions.remove(isbn);
+				newEditorPicks.remove(isbn);
+			}
+
+			for (StockBook book : changes.getChangedBooks()) {
+				newOverlay.put(book.getISBN(), book);
+				newOverlayVersions.put(book.getISBN(), changeVersion);
+
+				if (book.isEditorPick()) {
+					newEditorPicks.add(book.getISBN());
+				} else {
+					newEditorPicks.remove(book.getISBN());
+				}
+			}
+
+			return new View(newSnapshot, newOverlay, newOverlayVersions, snapshotVersion, new ArrayList<>(newEditorPicks),
+					changes.getEpoch(), changes.getSequence(), version + 1);
+		}
+
+		/**
+		 * Gets a book.
+		 *
+		 * @param isbn
+		 *            the ISBN
+		 * @return the book, or null if it is not in the catalog
+		 */
+		private StockBook getBook(int isbn) {
+			if (overlay.containsKey(isbn)) {
+				return overlay.get(isbn);
+			}
+
+			int index = snapshot == null ? -1 : snapshot.indexOf(isbn);
+			return index < 0 ? null : snapshot.getBook(index);
+		}
+
+		/**
+		 * Gets the version of a book of the catalog.
+		 *
+		 * @param isbn
+		 *            the ISBN
+		 * @return the version
+		 */
+		private long getVersion(int isbn) {
+			Long overlayVersion = overlayVersions.get(isbn);
+			return overlayVersion != null ? overlayVersion : snapshotVersion;
+		}
+
+		/**
+		 * Gets the books with the ISBNs, all of which must be in the catalog.
+		 *
+		 * @param isbnSet
+		 *            the ISBN set
+		 * @return the books
+		 * @throws BookStoreException
+		 *             if an ISBN is invalid or not in the catalog
+		 */
+		private List<StockBook> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+			if (isbnSet == null) {
+				throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			}
+
+			List<StockBook> bookList = new ArrayList<>(isbnSet.size());
+
+			for (Integer isbn : isbnSet) {
+				if (BookStoreUtility.isInvalidISBN(isbn)) {
+					throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.INVALID);
+				}
+
+				StockBook book = getBook(isbn);
+
+				if (book == null) {
+					throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.NOT_AVAILABLE);
+				}
+
+				bookList.add(book);
+			}
+
+			return bookList;
+		}
+
+		/**
+		 * Gets all books of the catalog.
+		 *
+		 * @return the books
+		 */
+		private List<StockBook> getAllBooks() {
+			List<StockBook> bookList = new ArrayList<>((snapshot == null ? 0 : snapshot.size()) + overlay.size());
+
+			if (snapshot != null) {
+				for (int i = 0; i < snapshot.size(); i++) {
+					if (!overlay.containsKey(snapshot.getISBN(i))) {
+						bookList.add(snapshot.getBook(i));
+					}
+				}
+			}
+
+			for (StockBook book : overlay.values()) {
+				if (book != null) {
+					bookList.add(book);
+				}
+			}
+
+			return bookList;
+		}
+	}
+}
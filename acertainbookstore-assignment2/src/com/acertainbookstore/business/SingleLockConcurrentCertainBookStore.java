@@ -10,16 +10,20 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 
 import java.util.concurrent.*;
 
 import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.LockMonitored;
 import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.interfaces.VersionedCatalog;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.VersionedBook;
 
 
 /** {@link SingleLockConcurrentCertainBookStore} implements the {@link BookStore} and
@@ -28,13 +32,21 @@ import com.acertainbookstore.utils.BookStoreUtility;
  * @see BookStore
  * @see StockManager
  */
-public class SingleLockConcurrentCertainBookStore implements BookStore, StockManager {
+public class SingleLockConcurrentCertainBookStore implements BookStore, StockManager, VersionedCatalog, LockMonitored {
 
 	/** The mapping of books from ISBN to {@link BookStoreBook}. */
 	private Map<Integer, BookStoreBook> bookMap = null;
 
+	/** The lock contention metrics, shared by the instances like the lock. */
+	private static final BookStoreLockStats lockStats = new BookStoreLockStats("SingleLockConcurrentCertainBookStore");
+
 	/** A single read-write lock on the entire database */
-	private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+	private static final ReentrantReadWriteLock lock = lockStats.newDatabaseLock();
+
+	/**
+	 * The catalog version, also incremented by ratings under the read lock.
+	 */
+	private final AtomicLong catalogVersion = new AtomicLong();
 	// To read and lock ressources: lock.readLock().lock();
 	// To release ressources from reading: lock.readLock().unlock();
 	// To write lock ressources exclusively: lock.writeLock().lock();
@@ -97,6 +109,14 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		validateISBNInStock(isbn); // Check if the book has valid ISBN and in stock
 	}
 
+	private void validate(BookRating rating) throws BookStoreException {
+		validateISBNInStock(rating.getISBN()); // Check if the book has valid ISBN and in stock
+
+		if (BookStoreUtility.isInvalidRating(rating.getRating())) { // Check if the rating is between 0 and 5
+			throw new BookStoreException(BookStoreConstants.RATING + rating.getRating() + BookStoreConstants.INVALID);
+		}
+	}
+
 	private void validateISBNInStock(Integer ISBN) throws BookStoreException {
 		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
 			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
@@ -128,6 +148,8 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 				int isbn = book.getISBN();
 				bookMap.put(isbn, new BookStoreBook(book));
 			}
+
+			catalogVersion.incrementAndGet();
 		} finally {
 			lock.writeLock().unlock();
 		}
@@ -163,6 +185,8 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 				book = bookMap.get(isbn);
 				book.addCopies(numCopies);
 			}
+
+			catalogVersion.incrementAndGet();
 		} finally {
 			lock.writeLock().unlock();
 		}
@@ -175,6 +199,8 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
 	 */
 	public List<StockBook> getBooks() {
+		BookStoreScanEvent event = new BookStoreScanEvent();
+		event.begin();
 		lock.readLock().lock();
 		Collection<BookStoreBook> bookMapValues = bookMap.values();
 
@@ -183,6 +209,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 				.collect(Collectors.toList());
 
 		lock.readLock().unlock();
+		event.complete(this, BookStoreScanEvent.LIST_BOOKS, bookList.size(), bookList.size());
 		return bookList;
 	}
 
@@ -208,6 +235,8 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			for (BookEditorPick editorPickArg : editorPicks) {
 				bookMap.get(editorPickArg.getISBN()).setEditorPick(editorPickArg.isEditorPick());
 			}
+
+			catalogVersion.incrementAndGet();
 		} finally {
 			lock.writeLock().unlock();
 		}
@@ -254,6 +283,8 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 					book = bookMap.get(saleMissEntry.getKey());
 					book.addSaleMiss(saleMissEntry.getValue());
 				}
+
+				catalogVersion.incrementAndGet();
 				throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
 			}
 
@@ -262,6 +293,8 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 				book = bookMap.get(bookCopyToBuy.getISBN());
 				book.buyCopies(bookCopyToBuy.getNumCopies());
 			}
+
+			catalogVersion.incrementAndGet();
 		}  finally {
 			lock.writeLock().unlock();
 		}
@@ -310,6 +343,8 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
+		BookStoreScanEvent event = new BookStoreScanEvent();
+		event.begin();
 		lock.readLock().lock();
 		// Check that all ISBNs that we rate are there to start with.
 		try {
@@ -325,6 +360,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 				.map(isbn -> bookMap.get(isbn).immutableBook())
 				.collect(Collectors.toList());
 		lock.readLock().unlock();
+		event.complete(this, BookStoreScanEvent.GET_BOOKS, isbnSet.size(), bookList.size());
 
 		return bookList;
 	}
@@ -340,6 +376,8 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
 		}
 
+		BookStoreScanEvent event = new BookStoreScanEvent();
+		event.begin();
 		lock.readLock().lock();
 		List<BookStoreBook> listAllEditorPicks = bookMap.entrySet().stream()
                 .map(pair -> pair.getValue())
@@ -373,6 +411,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 				.collect(Collectors.toList());
 
 		lock.readLock().unlock();
+		event.complete(this, BookStoreScanEvent.GET_EDITOR_PICKS, numBooks, randomEditorPicks.size());
 
         // Return all the books by the randomly chosen indices.
         return randomEditorPicks;
@@ -405,7 +444,25 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	 */
 	@Override
 	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
-		throw new BookStoreException();
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		// The ratings are added to adders, so the shared lock is enough.
+		lock.readLock().lock();
+		try {
+			for (BookRating rating : bookRating) {
+				validate(rating);
+			}
+
+			for (BookRating rating : bookRating) {
+				bookMap.get(rating.getISBN()).addRating(rating.getRating());
+			}
+
+			catalogVersion.incrementAndGet();
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 
 
@@ -417,6 +474,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	public void removeAllBooks() throws BookStoreException {
 		lock.writeLock().lock();
 		bookMap.clear();
+		catalogVersion.incrementAndGet();
 		lock.writeLock().unlock();
 	}
 
@@ -451,8 +509,57 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			for (int isbn : isbnSet) {
 				bookMap.remove(isbn);
 			}
+
+			catalogVersion.incrementAndGet();
 		} finally {
 			lock.writeLock().unlock();
 		}
 	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.VersionedCatalog#getCatalogVersion()
+	 */
+	@Override
+	public long getCatalogVersion() {
+		return catalogVersion.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.VersionedCatalog#getVersionedBooks(java.
+	 * util.Set)
+	 */
+	@Override
+	public List<VersionedBook> getVersionedBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		lock.readLock().lock();
+		try {
+			for (Integer ISBN : isbnSet) {
+				validateISBNInStock(ISBN);
+			}
+
+			return isbnSet.stream()
+					.map(isbn -> bookMap.get(isbn).versionedBook())
+					.collect(Collectors.toList());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.LockMonitored#getLockStats()
+	 */
+	@Override
+	public BookStoreLockStats getLockStats() {
+		return lockStats;
+	}
 }
@@ -10,39 +10,70 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 
 import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.LockMonitored;
 import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.interfaces.VersionedCatalog;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.VersionedBook;
 
 /** {@link TwoLevelLockingConcurrentCertainBookStore} implements the {@link BookStore} and
  * {@link StockManager} functionalities.
  *
+ * The copies of hot books, the ones bought at a high rate, are held in a
+ * {@link BookStoreStockEscrow} split into slices. A purchase of a single
+ * escrowed book then only takes the database lock in shared mode and draws
+ * from the slice of its thread, so purchases of a bestseller no longer queue
+ * one by one on the exclusive lock. The other purchases, and those that find
+ * too few copies in the escrow, take the exclusive lock as before. Escrow is
+ * turned on and off by the {@link BookStoreHotBookDetector}.
+ *
  * @see BookStore
  * @see StockManager
  */
-public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, StockManager {
+public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, StockManager, VersionedCatalog, LockMonitored {
 
 	/**
 	 * The mapping of books from ISBN to {@link BookStoreBook}.
 	 */
 	private Map<Integer, BookStoreBook> bookMap = null;
 
+	/** The lock contention metrics, shared by the instances like the lock. */
+	private static final BookStoreLockStats lockStats = new BookStoreLockStats("TwoLevelLockingConcurrentCertainBookStore");
+
 	/**
 	 * Database-level lock (intention lock)
 	 */
-	private static final ReentrantReadWriteLock dbLock = new ReentrantReadWriteLock(true);
+	private static final ReentrantReadWriteLock dbLock = lockStats.newDatabaseLock();
 
 	/**
 	 * Item-level locks
 	 */
 	private final ConcurrentHashMap<Integer, ReentrantReadWriteLock> itemLocks = new ConcurrentHashMap<>();
 
+	/**
+	 * The catalog version, also incremented by the purchases from an escrow
+	 * that run concurrently.
+	 */
+	private final AtomicLong catalogVersion = new AtomicLong();
+
+	/** The number of slices of the escrow of a hot book. */
+	private static final int ESCROW_SLICES = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	/** The detector of the hot books. */
+	private final BookStoreHotBookDetector hotBooks = new BookStoreHotBookDetector();
+
+	/** The ISBNs of the escrowed books, only changed under the write lock. */
+	private final Set<Integer> escrowedISBNs = ConcurrentHashMap.newKeySet();
+
 	/**
 	 * Instantiates a new {@link CertainBookStore}.
 	 */
@@ -99,6 +130,14 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		validateISBNInStock(isbn); // Check if the book has valid ISBN and in stock
 	}
 
+	private void validate(BookRating rating) throws BookStoreException {
+		validateISBNInStock(rating.getISBN()); // Check if the book has valid ISBN and in stock
+
+		if (BookStoreUtility.isInvalidRating(rating.getRating())) { // Check if the rating is between 0 and 5
+			throw new BookStoreException(BookStoreConstants.RATING + rating.getRating() + BookStoreConstants.INVALID);
+		}
+	}
+
 	private void validateISBNInStock(Integer ISBN) throws BookStoreException {
 		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
 			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
@@ -131,12 +170,14 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 
 			for (StockBook book : bookSet) {
 				int isbn = book.getISBN();
-				ReentrantReadWriteLock itemLock = itemLocks.computeIfAbsent(isbn, k -> new ReentrantReadWriteLock(true));
+				ReentrantReadWriteLock itemLock = itemLocks.computeIfAbsent(isbn, lockStats::newItemLock);
 				itemLock.writeLock().lock();
 				acquiredLocks.add(itemLock);
 
 				bookMap.put(isbn, new BookStoreBook(book));
 			}
+
+			catalogVersion.incrementAndGet();
 		} finally {
 			// Release item-level locks
 			for (ReentrantReadWriteLock lock : acquiredLocks) {
@@ -174,7 +215,7 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 			for (BookCopy bookCopy : bookCopiesSet) {
 				isbn = bookCopy.getISBN();
 
-				ReentrantReadWriteLock itemLock = itemLocks.computeIfAbsent(isbn, k -> new ReentrantReadWriteLock(true));
+				ReentrantReadWriteLock itemLock = itemLocks.computeIfAbsent(isbn, lockStats::newItemLock);
 				itemLock.writeLock().lock();
 				acquiredLocks.add(itemLock);
 
@@ -182,6 +223,8 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 				book = bookMap.get(isbn);
 				book.addCopies(numCopies);
 			}
+
+			catalogVersion.incrementAndGet();
 		} finally {
 			for (ReentrantReadWriteLock lock : acquiredLocks) {
 				lock.writeLock().unlock();
@@ -197,6 +240,8 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
 	 */
 	public List<StockBook> getBooks() {
+		BookStoreScanEvent event = new BookStoreScanEvent();
+		event.begin();
 		dbLock.readLock().lock();
 		List<ReentrantReadWriteLock> acquiredLocks = new ArrayList<>();
 		Collection<BookStoreBook> bookMapValues = bookMap.values();
@@ -204,16 +249,22 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		for (BookStoreBook book : bookMap.values()) {
 			int isbn = book.getISBN();
 
-			ReentrantReadWriteLock itemLock = itemLocks.computeIfAbsent(isbn, k -> new ReentrantReadWriteLock(true));
+			ReentrantReadWriteLock itemLock = itemLocks.computeIfAbsent(isbn, lockStats::newItemLock);
 			itemLock.readLock().lock(); // Acquire shared lock (since we're just reading)
 			acquiredLocks.add(itemLock);
 		}
 
+		List<BookStoreStockEscrow> escrows = lockEscrows(null);
+
 		try {
-			return bookMapValues.stream()
+			List<StockBook> bookList = bookMapValues.stream()
 					.map(book -> book.immutableStockBook())
 					.collect(Collectors.toList());
+			event.complete(this, BookStoreScanEvent.LIST_BOOKS, bookList.size(), bookList.size());
+			return bookList;
 		} finally {
+			unlockEscrows(escrows);
+
 			for (ReentrantReadWriteLock lock : acquiredLocks) {
 				lock.readLock().unlock();
 			}
@@ -242,13 +293,15 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 				validate(editorPickArg);
 
 				int isbn = editorPickArg.getISBN();
-				ReentrantReadWriteLock itemLock = itemLocks.computeIfAbsent(isbn, k -> new ReentrantReadWriteLock(true));
+				ReentrantReadWriteLock itemLock = itemLocks.computeIfAbsent(isbn, lockStats::newItemLock);
 				itemLock.writeLock().lock();
 				acquiredLocks.add(itemLock);
 			}
 			for (BookEditorPick editorPickArg : editorPicks) {
 				bookMap.get(editorPickArg.getISBN()).setEditorPick(editorPickArg.isEditorPick());
 			}
+
+			catalogVersion.incrementAndGet();
 		} finally {
 			for (ReentrantReadWriteLock lock : acquiredLocks) {
 				lock.writeLock().unlock();
@@ -268,6 +321,58 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
+		try {
+			if (bookCopiesToBuy.size() != 1 || !buyFromEscrow(bookCopiesToBuy.iterator().next())) {
+				buyBooksExclusively(bookCopiesToBuy);
+			}
+		} finally {
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				hotBooks.recordPurchase(bookCopyToBuy.getISBN());
+			}
+
+			adaptEscrow();
+		}
+	}
+
+	/**
+	 * Buys copies of an escrowed book under the shared database lock.
+	 *
+	 * @param bookCopyToBuy
+	 *            the book copies to buy
+	 * @return true, if the copies were bought, false if the book is not
+	 *         escrowed or its escrow has too few copies
+	 * @throws BookStoreException
+	 *             if the book copies are invalid
+	 */
+	private boolean buyFromEscrow(BookCopy bookCopyToBuy) throws BookStoreException {
+		dbLock.readLock().lock();
+		try {
+			validate(bookCopyToBuy);
+
+			BookStoreBook book = bookMap.get(bookCopyToBuy.getISBN());
+
+			// An escrowed book buys its copies from the escrow.
+			if (book.getEscrow() == null || !book.buyCopies(bookCopyToBuy.getNumCopies())) {
+				return false;
+			}
+
+			catalogVersion.incrementAndGet();
+			return true;
+		} finally {
+			dbLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Buys books under the exclusive database lock, recording the sale
+	 * misses if some copies are not in stock.
+	 *
+	 * @param bookCopiesToBuy
+	 *            the book copies to buy
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private void buyBooksExclusively(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
 		// Check that all ISBNs that we buy are there first.
 		int isbn;
 		BookStoreBook book;
@@ -284,7 +389,7 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 
 				validate(bookCopyToBuy);
 
-				ReentrantReadWriteLock itemLock = itemLocks.computeIfAbsent(isbn, k -> new ReentrantReadWriteLock(true));
+				ReentrantReadWriteLock itemLock = itemLocks.computeIfAbsent(isbn, lockStats::newItemLock);
 				itemLock.writeLock().lock();
 				acquiredLocks.add(itemLock);
 
@@ -304,6 +409,8 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 					book = bookMap.get(saleMissEntry.getKey());
 					book.addSaleMiss(saleMissEntry.getValue());
 				}
+
+				catalogVersion.incrementAndGet();
 				throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
 			}
 
@@ -313,6 +420,8 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 				book.buyCopies(bookCopyToBuy.getNumCopies());
 			}
 
+			catalogVersion.incrementAndGet();
+
 		} finally {
 			for (ReentrantReadWriteLock lock : acquiredLocks) {
 				lock.writeLock().unlock();
@@ -321,6 +430,109 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		}
 	}
 
+	/**
+	 * Turns escrow on for the books that became hot and off for those that
+	 * cooled down, once per window of the detector. The database lock is only
+	 * taken exclusively if some book changes.
+	 */
+	private void adaptEscrow() {
+		Map<Integer, Long> purchaseRates = hotBooks.closeWindow();
+
+		if (purchaseRates == null) {
+			return;
+		}
+
+		Set<Integer> hotISBNs = new HashSet<>();
+
+		for (Map.Entry<Integer, Long> purchaseRate : purchaseRates.entrySet()) {
+			if (purchaseRate.getValue() >= BookStoreHotBookDetector.HOT_PURCHASES_PER_WINDOW) {
+				hotISBNs.add(purchaseRate.getKey());
+			}
+		}
+
+		Set<Integer> coolISBNs = new HashSet<>();
+
+		for (Integer isbn : escrowedISBNs) {
+			if (purchaseRates.getOrDefault(isbn, 0L) < BookStoreHotBookDetector.COOL_PURCHASES_PER_WINDOW) {
+				coolISBNs.add(isbn);
+			}
+		}
+
+		hotISBNs.removeAll(escrowedISBNs);
+
+		if (hotISBNs.isEmpty() && coolISBNs.isEmpty()) {
+			return;
+		}
+
+		dbLock.writeLock().lock();
+		try {
+			for (Integer isbn : coolISBNs) {
+				BookStoreBook book = bookMap.get(isbn);
+
+				if (book != null) {
+					book.stopEscrow();
+				}
+
+				escrowedISBNs.remove(isbn);
+			}
+
+			for (Integer isbn : hotISBNs) {
+				BookStoreBook book = bookMap.get(isbn);
+
+				if (book != null) {
+					book.startEscrow(ESCROW_SLICES);
+					escrowedISBNs.add(isbn);
+				}
+			}
+		} finally {
+			dbLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Locks the escrows of the books with the ISBNs in ISBN order, so that
+	 * their copies can be read together while purchases draw from them. The
+	 * caller must hold the database lock.
+	 *
+	 * @param isbns
+	 *            the ISBNs of the books, null for all books
+	 * @return the locked escrows
+	 */
+	private List<BookStoreStockEscrow> lockEscrows(Collection<Integer> isbns) {
+		List<BookStoreStockEscrow> escrows = new ArrayList<>();
+
+		for (Integer isbn : new TreeSet<>(escrowedISBNs)) {
+			if (isbns == null || isbns.contains(isbn)) {
+				BookStoreStockEscrow escrow = bookMap.get(isbn).getEscrow();
+				escrow.lockAll();
+				escrows.add(escrow);
+			}
+		}
+
+		return escrows;
+	}
+
+	/**
+	 * Unlocks escrows.
+	 *
+	 * @param escrows
+	 *            the escrows
+	 */
+	private static void unlockEscrows(List<BookStoreStockEscrow> escrows) {
+		for (BookStoreStockEscrow escrow : escrows) {
+			escrow.unlockAll();
+		}
+	}
+
+	/**
+	 * Gets the ISBNs of the books whose copies are held in an escrow.
+	 *
+	 * @return the ISBNs of the escrowed books
+	 */
+	public Set<Integer> getEscrowedBooks() {
+		return new HashSet<>(escrowedISBNs);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 *
@@ -339,14 +551,20 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		try {
 			for (Integer ISBN : isbnSet) {
 				validateISBNInStock(ISBN);
-				ReentrantReadWriteLock itemLock = itemLocks.computeIfAbsent(ISBN, k -> new ReentrantReadWriteLock(true));
+				ReentrantReadWriteLock itemLock = itemLocks.computeIfAbsent(ISBN, lockStats::newItemLock);
 				itemLock.readLock().lock(); // Acquire shared lock (since we're just reading)
 				acquiredLocks.add(itemLock);
 			}
 
-			return isbnSet.stream()
-					.map(isbn -> bookMap.get(isbn).immutableStockBook())
-					.collect(Collectors.toList());
+			List<BookStoreStockEscrow> escrows = lockEscrows(isbnSet);
+
+			try {
+				return isbnSet.stream()
+						.map(isbn -> bookMap.get(isbn).immutableStockBook())
+						.collect(Collectors.toList());
+			} finally {
+				unlockEscrows(escrows);
+			}
 		} finally {
 			for (ReentrantReadWriteLock lock : acquiredLocks) {
 				lock.readLock().unlock();
@@ -367,20 +585,24 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 
 		List<ReentrantReadWriteLock> acquiredLocks = new ArrayList<>();
 
+		BookStoreScanEvent event = new BookStoreScanEvent();
+		event.begin();
 		dbLock.readLock().lock();
 		// Check that all ISBNs that we rate are there to start with.
 		try {
 			for (Integer ISBN : isbnSet) {
 				validateISBNInStock(ISBN);
 
-				ReentrantReadWriteLock itemLock = itemLocks.computeIfAbsent(ISBN, k -> new ReentrantReadWriteLock(true));
+				ReentrantReadWriteLock itemLock = itemLocks.computeIfAbsent(ISBN, lockStats::newItemLock);
 				itemLock.readLock().lock();
 				acquiredLocks.add(itemLock);
 			}
 
-			return isbnSet.stream()
+			List<Book> bookList = isbnSet.stream()
 					.map(isbn -> bookMap.get(isbn).immutableBook())
 					.collect(Collectors.toList());
+			event.complete(this, BookStoreScanEvent.GET_BOOKS, isbnSet.size(), bookList.size());
+			return bookList;
 		} finally {
 			for (ReentrantReadWriteLock lock : acquiredLocks) {
 				lock.readLock().unlock();
@@ -402,12 +624,14 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 
 		List<ReentrantReadWriteLock> acquiredLocks = new ArrayList<>();
 
+		BookStoreScanEvent event = new BookStoreScanEvent();
+		event.begin();
 		dbLock.readLock().lock();
 		try {
 			List<BookStoreBook> listAllEditorPicks = bookMap.entrySet().stream()
 					.map(pair -> pair.getValue())
 					.filter(book -> {
-						ReentrantReadWriteLock itemLock = itemLocks.computeIfAbsent(book.getISBN(), k -> new ReentrantReadWriteLock(true));
+						ReentrantReadWriteLock itemLock = itemLocks.computeIfAbsent(book.getISBN(), lockStats::newItemLock);
 						itemLock.readLock().lock();
 						acquiredLocks.add(itemLock); // Keep track of locks for later release
 						return book.isEditorPick();
@@ -437,9 +661,11 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 			}
 
 			// Return all the books by the randomly chosen indices.
-			return tobePicked.stream()
+			List<Book> randomEditorPicks = tobePicked.stream()
 					.map(index -> listAllEditorPicks.get(index).immutableBook())
 					.collect(Collectors.toList());
+			event.complete(this, BookStoreScanEvent.GET_EDITOR_PICKS, numBooks, randomEditorPicks.size());
+			return randomEditorPicks;
 		} finally {
 			for (ReentrantReadWriteLock lock : acquiredLocks) {
 				lock.readLock().unlock();
@@ -475,7 +701,25 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 */
 	@Override
 	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
-		throw new BookStoreException();
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		// The ratings are added to adders, so the shared lock is enough.
+		dbLock.readLock().lock();
+		try {
+			for (BookRating rating : bookRating) {
+				validate(rating);
+			}
+
+			for (BookRating rating : bookRating) {
+				bookMap.get(rating.getISBN()).addRating(rating.getRating());
+			}
+
+			catalogVersion.incrementAndGet();
+		} finally {
+			dbLock.readLock().unlock();
+		}
 	}
 
 	/*
@@ -486,6 +730,8 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	public void removeAllBooks() throws BookStoreException {
 		dbLock.writeLock().lock();
 		bookMap.clear();
+		escrowedISBNs.clear();
+		catalogVersion.incrementAndGet();
 		dbLock.writeLock().unlock();
 	}
 
@@ -505,7 +751,7 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		dbLock.writeLock().lock();
 		try {
 			for (Integer ISBN : isbnSet) {
-				ReentrantReadWriteLock itemLock = itemLocks.computeIfAbsent(ISBN, k -> new ReentrantReadWriteLock(true));
+				ReentrantReadWriteLock itemLock = itemLocks.computeIfAbsent(ISBN, lockStats::newItemLock);
 				itemLock.writeLock().lock();
 				acquiredLocks.add(itemLock);
 				if (BookStoreUtility.isInvalidISBN(ISBN)) {
@@ -519,7 +765,10 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 
 			for (int isbn : isbnSet) {
 				bookMap.remove(isbn);
+				escrowedISBNs.remove(isbn);
 			}
+
+			catalogVersion.incrementAndGet();
 		} finally {
 			for (ReentrantReadWriteLock lock : acquiredLocks) {
 				lock.writeLock().unlock();
@@ -527,4 +776,53 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 			dbLock.writeLock().unlock();
 		}
 	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.VersionedCatalog#getCatalogVersion()
+	 */
+	@Override
+	public long getCatalogVersion() {
+		return catalogVersion.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.VersionedCatalog#getVersionedBooks(java.
+	 * util.Set)
+	 */
+	@Override
+	public List<VersionedBook> getVersionedBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		dbLock.readLock().lock();
+		try {
+			for (Integer ISBN : isbnSet) {
+				validateISBNInStock(ISBN);
+			}
+
+			// The versions are volatile, so the item locks are not needed.
+
+			return isbnSet.stream()
+					.map(isbn -> bookMap.get(isbn).versionedBook())
+					.collect(Collectors.toList());
+		} finally {
+			dbLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.LockMonitored#getLockStats()
+	 */
+	@Override
+	public BookStoreLockStats getLockStats() {
+		return lockStats;
+	}
 }
@@ -0,0 +1,208 @@
+package com.acertainbookstore.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jetty.client.HttpClient;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStoreSerializer;
+import com.acertainbookstore.utils.BookStoreBatchOperation;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreRequest;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link BookStoreBatch} collects an ordered list of {@link BookStore} and
+ * {@link StockManager} operations and sends them to the server in a single
+ * HTTP round trip. A batch is obtained from
+ * {@link BookStoreHTTPProxy#newBatch()} or
+ * {@link StockManagerHTTPProxy#newBatch()}.
+ *
+ * The operations are executed in order but independently of each other; the
+ * result of the i-th operation is the i-th {@link BookStoreResponse} returned
+ * by {@link #execute()}, holding either its result list or its exception.
+ *
+ * @see BookStoreMessageTag#BATCH
+ */
+public class BookStoreBatch {
+
+	/** The client. */
+	private final HttpClient client;
+
+	/** The server address. */
+	private final String serverAddress;
+
+	/** The serializer. */
+	private final ThreadLocal<BookStoreSerializer> serializer;
+
+	/** The operations of the batch. */
+	private final List<BookStoreBatchOperation> operations = new ArrayList<>();
+
+	/**
+	 * Instantiates a new {@link BookStoreBatch}.
+	 *
+	 * @param client
+	 *            the client
+	 * @param serverAddress
+	 *            the server address
+	 * @param serializer
+	 *            the serializer
+	 */
+	BookStoreBatch(HttpClient client, String serverAddress, ThreadLocal<BookStoreSerializer> serializer) {
+		this.client = client;
+		this.serverAddress = serverAddress;
+		this.serializer = serializer;
+	}
+
+	/**
+	 * Adds a buyBooks operation to the batch.
+	 *
+	 * @param booksToBuy
+	 *            the books to buy
+	 * @return the batch
+	 */
+	public BookStoreBatch buyBooks(Set<BookCopy> booksToBuy) {
+		return add(BookStoreMessageTag.BUYBOOKS, booksToBuy);
+	}
+
+	/**
+	 * Adds a getBooks operation to the batch.
+	 *
+	 * @param isbnSet
+	 *            the ISBN set
+	 * @return the batch
+	 */
+	public BookStoreBatch getBooks(Set<Integer> isbnSet) {
+		return add(BookStoreMessageTag.GETBOOKS, isbnSet);
+	}
+
+	/**
+	 * Adds a getEditorPicks operation to the batch.
+	 *
+	 * @param numBooks
+	 *            the number of books
+	 * @return the batch
+	 */
+	public BookStoreBatch getEditorPicks(int numBooks) {
+		return add(BookStoreMessageTag.GETEDITORPICKS, Integer.toString(numBooks));
+	}
+
+	/**
+	 * Adds an addBooks operation to the batch.
+	 *
+	 * @param bookSet
+	 *            the book set
+	 * @return the batch
+	 */
+	public BookStoreBatch addBooks(Set<StockBook> bookSet) {
+		return add(BookStoreMessageTag.ADDBOOKS, bookSet);
+	}
+
+	/**
+	 * Adds an addCopies operation to the batch.
+	 *
+	 * @param bookCopiesSet
+	 *            the book copies set
+	 * @return the batch
+	 */
+	public BookStoreBatch addCopies(Set<BookCopy> bookCopiesSet) {
+		return add(BookStoreMessageTag.ADDCOPIES, bookCopiesSet);
+	}
+
+	/**
+	 * Adds an operation listing all the stock books to the batch.
+	 *
+	 * @return the batch
+	 */
+	public BookStoreBatch listBooks() {
+		return add(BookStoreMessageTag.LISTBOOKS, null);
+	}
+
+	/**
+	 * Adds a getBooksByISBN operation to the batch.
+	 *
+	 * @param isbns
+	 *            the ISBNs
+	 * @return the batch
+	 */
+	public BookStoreBatch getBooksByISBN(Set<Integer> isbns) {
+		return add(BookStoreMessageTag.GETSTOCKBOOKSBYISBN, isbns);
+	}
+
+	/**
+	 * Adds an updateEditorPicks operation to the batch.
+	 *
+	 * @param editorPicksValues
+	 *            the editor picks values
+	 * @return the batch
+	 */
+	public BookStoreBatch updateEditorPicks(Set<BookEditorPick> editorPicksValues) {
+		return add(BookStoreMessageTag.UPDATEEDITORPICKS, editorPicksValues);
+	}
+
+	/**
+	 * Adds a removeBooks operation to the batch.
+	 *
+	 * @param isbnSet
+	 *            the ISBN set
+	 * @return the batch
+	 */
+	public BookStoreBatch removeBooks(Set<Integer> isbnSet) {
+		return add(BookStoreMessageTag.REMOVEBOOKS, isbnSet);
+	}
+
+	/**
+	 * Adds a removeAllBooks operation to the batch.
+	 *
+	 * @return the batch
+	 */
+	public BookStoreBatch removeAllBooks() {
+		return add(BookStoreMessageTag.REMOVEALLBOOKS, null);
+	}
+
+	/**
+	 * Gets the number of operations in the batch.
+	 *
+	 * @return the number of operations
+	 */
+	public int size() {
+		return operations.size();
+	}
+
+	/**
+	 * Sends the batch to the server and returns one response per operation,
+	 * in the order in which the operations were added.
+	 *
+	 * @return the responses of the operations
+	 * @throws BookStoreException
+	 *             if the batch as a whole could not be executed
+	 */
+	@SuppressWarnings("unchecked")
+	public List<BookStoreResponse> execute() throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.BATCH;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, new ArrayList<>(operations));
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+				serializer.get());
+		return (List<BookStoreResponse>) bookStoreResponse.getList();
+	}
+
+	/**
+	 * Adds an operation to the batch.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @param inputValue
+	 *            the input value
+	 * @return the batch
+	 */
+	private BookStoreBatch add(BookStoreMessageTag messageTag, Object inputValue) {
+		operations.add(new BookStoreBatchOperation(messageTag, inputValue));
+		return this;
+	}
+}
@@ -0,0 +1,224 @@
+package com.acertainbookstore.client;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.utils.VersionedBook;
+
+/**
+ * {@link BookStoreBookCache} is the bounded client-side cache of the
+ * {@link BookStoreHTTPProxy}. It holds the books returned by getBooks
+ * together with the versions issued by the server's store and evicts the
+ * least recently used book once full.
+ *
+ * An entry is fresh for <code>maxStalenessMillis</code> after it was last
+ * validated by the server and is served without a round trip while fresh.
+ * Stale entries are not dropped but revalidated in bulk: their versions are
+ * sent to the server, which only returns the books that changed. The entries
+ * sent are kept with the {@link Revalidation}, so that an unchanged book is
+ * served even if a concurrent update evicted its entry meanwhile.
+ */
+public class BookStoreBookCache {
+
+	/** The maximum number of books. */
+	private final int capacity;
+
+	/** The staleness bound in milliseconds. */
+	private final long maxStalenessMillis;
+
+	/** The entries by ISBN, in access order. */
+	private final LinkedHashMap<Integer, Entry> entries;
+
+	/** The number of books served from the cache. */
+	private long hits = 0;
+
+	/** The number of books that needed a round trip. */
+	private long misses = 0;
+
+	/**
+	 * Instantiates a new {@link BookStoreBookCache}.
+	 *
+	 * @param capacity
+	 *            the maximum number of books
+	 * @param maxStalenessMillis
+	 *            the time in milliseconds an entry is served without being
+	 *            revalidated
+	 */
+	public BookStoreBookCache(int capacity, long maxStalenessMillis) {
+		this.capacity = capacity;
+		this.maxStalenessMillis = maxStalenessMillis;
+		this.entries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+				return size() > BookStoreBookCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * Collects the fresh books among the ISBNs. The ISBNs of the other books
+	 * are mapped to the version of the cached copy, or 0 if there is none,
+	 * ready to be sent for revalidation.
+	 *
+	 * @param isbnSet
+	 *            the ISBNs
+	 * @param freshBooks
+	 *            the map receiving the fresh books by ISBN
+	 * @return the revalidation of the other books
+	 */
+	public synchronized Revalidation lookup(Set<Integer> isbnSet, Map<Integer, Book> freshBooks) {
+		Revalidation revalidation = new Revalidation();
+		long now = System.currentTimeMillis();
+
+		for (Integer isbn : isbnSet) {
+			Entry entry = entries.get(isbn);
+
+			if (entry != null && now - entry.validatedAt <= maxStalenessMillis) {
+				freshBooks.put(isbn, entry.book);
+				hits++;
+			} else {
+				revalidation.versionStamps.put(isbn, entry == null ? 0L : entry.version);
+
+				if (entry != null) {
+					revalidation.staleEntries.put(isbn, entry);
+				}
+
+				misses++;
+			}
+		}
+
+		return revalidation;
+	}
+
+	/**
+	 * Applies the result of a revalidation: the changed books replace the
+	 * cached copies, the other revalidated books are fresh again.
+	 *
+	 * @param revalidation
+	 *            the revalidation sent to the server
+	 * @param changedBooks
+	 *            the changed books returned by the server
+	 * @param validatedBooks
+	 *            the map receiving all revalidated books by ISBN
+	 */
+	public synchronized void update(Revalidation revalidation, List<VersionedBook> changedBooks,
+			Map<Integer, Book> validatedBooks) {
+		long now = System.currentTimeMillis();
+
+		// Refresh the unchanged books first, the changed ones may evict them.
+		// The entries sent are used even if they were evicted since, in which
+		// case they are cached again unless a newer copy took their place.
+		for (Entry entry : revalidation.staleEntries.values()) {
+			Integer isbn = entry.book.getISBN();
+			entry.validatedAt = now;
+			entries.putIfAbsent(isbn, entry);
+			validatedBooks.put(isbn, entry.book);
+		}
+
+		for (VersionedBook changedBook : changedBooks) {
+			Book book = changedBook.getBook();
+			entries.put(book.getISBN(), new Entry(book, changedBook.getVersion(), now));
+			validatedBooks.put(book.getISBN(), book);
+		}
+	}
+
+	/**
+	 * Removes all books.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Gets the number of books served from the cache.
+	 *
+	 * @return the hits
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of books that needed a round trip.
+	 *
+	 * @return the misses
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * {@link Revalidation} is the set of books of a lookup to revalidate with
+	 * the server, with the cached entries of those that had one.
+	 */
+	public static final class Revalidation {
+
+		/** The versions of the books to revalidate by ISBN, 0 if not cached. */
+		private final Map<Integer, Long> versionStamps = new HashMap<>();
+
+		/** The cached entries of the books to revalidate by ISBN. */
+		private final Map<Integer, Entry> staleEntries = new HashMap<>();
+
+		/**
+		 * Instantiates a new {@link Revalidation}.
+		 */
+		private Revalidation() {
+		}
+
+		/**
+		 * Checks whether no book needs to be revalidated.
+		 *
+		 * @return true, if no book needs to be revalidated
+		 */
+		public boolean isEmpty() {
+			return versionStamps.isEmpty();
+		}
+
+		/**
+		 * Gets the versions of the books to revalidate by ISBN, 0 for the
+		 * books not cached, as sent to the server.
+		 *
+		 * @return the version stamps
+		 */
+		public Map<Integer, Long> getVersionStamps() {
+			return versionStamps;
+		}
+	}
+
+	/**
+	 * {@link Entry} is a cached book with its version.
+	 */
+	private static final class Entry {
+
+		/** The book. */
+		private final Book book;
+
+		/** The version. */
+		private final long version;
+
+		/** The time the entry was last validated by the server. */
+		private long validatedAt;
+
+		/**
+		 * Instantiates a new {@link Entry}.
+		 *
+		 * @param book
+		 *            the book
+		 * @param version
+		 *            the version
+		 * @param validatedAt
+		 *            the validation time
+		 */
+		private Entry(Book book, long version, long validatedAt) {
+			this.book = book;
+			this.version = version;
+			this.validatedAt = validatedAt;
+		}
+	}
+}
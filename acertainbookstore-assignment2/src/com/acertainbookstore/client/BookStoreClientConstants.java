@@ -17,6 +17,21 @@ public final class BookStoreClientConstants {
 	/** The Constant CLIENT_MAX_TIMEOUT_MILLISECS. */
 	public static final int CLIENT_MAX_TIMEOUT_MILLISECS = 30000;
 
+	/** The quantile of the read latency after which a read is hedged. */
+	public static final double CLIENT_HEDGE_QUANTILE = 0.95;
+
+	/** The number of recent read latencies the hedge delay is computed from. */
+	public static final int CLIENT_HEDGE_LATENCY_WINDOW = 1024;
+
+	/** The hedge delay used until enough read latencies have been observed. */
+	public static final int CLIENT_HEDGE_INITIAL_DELAY_MILLISECS = 10;
+
+	/** The number of times a request rejected by an overloaded server is sent again. */
+	public static final int CLIENT_MAX_OVERLOAD_RETRIES = 3;
+
+	/** The maximum backoff before sending again a request rejected by an overloaded server. */
+	public static final int CLIENT_MAX_OVERLOAD_BACKOFF_MILLISECS = 8000;
+
 	/** The Constant strERR_CLIENT_REQUEST_SENDING. */
 	public static final String STR_ERR_CLIENT_REQUEST_SENDING = "ERR_CLIENT_REQUEST_SENDING";
 
@@ -29,6 +44,9 @@ public final class BookStoreClientConstants {
 	/** The Constant strERR_CLIENT_RESPONSE_DECODING. */
 	public static final String STR_ERR_CLIENT_RESPONSE_DECODING = "CLIENT_RESPONSE_DECODING";
 
+	/** The Constant strERR_CLIENT_SERVER_OVERLOADED. */
+	public static final String STR_ERR_CLIENT_SERVER_OVERLOADED = "CLIENT_SERVER_OVERLOADED";
+
 	/** The Constant strERR_CLIENT_UNKNOWN. */
 	public static final String STR_ERR_CLIENT_UNKNOWN = "CLIENT_UNKNOWN";
 
@@ -3,33 +3,44 @@ package com.acertainbookstore.client;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.interfaces.AsyncBookStore;
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.utils.BookStoreKryoSerializer;
 import com.acertainbookstore.interfaces.BookStoreSerializer;
 import com.acertainbookstore.utils.BookStoreXStreamSerializer;
+import com.acertainbookstore.utils.BookStoreCachedResponse;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreMessageTag;
 import com.acertainbookstore.utils.BookStoreRequest;
 import com.acertainbookstore.utils.BookStoreResponse;
 import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.VersionedBook;
 
 /**
  * {@link BookStoreHTTPProxy} implements the client level synchronous
- * {@link CertainBookStore} API declared in the {@link BookStore} class.
+ * {@link CertainBookStore} API declared in the {@link BookStore} class, and
+ * its non-blocking counterpart declared in the {@link AsyncBookStore} class.
  * 
  * @see BookStore
+ * @see AsyncBookStore
  * @see CertainBookStore
  */
-public class BookStoreHTTPProxy implements BookStore {
+public class BookStoreHTTPProxy implements BookStore, AsyncBookStore {
 
 	/** The client. */
 	protected HttpClient client;
@@ -40,6 +51,18 @@ public class BookStoreHTTPProxy implements BookStore {
 	/** The serializer. */
 	private static ThreadLocal<BookStoreSerializer> serializer;
 
+	/** The book cache, null if caching is disabled. */
+	private BookStoreBookCache bookCache = null;
+
+	/** The hedger of the reads, null if there is a single endpoint. */
+	private BookStoreReadHedger readHedger = null;
+
+	/** The batcher of the buyBooks calls, null if batching is disabled. */
+	private volatile BookStoreWriteBatcher writeBatcher = null;
+
+	/** The last responses to the catalog reads by URL, revalidated by ETag. */
+	private final Map<String, BookStoreCachedResponse> cachedResponses = new ConcurrentHashMap<>();
+
 	/**
 	 * Initializes a new {@link BookStoreHTTPProxy}.
 	 *
@@ -72,6 +95,84 @@ public class BookStoreHTTPProxy implements BookStore {
 		client.start();
 	}
 
+	/**
+	 * Initializes a new {@link BookStoreHTTPProxy} on a list of equivalent
+	 * endpoints. The writes go to the first endpoint; the getBooks and
+	 * getEditorPicks reads are hedged and retried across all endpoints, cf.
+	 * {@link BookStoreReadHedger}.
+	 *
+	 * @param serverAddresses
+	 *            the server addresses, in order of preference
+	 * @throws Exception
+	 *             the exception
+	 */
+	public BookStoreHTTPProxy(List<String> serverAddresses) throws Exception {
+		this(serverAddresses.get(0));
+
+		if (serverAddresses.size() > 1) {
+			readHedger = new BookStoreReadHedger(client, serverAddresses, serializer);
+		}
+	}
+
+	/**
+	 * Initializes a new {@link BookStoreHTTPProxy} caching the books returned
+	 * by getBooks, cf. {@link BookStoreBookCache}.
+	 *
+	 * @param serverAddress
+	 *            the server address
+	 * @param cacheCapacity
+	 *            the maximum number of cached books
+	 * @param maxStalenessMillis
+	 *            the time in milliseconds a cached book is served without
+	 *            being revalidated by the server
+	 * @throws Exception
+	 *             the exception
+	 */
+	public BookStoreHTTPProxy(String serverAddress, int cacheCapacity, long maxStalenessMillis) throws Exception {
+		this(serverAddress);
+		bookCache = new BookStoreBookCache(cacheCapacity, maxStalenessMillis);
+	}
+
+	/**
+	 * Gets the book cache.
+	 *
+	 * @return the book cache, null if caching is disabled
+	 */
+	public BookStoreBookCache getBookCache() {
+		return bookCache;
+	}
+
+	/**
+	 * Gets the read hedger.
+	 *
+	 * @return the read hedger, null if there is a single endpoint
+	 */
+	public BookStoreReadHedger getReadHedger() {
+		return readHedger;
+	}
+
+	/**
+	 * Enables the automatic batching of concurrent buyBooks calls, cf.
+	 * {@link BookStoreWriteBatcher}.
+	 *
+	 * @param maxBatchSize
+	 *            the maximum number of orders per batch
+	 * @param maxDelayMillis
+	 *            the maximum time in milliseconds an order waits for others
+	 */
+	public void enableWriteBatching(int maxBatchSize, long maxDelayMillis) {
+		writeBatcher = new BookStoreWriteBatcher(this::newBatch, maxBatchSize, maxDelayMillis);
+	}
+
+	/**
+	 * Gets the write batcher.
+	 *
+	 * @return the write batcher, null if batching is disabled
+	 */
+	public BookStoreWriteBatcher getWriteBatcher() {
+		return writeBatcher;
+	}
+
 	/**
 	 * Gets the server address.
 	 *
@@ -97,6 +198,13 @@ public class BookStoreHTTPProxy implements BookStore {
 	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
 	 */
 	public void buyBooks(Set<BookCopy> isbnSet) throws BookStoreException {
+		BookStoreWriteBatcher batcher = writeBatcher;
+
+		if (batcher != null) {
+			batcher.buyBooks(isbnSet);
+			return;
+		}
+
 		String urlString = serverAddress + "/" + BookStoreMessageTag.BUYBOOKS;
 		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
 		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
@@ -109,6 +217,15 @@ public class BookStoreHTTPProxy implements BookStore {
 	 */
 	@SuppressWarnings("unchecked")
 	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (bookCache != null && isbnSet != null) {
+			return getCachedBooks(isbnSet);
+		}
+
+		if (readHedger != null) {
+			return (List<Book>) readHedger.read(address -> BookStoreRequest
+					.newPostRequest(address + "/" + BookStoreMessageTag.GETBOOKS, isbnSet)).getList();
+		}
+
 		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKS;
 		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
 		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
@@ -116,6 +233,35 @@ public class BookStoreHTTPProxy implements BookStore {
 		return (List<Book>) bookStoreResponse.getList();
 	}
 
+	/**
+	 * Gets the books through the book cache. Fresh books are served from the
+	 * cache; the others are revalidated with the server in one round trip.
+	 *
+	 * @param isbnSet
+	 *            the ISBN set
+	 * @return the books
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Book> getCachedBooks(Set<Integer> isbnSet) throws BookStoreException {
+		Map<Integer, Book> books = new HashMap<>();
+		BookStoreBookCache.Revalidation revalidation = bookCache.lookup(isbnSet, books);
+
+		if (!revalidation.isEmpty()) {
+			String urlString = serverAddress + "/" + BookStoreMessageTag.REVALIDATEBOOKS;
+			BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString,
+					revalidation.getVersionStamps());
+			BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+					serializer.get());
+			bookCache.update(revalidation, (List<VersionedBook>) bookStoreResponse.getList(), books);
+		}
+
+		return isbnSet.stream()
+				.map(books::get)
+				.collect(Collectors.toList());
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -127,19 +273,110 @@ public class BookStoreHTTPProxy implements BookStore {
 
 		urlEncodedNumBooks = URLEncoder.encode(Integer.toString(numBooks), StandardCharsets.UTF_8);
 
+		String urlPath = "/" + BookStoreMessageTag.GETEDITORPICKS + "?" + BookStoreConstants.BOOK_NUM_PARAM + "="
+				+ urlEncodedNumBooks;
+
+		if (readHedger != null) {
+			return (List<Book>) readHedger.read(address -> BookStoreRequest.newGetRequest(address + urlPath))
+					.getList();
+		}
+
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(serverAddress + urlPath);
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performConditionalHttpExchange(client,
+				bookStoreRequest, serializer.get(), cachedResponses);
+		return (List<Book>) bookStoreResponse.getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncBookStore#buyBooksAsync(java.util.
+	 * Set)
+	 */
+	@Override
+	public CompletableFuture<Void> buyBooksAsync(Set<BookCopy> isbnSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.BUYBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer)
+				.thenApply(bookStoreResponse -> (Void) null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncBookStore#getBooksAsync(java.util.
+	 * Set)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<Book>> getBooksAsync(Set<Integer> isbnSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer)
+				.thenApply(bookStoreResponse -> (List<Book>) bookStoreResponse.getList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncBookStore#getEditorPicksAsync(int)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<Book>> getEditorPicksAsync(int numBooks) {
+		String urlEncodedNumBooks = URLEncoder.encode(Integer.toString(numBooks), StandardCharsets.UTF_8);
 		String urlString = serverAddress + "/" + BookStoreMessageTag.GETEDITORPICKS + "?"
 				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + urlEncodedNumBooks;
 
 		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
-		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
-				serializer.get());
-		return (List<Book>) bookStoreResponse.getList();
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer)
+				.thenApply(bookStoreResponse -> (List<Book>) bookStoreResponse.getList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncBookStore#rateBooksAsync(java.util.
+	 * Set)
+	 */
+	@Override
+	public CompletableFuture<Void> rateBooksAsync(Set<BookRating> bookRating) {
+		return BookStoreUtility.failedFuture(new BookStoreException());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncBookStore#getTopRatedBooksAsync(int)
+	 */
+	@Override
+	public CompletableFuture<List<Book>> getTopRatedBooksAsync(int numBooks) {
+		return BookStoreUtility.failedFuture(new BookStoreException());
+	}
+
+	/**
+	 * Creates a new empty batch of operations which is sent to the server in
+	 * a single round trip.
+	 *
+	 * @return the batch
+	 */
+	public BookStoreBatch newBatch() {
+		return new BookStoreBatch(client, serverAddress, serializer);
 	}
 
 	/**
 	 * Stops the proxy.
 	 */
 	public void stop() {
+		if (writeBatcher != null) {
+			writeBatcher.stop();
+		}
+
 		try {
 			client.stop();
 		} catch (Exception ex) {
@@ -0,0 +1,303 @@
+package com.acertainbookstore.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.eclipse.jetty.client.HttpClient;
+
+import com.acertainbookstore.interfaces.BookStoreSerializer;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreRequest;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link BookStoreReadHedger} sends idempotent reads to a list of equivalent
+ * server endpoints. A read goes to the first endpoint; each time it has not
+ * been answered after another hedge delay, the same read is also sent to the
+ * next endpoint, until all endpoints have it, and the first response wins and
+ * cancels the others. A read that fails to reach an endpoint is retried on the
+ * next one right away. A read unanswered by all endpoints fails once
+ * {@link BookStoreClientConstants#CLIENT_MAX_TIMEOUT_MILLISECS} have passed
+ * since it started.
+ *
+ * The hedge delay adapts to the observed read latency: it is the
+ * {@link BookStoreClientConstants#CLIENT_HEDGE_QUANTILE} quantile of the
+ * latencies of the latest
+ * {@link BookStoreClientConstants#CLIENT_HEDGE_LATENCY_WINDOW} reads, so only
+ * the slowest reads are hedged. The latency of a read is taken
+ * from its start as its caller sees it, whichever request answered it; taking
+ * that of the winning request alone would leave out the delay before a hedge
+ * and make the hedge delay shrink with every hedge won.
+ */
+public class BookStoreReadHedger {
+
+	/** The client. */
+	private final HttpClient client;
+
+	/** The endpoints, in order of preference. */
+	private final List<String> endpoints;
+
+	/** The serializer. */
+	private final ThreadLocal<BookStoreSerializer> serializer;
+
+	/** The latest read latencies in nanoseconds, used as a ring buffer. */
+	private final long[] latencies = new long[BookStoreClientConstants.CLIENT_HEDGE_LATENCY_WINDOW];
+
+	/** The number of latencies recorded. */
+	private long latencyCount = 0;
+
+	/** The hedge delay in nanoseconds. */
+	private volatile long hedgeDelayNanos = TimeUnit.MILLISECONDS
+			.toNanos(BookStoreClientConstants.CLIENT_HEDGE_INITIAL_DELAY_MILLISECS);
+
+	/** The number of hedged requests sent. */
+	private final LongAdder hedges = new LongAdder();
+
+	/** The number of reads answered by a hedged request. */
+	private final LongAdder hedgeWins = new LongAdder();
+
+	/** The number of requests retried after failing to reach an endpoint. */
+	private final LongAdder retries = new LongAdder();
+
+	/**
+	 * Instantiates a new {@link BookStoreReadHedger}.
+	 *
+	 * @param client
+	 *            the client
+	 * @param endpoints
+	 *            the endpoints, in order of preference
+	 * @param serializer
+	 *            the serializer
+	 */
+	public BookStoreReadHedger(HttpClient client, List<String> endpoints,
+			ThreadLocal<BookStoreSerializer> serializer) {
+		this.client = client;
+		this.endpoints = new ArrayList<>(endpoints);
+		this.serializer = serializer;
+	}
+
+	/**
+	 * Performs a read, hedging and retrying it across the endpoints.
+	 *
+	 * @param requestFactory
+	 *            the function creating the request for an endpoint address
+	 * @return the book store response
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public BookStoreResponse read(Function<String, BookStoreRequest> requestFactory) throws BookStoreException {
+		Read read = new Read(requestFactory);
+		read.sendNext();
+
+		long deadline = read.start
+				+ TimeUnit.MILLISECONDS.toNanos(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS);
+		BookStoreResponse bookStoreResponse = null;
+
+		try {
+			while (bookStoreResponse == null) {
+				try {
+					bookStoreResponse = read.result.get(hedgeDelayNanos, TimeUnit.NANOSECONDS);
+				} catch (TimeoutException ex) {
+					if (!read.hedge()) {
+						// All endpoints have the read: wait out the timeout.
+						bookStoreResponse = read.result.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					}
+				}
+			}
+		} catch (InterruptedException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
+		} catch (TimeoutException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_TIMEOUT, ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof BookStoreException) {
+				throw (BookStoreException) ex.getCause();
+			}
+
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION, ex);
+		} finally {
+			read.cancel();
+		}
+
+		BookStoreException exception = bookStoreResponse.getException();
+
+		if (exception != null) {
+			throw exception;
+		}
+
+		return bookStoreResponse;
+	}
+
+	/**
+	 * Gets the current hedge delay.
+	 *
+	 * @return the hedge delay in nanoseconds
+	 */
+	public long getHedgeDelayNanos() {
+		return hedgeDelayNanos;
+	}
+
+	/**
+	 * Gets the number of hedged requests sent.
+	 *
+	 * @return the hedge count
+	 */
+	public long getHedgeCount() {
+		return hedges.sum();
+	}
+
+	/**
+	 * Gets the number of reads answered by a hedged request rather than by the
+	 * first request.
+	 *
+	 * @return the hedge win count
+	 */
+	public long getHedgeWinCount() {
+		return hedgeWins.sum();
+	}
+
+	/**
+	 * Gets the number of requests retried after failing to reach an endpoint.
+	 *
+	 * @return the retry count
+	 */
+	public long getRetryCount() {
+		return retries.sum();
+	}
+
+	/**
+	 * Records the latency of an answered read and periodically recomputes the
+	 * hedge delay from the latest latencies.
+	 *
+	 * @param latencyNanos
+	 *            the latency in nanoseconds
+	 */
+	private synchronized void recordLatency(long latencyNanos) {
+		latencies[(int) (latencyCount % latencies.length)] = latencyNanos;
+		latencyCount++;
+
+		// Sorting the window on every read would cost more than it saves.
+		if (latencyCount >= latencies.length && latencyCount % (latencies.length / 8) == 0) {
+			long[] sorted = latencies.clone();
+			Arrays.sort(sorted);
+			hedgeDelayNanos = sorted[(int) (BookStoreClientConstants.CLIENT_HEDGE_QUANTILE * (sorted.length - 1))];
+		}
+	}
+
+	/**
+	 * {@link Read} holds the requests sent for one read.
+	 */
+	private final class Read {
+
+		/** The function creating the request for an endpoint address. */
+		private final Function<String, BookStoreRequest> requestFactory;
+
+		/** The time the read started, in nanoseconds. */
+		private final long start = System.nanoTime();
+
+		/** The result of the read. */
+		private final CompletableFuture<BookStoreResponse> result = new CompletableFuture<>();
+
+		/** The requests sent, by endpoint index. */
+		private final List<CompletableFuture<BookStoreResponse>> requests = new ArrayList<>();
+
+		/** Whether the request to an endpoint was sent as a hedge. */
+		private final boolean[] hedged = new boolean[endpoints.size()];
+
+		/**
+		 * Instantiates a new {@link Read}.
+		 *
+		 * @param requestFactory
+		 *            the function creating the request for an endpoint
+		 *            address
+		 */
+		private Read(Function<String, BookStoreRequest> requestFactory) {
+			this.requestFactory = requestFactory;
+		}
+
+		/**
+		 * Sends a hedged request to the next endpoint, if there is one.
+		 *
+		 * @return true, if a hedged request was sent or the read is done
+		 */
+		private synchronized boolean hedge() {
+			if (result.isDone()) {
+				return true;
+			}
+
+			if (requests.size() == endpoints.size()) {
+				return false;
+			}
+
+			hedged[requests.size()] = true;
+			hedges.increment();
+			return sendNext();
+		}
+
+		/**
+		 * Sends the request to the next endpoint, if there is one.
+		 *
+		 * @return true, if a request was sent
+		 */
+		private synchronized boolean sendNext() {
+			int index = requests.size();
+
+			if (index == endpoints.size()) {
+				return false;
+			}
+
+			CompletableFuture<BookStoreResponse> request = BookStoreUtility.sendHttpRequestAsync(client,
+					requestFactory.apply(endpoints.get(index)), serializer);
+			requests.add(request);
+			request.whenComplete((bookStoreResponse, ex) -> onComplete(index, bookStoreResponse, ex));
+			return true;
+		}
+
+		/**
+		 * Completes the read with the first response. A request that failed is
+		 * retried on the next endpoint; the read fails once all requests have.
+		 *
+		 * @param index
+		 *            the endpoint index of the request
+		 * @param bookStoreResponse
+		 *            the book store response, null if the request failed
+		 * @param ex
+		 *            the failure, null if the request succeeded
+		 */
+		private synchronized void onComplete(int index, BookStoreResponse bookStoreResponse, Throwable ex) {
+			if (result.isDone()) {
+				return;
+			}
+
+			if (ex == null) {
+				recordLatency(System.nanoTime() - start);
+
+				if (hedged[index]) {
+					hedgeWins.increment();
+				}
+
+				result.complete(bookStoreResponse);
+			} else if (sendNext()) {
+				retries.increment();
+			} else if (requests.stream().allMatch(CompletableFuture::isDone)) {
+				result.completeExceptionally(ex);
+			}
+		}
+
+		/**
+		 * Cancels the requests still in flight.
+		 */
+		private synchronized void cancel() {
+			for (CompletableFuture<BookStoreResponse> request : requests) {
+				request.cancel(true);
+			}
+		}
+	}
+}
@@ -0,0 +1,348 @@
+package com.acertainbookstore.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.BookStoreSerializer;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreKryoSerializer;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreTCPFrame;
+import com.acertainbookstore.utils.BookStoreXStreamSerializer;
+
+/**
+ * {@link BookStoreTCPProxy} implements the client level synchronous
+ * {@link CertainBookStore} API declared in the {@link BookStore} and
+ * {@link StockManager} classes over the binary protocol of the
+ * {@link BookStoreTCPServer}.
+ *
+ * All calls share one connection: every request gets a request ID, and a
+ * reader thread hands each response frame to the caller waiting for that ID,
+ * so concurrent callers do not wait for each other's responses.
+ *
+ * @see BookStoreTCPFrame
+ */
+public class BookStoreTCPProxy implements BookStore, StockManager {
+
+	/** The channel. */
+	private final SocketChannel channel;
+
+	/** The lock serializing the writes to the channel. */
+	private final Object writeLock = new Object();
+
+	/** The ID of the next request. */
+	private final AtomicLong nextRequestId = new AtomicLong();
+
+	/** The requests waiting for their response, by request ID. */
+	private final ConcurrentHashMap<Long, CompletableFuture<BookStoreResponse>> pendingRequests = new ConcurrentHashMap<>();
+
+	/** The failure that ended the reader thread, null while it runs. */
+	private volatile Exception readFailure = null;
+
+	/** The serializer. */
+	private static ThreadLocal<BookStoreSerializer> serializer;
+
+	/**
+	 * Initializes a new {@link BookStoreTCPProxy}.
+	 *
+	 * @param host
+	 *            the server host
+	 * @param port
+	 *            the server port
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public BookStoreTCPProxy(String host, int port) throws IOException {
+
+		// Setup the type of serializer.
+		if (BookStoreConstants.BINARY_SERIALIZATION) {
+			serializer = ThreadLocal.withInitial(BookStoreKryoSerializer::new);
+		} else {
+			serializer = ThreadLocal.withInitial(BookStoreXStreamSerializer::new);
+		}
+
+		channel = SocketChannel.open(new InetSocketAddress(host, port));
+		channel.socket().setTcpNoDelay(true);
+
+		Thread reader = new Thread(this::readResponses, "bookstore-tcp-proxy-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
+	 */
+	public void buyBooks(Set<BookCopy> isbnSet) throws BookStoreException {
+		exchange(BookStoreMessageTag.BUYBOOKS, isbnSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		return (List<Book>) exchange(BookStoreMessageTag.GETBOOKS, isbnSet).getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		return (List<Book>) exchange(BookStoreMessageTag.GETEDITORPICKS, Integer.toString(numBooks)).getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		throw new BookStoreException();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		throw new BookStoreException();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
+	 */
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		exchange(BookStoreMessageTag.ADDBOOKS, bookSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
+	 */
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		exchange(BookStoreMessageTag.ADDCOPIES, bookCopiesSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	@SuppressWarnings("unchecked")
+	public List<StockBook> getBooks() throws BookStoreException {
+		return (List<StockBook>) exchange(BookStoreMessageTag.LISTBOOKS, null).getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<StockBook> getBooksByISBN(Set<Integer> isbns) throws BookStoreException {
+		return (List<StockBook>) exchange(BookStoreMessageTag.GETSTOCKBOOKSBYISBN, isbns).getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		throw new BookStoreException("Not implemented");
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util
+	 * .Set)
+	 */
+	public void updateEditorPicks(Set<BookEditorPick> editorPicksValues) throws BookStoreException {
+		exchange(BookStoreMessageTag.UPDATEEDITORPICKS, editorPicksValues);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
+	 */
+	public void removeAllBooks() throws BookStoreException {
+		exchange(BookStoreMessageTag.REMOVEALLBOOKS, null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
+	 */
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		exchange(BookStoreMessageTag.REMOVEBOOKS, isbnSet);
+	}
+
+	/**
+	 * Stops the proxy.
+	 */
+	public void stop() {
+		try {
+			channel.close();
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sends a request and waits for its response.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @param inputValue
+	 *            the input value
+	 * @return the book store response
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private BookStoreResponse exchange(BookStoreMessageTag messageTag, Object inputValue)
+			throws BookStoreException {
+		long requestId = nextRequestId.incrementAndGet();
+		CompletableFuture<BookStoreResponse> future = new CompletableFuture<>();
+		pendingRequests.put(requestId, future);
+
+		BookStoreResponse bookStoreResponse;
+
+		try {
+			// A request sent after the reader ended would never be answered.
+			if (readFailure != null) {
+				throw new IOException(readFailure);
+			}
+
+			byte[] payload = inputValue == null ? null : serializer.get().serialize(inputValue);
+			ByteBuffer frame = BookStoreTCPFrame.encodeRequest(requestId, messageTag, payload);
+
+			synchronized (writeLock) {
+				while (frame.hasRemaining()) {
+					channel.write(frame);
+				}
+			}
+
+			bookStoreResponse = future.get(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS,
+					TimeUnit.MILLISECONDS);
+		} catch (IOException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
+		} catch (InterruptedException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
+		} catch (TimeoutException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_TIMEOUT, ex);
+		} catch (ExecutionException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION, ex);
+		} finally {
+			pendingRequests.remove(requestId);
+		}
+
+		BookStoreException exception = bookStoreResponse.getException();
+
+		if (exception != null) {
+			throw exception;
+		}
+
+		return bookStoreResponse;
+	}
+
+	/**
+	 * Reads response frames until the connection is closed and completes the
+	 * requests waiting for them.
+	 */
+	private void readResponses() {
+		ByteBuffer length = ByteBuffer.allocate(BookStoreTCPFrame.LENGTH_FIELD_SIZE);
+
+		try {
+			while (true) {
+				length.clear();
+				readFully(length);
+				int frameLength = length.getInt();
+
+				if (BookStoreTCPFrame.isInvalidFrameLength(frameLength, BookStoreTCPFrame.RESPONSE_HEADER_SIZE)) {
+					throw new IOException("Invalid frame length " + frameLength);
+				}
+
+				ByteBuffer frame = ByteBuffer.allocate(frameLength);
+				readFully(frame);
+				long requestId = frame.getLong();
+				BookStoreResponse bookStoreResponse = (BookStoreResponse) serializer.get()
+						.deserialize(BookStoreTCPFrame.getPayload(frame));
+
+				CompletableFuture<BookStoreResponse> future = pendingRequests.get(requestId);
+
+				if (future != null) {
+					future.complete(bookStoreResponse);
+				}
+			}
+		} catch (IOException | RuntimeException ex) {
+			// The connection is gone; fail everyone still waiting, and the
+			// requests registered from now on.
+			readFailure = ex;
+
+			for (CompletableFuture<BookStoreResponse> future : pendingRequests.values()) {
+				future.completeExceptionally(ex);
+			}
+		}
+	}
+
+	/**
+	 * Reads from the channel until the buffer is full, and flips it.
+	 *
+	 * @param buffer
+	 *            the buffer
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException();
+			}
+		}
+
+		buffer.flip();
+	}
+}
@@ -0,0 +1,223 @@
+package com.acertainbookstore.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResponse;
+
+/**
+ * {@link BookStoreWriteBatcher} gathers the buyBooks calls made concurrently
+ * through a {@link BookStoreHTTPProxy} and sends them as one
+ * {@link BookStoreBatch}. A batch is sent once it holds
+ * <code>maxBatchSize</code> orders or <code>maxDelayMillis</code> after its
+ * first order arrived, whichever comes first.
+ *
+ * The server applies every order of the batch atomically and independently
+ * of the others, so each caller gets the result of its own order: a failing
+ * order throws its exception in its caller only.
+ */
+public class BookStoreWriteBatcher {
+
+	/** The factory of the batches. */
+	private final Supplier<BookStoreBatch> batchFactory;
+
+	/** The maximum number of orders per batch. */
+	private final int maxBatchSize;
+
+	/** The maximum time in nanoseconds an order waits for others. */
+	private final long maxDelayNanos;
+
+	/** The orders waiting to be sent. */
+	private final BlockingQueue<PendingOrder> pendingOrders = new LinkedBlockingQueue<>();
+
+	/** The thread sending the batches. */
+	private final Thread flusher;
+
+	/** The number of batches sent. */
+	private final LongAdder batchCount = new LongAdder();
+
+	/** Whether the batcher is running. */
+	private volatile boolean running = true;
+
+	/**
+	 * Instantiates a new {@link BookStoreWriteBatcher}.
+	 *
+	 * @param batchFactory
+	 *            the factory of the batches
+	 * @param maxBatchSize
+	 *            the maximum number of orders per batch
+	 * @param maxDelayMillis
+	 *            the maximum time in milliseconds an order waits for others
+	 */
+	public BookStoreWriteBatcher(Supplier<BookStoreBatch> batchFactory, int maxBatchSize, long maxDelayMillis) {
+		this.batchFactory = batchFactory;
+		this.maxBatchSize = maxBatchSize;
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+
+		flusher = new Thread(this::flushBatches, "bookstore-write-batcher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Buys the books as part of the next batch and waits for the result of
+	 * the order.
+	 *
+	 * @param booksToBuy
+	 *            the books to buy
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public void buyBooks(Set<BookCopy> booksToBuy) throws BookStoreException {
+		if (!running) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING);
+		}
+
+		PendingOrder order = new PendingOrder(booksToBuy);
+		pendingOrders.add(order);
+
+		// The flusher may have drained the queue for the last time since the
+		// check above; an order it cannot see any more fails here instead.
+		if (!running && pendingOrders.remove(order)) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING);
+		}
+
+		BookStoreResponse bookStoreResponse;
+
+		try {
+			bookStoreResponse = order.response.get(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS,
+					TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
+		} catch (TimeoutException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_TIMEOUT, ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof BookStoreException) {
+				throw (BookStoreException) ex.getCause();
+			}
+
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION, ex);
+		}
+
+		BookStoreException exception = bookStoreResponse.getException();
+
+		if (exception != null) {
+			throw exception;
+		}
+	}
+
+	/**
+	 * Gets the number of batches sent.
+	 *
+	 * @return the batch count
+	 */
+	public long getBatchCount() {
+		return batchCount.sum();
+	}
+
+	/**
+	 * Stops the batcher. The orders not sent yet fail, as do the orders made
+	 * while it stops.
+	 */
+	public void stop() {
+		running = false;
+		flusher.interrupt();
+	}
+
+	/**
+	 * Gathers the pending orders into batches and sends them until the
+	 * batcher is stopped.
+	 */
+	private void flushBatches() {
+		List<PendingOrder> orders = new ArrayList<>(maxBatchSize);
+
+		try {
+			while (running) {
+				orders.add(pendingOrders.take());
+				long deadline = System.nanoTime() + maxDelayNanos;
+
+				while (orders.size() < maxBatchSize) {
+					PendingOrder order = pendingOrders.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+					if (order == null) {
+						break;
+					}
+
+					orders.add(order);
+				}
+
+				send(orders);
+				orders.clear();
+			}
+		} catch (InterruptedException ex) {
+			// The batcher was stopped.
+		}
+
+		BookStoreException stopped = new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING);
+		pendingOrders.drainTo(orders);
+
+		for (PendingOrder order : orders) {
+			order.response.completeExceptionally(stopped);
+		}
+	}
+
+	/**
+	 * Sends the orders as one batch and hands each order its response.
+	 *
+	 * @param orders
+	 *            the orders
+	 */
+	private void send(List<PendingOrder> orders) {
+		BookStoreBatch batch = batchFactory.get();
+
+		for (PendingOrder order : orders) {
+			batch.buyBooks(order.booksToBuy);
+		}
+
+		try {
+			List<BookStoreResponse> responses = batch.execute();
+			batchCount.increment();
+
+			for (int i = 0; i < orders.size(); i++) {
+				orders.get(i).response.complete(responses.get(i));
+			}
+		} catch (BookStoreException | RuntimeException ex) {
+			for (PendingOrder order : orders) {
+				order.response.completeExceptionally(ex);
+			}
+		}
+	}
+
+	/**
+	 * {@link PendingOrder} is a buyBooks call waiting for its response.
+	 */
+	private static final class PendingOrder {
+
+		/** The books to buy. */
+		private final Set<BookCopy> booksToBuy;
+
+		/** The response. */
+		private final CompletableFuture<BookStoreResponse> response = new CompletableFuture<>();
+
+		/**
+		 * Instantiates a new {@link PendingOrder}.
+		 *
+		 * @param booksToBuy
+		 *            the books to buy
+		 */
+		private PendingOrder(Set<BookCopy> booksToBuy) {
+			this.booksToBuy = booksToBuy;
+		}
+	}
+}
@@ -1,7 +1,10 @@
 package com.acertainbookstore.client;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
@@ -12,7 +15,9 @@ import com.acertainbookstore.business.StockBook;
 import com.acertainbookstore.utils.BookStoreKryoSerializer;
 import com.acertainbookstore.interfaces.BookStoreSerializer;
 import com.acertainbookstore.utils.BookStoreXStreamSerializer;
+import com.acertainbookstore.interfaces.AsyncStockManager;
 import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreCachedResponse;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreMessageTag;
@@ -22,13 +27,15 @@ import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
  * {@link StockManagerHTTPProxy} implements the client level synchronous
- * {@link CertainBookStore} API declared in the {@link StockManager} class. Uses
- * the HTTP protocol for communication with the server.
+ * {@link CertainBookStore} API declared in the {@link StockManager} class, and
+ * its non-blocking counterpart declared in the {@link AsyncStockManager}
+ * class. Uses the HTTP protocol for communication with the server.
  * 
  * @see CertainBookStore
  * @see StockManager
+ * @see AsyncStockManager
  */
-public class StockManagerHTTPProxy implements StockManager {
+public class StockManagerHTTPProxy implements StockManager, AsyncStockManager {
 
 	/** The client. */
 	protected HttpClient client;
@@ -39,6 +46,9 @@ public class StockManagerHTTPProxy implements StockManager {
 	/** The serializer. */
 	private static ThreadLocal<BookStoreSerializer> serializer;
 
+	/** The last responses to the catalog reads by URL, revalidated by ETag. */
+	private final Map<String, BookStoreCachedResponse> cachedResponses = new ConcurrentHashMap<>();
+
 	/**
 	 * Initializes a new {@link StockManagerHTTPProxy}.
 	 *
@@ -123,8 +133,8 @@ public class StockManagerHTTPProxy implements StockManager {
 	public List<StockBook> getBooks() throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.LISTBOOKS;
 		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
-		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
-				serializer.get());
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performConditionalHttpExchange(client,
+				bookStoreRequest, serializer.get(), cachedResponses);
 		return (List<StockBook>) bookStoreResponse.getList();
 	}
 
@@ -194,6 +204,131 @@ public class StockManagerHTTPProxy implements StockManager {
 		return (List<StockBook>) bookStoreResponse.getList();
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#addBooksAsync(java.util
+	 * .Set)
+	 */
+	@Override
+	public CompletableFuture<Void> addBooksAsync(Set<StockBook> bookSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.ADDBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookSet);
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer)
+				.thenApply(bookStoreResponse -> (Void) null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#addCopiesAsync(java.
+	 * util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> addCopiesAsync(Set<BookCopy> bookCopiesSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.ADDCOPIES;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookCopiesSet);
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer)
+				.thenApply(bookStoreResponse -> (Void) null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#getBooksAsync()
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<StockBook>> getBooksAsync() {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.LISTBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer)
+				.thenApply(bookStoreResponse -> (List<StockBook>) bookStoreResponse.getList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#getBooksByISBNAsync(
+	 * java.util.Set)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<StockBook>> getBooksByISBNAsync(Set<Integer> isbns) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETSTOCKBOOKSBYISBN;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbns);
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer)
+				.thenApply(bookStoreResponse -> (List<StockBook>) bookStoreResponse.getList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#getBooksInDemandAsync()
+	 */
+	@Override
+	public CompletableFuture<List<StockBook>> getBooksInDemandAsync() {
+		return BookStoreUtility.failedFuture(new BookStoreException("Not implemented"));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#updateEditorPicksAsync(
+	 * java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> updateEditorPicksAsync(Set<BookEditorPick> editorPicksValues) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.UPDATEEDITORPICKS + "?";
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, editorPicksValues);
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer)
+				.thenApply(bookStoreResponse -> (Void) null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#removeAllBooksAsync()
+	 */
+	@Override
+	public CompletableFuture<Void> removeAllBooksAsync() {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.REMOVEALLBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, "");
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer)
+				.thenApply(bookStoreResponse -> (Void) null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#removeBooksAsync(java.
+	 * util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> removeBooksAsync(Set<Integer> isbnSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.REMOVEBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer)
+				.thenApply(bookStoreResponse -> (Void) null);
+	}
+
+	/**
+	 * Creates a new empty batch of operations which is sent to the server in
+	 * a single round trip.
+	 *
+	 * @return the batch
+	 */
+	public BookStoreBatch newBatch() {
+		return new BookStoreBatch(client, serverAddress, serializer);
+	}
+
 	/**
 	 * Stops the proxy.
 	 */
@@ -1,12 +1,25 @@
 package com.acertainbookstore.client.tests;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -16,16 +29,27 @@ import org.junit.Test;
 
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.BookStoreLockStats;
+import com.acertainbookstore.business.BookStoreLockStats.LockLevel;
+import com.acertainbookstore.business.BookStoreLockStats.LockMode;
+import com.acertainbookstore.business.DeterministicConcurrentCertainBookStore;
 import com.acertainbookstore.business.SingleLockConcurrentCertainBookStore;
 import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.OptimisticConcurrentCertainBookStore;
+import com.acertainbookstore.business.PersistentCatalogCertainBookStore;
 import com.acertainbookstore.business.StockBook;
 import com.acertainbookstore.business.TwoLevelLockingConcurrentCertainBookStore;
 import com.acertainbookstore.client.BookStoreHTTPProxy;
+import com.acertainbookstore.client.BookStoreTCPProxy;
 import com.acertainbookstore.client.StockManagerHTTPProxy;
 import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.LockMonitored;
 import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.interfaces.VersionedCatalog;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResponse;
 
 /**
  * {@link BookStoreTest} tests the {@link BookStore} interface.
@@ -61,13 +85,28 @@ public class BookStoreTest {
 		try {
 			String localTestProperty = System.getProperty(BookStoreConstants.PROPERTY_KEY_LOCAL_TEST);
 			localTest = (localTestProperty != null) ? Boolean.parseBoolean(localTestProperty) : localTest;
+
+			// Remote tests go through the binary TCP protocol if its port is given.
+			String tcpPortProperty = System.getProperty(BookStoreConstants.PROPERTY_KEY_SERVER_TCP_PORT);
 			
 			String singleLockProperty = System.getProperty(BookStoreConstants.PROPERTY_KEY_SINGLE_LOCK);
 			singleLock = (singleLockProperty != null) ? Boolean.parseBoolean(singleLockProperty) : singleLock;
 
 			if (localTest) {
 				System.out.println("singleLock: " + singleLock);
-				if (singleLock) {
+				if (Boolean.parseBoolean(System.getProperty(BookStoreConstants.PROPERTY_KEY_DETERMINISTIC))) {
+					DeterministicConcurrentCertainBookStore store = new DeterministicConcurrentCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else if (Boolean.parseBoolean(System.getProperty(BookStoreConstants.PROPERTY_KEY_OPTIMISTIC))) {
+					OptimisticConcurrentCertainBookStore store = new OptimisticConcurrentCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else if (Boolean.parseBoolean(System.getProperty(BookStoreConstants.PROPERTY_KEY_PERSISTENT_CATALOG))) {
+					PersistentCatalogCertainBookStore store = new PersistentCatalogCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else if (singleLock) {
 					SingleLockConcurrentCertainBookStore store = new SingleLockConcurrentCertainBookStore();
 					storeManager = store;
 					client = store;
@@ -76,6 +115,10 @@ public class BookStoreTest {
 					storeManager = store;
 					client = store;
 				}
+			} else if (tcpPortProperty != null) {
+				BookStoreTCPProxy proxy = new BookStoreTCPProxy("localhost", Integer.parseInt(tcpPortProperty));
+				storeManager = proxy;
+				client = proxy;
 			} else {
 				storeManager = new StockManagerHTTPProxy("http://localhost:8081/stock");
 				client = new BookStoreHTTPProxy("http://localhost:8081");
@@ -579,6 +622,769 @@ public class BookStoreTest {
 		}
 	}
 
+	/**
+	 * Tests that a batch returns one response per operation, in order, and
+	 * that a failing operation does not affect the others.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testBatch() throws BookStoreException {
+		assumeTrue(client instanceof BookStoreHTTPProxy);
+
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN);
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, NUM_COPIES + 1));
+
+		List<BookStoreResponse> responses = ((BookStoreHTTPProxy) client).newBatch()
+				.getBooks(isbnSet)
+				.buyBooks(booksToBuy)
+				.getEditorPicks(1)
+				.execute();
+
+		assertEquals(3, responses.size());
+		assertNull(responses.get(0).getException());
+		assertEquals(TEST_ISBN, ((Book) responses.get(0).getList().get(0)).getISBN());
+		assertNotNull(responses.get(1).getException());
+		assertNull(responses.get(2).getException());
+		assertTrue(responses.get(2).getList().isEmpty());
+	}
+
+	/**
+	 * Tests that concurrent asynchronous calls complete with the same results
+	 * as the blocking calls, and that failures complete the future
+	 * exceptionally.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testAsyncCalls() throws Exception {
+		assumeTrue(client instanceof BookStoreHTTPProxy);
+		BookStoreHTTPProxy proxy = (BookStoreHTTPProxy) client;
+
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN);
+
+		List<CompletableFuture<List<Book>>> futures = new ArrayList<>();
+
+		for (int i = 0; i < 10; i++) {
+			futures.add(proxy.getBooksAsync(isbnSet));
+		}
+
+		for (CompletableFuture<List<Book>> future : futures) {
+			List<Book> books = future.get();
+			assertEquals(1, books.size());
+			assertEquals(TEST_ISBN, books.get(0).getISBN());
+		}
+
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, NUM_COPIES + 1));
+
+		try {
+			proxy.buyBooksAsync(booksToBuy).get();
+			fail();
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof BookStoreException);
+		}
+	}
+
+	/**
+	 * Tests that many identical concurrent reads all get the correct result,
+	 * and that reads issued after a purchase completed observe the purchase.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testConcurrentIdenticalReads() throws Exception {
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN);
+
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, 1));
+
+		ExecutorService readers = Executors.newFixedThreadPool(20);
+
+		try {
+			for (int round = 0; round < 3; round++) {
+				List<Future<List<StockBook>>> reads = new ArrayList<>();
+
+				for (int i = 0; i < 100; i++) {
+					reads.add(readers.submit(() -> storeManager.getBooksByISBN(isbnSet)));
+				}
+
+				for (Future<List<StockBook>> read : reads) {
+					assertEquals(NUM_COPIES - round, read.get().get(0).getNumCopies());
+				}
+
+				client.buyBooks(booksToBuy);
+			}
+		} finally {
+			readers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tests that a local store records the acquisitions, waits and hold times
+	 * of its locks under concurrent purchases and exposes them through JMX.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testLockContentionStats() throws Exception {
+		assumeTrue(client instanceof LockMonitored);
+
+		BookStoreLockStats lockStats = ((LockMonitored) client).getLockStats();
+		long writeAcquisitions = lockStats.getAcquisitions(LockLevel.DATABASE, LockMode.WRITE);
+		long writeHolds = lockStats.getHolds(LockLevel.DATABASE, LockMode.WRITE).getTotalCount();
+
+		Set<BookCopy> booksToCopy = new HashSet<BookCopy>();
+		booksToCopy.add(new BookCopy(TEST_ISBN, 100));
+		storeManager.addCopies(booksToCopy);
+
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, 1));
+
+		ExecutorService buyers = Executors.newFixedThreadPool(8);
+
+		try {
+			List<Future<?>> purchases = new ArrayList<>();
+
+			for (int i = 0; i < 100; i++) {
+				purchases.add(buyers.submit(() -> {
+					client.buyBooks(booksToBuy);
+					return null;
+				}));
+			}
+
+			for (Future<?> purchase : purchases) {
+				purchase.get();
+			}
+		} finally {
+			buyers.shutdownNow();
+		}
+
+		assertTrue(lockStats.getAcquisitions(LockLevel.DATABASE, LockMode.WRITE) >= writeAcquisitions + 101);
+		assertTrue(lockStats.getHolds(LockLevel.DATABASE, LockMode.WRITE).getTotalCount() >= writeHolds + 101);
+		assertTrue(lockStats.toJson().contains("\"database\":{\"read\":{\"acquisitions\":"));
+
+		ObjectName name = new ObjectName(
+				"com.acertainbookstore:type=LockStats,store=" + client.getClass().getSimpleName());
+		long jmxAcquisitions = (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name,
+				"DatabaseLockAcquisitions");
+		assertTrue(jmxAcquisitions >= writeAcquisitions + 101);
+	}
+
+	/**
+	 * Tests that a getBooks scan of a local store is recorded as a flight
+	 * recorder event.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testScanFlightRecorderEvent() throws Exception {
+		assumeTrue(client instanceof LockMonitored);
+
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN);
+		Path dump = Files.createTempFile("bookstore", ".jfr");
+
+		try (Recording recording = new Recording()) {
+			recording.enable("com.acertainbookstore.Scan");
+			recording.start();
+			client.getBooks(isbnSet);
+			recording.stop();
+			recording.dump(dump);
+
+			boolean recorded = false;
+
+			for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+				if ("getBooks".equals(event.getString("operation"))) {
+					assertEquals(client.getClass().getSimpleName(), event.getString("store"));
+					assertEquals(1, event.getInt("booksReturned"));
+					recorded = true;
+				}
+			}
+
+			assertTrue(recorded);
+		} finally {
+			Files.delete(dump);
+		}
+	}
+
+	/**
+	 * Tests that concurrent purchases through a batching proxy are sent in
+	 * fewer round trips and that each caller gets the result of its own
+	 * order.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testWriteBatching() throws Exception {
+		assumeTrue(client instanceof BookStoreHTTPProxy);
+
+		BookStoreHTTPProxy batchingClient = new BookStoreHTTPProxy(
+				((BookStoreHTTPProxy) client).getServerAddress());
+		batchingClient.enableWriteBatching(NUM_COPIES + 1, 200);
+
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, 1));
+
+		// One more buyer than there are copies, so exactly one order fails.
+		int numBuyers = NUM_COPIES + 1;
+		ExecutorService buyers = Executors.newFixedThreadPool(numBuyers);
+		CyclicBarrier start = new CyclicBarrier(numBuyers);
+		List<Future<Boolean>> orders = new ArrayList<>();
+
+		try {
+			for (int i = 0; i < numBuyers; i++) {
+				orders.add(buyers.submit(() -> {
+					start.await();
+
+					try {
+						batchingClient.buyBooks(booksToBuy);
+						return true;
+					} catch (BookStoreException ex) {
+						return false;
+					}
+				}));
+			}
+
+			int failedOrders = 0;
+
+			for (Future<Boolean> order : orders) {
+				failedOrders += order.get() ? 0 : 1;
+			}
+
+			assertEquals(1, failedOrders);
+			assertTrue(batchingClient.getWriteBatcher().getBatchCount() < numBuyers);
+			Set<Integer> isbnSet = new HashSet<Integer>();
+			isbnSet.add(TEST_ISBN);
+			assertEquals(0, storeManager.getBooksByISBN(isbnSet).get(0).getNumCopies());
+		} finally {
+			buyers.shutdownNow();
+			batchingClient.stop();
+		}
+	}
+
+	/**
+	 * Tests that a proxy on several endpoints retries a read on the next
+	 * endpoint when the first one cannot be reached.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testHedgedReads() throws Exception {
+		assumeTrue(client instanceof BookStoreHTTPProxy);
+
+		// Nothing listens on port 1, so every read fails over to the server.
+		List<String> endpoints = new ArrayList<String>();
+		endpoints.add("http://localhost:1");
+		endpoints.add(((BookStoreHTTPProxy) client).getServerAddress());
+		BookStoreHTTPProxy hedgingClient = new BookStoreHTTPProxy(endpoints);
+
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN);
+
+		try {
+			for (int i = 0; i < 3; i++) {
+				List<Book> books = hedgingClient.getBooks(isbnSet);
+				assertEquals(1, books.size());
+				assertEquals(TEST_ISBN, books.get(0).getISBN());
+			}
+
+			assertEquals(3, hedgingClient.getReadHedger().getRetryCount());
+
+			// Errors raised by the server are answers, not reasons to retry.
+			isbnSet.add(-1);
+
+			try {
+				hedgingClient.getBooks(isbnSet);
+				fail();
+			} catch (BookStoreException ex) {
+				;
+			}
+
+			assertEquals(4, hedgingClient.getReadHedger().getRetryCount());
+		} finally {
+			hedgingClient.stop();
+		}
+	}
+
+	/**
+	 * Tests that the book cache serves fresh books without a round trip and
+	 * picks up changed books when revalidating.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testBookCache() throws Exception {
+		assumeTrue(client instanceof BookStoreHTTPProxy);
+		String serverAddress = ((BookStoreHTTPProxy) client).getServerAddress();
+		BookStoreHTTPProxy cachingClient = new BookStoreHTTPProxy(serverAddress, 100, 60000);
+		BookStoreHTTPProxy revalidatingClient = new BookStoreHTTPProxy(serverAddress, 100, 0);
+
+		try {
+			Set<Integer> isbnSet = new HashSet<Integer>();
+			isbnSet.add(TEST_ISBN);
+
+			assertEquals(getDefaultBook(), cachingClient.getBooks(isbnSet).get(0));
+			assertEquals(getDefaultBook(), cachingClient.getBooks(isbnSet).get(0));
+			assertEquals(1, cachingClient.getBookCache().getHits());
+			assertEquals(1, cachingClient.getBookCache().getMisses());
+			assertEquals(getDefaultBook(), revalidatingClient.getBooks(isbnSet).get(0));
+
+			// Replace the book; a cache without staleness must notice.
+			storeManager.removeBooks(isbnSet);
+			Set<StockBook> booksToAdd = new HashSet<StockBook>();
+			StockBook changedBook = new ImmutableStockBook(TEST_ISBN, "Harry Potter and the Cache", "JK Unit",
+					(float) 12, NUM_COPIES, 0, 0, 0, false);
+			booksToAdd.add(changedBook);
+			storeManager.addBooks(booksToAdd);
+
+			assertEquals(changedBook, revalidatingClient.getBooks(isbnSet).get(0));
+			assertEquals(getDefaultBook(), cachingClient.getBooks(isbnSet).get(0));
+		} finally {
+			cachingClient.stop();
+			revalidatingClient.stop();
+		}
+	}
+
+	/**
+	 * Tests that a versioned store keeps the version of a book while it is
+	 * only read and issues a new one whenever it is modified, even if the
+	 * book seen by customers does not change.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testBookVersions() throws Exception {
+		assumeTrue(client instanceof VersionedCatalog);
+		VersionedCatalog catalog = (VersionedCatalog) client;
+		Set<Integer> isbnSet = Collections.singleton(TEST_ISBN);
+
+		long version = catalog.getVersionedBooks(isbnSet).get(0).getVersion();
+		client.getBooks(isbnSet);
+		assertEquals(version, catalog.getVersionedBooks(isbnSet).get(0).getVersion());
+
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, 1));
+		client.buyBooks(booksToBuy);
+		long boughtVersion = catalog.getVersionedBooks(isbnSet).get(0).getVersion();
+		assertNotEquals(version, boughtVersion);
+
+		storeManager.addCopies(booksToBuy);
+		assertNotEquals(boughtVersion, catalog.getVersionedBooks(isbnSet).get(0).getVersion());
+		assertEquals(getDefaultBook(), catalog.getVersionedBooks(isbnSet).get(0).getBook());
+	}
+
+	/**
+	 * Tests that a two-level locking store escrows the copies of a book bought
+	 * at a high rate without losing a copy, and stops once the book cools
+	 * down.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testHotBookEscrow() throws Exception {
+		assumeTrue(client instanceof TwoLevelLockingConcurrentCertainBookStore);
+		TwoLevelLockingConcurrentCertainBookStore store = (TwoLevelLockingConcurrentCertainBookStore) client;
+		int hotISBN = TEST_ISBN + 1;
+		int numCopies = 1000000;
+		addBooks(hotISBN, numCopies);
+
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(hotISBN, 1));
+
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(hotISBN);
+
+		AtomicInteger numBought = new AtomicInteger();
+		long deadline = System.currentTimeMillis() + 10000;
+		ExecutorService buyers = Executors.newFixedThreadPool(8);
+
+		try {
+			List<Future<?>> purchases = new ArrayList<>();
+
+			for (int i = 0; i < 8; i++) {
+				purchases.add(buyers.submit(() -> {
+					for (int j = 0; j < 1000 || (!store.getEscrowedBooks().contains(hotISBN)
+							&& System.currentTimeMillis() < deadline); j++) {
+						client.buyBooks(booksToBuy);
+						numBought.incrementAndGet();
+					}
+
+					return null;
+				}));
+			}
+
+			for (Future<?> purchase : purchases) {
+				purchase.get();
+			}
+		} finally {
+			buyers.shutdownNow();
+		}
+
+		assertTrue(store.getEscrowedBooks().contains(hotISBN));
+		assertEquals(numCopies - numBought.get(), storeManager.getBooksByISBN(isbnSet).get(0).getNumCopies());
+
+		// Two quiet windows cool the book down.
+		for (int i = 0; i < 2; i++) {
+			Thread.sleep(250);
+			client.buyBooks(booksToBuy);
+		}
+
+		assertFalse(store.getEscrowedBooks().contains(hotISBN));
+		assertEquals(numCopies - numBought.get() - 2, storeManager.getBooksByISBN(isbnSet).get(0).getNumCopies());
+	}
+
+	/**
+	 * Tests that the deterministic store applies orders spanning several
+	 * partitions all or nothing while other epochs add copies concurrently.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testDeterministicCrossPartitionOrders() throws Exception {
+		assumeTrue(client instanceof DeterministicConcurrentCertainBookStore);
+		int otherISBN = TEST_ISBN + 1;
+		addBooks(otherISBN, NUM_COPIES);
+
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, 1));
+		booksToBuy.add(new BookCopy(otherISBN, 1));
+
+		Set<BookCopy> booksToAdd = new HashSet<BookCopy>();
+		booksToAdd.add(new BookCopy(TEST_ISBN, 1));
+		booksToAdd.add(new BookCopy(otherISBN, 1));
+
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN);
+		isbnSet.add(otherISBN);
+
+		ExecutorService workers = Executors.newFixedThreadPool(8);
+
+		try {
+			List<Future<?>> calls = new ArrayList<>();
+
+			for (int i = 0; i < 8; i++) {
+				boolean buyer = i % 2 == 0;
+
+				calls.add(workers.submit(() -> {
+					for (int j = 0; j < 200; j++) {
+						if (buyer) {
+							try {
+								client.buyBooks(booksToBuy);
+							} catch (BookStoreException ex) {
+								// Out of stock; the order must not have bought either book.
+							}
+						} else {
+							storeManager.addCopies(booksToAdd);
+						}
+					}
+
+					return null;
+				}));
+			}
+
+			for (Future<?> call : calls) {
+				call.get();
+			}
+		} finally {
+			workers.shutdownNow();
+		}
+
+		List<StockBook> books = storeManager.getBooksByISBN(isbnSet);
+		int numCopies = books.get(0).getNumCopies();
+		assertEquals(numCopies, books.get(1).getNumCopies());
+
+		// An order the store cannot fill buys neither book and records the miss;
+		// adding copies clears the misses of the concurrent orders first.
+		storeManager.addCopies(booksToAdd);
+		Set<BookCopy> tooManyBooks = new HashSet<BookCopy>();
+		tooManyBooks.add(new BookCopy(TEST_ISBN, 1));
+		tooManyBooks.add(new BookCopy(otherISBN, numCopies + 2));
+
+		try {
+			client.buyBooks(tooManyBooks);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		for (StockBook book : books) {
+			StockBook bookAfterMiss = storeManager.getBooksByISBN(Collections.singleton(book.getISBN())).get(0);
+			assertEquals(numCopies + 1, bookAfterMiss.getNumCopies());
+			assertEquals(book.getISBN() == otherISBN ? 1 : 0, bookAfterMiss.getNumSaleMisses());
+		}
+	}
+
+	/**
+	 * Tests that stopping the deterministic store while it runs epochs of
+	 * orders spanning several partitions fails only the orders it did not
+	 * apply: the stock matches the orders reported as bought.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testDeterministicStopDuringEpoch() throws Exception {
+		assumeTrue(client instanceof DeterministicConcurrentCertainBookStore);
+		int numCopies = 1000000;
+		int numBooks = 500;
+		int numBuyers = 32;
+
+		// Large orders over every partition keep the epochs long, so that the
+		// stop is likely to land while one runs.
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+
+		for (int isbn = TEST_ISBN + 1; isbn <= TEST_ISBN + numBooks; isbn++) {
+			booksToBuy.add(new BookCopy(isbn, 1));
+			booksToAdd.add(new ImmutableStockBook(isbn, "Book " + isbn, "Author", (float) 10, numCopies, 0, 0, 0,
+					false));
+		}
+
+		ExecutorService workers = Executors.newFixedThreadPool(numBuyers);
+
+		try {
+			for (int round = 0; round < 10; round++) {
+				DeterministicConcurrentCertainBookStore store = new DeterministicConcurrentCertainBookStore();
+				store.addBooks(booksToAdd);
+				AtomicInteger numBought = new AtomicInteger();
+				List<Future<?>> calls = new ArrayList<>();
+
+				for (int i = 0; i < numBuyers; i++) {
+					calls.add(workers.submit(() -> {
+						while (true) {
+							try {
+								store.buyBooks(booksToBuy);
+								numBought.incrementAndGet();
+							} catch (BookStoreException ex) {
+								assertEquals(BookStoreConstants.STORE_STOPPED, ex.getMessage());
+								return null;
+							}
+						}
+					}));
+				}
+
+				Thread.sleep(20);
+				store.stop();
+
+				for (Future<?> call : calls) {
+					call.get(10, TimeUnit.SECONDS);
+				}
+
+				for (StockBook book : store.getBooks()) {
+					assertEquals(numCopies - numBought.get(), book.getNumCopies());
+				}
+			}
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tests that the optimistic store commits concurrent conflicting orders
+	 * exactly once each, and that readers never see an order half applied.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testOptimisticConflictingOrders() throws Exception {
+		assumeTrue(client instanceof OptimisticConcurrentCertainBookStore);
+		int numCopies = 10000;
+		int otherISBN = TEST_ISBN + 1;
+		addBooks(otherISBN, numCopies);
+
+		Set<BookCopy> booksToAdd = new HashSet<BookCopy>();
+		booksToAdd.add(new BookCopy(TEST_ISBN, numCopies - NUM_COPIES));
+		storeManager.addCopies(booksToAdd);
+
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, 1));
+		booksToBuy.add(new BookCopy(otherISBN, 1));
+
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN);
+		isbnSet.add(otherISBN);
+
+		ExecutorService workers = Executors.newFixedThreadPool(8);
+
+		try {
+			List<Future<?>> calls = new ArrayList<>();
+
+			for (int i = 0; i < 8; i++) {
+				boolean buyer = i < 6;
+
+				calls.add(workers.submit(() -> {
+					for (int j = 0; j < 500; j++) {
+						if (buyer) {
+							client.buyBooks(booksToBuy);
+						} else {
+							List<StockBook> books = storeManager.getBooksByISBN(isbnSet);
+							assertEquals(books.get(0).getNumCopies(), books.get(1).getNumCopies());
+						}
+					}
+
+					return null;
+				}));
+			}
+
+			for (Future<?> call : calls) {
+				call.get();
+			}
+		} finally {
+			workers.shutdownNow();
+		}
+
+		for (StockBook book : storeManager.getBooksByISBN(isbnSet)) {
+			assertEquals(numCopies - 6 * 500, book.getNumCopies());
+		}
+	}
+
+	/**
+	 * Tests that concurrent ratings are all counted and that readers always
+	 * see the count and the total of the same ratings.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testConcurrentRatings() throws Exception {
+		assumeTrue(localTest && !(client instanceof OptimisticConcurrentCertainBookStore));
+		Set<BookRating> ratings = new HashSet<BookRating>();
+		ratings.add(new BookRating(TEST_ISBN, 5));
+
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN);
+
+		ExecutorService workers = Executors.newFixedThreadPool(8);
+
+		try {
+			List<Future<?>> calls = new ArrayList<>();
+
+			for (int i = 0; i < 8; i++) {
+				boolean rater = i < 4;
+
+				calls.add(workers.submit(() -> {
+					for (int j = 0; j < 1000; j++) {
+						if (rater) {
+							client.rateBooks(ratings);
+						} else {
+							StockBook book = storeManager.getBooksByISBN(isbnSet).get(0);
+							assertEquals(5 * book.getNumTimesRated(), book.getTotalRating());
+						}
+					}
+
+					return null;
+				}));
+			}
+
+			for (Future<?> call : calls) {
+				call.get();
+			}
+		} finally {
+			workers.shutdownNow();
+		}
+
+		StockBook book = storeManager.getBooksByISBN(isbnSet).get(0);
+		assertEquals(4000, book.getNumTimesRated());
+		assertEquals(5.0f, book.getAverageRating(), 0.0f);
+
+		// An invalid rating is rejected as a whole.
+		ratings.add(new BookRating(TEST_ISBN + 1, 3));
+
+		try {
+			client.rateBooks(ratings);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		assertEquals(4000, storeManager.getBooksByISBN(isbnSet).get(0).getNumTimesRated());
+	}
+
+	/**
+	 * Tests that full-catalog reads of the persistent catalog store are
+	 * consistent snapshots while orders are published, and that the top rated
+	 * books are read from the catalog.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testPersistentCatalogSnapshots() throws Exception {
+		assumeTrue(client instanceof PersistentCatalogCertainBookStore);
+		int numCopies = 10000;
+		int otherISBN = TEST_ISBN + 1;
+		addBooks(otherISBN, numCopies);
+
+		Set<BookCopy> booksToAdd = new HashSet<BookCopy>();
+		booksToAdd.add(new BookCopy(TEST_ISBN, numCopies - NUM_COPIES));
+		storeManager.addCopies(booksToAdd);
+
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, 1));
+		booksToBuy.add(new BookCopy(otherISBN, 1));
+
+		ExecutorService workers = Executors.newFixedThreadPool(8);
+
+		try {
+			List<Future<?>> calls = new ArrayList<>();
+
+			for (int i = 0; i < 8; i++) {
+				boolean buyer = i < 4;
+
+				calls.add(workers.submit(() -> {
+					for (int j = 0; j < 500; j++) {
+						if (buyer) {
+							client.buyBooks(booksToBuy);
+						} else {
+							List<StockBook> books = storeManager.getBooks();
+							assertEquals(2, books.size());
+							assertEquals(books.get(0).getNumCopies(), books.get(1).getNumCopies());
+						}
+					}
+
+					return null;
+				}));
+			}
+
+			for (Future<?> call : calls) {
+				call.get();
+			}
+		} finally {
+			workers.shutdownNow();
+		}
+
+		for (StockBook book : storeManager.getBooks()) {
+			assertEquals(numCopies - 4 * 500, book.getNumCopies());
+		}
+
+		Set<BookRating> ratings = new HashSet<BookRating>();
+		ratings.add(new BookRating(TEST_ISBN, 2));
+		ratings.add(new BookRating(otherISBN, 4));
+		client.rateBooks(ratings);
+
+		List<Book> topRated = client.getTopRatedBooks(2);
+		assertEquals(2, topRated.size());
+		assertEquals(otherISBN, topRated.get(0).getISBN());
+		assertEquals(TEST_ISBN, topRated.get(1).getISBN());
+		assertEquals(otherISBN, client.getTopRatedBooks(1).get(0).getISBN());
+	}
 
 	/**
 	 * Tear down after class.
@@ -590,7 +1396,9 @@ public class BookStoreTest {
 	public static void tearDownAfterClass() throws BookStoreException {
 		storeManager.removeAllBooks();
 
-		if (!localTest) {
+		if (client instanceof BookStoreTCPProxy) {
+			((BookStoreTCPProxy) client).stop();
+		} else if (!localTest) {
 			((BookStoreHTTPProxy) client).stop();
 			((StockManagerHTTPProxy) storeManager).stop();
 		}
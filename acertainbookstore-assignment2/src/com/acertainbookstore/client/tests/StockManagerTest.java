@@ -1,12 +1,26 @@
 package com.acertainbookstore.client.tests;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpStatus;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -16,15 +30,24 @@ import org.junit.Test;
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookStoreSnapshot;
+import com.acertainbookstore.business.ReplicaCertainBookStore;
 import com.acertainbookstore.business.SingleLockConcurrentCertainBookStore;
 import com.acertainbookstore.business.ImmutableStockBook;
 import com.acertainbookstore.business.StockBook;
 import com.acertainbookstore.client.BookStoreHTTPProxy;
+import com.acertainbookstore.client.BookStoreTCPProxy;
 import com.acertainbookstore.client.StockManagerHTTPProxy;
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.server.BookStoreAdmissionController;
+import com.acertainbookstore.server.BookStoreChangeLog;
+import com.acertainbookstore.server.BookStoreTrafficScheduler;
+import com.acertainbookstore.server.BookStoreTrafficScheduler.TrafficClass;
+import com.acertainbookstore.utils.BookStoreCatalogChanges;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreMessageTag;
 
 /**
  * {@StockManagerTest} tests the {@link StockManager} interface.
@@ -56,11 +79,18 @@ public class StockManagerTest {
 		try {
 			String localTestProperty = System.getProperty(BookStoreConstants.PROPERTY_KEY_LOCAL_TEST);
 			localTest = (localTestProperty != null) ? Boolean.parseBoolean(localTestProperty) : localTest;
+
+			// Remote tests go through the binary TCP protocol if its port is given.
+			String tcpPortProperty = System.getProperty(BookStoreConstants.PROPERTY_KEY_SERVER_TCP_PORT);
 			
 			if (localTest) {
 				SingleLockConcurrentCertainBookStore store = new SingleLockConcurrentCertainBookStore();
 				storeManager = store;
 				client = store;
+			} else if (tcpPortProperty != null) {
+				BookStoreTCPProxy proxy = new BookStoreTCPProxy("localhost", Integer.parseInt(tcpPortProperty));
+				storeManager = proxy;
+				client = proxy;
 			} else {
 				storeManager = new StockManagerHTTPProxy("http://localhost:8081/stock");
 				client = new BookStoreHTTPProxy("http://localhost:8081");
@@ -475,6 +505,302 @@ public class StockManagerTest {
 		assertTrue(booksInStoreList.size() == 0);
 	}
 
+	/**
+	 * Tests that the server answers a repeated listBooks request carrying the
+	 * entity tag of the current catalog with 304 Not Modified, and sends a
+	 * new tag once the catalog has changed.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testConditionalListBooks() throws Exception {
+		assumeTrue(storeManager instanceof StockManagerHTTPProxy);
+
+		String urlString = ((StockManagerHTTPProxy) storeManager).getServerAddress() + "/"
+				+ BookStoreMessageTag.LISTBOOKS;
+		HttpClient httpClient = new HttpClient();
+		httpClient.start();
+
+		try {
+			ContentResponse response = httpClient.GET(urlString);
+			String entityTag = response.getHeaders().get(HttpHeader.ETAG);
+			assertEquals(HttpStatus.OK_200, response.getStatus());
+			assertNotNull(entityTag);
+
+			response = httpClient.newRequest(urlString).header(HttpHeader.IF_NONE_MATCH, entityTag).send();
+			assertEquals(HttpStatus.NOT_MODIFIED_304, response.getStatus());
+			assertEquals(0, response.getContent().length);
+
+			Set<BookCopy> booksToAdd = new HashSet<BookCopy>();
+			booksToAdd.add(new BookCopy(TEST_ISBN, NUM_COPIES));
+			storeManager.addCopies(booksToAdd);
+
+			response = httpClient.newRequest(urlString).header(HttpHeader.IF_NONE_MATCH, entityTag).send();
+			assertEquals(HttpStatus.OK_200, response.getStatus());
+			assertNotEquals(entityTag, response.getHeaders().get(HttpHeader.ETAG));
+
+			// The proxy revalidates its cached response and sees the change.
+			storeManager.getBooks();
+			assertEquals(NUM_COPIES * 2, storeManager.getBooks().get(0).getNumCopies());
+		} finally {
+			httpClient.stop();
+		}
+	}
+
+	/**
+	 * Tests that the server exposes the request counts, errors and latency
+	 * percentiles by operation as JSON and in the Prometheus text format.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testStatsEndpoint() throws Exception {
+		assumeTrue(storeManager instanceof StockManagerHTTPProxy);
+
+		storeManager.getBooks();
+
+		Set<StockBook> invalidBooks = new HashSet<StockBook>();
+		invalidBooks.add(new ImmutableStockBook(-1, "BookName", "Author", (float) 100, NUM_COPIES, 0, 0, 0, false));
+
+		try {
+			storeManager.addBooks(invalidBooks);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		String urlString = ((StockManagerHTTPProxy) storeManager).getServerAddress() + BookStoreConstants.STATS_PATH;
+		HttpClient httpClient = new HttpClient();
+		httpClient.start();
+
+		try {
+			ContentResponse response = httpClient.GET(urlString);
+			assertEquals(HttpStatus.OK_200, response.getStatus());
+			assertTrue(response.getContentAsString().contains("\"LISTBOOKS\":{\"requests\":"));
+			assertTrue(response.getContentAsString().contains("\"locks\":{"));
+
+			response = httpClient.GET(urlString + "?" + BookStoreConstants.STATS_FORMAT_PARAM + "="
+					+ BookStoreConstants.STATS_FORMAT_PROMETHEUS);
+			String metrics = response.getContentAsString();
+			assertEquals(HttpStatus.OK_200, response.getStatus());
+			assertTrue(metrics.contains(
+					"bookstore_request_duration_seconds{operation=\"LISTBOOKS\",phase=\"execute\",quantile=\"0.99\"}"));
+
+			long addBooksErrors = 0;
+
+			for (String line : metrics.split("\n")) {
+				if (line.startsWith("bookstore_request_errors_total{operation=\"ADDBOOKS\"}")) {
+					addBooksErrors = Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+				}
+			}
+
+			assertTrue(addBooksErrors > 0);
+		} finally {
+			httpClient.stop();
+		}
+	}
+
+	/**
+	 * Tests that the server echoes the request ID and returns the phase
+	 * timings of a request in a Server-Timing header.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testServerTiming() throws Exception {
+		assumeTrue(storeManager instanceof StockManagerHTTPProxy);
+
+		String urlString = ((StockManagerHTTPProxy) storeManager).getServerAddress() + "/"
+				+ BookStoreMessageTag.LISTBOOKS;
+		HttpClient httpClient = new HttpClient();
+		httpClient.start();
+
+		try {
+			ContentResponse response = httpClient.newRequest(urlString)
+					.header(BookStoreConstants.REQUEST_ID_HEADER, "test-42").send();
+			assertEquals(HttpStatus.OK_200, response.getStatus());
+			assertEquals("test-42", response.getHeaders().get(BookStoreConstants.REQUEST_ID_HEADER));
+
+			String serverTiming = response.getHeaders().get(BookStoreConstants.SERVER_TIMING_HEADER);
+			assertNotNull(serverTiming);
+			assertTrue(serverTiming.contains("lock;dur="));
+			assertTrue(serverTiming.contains("execute;dur="));
+			assertTrue(serverTiming.contains("total;dur="));
+		} finally {
+			httpClient.stop();
+		}
+	}
+
+	/**
+	 * Tests that a saturated traffic class rejects its requests while
+	 * purchases still get a thread, and that the classes are assigned by
+	 * message tag and path.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testTrafficClassIsolation() throws Exception {
+		assertEquals(TrafficClass.CHECKOUT, TrafficClass.of(BookStoreMessageTag.BUYBOOKS, false));
+		assertEquals(TrafficClass.BROWSE, TrafficClass.of(BookStoreMessageTag.GETBOOKS, false));
+		assertEquals(TrafficClass.STOCK, TrafficClass.of(BookStoreMessageTag.LISTBOOKS, true));
+
+		Map<TrafficClass, Integer> threads = new EnumMap<>(TrafficClass.class);
+		Map<TrafficClass, Integer> queueLimits = new EnumMap<>(TrafficClass.class);
+		threads.put(TrafficClass.STOCK, 1);
+		queueLimits.put(TrafficClass.STOCK, 1);
+		BookStoreTrafficScheduler scheduler = new BookStoreTrafficScheduler(threads, queueLimits);
+		CountDownLatch release = new CountDownLatch(1);
+
+		try {
+			// One running and one queued listBooks fill the stock class.
+			for (int i = 0; i < 2; i++) {
+				scheduler.getExecutor(TrafficClass.STOCK).execute(() -> {
+					try {
+						release.await();
+					} catch (InterruptedException ex) {
+						;
+					}
+				});
+			}
+
+			try {
+				scheduler.getExecutor(TrafficClass.STOCK).execute(() -> {
+				});
+				fail();
+			} catch (RejectedExecutionException ex) {
+				;
+			}
+
+			Future<?> purchase = scheduler.getExecutor(TrafficClass.CHECKOUT).submit(() -> {
+			});
+			purchase.get(10, TimeUnit.SECONDS);
+			assertEquals(1, scheduler.getRejectedCount(TrafficClass.STOCK));
+			assertEquals(0, scheduler.getRejectedCount(TrafficClass.CHECKOUT));
+			assertTrue(scheduler.toJson().contains("\"STOCK\":{\"threads\":1,"));
+		} finally {
+			release.countDown();
+			scheduler.shutdown();
+		}
+	}
+
+	/**
+	 * Tests that the admission controller rejects the requests whose cost
+	 * does not fit under its limit, and lowers the limit when latencies rise
+	 * well above their baseline.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testAdmissionControl() throws Exception {
+		BookStoreAdmissionController admission = new BookStoreAdmissionController(2, 1, 10);
+
+		long first = admission.tryAcquire(BookStoreMessageTag.GETBOOKS);
+		long second = admission.tryAcquire(BookStoreMessageTag.BUYBOOKS);
+		assertTrue(first >= 0 && second >= 0);
+		assertEquals(-1, admission.tryAcquire(BookStoreMessageTag.GETBOOKS));
+		assertEquals(1, admission.getRejectedCount(BookStoreMessageTag.GETBOOKS));
+
+		admission.release(BookStoreMessageTag.GETBOOKS, first);
+		admission.release(BookStoreMessageTag.BUYBOOKS, second);
+		assertEquals(0, admission.getInFlight());
+
+		// A request costing more than the limit is admitted when alone.
+		long listBooks = admission.tryAcquire(BookStoreMessageTag.LISTBOOKS);
+		assertTrue(listBooks >= 0);
+		assertEquals(-1, admission.tryAcquire(BookStoreMessageTag.GETBOOKS));
+		admission.abandon(BookStoreMessageTag.LISTBOOKS);
+
+		// Purchases taking 50 ms after a 1 ms baseline signal congestion.
+		admission.release(BookStoreMessageTag.BUYBOOKS,
+				admission.tryAcquire(BookStoreMessageTag.BUYBOOKS) - TimeUnit.MILLISECONDS.toNanos(1));
+
+		for (int i = 0; i < 4; i++) {
+			admission.release(BookStoreMessageTag.BUYBOOKS,
+					admission.tryAcquire(BookStoreMessageTag.BUYBOOKS) - TimeUnit.MILLISECONDS.toNanos(50));
+		}
+
+		assertTrue(admission.getLimit() < 2);
+		assertTrue(admission.toJson().contains("\"BUYBOOKS\":{\"admitted\":6,\"rejected\":0}"));
+	}
+
+	/**
+	 * Tests that a replica serves the reads from a snapshot file of the
+	 * catalog, follows the changes of the primary and rejects writes.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testReadOnlyReplica() throws Exception {
+		assumeTrue(localTest);
+
+		BookStoreChangeLog changeLog = new BookStoreChangeLog(storeManager);
+		BookStoreCatalogChanges catalog = changeLog.getChangesSince(new BookStoreCatalogChanges(0, 0));
+		assertTrue(catalog.isReset());
+		Path snapshotFile = Files.createTempFile("bookstore", ".snapshot");
+
+		try {
+			BookStoreSnapshot.write(snapshotFile, catalog.getEpoch(), catalog.getSequence(),
+					catalog.getChangedBooks());
+			ReplicaCertainBookStore replica = new ReplicaCertainBookStore(BookStoreSnapshot.open(snapshotFile),
+					null, null);
+			assertEquals(storeManager.getBooks(), replica.getBooks());
+			assertTrue(replica.getEditorPicks(1).isEmpty());
+
+			// Pick the default book and add another one on the primary.
+			Set<BookEditorPick> editorPicks = new HashSet<BookEditorPick>();
+			editorPicks.add(new BookEditorPick(TEST_ISBN, true));
+			storeManager.updateEditorPicks(editorPicks);
+			changeLog.recordChanged(Collections.singleton(TEST_ISBN));
+			Set<StockBook> booksToAdd = new HashSet<StockBook>();
+			booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 1, "The Art of Computer Programming", "Donald Knuth",
+					(float) 300, NUM_COPIES, 0, 0, 0, false));
+			storeManager.addBooks(booksToAdd);
+			changeLog.recordChanged(Collections.singleton(TEST_ISBN + 1));
+
+			long version = replica.getCatalogVersion();
+			BookStoreCatalogChanges changes = changeLog
+					.getChangesSince(new BookStoreCatalogChanges(replica.getEpoch(), replica.getSequence()));
+			assertFalse(changes.isReset());
+			assertEquals(2, changes.getChangedBooks().size());
+			replica.apply(changes);
+
+			assertTrue(replica.getCatalogVersion() > version);
+			assertEquals(new HashSet<StockBook>(storeManager.getBooks()), new HashSet<StockBook>(replica.getBooks()));
+			assertEquals(TEST_ISBN.intValue(), replica.getEditorPicks(2).get(0).getISBN());
+
+			try {
+				replica.addBooks(booksToAdd);
+				fail();
+			} catch (BookStoreException ex) {
+				assertEquals(BookStoreConstants.READ_ONLY_REPLICA, ex.getMessage());
+			}
+
+			// Removing all books resets the copy of the replica to the books
+			// in the store when recorded, even those added since.
+			storeManager.removeAllBooks();
+			storeManager.addBooks(booksToAdd);
+			changeLog.recordReset();
+			changeLog.recordChanged(Collections.singleton(TEST_ISBN + 1));
+			replica.apply(changeLog
+					.getChangesSince(new BookStoreCatalogChanges(replica.getEpoch(), replica.getSequence())));
+			assertEquals(storeManager.getBooks(), replica.getBooks());
+
+			storeManager.removeAllBooks();
+			changeLog.recordReset();
+			replica.apply(changeLog
+					.getChangesSince(new BookStoreCatalogChanges(replica.getEpoch(), replica.getSequence())));
+			assertTrue(replica.getBooks().isEmpty());
+		} finally {
+			Files.delete(snapshotFile);
+		}
+	}
+
 	/**
 	 * Tear down after class.
 	 *
@@ -485,7 +811,9 @@ public class StockManagerTest {
 	public static void tearDownAfterClass() throws BookStoreException {
 		storeManager.removeAllBooks();
 
-		if (!localTest) {
+		if (client instanceof BookStoreTCPProxy) {
+			((BookStoreTCPProxy) client).stop();
+		} else if (!localTest) {
 			((BookStoreHTTPProxy) client).stop();
 			((StockManagerHTTPProxy) storeManager).stop();
 		}
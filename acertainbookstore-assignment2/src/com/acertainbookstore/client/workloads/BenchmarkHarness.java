@@ -0,0 +1,294 @@
+package com.acertainbookstore.client.workloads;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * {@link BenchmarkHarness} measures the throughput of an operation run in a
+ * loop by a number of threads, in the style of a JMH throughput benchmark:
+ * warm-up iterations let the JIT compile the code and are discarded, then
+ * every measured iteration runs all threads for a fixed time. The result is
+ * the mean throughput over the measured iterations with its standard
+ * deviation, and the number of bytes allocated per operation as reported by
+ * the JVM for each thread.
+ *
+ * Unlike JMH the benchmarks run in the JVM of the harness rather than in
+ * forked ones, so the order of the benchmarks can affect the profile the JIT
+ * sees; the results are for comparing alternatives, not absolute figures.
+ */
+public class BenchmarkHarness {
+
+	/** The sink the operations hand their results to, so they are not eliminated. */
+	private static volatile Object sink;
+
+	/** The number of warm-up iterations. */
+	private final int warmupIterations;
+
+	/** The number of measured iterations. */
+	private final int measuredIterations;
+
+	/** The duration of an iteration in nanoseconds. */
+	private final long iterationNanos;
+
+	/**
+	 * {@link Operation} is the operation being benchmarked.
+	 */
+	public interface Operation {
+
+		/**
+		 * Runs the operation once.
+		 *
+		 * @param random
+		 *            the random source of the running thread
+		 * @throws Exception
+		 *             the exception, counted as a failure
+		 */
+		void run(ThreadLocalRandom random) throws Exception;
+	}
+
+	/**
+	 * Instantiates a new {@link BenchmarkHarness}.
+	 *
+	 * @param warmupIterations
+	 *            the number of warm-up iterations
+	 * @param measuredIterations
+	 *            the number of measured iterations
+	 * @param iterationMillis
+	 *            the duration of an iteration in milliseconds
+	 */
+	public BenchmarkHarness(int warmupIterations, int measuredIterations, long iterationMillis) {
+		this.warmupIterations = warmupIterations;
+		this.measuredIterations = measuredIterations;
+		this.iterationNanos = iterationMillis * 1_000_000L;
+	}
+
+	/**
+	 * Creates a harness configured by the system properties
+	 * <code>bench.warmup</code>, <code>bench.iterations</code> and
+	 * <code>bench.millis</code>.
+	 *
+	 * @return the benchmark harness
+	 */
+	public static BenchmarkHarness fromSystemProperties() {
+		return new BenchmarkHarness(Integer.getInteger("bench.warmup", 1), Integer.getInteger("bench.iterations", 3),
+				Long.getLong("bench.millis", 1000L));
+	}
+
+	/**
+	 * Consumes a result of an operation so that the JIT cannot eliminate the
+	 * computation producing it.
+	 *
+	 * @param result
+	 *            the result
+	 */
+	public static void consume(Object result) {
+		sink = result;
+	}
+
+	/**
+	 * Parses a comma-separated list of integers from a system property.
+	 *
+	 * @param key
+	 *            the property key
+	 * @param defaultValue
+	 *            the default list
+	 * @return the integers
+	 */
+	public static int[] getIntList(String key, String defaultValue) {
+		return Arrays.stream(System.getProperty(key, defaultValue).split(","))
+				.mapToInt(value -> Integer.parseInt(value.trim()))
+				.toArray();
+	}
+
+	/**
+	 * Runs the operation with the given number of threads.
+	 *
+	 * @param threads
+	 *            the number of threads
+	 * @param operation
+	 *            the operation
+	 * @return the result
+	 * @throws Exception
+	 *             the exception
+	 */
+	public Result run(int threads, Operation operation) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		double[] throughputs = new double[measuredIterations];
+		long totalOps = 0;
+		long totalFailures = 0;
+		long totalAllocatedBytes = 0;
+
+		try {
+			for (int iteration = 0; iteration < warmupIterations + measuredIterations; iteration++) {
+				CyclicBarrier start = new CyclicBarrier(threads);
+				List<Future<long[]>> runs = new ArrayList<>();
+
+				for (int i = 0; i < threads; i++) {
+					runs.add(executor.submit(() -> runIteration(start, operation)));
+				}
+
+				long ops = 0;
+				long failures = 0;
+				long allocatedBytes = 0;
+				long elapsedNanos = 0;
+
+				for (Future<long[]> run : runs) {
+					long[] counts = run.get();
+					ops += counts[0];
+					failures += counts[1];
+					allocatedBytes += counts[2];
+					elapsedNanos = Math.max(elapsedNanos, counts[3]);
+				}
+
+				if (iteration >= warmupIterations) {
+					throughputs[iteration - warmupIterations] = ops * 1e9 / elapsedNanos;
+					totalOps += ops;
+					totalFailures += failures;
+					totalAllocatedBytes += allocatedBytes;
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		double mean = Arrays.stream(throughputs).average().orElse(0);
+		double variance = Arrays.stream(throughputs).map(t -> (t - mean) * (t - mean)).sum()
+				/ Math.max(1, measuredIterations - 1);
+
+		return new Result(mean, Math.sqrt(variance), totalOps == 0 ? 0 : (double) totalAllocatedBytes / totalOps,
+				totalFailures);
+	}
+
+	/**
+	 * Runs the operation in a loop for one iteration on the calling thread.
+	 *
+	 * @param start
+	 *            the barrier starting all threads together
+	 * @param operation
+	 *            the operation
+	 * @return the operations, failures, allocated bytes and elapsed
+	 *         nanoseconds
+	 * @throws Exception
+	 *             the exception
+	 */
+	private long[] runIteration(CyclicBarrier start, Operation operation) throws Exception {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long ops = 0;
+		long failures = 0;
+
+		start.await();
+		long allocatedBefore = getAllocatedBytes();
+		long startNanos = System.nanoTime();
+		long endNanos = startNanos + iterationNanos;
+		long now;
+
+		do {
+			try {
+				operation.run(random);
+			} catch (Exception ex) {
+				failures++;
+			}
+
+			ops++;
+			now = System.nanoTime();
+		} while (now < endNanos);
+
+		return new long[] { ops, failures, getAllocatedBytes() - allocatedBefore, now - startNanos };
+	}
+
+	/**
+	 * Gets the number of bytes allocated by the calling thread so far.
+	 *
+	 * @return the allocated bytes, 0 if the JVM does not tell
+	 */
+	private static long getAllocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+
+		return 0;
+	}
+
+	/**
+	 * {@link Result} is the outcome of a benchmark.
+	 */
+	public static final class Result {
+
+		/** The mean throughput in operations per second. */
+		private final double opsPerSecond;
+
+		/** The standard deviation of the throughput over the iterations. */
+		private final double opsPerSecondError;
+
+		/** The number of bytes allocated per operation. */
+		private final double allocatedBytesPerOp;
+
+		/** The number of failed operations. */
+		private final long failures;
+
+		/**
+		 * Instantiates a new {@link Result}.
+		 *
+		 * @param opsPerSecond
+		 *            the mean throughput
+		 * @param opsPerSecondError
+		 *            the standard deviation of the throughput
+		 * @param allocatedBytesPerOp
+		 *            the bytes allocated per operation
+		 * @param failures
+		 *            the number of failed operations
+		 */
+		private Result(double opsPerSecond, double opsPerSecondError, double allocatedBytesPerOp, long failures) {
+			this.opsPerSecond = opsPerSecond;
+			this.opsPerSecondError = opsPerSecondError;
+			this.allocatedBytesPerOp = allocatedBytesPerOp;
+			this.failures = failures;
+		}
+
+		/**
+		 * Gets the mean throughput.
+		 *
+		 * @return the operations per second
+		 */
+		public double getOpsPerSecond() {
+			return opsPerSecond;
+		}
+
+		/**
+		 * Gets the standard deviation of the throughput.
+		 *
+		 * @return the error in operations per second
+		 */
+		public double getOpsPerSecondError() {
+			return opsPerSecondError;
+		}
+
+		/**
+		 * Gets the number of bytes allocated per operation.
+		 *
+		 * @return the allocated bytes per operation
+		 */
+		public double getAllocatedBytesPerOp() {
+			return allocatedBytesPerOp;
+		}
+
+		/**
+		 * Gets the number of failed operations.
+		 *
+		 * @return the failures
+		 */
+		public long getFailures() {
+			return failures;
+		}
+	}
+}
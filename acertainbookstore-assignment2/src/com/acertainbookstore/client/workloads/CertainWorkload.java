@@ -0,0 +1,221 @@
+package com.acertainbookstore.client.workloads;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.DeterministicConcurrentCertainBookStore;
+import com.acertainbookstore.business.OptimisticConcurrentCertainBookStore;
+import com.acertainbookstore.business.PersistentCatalogCertainBookStore;
+import com.acertainbookstore.business.SingleLockConcurrentCertainBookStore;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.business.TwoLevelLockingConcurrentCertainBookStore;
+import com.acertainbookstore.client.BookStoreHTTPProxy;
+import com.acertainbookstore.client.StockManagerHTTPProxy;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.LatencyHistogram;
+
+/**
+ * {@link CertainWorkload} drives a mix of customer, stock manager and editor
+ * interactions against the bookstore and reports the goodput and latency
+ * percentiles of every interaction, cf. {@link WorkloadConfiguration} for the
+ * parameters.
+ *
+ * The workload runs against a local store by default (-Dlocaltest=true, with
+ * -Dsinglelock, -Ddeterministic=true, -Doptimistic=true or
+ * -Dpersistentcatalog=true choosing the implementation) and against the server at -Dworkload.server through the
+ * HTTP proxies with -Dlocaltest=false.
+ */
+public class CertainWorkload {
+
+	/** The seed of the popularity order of the books. */
+	private static final long POPULARITY_SEED = 42;
+
+	/** The share of the books that start as editor picks. */
+	private static final int EDITOR_PICK_EVERY = 10;
+
+	/**
+	 * Prevents the instantiation of a new {@link CertainWorkload}.
+	 */
+	private CertainWorkload() {
+		// Prevent instances from being created.
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            the arguments
+	 * @throws Exception
+	 *             the exception
+	 */
+	public static void main(String[] args) throws Exception {
+		WorkloadConfiguration configuration = WorkloadConfiguration.fromSystemProperties();
+		String localTestProperty = System.getProperty(BookStoreConstants.PROPERTY_KEY_LOCAL_TEST);
+		boolean localTest = localTestProperty == null || Boolean.parseBoolean(localTestProperty);
+		String singleLockProperty = System.getProperty(BookStoreConstants.PROPERTY_KEY_SINGLE_LOCK);
+		boolean singleLock = singleLockProperty == null || Boolean.parseBoolean(singleLockProperty);
+		boolean deterministic = Boolean.parseBoolean(System.getProperty(BookStoreConstants.PROPERTY_KEY_DETERMINISTIC));
+		boolean optimistic = Boolean.parseBoolean(System.getProperty(BookStoreConstants.PROPERTY_KEY_OPTIMISTIC));
+		boolean persistentCatalog = Boolean
+				.parseBoolean(System.getProperty(BookStoreConstants.PROPERTY_KEY_PERSISTENT_CATALOG));
+
+		BookStore bookStore;
+		StockManager stockManager;
+
+		if (!localTest) {
+			bookStore = new BookStoreHTTPProxy(configuration.getServerAddress());
+			stockManager = new StockManagerHTTPProxy(configuration.getServerAddress() + "/stock");
+		} else if (deterministic) {
+			DeterministicConcurrentCertainBookStore store = new DeterministicConcurrentCertainBookStore();
+			bookStore = store;
+			stockManager = store;
+		} else if (optimistic) {
+			OptimisticConcurrentCertainBookStore store = new OptimisticConcurrentCertainBookStore();
+			bookStore = store;
+			stockManager = store;
+		} else if (persistentCatalog) {
+			PersistentCatalogCertainBookStore store = new PersistentCatalogCertainBookStore();
+			bookStore = store;
+			stockManager = store;
+		} else if (singleLock) {
+			SingleLockConcurrentCertainBookStore store = new SingleLockConcurrentCertainBookStore();
+			bookStore = store;
+			stockManager = store;
+		} else {
+			TwoLevelLockingConcurrentCertainBookStore store = new TwoLevelLockingConcurrentCertainBookStore();
+			bookStore = store;
+			stockManager = store;
+		}
+
+		try {
+			WorkerRunResult result = runWorkload(configuration, bookStore, stockManager);
+			report(configuration, result);
+		} finally {
+			if (!localTest) {
+				((BookStoreHTTPProxy) bookStore).stop();
+				((StockManagerHTTPProxy) stockManager).stop();
+			}
+		}
+	}
+
+	/**
+	 * Fills the store, runs the workers and merges their results.
+	 *
+	 * @param configuration
+	 *            the configuration
+	 * @param bookStore
+	 *            the book store
+	 * @param stockManager
+	 *            the stock manager
+	 * @return the merged result
+	 * @throws Exception
+	 *             the exception
+	 */
+	public static WorkerRunResult runWorkload(WorkloadConfiguration configuration, BookStore bookStore,
+			StockManager stockManager) throws Exception {
+		int[] isbnsByRank = initializeBooks(configuration, stockManager);
+		ZipfianGenerator popularity = new ZipfianGenerator(isbnsByRank.length, configuration.getZipfSkew());
+		ExecutorService workers = Executors.newFixedThreadPool(configuration.getNumWorkers());
+		List<Future<WorkerRunResult>> runs = new ArrayList<>();
+		long startNanos = System.nanoTime();
+
+		try {
+			for (int i = 0; i < configuration.getNumWorkers(); i++) {
+				runs.add(workers.submit(
+						new Worker(configuration, bookStore, stockManager, popularity, isbnsByRank, startNanos)));
+			}
+
+			WorkerRunResult result = new WorkerRunResult();
+
+			for (Future<WorkerRunResult> run : runs) {
+				result.add(run.get());
+			}
+
+			return result;
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Replaces the books of the store with the books of the workload.
+	 *
+	 * @param configuration
+	 *            the configuration
+	 * @param stockManager
+	 *            the stock manager
+	 * @return the ISBNs by popularity rank
+	 * @throws Exception
+	 *             the exception
+	 */
+	private static int[] initializeBooks(WorkloadConfiguration configuration, StockManager stockManager)
+			throws Exception {
+		int numBooks = configuration.getNumBooks();
+		Set<StockBook> books = new HashSet<>();
+		int[] isbnsByRank = new int[numBooks];
+
+		for (int i = 0; i < numBooks; i++) {
+			int isbn = i + 1;
+			books.add(new ImmutableStockBook(isbn, "Title " + isbn, "Author " + isbn, 10.0f,
+					configuration.getInitialCopies(), 0, 0, 0, isbn % EDITOR_PICK_EVERY == 0));
+			isbnsByRank[i] = isbn;
+		}
+
+		// Popularity must not follow the ISBN order, or the hot books would
+		// all sit next to each other.
+		Random random = new Random(POPULARITY_SEED);
+
+		for (int i = numBooks - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int isbn = isbnsByRank[i];
+			isbnsByRank[i] = isbnsByRank[j];
+			isbnsByRank[j] = isbn;
+		}
+
+		stockManager.removeAllBooks();
+		stockManager.addBooks(books);
+		return isbnsByRank;
+	}
+
+	/**
+	 * Prints the goodput and latency percentiles of every interaction.
+	 *
+	 * @param configuration
+	 *            the configuration
+	 * @param result
+	 *            the merged result
+	 */
+	private static void report(WorkloadConfiguration configuration, WorkerRunResult result) {
+		double seconds = configuration.getMeasuredSeconds();
+
+		System.out.printf("%d workers, %s, %d s measured after %d s warm-up%n", configuration.getNumWorkers(),
+				configuration.getArrivalRate() > 0 ? "open loop at " + configuration.getArrivalRate() + "/s"
+						: "closed loop",
+				configuration.getMeasuredSeconds(), configuration.getWarmupSeconds());
+		System.out.printf("%-8s %10s %8s %10s %10s %10s %10s %10s %10s%n", "", "ok", "failed", "goodput/s",
+				"mean us", "p50 us", "p99 us", "p99.9 us", "max us");
+
+		for (WorkloadInteraction interaction : WorkloadInteraction.values()) {
+			LatencyHistogram latencies = result.getLatencies(interaction);
+			System.out.printf("%-8s %10d %8d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n", interaction,
+					latencies.getTotalCount(), result.getFailures(interaction), latencies.getTotalCount() / seconds,
+					latencies.getMean() / 1000.0, latencies.getPercentile(0.50) / 1000.0,
+					latencies.getPercentile(0.99) / 1000.0, latencies.getPercentile(0.999) / 1000.0,
+					latencies.getMax() / 1000.0);
+		}
+
+		if (result.getMissedArrivals() > 0) {
+			System.out.printf("%d arrivals could not be issued before the end; add workers or lower the rate%n",
+					result.getMissedArrivals());
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package com.acertainbookstore.client.workloads;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.business.TwoLevelLockingConcurrentCertainBookStore;
+import com.acertainbookstore.client.BookStoreHTTPProxy;
+import com.acertainbookstore.client.BookStoreTCPProxy;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.server.BookStoreHTTPMessageHandler;
+import com.acertainbookstore.server.BookStoreHTTPServerUtility;
+import com.acertainbookstore.server.BookStoreTCPServer;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link ProtocolLatencyBenchmark} compares the round-trip latency of
+ * getBooks calls over HTTP ({@link BookStoreHTTPProxy}) and over the binary
+ * TCP protocol ({@link BookStoreTCPProxy}). Both servers run in-process on
+ * top of the same store and handler.
+ *
+ * Usage: ProtocolLatencyBenchmark [calls] [httpPort] [tcpPort]
+ */
+public class ProtocolLatencyBenchmark {
+
+	/** The default number of measured calls per protocol. */
+	private static final int DEFAULT_CALLS = 20000;
+
+	/** The default HTTP port. */
+	private static final int DEFAULT_HTTP_PORT = 8093;
+
+	/** The default TCP port. */
+	private static final int DEFAULT_TCP_PORT = 8094;
+
+	/** The number of warm-up calls per protocol. */
+	private static final int WARMUP_CALLS = 5000;
+
+	/** The number of books in the store, all fetched by each call. */
+	private static final int NUM_BOOKS = 10;
+
+	/**
+	 * Prevents the instantiation of a new {@link ProtocolLatencyBenchmark}.
+	 */
+	private ProtocolLatencyBenchmark() {
+		// Prevent instances from being created.
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            the arguments
+	 * @throws Exception
+	 *             the exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int calls = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CALLS;
+		int httpPort = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_HTTP_PORT;
+		int tcpPort = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_TCP_PORT;
+
+		TwoLevelLockingConcurrentCertainBookStore store = new TwoLevelLockingConcurrentCertainBookStore();
+		store.removeAllBooks();
+		Set<StockBook> books = new HashSet<>();
+		Set<Integer> isbns = new HashSet<>();
+
+		for (int isbn = 1; isbn <= NUM_BOOKS; isbn++) {
+			books.add(new ImmutableStockBook(isbn, "Title " + isbn, "Author " + isbn, 10.0f, 100, 0, 0, 0, false));
+			isbns.add(isbn);
+		}
+
+		store.addBooks(books);
+
+		BookStoreHTTPMessageHandler handler = new BookStoreHTTPMessageHandler(store, store);
+		Server httpServer = BookStoreHTTPServerUtility.startServer(httpPort, handler, new QueuedThreadPool(100, 10));
+		ExecutorService workers = Executors.newFixedThreadPool(100);
+		BookStoreTCPServer tcpServer = new BookStoreTCPServer(tcpPort, handler, workers);
+		tcpServer.start();
+
+		BookStoreHTTPProxy httpProxy = new BookStoreHTTPProxy("http://localhost:" + httpPort);
+		BookStoreTCPProxy tcpProxy = new BookStoreTCPProxy("localhost", tcpPort);
+
+		try {
+			report("http", measure(httpProxy, isbns, calls));
+			report("tcp ", measure(tcpProxy, isbns, calls));
+		} finally {
+			httpProxy.stop();
+			tcpProxy.stop();
+			tcpServer.stop();
+			workers.shutdown();
+			httpServer.stop();
+		}
+	}
+
+	/**
+	 * Measures the latency of sequential getBooks calls after a warm-up.
+	 *
+	 * @param bookStore
+	 *            the proxy
+	 * @param isbns
+	 *            the ISBNs to get
+	 * @param calls
+	 *            the number of measured calls
+	 * @return the latencies in nanoseconds
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private static long[] measure(BookStore bookStore, Set<Integer> isbns, int calls) throws BookStoreException {
+		for (int i = 0; i < WARMUP_CALLS; i++) {
+			bookStore.getBooks(isbns);
+		}
+
+		long[] latencies = new long[calls];
+
+		for (int i = 0; i < calls; i++) {
+			long start = System.nanoTime();
+			bookStore.getBooks(isbns);
+			latencies[i] = System.nanoTime() - start;
+		}
+
+		return latencies;
+	}
+
+	/**
+	 * Prints the mean and percentiles of the latencies.
+	 *
+	 * @param protocol
+	 *            the protocol name
+	 * @param latencies
+	 *            the latencies in nanoseconds
+	 */
+	private static void report(String protocol, long[] latencies) {
+		Arrays.sort(latencies);
+		double mean = Arrays.stream(latencies).average().orElse(0) / 1000.0;
+
+		System.out.printf("%s: mean %.1f us, p50 %.1f us, p99 %.1f us, p99.9 %.1f us%n", protocol, mean,
+				percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 0.999));
+	}
+
+	/**
+	 * Gets a percentile of sorted latencies in microseconds.
+	 *
+	 * @param sortedLatencies
+	 *            the sorted latencies in nanoseconds
+	 * @param quantile
+	 *            the quantile between 0 and 1
+	 * @return the percentile in microseconds
+	 */
+	private static double percentile(long[] sortedLatencies, double quantile) {
+		int index = (int) Math.min(sortedLatencies.length - 1, Math.ceil(quantile * sortedLatencies.length) - 1);
+		return sortedLatencies[Math.max(0, index)] / 1000.0;
+	}
+}
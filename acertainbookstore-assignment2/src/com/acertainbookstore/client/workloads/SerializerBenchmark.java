@@ -0,0 +1,168 @@
+package com.acertainbookstore.client.workloads;
+
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStoreSerializer;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreKryoSerializer;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreXStreamSerializer;
+
+/**
+ * {@link SerializerBenchmark} compares the {@link BookStoreSerializer}
+ * implementations with the {@link BenchmarkHarness} on the payloads the
+ * bookstore sends: a small buyBooks order, a listBooks response of 10,000
+ * books and a response carrying an exception. For every serializer and
+ * payload it reports the serialization and deserialization throughput, the
+ * bytes allocated per operation and the serialized size on the wire.
+ *
+ * The serializers are set by bench.serializers and the thread counts by
+ * bench.threads (comma-separated lists); the results are printed and written
+ * as CSV to bench.output. On Java 9 and later, the serializers need the
+ * --add-opens flags listed in the README to access the JDK classes.
+ */
+public class SerializerBenchmark {
+
+	/** The number of books of the listBooks response. */
+	private static final int NUM_LISTED_BOOKS = 10000;
+
+	/** The number of books of the order. */
+	private static final int NUM_ORDERED_BOOKS = 5;
+
+	/**
+	 * Prevents the instantiation of a new {@link SerializerBenchmark}.
+	 */
+	private SerializerBenchmark() {
+		// Prevent instances from being created.
+	}
+
+	/**
+	 * Gets the serializers by name. A new serializer is benchmarked by adding
+	 * it here.
+	 *
+	 * @return the serializer factories by name
+	 */
+	private static Map<String, Supplier<BookStoreSerializer>> getSerializers() {
+		Map<String, Supplier<BookStoreSerializer>> serializers = new LinkedHashMap<>();
+		serializers.put("kryo", BookStoreKryoSerializer::new);
+		serializers.put("xstream", BookStoreXStreamSerializer::new);
+		return serializers;
+	}
+
+	/**
+	 * Gets the payloads by name.
+	 *
+	 * @return the payloads by name
+	 */
+	private static Map<String, Object> getPayloads() {
+		Map<String, Object> payloads = new LinkedHashMap<>();
+
+		Set<BookCopy> order = new HashSet<>();
+
+		for (int isbn = 1; isbn <= NUM_ORDERED_BOOKS; isbn++) {
+			order.add(new BookCopy(isbn, 1));
+		}
+
+		payloads.put("order", order);
+
+		List<StockBook> books = new ArrayList<>();
+
+		for (int isbn = 1; isbn <= NUM_LISTED_BOOKS; isbn++) {
+			books.add(new ImmutableStockBook(isbn, "Title " + isbn, "Author " + isbn, 10.0f, 100, 0, 0, 0,
+					isbn % 10 == 0));
+		}
+
+		BookStoreResponse listResponse = new BookStoreResponse();
+		listResponse.setList(books);
+		payloads.put("listBooks", listResponse);
+
+		BookStoreResponse exceptionResponse = new BookStoreResponse();
+		exceptionResponse.setException(
+				new BookStoreException(BookStoreConstants.ISBN + 1 + BookStoreConstants.NOT_AVAILABLE));
+		payloads.put("exception", exceptionResponse);
+
+		return payloads;
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            the arguments
+	 * @throws Exception
+	 *             the exception
+	 */
+	public static void main(String[] args) throws Exception {
+		BenchmarkHarness harness = BenchmarkHarness.fromSystemProperties();
+		Map<String, Supplier<BookStoreSerializer>> serializers = getSerializers();
+		String[] names = System.getProperty("bench.serializers", String.join(",", serializers.keySet())).split(",");
+		int[] threadCounts = BenchmarkHarness.getIntList("bench.threads", "1");
+		Map<String, Object> payloads = getPayloads();
+
+		try (PrintWriter csv = new PrintWriter(
+				new FileWriter(System.getProperty("bench.output", "serializer-benchmark.csv")))) {
+			csv.println("serializer,payload,operation,threads,opsPerSecond,error,allocatedBytesPerOp,wireBytes,"
+					+ "failures");
+
+			for (String name : names) {
+				// Serializers are not thread-safe, every thread gets its own.
+				ThreadLocal<BookStoreSerializer> serializer = ThreadLocal.withInitial(serializers.get(name));
+
+				for (Map.Entry<String, Object> payload : payloads.entrySet()) {
+					byte[] serialized = serializer.get().serialize(payload.getValue());
+
+					for (int threads : threadCounts) {
+						BenchmarkHarness.Result serialization = harness.run(threads,
+								random -> BenchmarkHarness.consume(serializer.get().serialize(payload.getValue())));
+						BenchmarkHarness.Result deserialization = harness.run(threads,
+								random -> BenchmarkHarness.consume(serializer.get().deserialize(serialized)));
+
+						report(csv, name, payload.getKey(), "serialize", threads, serialization, serialized.length);
+						report(csv, name, payload.getKey(), "deserialize", threads, deserialization,
+								serialized.length);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Prints a result and writes it to the CSV file.
+	 *
+	 * @param csv
+	 *            the CSV file
+	 * @param serializer
+	 *            the serializer name
+	 * @param payload
+	 *            the payload name
+	 * @param operation
+	 *            the operation name
+	 * @param threads
+	 *            the number of threads
+	 * @param result
+	 *            the result
+	 * @param wireBytes
+	 *            the serialized size of the payload
+	 */
+	private static void report(PrintWriter csv, String serializer, String payload, String operation, int threads,
+			BenchmarkHarness.Result result, int wireBytes) {
+		String row = String.format("%s,%s,%s,%d,%.1f,%.1f,%.1f,%d,%d", serializer, payload, operation, threads,
+				result.getOpsPerSecond(), result.getOpsPerSecondError(), result.getAllocatedBytesPerOp(), wireBytes,
+				result.getFailures());
+		System.out.println(row);
+		csv.println(row);
+		csv.flush();
+	}
+}
@@ -0,0 +1,227 @@
+package com.acertainbookstore.client.workloads;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.business.TwoLevelLockingConcurrentCertainBookStore;
+import com.acertainbookstore.interfaces.BookStoreSerializer;
+import com.acertainbookstore.server.BookStoreHTTPMessageHandler;
+import com.acertainbookstore.server.BookStoreHTTPServerUtility;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreKryoSerializer;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+
+/**
+ * {@link ServerThreadingBenchmark} compares the throughput of the server with
+ * the default bounded Jetty thread pool against the server running every
+ * request on its own virtual thread, under a large number of concurrent
+ * client connections contending on a few books of the two-level locking store.
+ * On a JVM without virtual threads the second run measures the bounded
+ * fallback pool of {@link BookStoreHTTPServerUtility#newThreadPerTaskExecutor}
+ * instead, and is reported as such.
+ *
+ * Usage: ServerThreadingBenchmark [connections] [seconds] [port]
+ */
+public class ServerThreadingBenchmark {
+
+	/** The default number of concurrent client connections. */
+	private static final int DEFAULT_CONNECTIONS = 10000;
+
+	/** The default duration of each run in seconds. */
+	private static final int DEFAULT_SECONDS = 20;
+
+	/** The default port of the first server. */
+	private static final int DEFAULT_PORT = 8091;
+
+	/** The number of books in the store; small to cause lock contention. */
+	private static final int NUM_BOOKS = 10;
+
+	/** The ISBN of the first book. */
+	private static final int FIRST_ISBN = 1;
+
+	/**
+	 * Prevents the instantiation of a new {@link ServerThreadingBenchmark}.
+	 */
+	private ServerThreadingBenchmark() {
+		// Prevent instances from being created.
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            the arguments
+	 * @throws Exception
+	 *             the exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CONNECTIONS;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SECONDS;
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PORT;
+
+		double platform = runServer(port, null, connections, seconds);
+		System.out.printf("platform thread pool: %d connections, %.1f requests/s%n", connections, platform);
+
+		String perTaskMode = BookStoreHTTPServerUtility.isVirtualThreadAvailable() ? "virtual thread per request"
+				: "fallback thread pool";
+		ExecutorService executor = BookStoreHTTPServerUtility.newThreadPerTaskExecutor();
+		double perTask = runServer(port + 1, executor, connections, seconds);
+		executor.shutdown();
+		System.out.printf("%s: %d connections, %.1f requests/s%n", perTaskMode, connections, perTask);
+	}
+
+	/**
+	 * Starts a server, drives it with the given number of concurrent
+	 * connections and stops it again.
+	 *
+	 * @param port
+	 *            the port
+	 * @param storeExecutor
+	 *            the store executor of the handler, null for the platform
+	 *            thread pool mode
+	 * @param connections
+	 *            the number of concurrent connections
+	 * @param seconds
+	 *            the duration of the run in seconds
+	 * @return the throughput in requests per second
+	 * @throws Exception
+	 *             the exception
+	 */
+	private static double runServer(int port, ExecutorService storeExecutor, int connections, int seconds)
+			throws Exception {
+		TwoLevelLockingConcurrentCertainBookStore store = new TwoLevelLockingConcurrentCertainBookStore();
+		store.removeAllBooks();
+		addBooks(store);
+
+		BookStoreHTTPMessageHandler handler = new BookStoreHTTPMessageHandler(store, store, storeExecutor);
+		Server server = BookStoreHTTPServerUtility.startServer(port, handler, new QueuedThreadPool(100, 10));
+
+		try {
+			return drive("http://localhost:" + port, connections, seconds);
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Adds the benchmark books to the store.
+	 *
+	 * @param store
+	 *            the store
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private static void addBooks(TwoLevelLockingConcurrentCertainBookStore store) throws BookStoreException {
+		Set<StockBook> books = new HashSet<>();
+
+		for (int isbn = FIRST_ISBN; isbn < FIRST_ISBN + NUM_BOOKS; isbn++) {
+			books.add(new ImmutableStockBook(isbn, "Title " + isbn, "Author " + isbn, 10.0f, Integer.MAX_VALUE / 2, 0,
+					0, 0, false));
+		}
+
+		store.addBooks(books);
+	}
+
+	/**
+	 * Keeps <code>connections</code> requests in flight for the duration of
+	 * the run, alternating buyBooks and getBooks calls.
+	 *
+	 * @param serverAddress
+	 *            the server address
+	 * @param connections
+	 *            the number of concurrent connections
+	 * @param seconds
+	 *            the duration of the run in seconds
+	 * @return the throughput in requests per second
+	 * @throws Exception
+	 *             the exception
+	 */
+	private static double drive(String serverAddress, int connections, int seconds) throws Exception {
+		BookStoreSerializer serializer = new BookStoreKryoSerializer();
+		Set<BookCopy> copies = new HashSet<>();
+		Set<Integer> isbns = new HashSet<>();
+
+		for (int isbn = FIRST_ISBN; isbn < FIRST_ISBN + NUM_BOOKS; isbn++) {
+			copies.add(new BookCopy(isbn, 1));
+			isbns.add(isbn);
+		}
+
+		byte[] buyContent = serializer.serialize(copies);
+		byte[] getContent = serializer.serialize(isbns);
+
+		HttpClient client = new HttpClient();
+		client.setMaxConnectionsPerDestination(connections);
+		client.setMaxRequestsQueuedPerDestination(connections);
+		client.setExecutor(new QueuedThreadPool(200));
+		client.start();
+
+		AtomicLong completed = new AtomicLong();
+		CountDownLatch done = new CountDownLatch(connections);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		long start = System.nanoTime();
+
+		for (int i = 0; i < connections; i++) {
+			boolean buy = i % 2 == 0;
+			send(client, serverAddress, buy, buy ? buyContent : getContent, deadline, completed, done);
+		}
+
+		done.await();
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		client.stop();
+		return completed.get() / elapsed;
+	}
+
+	/**
+	 * Sends a request and, once it completes, the next one on the same
+	 * connection slot until the deadline has passed.
+	 *
+	 * @param client
+	 *            the client
+	 * @param serverAddress
+	 *            the server address
+	 * @param buy
+	 *            whether to send buyBooks or getBooks
+	 * @param content
+	 *            the serialized request content
+	 * @param deadline
+	 *            the deadline in nanoseconds
+	 * @param completed
+	 *            the counter of successful requests
+	 * @param done
+	 *            the latch counted down when the slot stops
+	 */
+	private static void send(HttpClient client, String serverAddress, boolean buy, byte[] content, long deadline,
+			AtomicLong completed, CountDownLatch done) {
+		BookStoreMessageTag messageTag = buy ? BookStoreMessageTag.BUYBOOKS : BookStoreMessageTag.GETBOOKS;
+
+		client.POST(serverAddress + "/" + messageTag).content(new BytesContentProvider(content))
+				.timeout(60, TimeUnit.SECONDS).send(new BufferingResponseListener() {
+					@Override
+					public void onComplete(Result result) {
+						if (result.isSucceeded() && result.getResponse().getStatus() == 200) {
+							completed.incrementAndGet();
+						}
+
+						if (System.nanoTime() < deadline) {
+							send(client, serverAddress, buy, content, deadline, completed, done);
+						} else {
+							done.countDown();
+						}
+					}
+				});
+	}
+}
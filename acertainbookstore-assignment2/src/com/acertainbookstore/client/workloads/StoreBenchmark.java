@@ -0,0 +1,295 @@
+package com.acertainbookstore.client.workloads;
+
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.DeterministicConcurrentCertainBookStore;
+import com.acertainbookstore.business.OptimisticConcurrentCertainBookStore;
+import com.acertainbookstore.business.PersistentCatalogCertainBookStore;
+import com.acertainbookstore.business.SingleLockConcurrentCertainBookStore;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.business.TwoLevelLockingConcurrentCertainBookStore;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+
+/**
+ * {@link StoreBenchmark} compares the throughput of the store engines
+ * in-process with the {@link BenchmarkHarness}. Every {@link BookStore} and
+ * {@link StockManager} method the engines implement is benchmarked, sweeping
+ * the number of threads, the catalog size and the order size, plus a mixed
+ * getBooks/buyBooks benchmark sweeping the write ratio. The ISBNs are drawn
+ * from a Zipfian distribution, so a few books are contended. The
+ * contendedBuyBooks benchmark puts the most popular book in every order, the
+ * worst case for the optimistic engine, whose writers then all conflict.
+ *
+ * The sweeps are set by system properties holding comma-separated lists:
+ * bench.stores, bench.operations, bench.threads, bench.catalog, bench.order and
+ * bench.writes; bench.skew sets the skew. The results are printed and written
+ * as CSV to bench.output.
+ */
+public class StoreBenchmark {
+
+	/** The number of copies of every book; large enough never to run out. */
+	private static final int INITIAL_COPIES = 1_000_000_000;
+
+	/** The share of the books that are editor picks. */
+	private static final int EDITOR_PICK_EVERY = 10;
+
+	/** The number of editor picks asked for. */
+	private static final int NUM_EDITOR_PICKS = 10;
+
+	/** The operations that do not depend on the order size. */
+	private static final Set<String> UNORDERED_OPERATIONS = new HashSet<>(
+			Arrays.asList("listBooks", "getEditorPicks", "addRemoveBooks"));
+
+	/**
+	 * Prevents the instantiation of a new {@link StoreBenchmark}.
+	 */
+	private StoreBenchmark() {
+		// Prevent instances from being created.
+	}
+
+	/**
+	 * Gets the store engines by name. A new engine is benchmarked by adding
+	 * it here.
+	 *
+	 * @return the engine factories by name
+	 */
+	private static Map<String, Supplier<BookStore>> getEngines() {
+		Map<String, Supplier<BookStore>> engines = new LinkedHashMap<>();
+		engines.put("singlelock", SingleLockConcurrentCertainBookStore::new);
+		engines.put("twolevel", TwoLevelLockingConcurrentCertainBookStore::new);
+		engines.put("deterministic", DeterministicConcurrentCertainBookStore::new);
+		engines.put("optimistic", OptimisticConcurrentCertainBookStore::new);
+		engines.put("persistent", PersistentCatalogCertainBookStore::new);
+		return engines;
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            the arguments
+	 * @throws Exception
+	 *             the exception
+	 */
+	public static void main(String[] args) throws Exception {
+		BenchmarkHarness harness = BenchmarkHarness.fromSystemProperties();
+		Map<String, Supplier<BookStore>> engines = getEngines();
+		String[] stores = System.getProperty("bench.stores", String.join(",", engines.keySet())).split(",");
+		String[] operations = System.getProperty("bench.operations",
+				"getBooks,getBooksByISBN,getEditorPicks,listBooks,buyBooks,contendedBuyBooks,addCopies,"
+						+ "updateEditorPicks,addRemoveBooks,mixed")
+				.split(",");
+		int[] threadCounts = BenchmarkHarness.getIntList("bench.threads", "1,4");
+		int[] catalogSizes = BenchmarkHarness.getIntList("bench.catalog", "1000");
+		int[] orderSizes = BenchmarkHarness.getIntList("bench.order", "1,10");
+		double[] writeRatios = Arrays.stream(System.getProperty("bench.writes", "0.1,0.5").split(","))
+				.mapToDouble(Double::parseDouble)
+				.toArray();
+		double skew = Double.parseDouble(System.getProperty("bench.skew", "0.99"));
+
+		try (PrintWriter csv = new PrintWriter(
+				new FileWriter(System.getProperty("bench.output", "store-benchmark.csv")))) {
+			csv.println("store,operation,threads,catalogSize,orderSize,writeRatio,opsPerSecond,error,"
+					+ "allocatedBytesPerOp,failures");
+
+			for (String store : stores) {
+				for (String operation : operations) {
+					for (int catalogSize : catalogSizes) {
+						ZipfianGenerator popularity = new ZipfianGenerator(catalogSize, skew);
+
+						for (int orderSize : UNORDERED_OPERATIONS.contains(operation) ? new int[] { 0 }
+								: orderSizes) {
+							for (double writeRatio : operation.equals("mixed") ? writeRatios : new double[] { 0 }) {
+								for (int threads : threadCounts) {
+									BookStore bookStore = engines.get(store).get();
+									StockManager stockManager = (StockManager) bookStore;
+									initializeBooks(stockManager, catalogSize);
+
+									BenchmarkHarness.Operation benchmark = newOperation(operation, bookStore,
+											stockManager, popularity, catalogSize, orderSize, writeRatio);
+									BenchmarkHarness.Result result = harness.run(threads, benchmark);
+
+									String row = String.format("%s,%s,%d,%d,%d,%.2f,%.1f,%.1f,%.1f,%d", store,
+											operation, threads, catalogSize, orderSize, writeRatio,
+											result.getOpsPerSecond(), result.getOpsPerSecondError(),
+											result.getAllocatedBytesPerOp(), result.getFailures());
+									System.out.println(row);
+									csv.println(row);
+									csv.flush();
+
+									if (bookStore instanceof DeterministicConcurrentCertainBookStore) {
+										((DeterministicConcurrentCertainBookStore) bookStore).stop();
+									}
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replaces the books of the store with the benchmark catalog.
+	 *
+	 * @param stockManager
+	 *            the stock manager
+	 * @param catalogSize
+	 *            the number of books
+	 * @throws Exception
+	 *             the exception
+	 */
+	private static void initializeBooks(StockManager stockManager, int catalogSize) throws Exception {
+		Set<StockBook> books = new HashSet<>();
+
+		for (int isbn = 1; isbn <= catalogSize; isbn++) {
+			books.add(new ImmutableStockBook(isbn, "Title " + isbn, "Author " + isbn, 10.0f, INITIAL_COPIES, 0, 0, 0,
+					isbn % EDITOR_PICK_EVERY == 0));
+		}
+
+		stockManager.removeAllBooks();
+		stockManager.addBooks(books);
+	}
+
+	/**
+	 * Creates the benchmarked operation.
+	 *
+	 * @param operation
+	 *            the operation name
+	 * @param bookStore
+	 *            the book store
+	 * @param stockManager
+	 *            the stock manager
+	 * @param popularity
+	 *            the generator of the popularity ranks
+	 * @param catalogSize
+	 *            the number of books
+	 * @param orderSize
+	 *            the number of distinct books per call
+	 * @param writeRatio
+	 *            the share of writes of the mixed operation
+	 * @return the operation
+	 */
+	private static BenchmarkHarness.Operation newOperation(String operation, BookStore bookStore,
+			StockManager stockManager, ZipfianGenerator popularity, int catalogSize, int orderSize,
+			double writeRatio) {
+		AtomicInteger nextIsbn = new AtomicInteger(catalogSize);
+
+		switch (operation) {
+		case "getBooks":
+			return random -> BenchmarkHarness.consume(bookStore.getBooks(nextIsbns(random, popularity, orderSize)));
+
+		case "getBooksByISBN":
+			return random -> BenchmarkHarness
+					.consume(stockManager.getBooksByISBN(nextIsbns(random, popularity, orderSize)));
+
+		case "getEditorPicks":
+			return random -> BenchmarkHarness.consume(bookStore.getEditorPicks(NUM_EDITOR_PICKS));
+
+		case "listBooks":
+			return random -> BenchmarkHarness.consume(stockManager.getBooks());
+
+		case "buyBooks":
+			return random -> bookStore.buyBooks(nextCopies(random, popularity, orderSize));
+
+		case "contendedBuyBooks":
+			return random -> {
+				Set<BookCopy> copies = nextCopies(random, popularity, orderSize);
+				copies.add(new BookCopy(1, 1));
+				bookStore.buyBooks(copies);
+			};
+
+		case "addCopies":
+			return random -> stockManager.addCopies(nextCopies(random, popularity, orderSize));
+
+		case "updateEditorPicks":
+			return random -> {
+				Set<BookEditorPick> editorPicks = new HashSet<>();
+
+				for (int isbn : nextIsbns(random, popularity, orderSize)) {
+					editorPicks.add(new BookEditorPick(isbn, random.nextBoolean()));
+				}
+
+				stockManager.updateEditorPicks(editorPicks);
+			};
+
+		case "addRemoveBooks":
+			return random -> {
+				int isbn = nextIsbn.incrementAndGet();
+				Set<StockBook> books = new HashSet<>();
+				books.add(new ImmutableStockBook(isbn, "Title " + isbn, "Author " + isbn, 10.0f, 1, 0, 0, 0, false));
+				stockManager.addBooks(books);
+				Set<Integer> isbns = new HashSet<>();
+				isbns.add(isbn);
+				stockManager.removeBooks(isbns);
+			};
+
+		case "mixed":
+			return random -> {
+				if (random.nextDouble() < writeRatio) {
+					bookStore.buyBooks(nextCopies(random, popularity, orderSize));
+				} else {
+					BenchmarkHarness.consume(bookStore.getBooks(nextIsbns(random, popularity, orderSize)));
+				}
+			};
+
+		default:
+			throw new IllegalArgumentException("Unknown operation: " + operation);
+		}
+	}
+
+	/**
+	 * Draws distinct ISBNs by popularity.
+	 *
+	 * @param random
+	 *            the source of randomness
+	 * @param popularity
+	 *            the generator of the popularity ranks
+	 * @param count
+	 *            the number of ISBNs
+	 * @return the ISBNs
+	 */
+	private static Set<Integer> nextIsbns(ThreadLocalRandom random, ZipfianGenerator popularity, int count) {
+		Set<Integer> isbns = new HashSet<>();
+
+		while (isbns.size() < count) {
+			isbns.add(popularity.next(random) + 1);
+		}
+
+		return isbns;
+	}
+
+	/**
+	 * Draws one copy of distinct books by popularity.
+	 *
+	 * @param random
+	 *            the source of randomness
+	 * @param popularity
+	 *            the generator of the popularity ranks
+	 * @param count
+	 *            the number of books
+	 * @return the book copies
+	 */
+	private static Set<BookCopy> nextCopies(ThreadLocalRandom random, ZipfianGenerator popularity, int count) {
+		Set<BookCopy> copies = new HashSet<>();
+
+		for (int isbn : nextIsbns(random, popularity, count)) {
+			copies.add(new BookCopy(isbn, 1));
+		}
+
+		return copies;
+	}
+}
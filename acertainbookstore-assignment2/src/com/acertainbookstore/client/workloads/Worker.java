@@ -0,0 +1,244 @@
+package com.acertainbookstore.client.workloads;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link Worker} runs interactions drawn from the mix of the
+ * {@link WorkloadConfiguration} against the bookstore, in a closed or an open
+ * loop, and measures them once the warm-up is over.
+ */
+public class Worker implements Callable<WorkerRunResult> {
+
+	/** The configuration. */
+	private final WorkloadConfiguration configuration;
+
+	/** The book store. */
+	private final BookStore bookStore;
+
+	/** The stock manager. */
+	private final StockManager stockManager;
+
+	/** The generator of the popularity ranks. */
+	private final ZipfianGenerator popularity;
+
+	/** The ISBNs by popularity rank. */
+	private final int[] isbnsByRank;
+
+	/** The time the run starts, in nanoseconds. */
+	private final long startNanos;
+
+	/**
+	 * Instantiates a new {@link Worker}.
+	 *
+	 * @param configuration
+	 *            the configuration
+	 * @param bookStore
+	 *            the book store
+	 * @param stockManager
+	 *            the stock manager
+	 * @param popularity
+	 *            the generator of the popularity ranks
+	 * @param isbnsByRank
+	 *            the ISBNs by popularity rank
+	 * @param startNanos
+	 *            the time the run starts, in nanoseconds
+	 */
+	public Worker(WorkloadConfiguration configuration, BookStore bookStore, StockManager stockManager,
+			ZipfianGenerator popularity, int[] isbnsByRank, long startNanos) {
+		this.configuration = configuration;
+		this.bookStore = bookStore;
+		this.stockManager = stockManager;
+		this.popularity = popularity;
+		this.isbnsByRank = isbnsByRank;
+		this.startNanos = startNanos;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.util.concurrent.Callable#call()
+	 */
+	@Override
+	public WorkerRunResult call() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		WorkerRunResult result = new WorkerRunResult();
+		long measuredNanos = startNanos + configuration.getWarmupSeconds() * 1_000_000_000L;
+		long endNanos = measuredNanos + configuration.getMeasuredSeconds() * 1_000_000_000L;
+		double meanInterarrivalNanos = configuration.getArrivalRate() > 0
+				? configuration.getNumWorkers() * 1e9 / configuration.getArrivalRate()
+				: 0;
+		long arrivalNanos = startNanos;
+
+		while (true) {
+			if (meanInterarrivalNanos > 0) {
+				// Poisson arrivals; a late worker runs the next interaction at
+				// once but measures it from its scheduled arrival.
+				arrivalNanos += (long) (-Math.log(1 - random.nextDouble()) * meanInterarrivalNanos);
+
+				if (arrivalNanos >= endNanos) {
+					break;
+				}
+
+				if (System.nanoTime() >= endNanos) {
+					result.recordMissedArrivals(countRemainingArrivals(random, arrivalNanos, endNanos,
+							meanInterarrivalNanos));
+					break;
+				}
+
+				long waitNanos;
+
+				while ((waitNanos = arrivalNanos - System.nanoTime()) > 0) {
+					LockSupport.parkNanos(waitNanos);
+				}
+			} else {
+				arrivalNanos = System.nanoTime();
+
+				if (arrivalNanos >= endNanos) {
+					break;
+				}
+			}
+
+			WorkloadInteraction interaction = configuration.nextInteraction(random);
+			boolean successful = run(interaction, random);
+			long latencyNanos = System.nanoTime() - arrivalNanos;
+
+			if (arrivalNanos >= measuredNanos) {
+				result.record(interaction, latencyNanos, successful);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Counts the arrivals scheduled before the end of the run, starting with
+	 * the given one, that the worker has no time left to issue.
+	 *
+	 * @param random
+	 *            the source of randomness
+	 * @param arrivalNanos
+	 *            the first arrival not issued
+	 * @param endNanos
+	 *            the end of the run
+	 * @param meanInterarrivalNanos
+	 *            the mean time between arrivals
+	 * @return the number of missed arrivals
+	 */
+	private static long countRemainingArrivals(ThreadLocalRandom random, long arrivalNanos, long endNanos,
+			double meanInterarrivalNanos) {
+		long count = 0;
+
+		while (arrivalNanos < endNanos) {
+			count++;
+			arrivalNanos += (long) (-Math.log(1 - random.nextDouble()) * meanInterarrivalNanos);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Runs an interaction.
+	 *
+	 * @param interaction
+	 *            the interaction
+	 * @param random
+	 *            the source of randomness
+	 * @return true, if the interaction succeeded
+	 */
+	private boolean run(WorkloadInteraction interaction, ThreadLocalRandom random) {
+		try {
+			switch (interaction) {
+			case BROWSE:
+				bookStore.getEditorPicks(configuration.getNumEditorPicks());
+				break;
+
+			case BUY:
+				buy(random);
+				break;
+
+			case RESTOCK:
+				restock();
+				break;
+
+			case EDITOR:
+				Set<BookEditorPick> editorPicks = new HashSet<>();
+				editorPicks.add(new BookEditorPick(nextIsbn(random), random.nextBoolean()));
+				stockManager.updateEditorPicks(editorPicks);
+				break;
+
+			default:
+				return false;
+			}
+
+			return true;
+		} catch (BookStoreException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Looks up a few popular books and buys a copy of each.
+	 *
+	 * @param random
+	 *            the source of randomness
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private void buy(ThreadLocalRandom random) throws BookStoreException {
+		int booksPerOrder = Math.min(configuration.getBooksPerOrder(), isbnsByRank.length);
+		Set<Integer> isbns = new HashSet<>();
+
+		while (isbns.size() < booksPerOrder) {
+			isbns.add(nextIsbn(random));
+		}
+
+		List<Book> books = bookStore.getBooks(isbns);
+		Set<BookCopy> booksToBuy = books.stream()
+				.map(book -> new BookCopy(book.getISBN(), 1))
+				.collect(Collectors.toSet());
+		bookStore.buyBooks(booksToBuy);
+	}
+
+	/**
+	 * Lists the books and restocks the ones running out of copies.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private void restock() throws BookStoreException {
+		List<StockBook> books = stockManager.getBooks();
+		Set<BookCopy> copiesToAdd = books.stream()
+				.filter(book -> book.getNumCopies() < configuration.getRestockThreshold())
+				.map(book -> new BookCopy(book.getISBN(), configuration.getRestockCopies()))
+				.collect(Collectors.toSet());
+
+		if (!copiesToAdd.isEmpty()) {
+			stockManager.addCopies(copiesToAdd);
+		}
+	}
+
+	/**
+	 * Draws the ISBN of a book by popularity.
+	 *
+	 * @param random
+	 *            the source of randomness
+	 * @return the ISBN
+	 */
+	private int nextIsbn(ThreadLocalRandom random) {
+		return isbnsByRank[popularity.next(random)];
+	}
+}
@@ -0,0 +1,108 @@
+package com.acertainbookstore.client.workloads;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.acertainbookstore.utils.LatencyHistogram;
+
+/**
+ * {@link WorkerRunResult} holds the measurements of the interactions run by
+ * one {@link Worker} after the warm-up, or of all workers once merged.
+ */
+public class WorkerRunResult {
+
+	/** The latencies of the successful interactions, by interaction. */
+	private final Map<WorkloadInteraction, LatencyHistogram> latencies = new EnumMap<>(
+			WorkloadInteraction.class);
+
+	/** The number of failed interactions, by interaction. */
+	private final Map<WorkloadInteraction, Long> failures = new EnumMap<>(WorkloadInteraction.class);
+
+	/** The number of open-loop arrivals that could not be issued in time. */
+	private long missedArrivals = 0;
+
+	/**
+	 * Instantiates a new {@link WorkerRunResult}.
+	 */
+	public WorkerRunResult() {
+		for (WorkloadInteraction interaction : WorkloadInteraction.values()) {
+			latencies.put(interaction, new LatencyHistogram());
+			failures.put(interaction, 0L);
+		}
+	}
+
+	/**
+	 * Records an interaction.
+	 *
+	 * @param interaction
+	 *            the interaction
+	 * @param latencyNanos
+	 *            the latency in nanoseconds
+	 * @param successful
+	 *            whether the interaction succeeded
+	 */
+	public void record(WorkloadInteraction interaction, long latencyNanos, boolean successful) {
+		if (successful) {
+			latencies.get(interaction).record(latencyNanos);
+		} else {
+			failures.merge(interaction, 1L, Long::sum);
+		}
+	}
+
+	/**
+	 * Records open-loop arrivals that could not be issued before the end of
+	 * the run.
+	 *
+	 * @param count
+	 *            the number of missed arrivals
+	 */
+	public void recordMissedArrivals(long count) {
+		missedArrivals += count;
+	}
+
+	/**
+	 * Adds the measurements of another result.
+	 *
+	 * @param other
+	 *            the other result
+	 */
+	public void add(WorkerRunResult other) {
+		for (WorkloadInteraction interaction : WorkloadInteraction.values()) {
+			latencies.get(interaction).add(other.latencies.get(interaction));
+			failures.merge(interaction, other.failures.get(interaction), Long::sum);
+		}
+
+		missedArrivals += other.missedArrivals;
+	}
+
+	/**
+	 * Gets the latencies of the successful runs of an interaction.
+	 *
+	 * @param interaction
+	 *            the interaction
+	 * @return the latency histogram
+	 */
+	public LatencyHistogram getLatencies(WorkloadInteraction interaction) {
+		return latencies.get(interaction);
+	}
+
+	/**
+	 * Gets the number of failed runs of an interaction.
+	 *
+	 * @param interaction
+	 *            the interaction
+	 * @return the number of failures
+	 */
+	public long getFailures(WorkloadInteraction interaction) {
+		return failures.get(interaction);
+	}
+
+	/**
+	 * Gets the number of open-loop arrivals that could not be issued in time.
+	 *
+	 * @return the number of missed arrivals
+	 */
+	public long getMissedArrivals() {
+		return missedArrivals;
+	}
+}
@@ -0,0 +1,314 @@
+package com.acertainbookstore.client.workloads;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * {@link WorkloadConfiguration} holds the parameters of a workload run. The
+ * defaults can be overridden by system properties, e.g.
+ * <code>-Dworkload.workers=50 -Dworkload.rate=2000</code>.
+ *
+ * With a rate of 0 the workers run in a closed loop, each issuing its next
+ * interaction as soon as the previous one completes. With a positive rate
+ * the interactions arrive in an open loop following a Poisson process; the
+ * latency of an interaction is then measured from its scheduled arrival, so
+ * that the time it spent waiting for a busy worker is not omitted.
+ */
+public class WorkloadConfiguration {
+
+	/** The prefix of the system properties. */
+	public static final String PROPERTY_PREFIX = "workload.";
+
+	/** The number of workers. */
+	private int numWorkers = 10;
+
+	/** The total arrival rate per second, 0 for a closed loop. */
+	private double arrivalRate = 0;
+
+	/** The warm-up time in seconds, not measured. */
+	private int warmupSeconds = 5;
+
+	/** The measured time in seconds. */
+	private int measuredSeconds = 20;
+
+	/** The number of books in the store. */
+	private int numBooks = 1000;
+
+	/** The skew of the Zipfian popularity of the books. */
+	private double zipfSkew = 0.99;
+
+	/** The number of copies of every book at the start. */
+	private int initialCopies = 100;
+
+	/** The number of distinct books bought by a customer. */
+	private int booksPerOrder = 3;
+
+	/** The number of editor picks a customer browses. */
+	private int numEditorPicks = 10;
+
+	/** The number of copies below which the stock manager restocks a book. */
+	private int restockThreshold = 20;
+
+	/** The number of copies added to a restocked book. */
+	private int restockCopies = 100;
+
+	/** The weights of the interactions. */
+	private final Map<WorkloadInteraction, Integer> weights = new EnumMap<>(WorkloadInteraction.class);
+
+	/** The server address, used unless the workload runs locally. */
+	private String serverAddress = "http://localhost:8081";
+
+	/**
+	 * Instantiates a new {@link WorkloadConfiguration} with the default
+	 * parameters.
+	 */
+	public WorkloadConfiguration() {
+		weights.put(WorkloadInteraction.BROWSE, 30);
+		weights.put(WorkloadInteraction.BUY, 55);
+		weights.put(WorkloadInteraction.RESTOCK, 10);
+		weights.put(WorkloadInteraction.EDITOR, 5);
+	}
+
+	/**
+	 * Creates a configuration from the defaults overridden by the system
+	 * properties.
+	 *
+	 * @return the workload configuration
+	 */
+	public static WorkloadConfiguration fromSystemProperties() {
+		WorkloadConfiguration configuration = new WorkloadConfiguration();
+		configuration.numWorkers = Integer.getInteger(PROPERTY_PREFIX + "workers", configuration.numWorkers);
+		configuration.arrivalRate = getDouble("rate", configuration.arrivalRate);
+		configuration.warmupSeconds = Integer.getInteger(PROPERTY_PREFIX + "warmup", configuration.warmupSeconds);
+		configuration.measuredSeconds = Integer.getInteger(PROPERTY_PREFIX + "seconds",
+				configuration.measuredSeconds);
+		configuration.numBooks = Integer.getInteger(PROPERTY_PREFIX + "books", configuration.numBooks);
+		configuration.zipfSkew = getDouble("skew", configuration.zipfSkew);
+		configuration.initialCopies = Integer.getInteger(PROPERTY_PREFIX + "copies", configuration.initialCopies);
+		configuration.serverAddress = System.getProperty(PROPERTY_PREFIX + "server", configuration.serverAddress);
+
+		for (WorkloadInteraction interaction : WorkloadInteraction.values()) {
+			String key = PROPERTY_PREFIX + interaction.name().toLowerCase();
+			configuration.weights.put(interaction, Integer.getInteger(key, configuration.weights.get(interaction)));
+		}
+
+		return configuration;
+	}
+
+	/**
+	 * Gets a double system property.
+	 *
+	 * @param name
+	 *            the name of the property without the prefix
+	 * @param defaultValue
+	 *            the default value
+	 * @return the value
+	 */
+	private static double getDouble(String name, double defaultValue) {
+		String value = System.getProperty(PROPERTY_PREFIX + name);
+		return value == null ? defaultValue : Double.parseDouble(value);
+	}
+
+	/**
+	 * Draws the next interaction according to the weights.
+	 *
+	 * @param random
+	 *            the source of randomness
+	 * @return the interaction
+	 */
+	public WorkloadInteraction nextInteraction(Random random) {
+		int totalWeight = weights.values().stream().mapToInt(Integer::intValue).sum();
+		int draw = random.nextInt(totalWeight);
+
+		for (Map.Entry<WorkloadInteraction, Integer> weight : weights.entrySet()) {
+			draw -= weight.getValue();
+
+			if (draw < 0) {
+				return weight.getKey();
+			}
+		}
+
+		throw new IllegalStateException("No interaction has a positive weight");
+	}
+
+	/**
+	 * Sets the weight of an interaction.
+	 *
+	 * @param interaction
+	 *            the interaction
+	 * @param weight
+	 *            the weight, 0 to disable the interaction
+	 */
+	public void setWeight(WorkloadInteraction interaction, int weight) {
+		weights.put(interaction, weight);
+	}
+
+	/**
+	 * Gets the number of workers.
+	 *
+	 * @return the number of workers
+	 */
+	public int getNumWorkers() {
+		return numWorkers;
+	}
+
+	/**
+	 * Sets the number of workers.
+	 *
+	 * @param numWorkers
+	 *            the new number of workers
+	 */
+	public void setNumWorkers(int numWorkers) {
+		this.numWorkers = numWorkers;
+	}
+
+	/**
+	 * Gets the total arrival rate per second.
+	 *
+	 * @return the arrival rate, 0 for a closed loop
+	 */
+	public double getArrivalRate() {
+		return arrivalRate;
+	}
+
+	/**
+	 * Sets the total arrival rate per second.
+	 *
+	 * @param arrivalRate
+	 *            the new arrival rate, 0 for a closed loop
+	 */
+	public void setArrivalRate(double arrivalRate) {
+		this.arrivalRate = arrivalRate;
+	}
+
+	/**
+	 * Gets the warm-up time.
+	 *
+	 * @return the warm-up time in seconds
+	 */
+	public int getWarmupSeconds() {
+		return warmupSeconds;
+	}
+
+	/**
+	 * Sets the warm-up time.
+	 *
+	 * @param warmupSeconds
+	 *            the new warm-up time in seconds
+	 */
+	public void setWarmupSeconds(int warmupSeconds) {
+		this.warmupSeconds = warmupSeconds;
+	}
+
+	/**
+	 * Gets the measured time.
+	 *
+	 * @return the measured time in seconds
+	 */
+	public int getMeasuredSeconds() {
+		return measuredSeconds;
+	}
+
+	/**
+	 * Sets the measured time.
+	 *
+	 * @param measuredSeconds
+	 *            the new measured time in seconds
+	 */
+	public void setMeasuredSeconds(int measuredSeconds) {
+		this.measuredSeconds = measuredSeconds;
+	}
+
+	/**
+	 * Gets the number of books.
+	 *
+	 * @return the number of books
+	 */
+	public int getNumBooks() {
+		return numBooks;
+	}
+
+	/**
+	 * Sets the number of books.
+	 *
+	 * @param numBooks
+	 *            the new number of books
+	 */
+	public void setNumBooks(int numBooks) {
+		this.numBooks = numBooks;
+	}
+
+	/**
+	 * Gets the Zipfian skew.
+	 *
+	 * @return the skew
+	 */
+	public double getZipfSkew() {
+		return zipfSkew;
+	}
+
+	/**
+	 * Sets the Zipfian skew.
+	 *
+	 * @param zipfSkew
+	 *            the new skew
+	 */
+	public void setZipfSkew(double zipfSkew) {
+		this.zipfSkew = zipfSkew;
+	}
+
+	/**
+	 * Gets the initial number of copies of every book.
+	 *
+	 * @return the initial copies
+	 */
+	public int getInitialCopies() {
+		return initialCopies;
+	}
+
+	/**
+	 * Gets the number of distinct books bought by a customer.
+	 *
+	 * @return the books per order
+	 */
+	public int getBooksPerOrder() {
+		return booksPerOrder;
+	}
+
+	/**
+	 * Gets the number of editor picks a customer browses.
+	 *
+	 * @return the number of editor picks
+	 */
+	public int getNumEditorPicks() {
+		return numEditorPicks;
+	}
+
+	/**
+	 * Gets the number of copies below which a book is restocked.
+	 *
+	 * @return the restock threshold
+	 */
+	public int getRestockThreshold() {
+		return restockThreshold;
+	}
+
+	/**
+	 * Gets the number of copies added to a restocked book.
+	 *
+	 * @return the restock copies
+	 */
+	public int getRestockCopies() {
+		return restockCopies;
+	}
+
+	/**
+	 * Gets the server address.
+	 *
+	 * @return the server address
+	 */
+	public String getServerAddress() {
+		return serverAddress;
+	}
+}
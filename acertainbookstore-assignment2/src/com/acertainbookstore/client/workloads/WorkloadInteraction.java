@@ -0,0 +1,20 @@
+package com.acertainbookstore.client.workloads;
+
+/**
+ * {@link WorkloadInteraction} lists the interactions a {@link Worker} runs
+ * against the bookstore.
+ */
+public enum WorkloadInteraction {
+
+	/** A customer browsing the editor picks. */
+	BROWSE,
+
+	/** A customer looking up popular books and buying them. */
+	BUY,
+
+	/** The stock manager listing the books and restocking the scarce ones. */
+	RESTOCK,
+
+	/** An editor changing whether a book is an editor pick. */
+	EDITOR;
+}
@@ -0,0 +1,70 @@
+package com.acertainbookstore.client.workloads;
+
+import java.util.Random;
+
+/**
+ * {@link ZipfianGenerator} draws ranks between 0 and n - 1 following a
+ * Zipfian distribution: rank k is drawn with a probability proportional to
+ * 1 / (k + 1)^skew. A skew of 0 is uniform; around 1 a few ranks get most of
+ * the draws, as with the best sellers of a bookstore.
+ *
+ * The cumulative distribution is computed once, so a draw is a binary search.
+ * The generator is immutable and can be shared by threads that bring their
+ * own {@link Random}.
+ */
+public class ZipfianGenerator {
+
+	/** The cumulative probabilities by rank. */
+	private final double[] cumulativeProbabilities;
+
+	/**
+	 * Instantiates a new {@link ZipfianGenerator}.
+	 *
+	 * @param n
+	 *            the number of ranks
+	 * @param skew
+	 *            the skew, at least 0
+	 */
+	public ZipfianGenerator(int n, double skew) {
+		if (n <= 0 || skew < 0) {
+			throw new IllegalArgumentException("n = " + n + ", skew = " + skew);
+		}
+
+		cumulativeProbabilities = new double[n];
+		double total = 0;
+
+		for (int k = 0; k < n; k++) {
+			total += 1 / Math.pow(k + 1, skew);
+			cumulativeProbabilities[k] = total;
+		}
+
+		for (int k = 0; k < n; k++) {
+			cumulativeProbabilities[k] /= total;
+		}
+	}
+
+	/**
+	 * Draws a rank.
+	 *
+	 * @param random
+	 *            the source of randomness
+	 * @return the rank, between 0 and n - 1
+	 */
+	public int next(Random random) {
+		double u = random.nextDouble();
+		int low = 0;
+		int high = cumulativeProbabilities.length - 1;
+
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+
+			if (cumulativeProbabilities[middle] < u) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+
+		return low;
+	}
+}
@@ -0,0 +1,17 @@
+package com.acertainbookstore.interfaces;
+
+import com.acertainbookstore.business.BookStoreLockStats;
+
+/**
+ * {@link LockMonitored} declares the lock contention metrics of a store, which
+ * the server exposes next to its request metrics.
+ */
+public interface LockMonitored {
+
+	/**
+	 * Gets the lock contention metrics.
+	 *
+	 * @return the lock contention metrics
+	 */
+	public BookStoreLockStats getLockStats();
+}
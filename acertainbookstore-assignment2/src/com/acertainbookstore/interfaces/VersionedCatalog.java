@@ -0,0 +1,36 @@
+package com.acertainbookstore.interfaces;
+
+import java.util.List;
+import java.util.Set;
+
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.VersionedBook;
+
+/**
+ * {@link VersionedCatalog} declares the catalog version of a store and the
+ * versions of its books, which let the server tell clients whether a response
+ * or a book they already have is still current.
+ */
+public interface VersionedCatalog {
+
+	/**
+	 * Gets the catalog version. The version changes whenever a book in the
+	 * store is added, removed or modified.
+	 *
+	 * @return the catalog version
+	 */
+	public long getCatalogVersion();
+
+	/**
+	 * Gets books together with their versions. The store issues the version
+	 * of a book and changes it whenever the book is modified; a book removed
+	 * and added again never gets a version it had before.
+	 *
+	 * @param isbnSet
+	 *            the ISBN set
+	 * @return the versioned books
+	 * @throws BookStoreException
+	 *             if an ISBN is invalid or not in the store
+	 */
+	public List<VersionedBook> getVersionedBooks(Set<Integer> isbnSet) throws BookStoreException;
+}
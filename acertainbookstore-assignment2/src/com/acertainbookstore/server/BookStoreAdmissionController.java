@@ -0,0 +1,306 @@
+package com.acertainbookstore.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.acertainbookstore.utils.BookStoreMessageTag;
+
+/**
+ * {@link BookStoreAdmissionController} is the adaptive concurrency limiter of
+ * the {@link BookStoreHTTPMessageHandler}. Every admitted request holds a
+ * cost in units of the limit until it completes, by message tag: a listBooks
+ * that scans and serializes the whole catalog costs more than a purchase. A
+ * request that does not fit under the limit is rejected right away, so that
+ * the server answers it with 503 Service Unavailable instead of queueing it.
+ *
+ * The limit adapts with AIMD on the measured latency. Each message tag keeps
+ * a baseline latency that follows drops quickly and rises slowly. A request
+ * that took more than {@link #LATENCY_TOLERANCE} times its baseline signals
+ * queueing and decreases the limit multiplicatively, at most once per limit's
+ * worth of completions; otherwise the limit grows by about one unit per limit's
+ * worth of completions while it is in use.
+ */
+public class BookStoreAdmissionController {
+
+	/** The initial limit. */
+	public static final int DEFAULT_INITIAL_LIMIT = 20;
+
+	/** The minimum limit. */
+	public static final int DEFAULT_MIN_LIMIT = 2;
+
+	/** The maximum limit. */
+	public static final int DEFAULT_MAX_LIMIT = 500;
+
+	/** The factor of the baseline above which a latency signals queueing. */
+	private static final double LATENCY_TOLERANCE = 2.0;
+
+	/** The latency under which requests never decrease the limit. */
+	private static final long MIN_CONGESTED_LATENCY_NANOS = 1000000;
+
+	/** The factor applied to the limit on congestion. */
+	private static final double DECREASE_FACTOR = 0.9;
+
+	/** The weight of a latency lower than the baseline. */
+	private static final double BASELINE_DOWN_WEIGHT = 0.1;
+
+	/** The weight of a latency higher than the baseline. */
+	private static final double BASELINE_UP_WEIGHT = 0.001;
+
+	/** The minimum limit. */
+	private final int minLimit;
+
+	/** The maximum limit. */
+	private final int maxLimit;
+
+	/** The cost of the admitted requests still in flight. */
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/** The number of admitted requests by message tag. */
+	private final LongAdder[] admitted = new LongAdder[BookStoreMessageTag.values().length];
+
+	/** The number of rejected requests by message tag. */
+	private final LongAdder[] rejected = new LongAdder[BookStoreMessageTag.values().length];
+
+	/** The baseline latency in nanoseconds by message tag, 0 until sampled. */
+	private final double[] baselines = new double[BookStoreMessageTag.values().length];
+
+	/**
+	 * The lock of the baselines and the limit; a java.util.concurrent lock, so
+	 * that a waiting virtual thread does not pin its carrier thread.
+	 */
+	private final ReentrantLock adaptLock = new ReentrantLock();
+
+	/** The limit, updated under {@link #adaptLock}. */
+	private volatile double limit;
+
+	/** The completions since the last decrease. */
+	private int completionsSinceDecrease = 0;
+
+	/**
+	 * Instantiates a new {@link BookStoreAdmissionController} with the
+	 * default limits.
+	 */
+	public BookStoreAdmissionController() {
+		this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreAdmissionController}.
+	 *
+	 * @param initialLimit
+	 *            the initial limit
+	 * @param minLimit
+	 *            the minimum limit
+	 * @param maxLimit
+	 *            the maximum limit
+	 */
+	public BookStoreAdmissionController(int initialLimit, int minLimit, int maxLimit) {
+		this.limit = initialLimit;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+
+		for (int i = 0; i < admitted.length; i++) {
+			admitted[i] = new LongAdder();
+			rejected[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Gets the cost of a request in units of the limit.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @return the cost
+	 */
+	public static int getCost(BookStoreMessageTag messageTag) {
+		switch (messageTag) {
+		case LISTBOOKS:
+			return 5;
+
+		case BATCH:
+		case ADDBOOKS:
+		case REMOVEALLBOOKS:
+			return 2;
+
+		default:
+			return 1;
+		}
+	}
+
+	/**
+	 * Admits a request if its cost fits under the limit. A request is always
+	 * admitted when nothing is in flight, so that a request costing more than
+	 * the limit is not starved.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @return the admission time to pass to {@link #release}, or -1 if the
+	 *         request is rejected
+	 */
+	public long tryAcquire(BookStoreMessageTag messageTag) {
+		int cost = getCost(messageTag);
+
+		while (true) {
+			int current = inFlight.get();
+
+			if (current > 0 && current + cost > limit) {
+				rejected[messageTag.ordinal()].increment();
+				return -1;
+			}
+
+			if (inFlight.compareAndSet(current, current + cost)) {
+				admitted[messageTag.ordinal()].increment();
+				return System.nanoTime();
+			}
+		}
+	}
+
+	/**
+	 * Releases an admitted request that completed and adapts the limit to its
+	 * latency.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @param admittedAt
+	 *            the admission time returned by {@link #tryAcquire}
+	 */
+	public void release(BookStoreMessageTag messageTag, long admittedAt) {
+		int cost = getCost(messageTag);
+		long latencyNanos = System.nanoTime() - admittedAt;
+		int used = inFlight.getAndAdd(-cost);
+
+		adaptLock.lock();
+		try {
+			int tag = messageTag.ordinal();
+			double baseline = baselines[tag];
+
+			if (baseline == 0) {
+				baselines[tag] = latencyNanos;
+				return;
+			}
+
+			boolean congested = latencyNanos > MIN_CONGESTED_LATENCY_NANOS
+					&& latencyNanos > baseline * LATENCY_TOLERANCE;
+			baselines[tag] = baseline + (latencyNanos - baseline)
+					* (latencyNanos < baseline ? BASELINE_DOWN_WEIGHT : BASELINE_UP_WEIGHT);
+			completionsSinceDecrease++;
+
+			if (congested) {
+				if (completionsSinceDecrease >= limit) {
+					limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+					completionsSinceDecrease = 0;
+				}
+			} else if (used * 2 >= limit) {
+				limit = Math.min(maxLimit, limit + (double) cost / limit);
+			}
+		} finally {
+			adaptLock.unlock();
+		}
+	}
+
+	/**
+	 * Releases an admitted request that was dropped before completing,
+	 * without adapting the limit.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 */
+	public void abandon(BookStoreMessageTag messageTag) {
+		inFlight.addAndGet(-getCost(messageTag));
+	}
+
+	/**
+	 * Gets the limit.
+	 *
+	 * @return the limit
+	 */
+	public double getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Gets the cost of the admitted requests still in flight.
+	 *
+	 * @return the cost in flight
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Gets the number of admitted requests with the message tag.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @return the number of admitted requests
+	 */
+	public long getAdmittedCount(BookStoreMessageTag messageTag) {
+		return admitted[messageTag.ordinal()].sum();
+	}
+
+	/**
+	 * Gets the number of rejected requests with the message tag.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @return the number of rejected requests
+	 */
+	public long getRejectedCount(BookStoreMessageTag messageTag) {
+		return rejected[messageTag.ordinal()].sum();
+	}
+
+	/**
+	 * Renders the limit, the cost in flight and the admissions and rejections
+	 * of the message tags that had requests as JSON.
+	 *
+	 * @return the JSON object
+	 */
+	public String toJson() {
+		StringBuilder json = new StringBuilder("{\"limit\":").append(Math.round(limit * 100) / 100.0)
+				.append(",\"inFlight\":").append(getInFlight()).append(",\"operations\":{");
+		String separator = "";
+
+		for (BookStoreMessageTag messageTag : BookStoreMessageTag.values()) {
+			long admittedCount = getAdmittedCount(messageTag);
+			long rejectedCount = getRejectedCount(messageTag);
+
+			if (admittedCount + rejectedCount > 0) {
+				json.append(separator).append('"').append(messageTag).append("\":{\"admitted\":")
+						.append(admittedCount).append(",\"rejected\":").append(rejectedCount).append('}');
+				separator = ",";
+			}
+		}
+
+		return json.append("}}").toString();
+	}
+
+	/**
+	 * Renders the limit, the cost in flight and the rejections in the
+	 * Prometheus text exposition format.
+	 *
+	 * @return the metrics
+	 */
+	public String toPrometheus() {
+		StringBuilder metrics = new StringBuilder(
+				"# HELP bookstore_admission_limit The adaptive concurrency limit.\n"
+						+ "# TYPE bookstore_admission_limit gauge\n")
+				.append("bookstore_admission_limit ").append(limit).append('\n')
+				.append("# HELP bookstore_admission_in_flight The cost of the admitted requests in flight.\n"
+						+ "# TYPE bookstore_admission_in_flight gauge\n")
+				.append("bookstore_admission_in_flight ").append(getInFlight()).append('\n')
+				.append("# HELP bookstore_admission_rejected_total The requests rejected by the limit.\n"
+						+ "# TYPE bookstore_admission_rejected_total counter\n");
+
+		for (BookStoreMessageTag messageTag : BookStoreMessageTag.values()) {
+			long rejectedCount = getRejectedCount(messageTag);
+
+			if (rejectedCount > 0) {
+				metrics.append("bookstore_admission_rejected_total{operation=\"").append(messageTag).append("\"} ")
+						.append(rejectedCount).append('\n');
+			}
+		}
+
+		return metrics.toString();
+	}
+}
@@ -0,0 +1,318 @@
+package com.acertainbookstore.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreCatalogChanges;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link BookStoreChangeLog} is the mutation stream a primary serves to its
+ * read-only replicas. After every write the {@link BookStoreHTTPMessageHandler}
+ * records the ISBNs it touched; the log reads their state back from the store
+ * and appends it under the next sequence number. A write removing all books
+ * is recorded as a reset to the whole catalog read back from the store.
+ *
+ * The books are read outside the lock of the log, so that a slow read does not
+ * hold up the other writes, and records of the same book may thus finish
+ * their reads out of order. Each record takes a ticket before it reads, and
+ * the state of a book is only appended if no record with a later ticket has
+ * appended it yet: the record of the last write of a book takes its ticket
+ * after that write, so its state is the latest and is never dropped. A later
+ * change of a book thus never carries an older state than an earlier one, and
+ * replicas converge by applying the latest state of every book they are told
+ * about.
+ *
+ * The log keeps the last {@link #DEFAULT_CAPACITY} book changes. A replica
+ * that fell further behind, or that follows a log of another epoch, gets the
+ * whole catalog instead.
+ */
+public class BookStoreChangeLog {
+
+	/** The default number of book changes kept. */
+	public static final int DEFAULT_CAPACITY = 100000;
+
+	/** The ISBN of the change removing all books. */
+	private static final int ALL_BOOKS = -1;
+
+	/** The stock manager the changed books are read from. */
+	private final StockManager stockManager;
+
+	/** The number of book changes kept. */
+	private final int capacity;
+
+	/**
+	 * The epoch of the log, random so that the positions of a replica never
+	 * match a log restarted since.
+	 */
+	private final long epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+
+	/** The changes in sequence order, guarded by the lock of this object. */
+	private final ArrayDeque<Change> changes = new ArrayDeque<>();
+
+	/** The sequence number of the last change. */
+	private long sequence = 0;
+
+	/** The sequence number of the last change dropped from the log. */
+	private long truncatedSequence = 0;
+
+	/** The last ticket taken by a record. */
+	private long ticket = 0;
+
+	/** The ticket of the last reset; the records of older tickets are dropped. */
+	private long resetTicket = 0;
+
+	/** The ticket of the record that appended each book since the last reset. */
+	private final Map<Integer, Long> bookTickets = new HashMap<>();
+
+	/**
+	 * Instantiates a new {@link BookStoreChangeLog} keeping the default
+	 * number of changes.
+	 *
+	 * @param stockManager
+	 *            the stock manager the changed books are read from
+	 */
+	public BookStoreChangeLog(StockManager stockManager) {
+		this(stockManager, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreChangeLog}.
+	 *
+	 * @param stockManager
+	 *            the stock manager the changed books are read from
+	 * @param capacity
+	 *            the number of book changes kept
+	 */
+	public BookStoreChangeLog(StockManager stockManager, int capacity) {
+		this.stockManager = stockManager;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Records a write that may have changed the books with the ISBNs. Books
+	 * that are no longer in the store are recorded as removed. The books are
+	 * read without holding the lock of the log.
+	 *
+	 * @param isbns
+	 *            the ISBNs of the books
+	 */
+	public void recordChanged(Collection<Integer> isbns) {
+		if (isbns.isEmpty()) {
+			return;
+		}
+
+		long recordTicket;
+
+		synchronized (this) {
+			recordTicket = ++ticket;
+		}
+
+		Map<Integer, StockBook> books = new HashMap<>();
+
+		try {
+			for (StockBook book : stockManager.getBooksByISBN(new HashSet<>(isbns))) {
+				books.put(book.getISBN(), book);
+			}
+		} catch (BookStoreException ex) {
+			// Some of the books are gone, so read them one by one.
+			for (Integer isbn : isbns) {
+				try {
+					books.put(isbn, stockManager.getBooksByISBN(Collections.singleton(isbn)).get(0));
+				} catch (BookStoreException notAvailable) {
+					books.put(isbn, null);
+				}
+			}
+		}
+
+		appendBooks(recordTicket, books);
+	}
+
+	/**
+	 * Records a write that may have changed any book, such as removing all
+	 * books, as a reset to the books now in the store. The books are read
+	 * under the lock of the log, so that no record appends an older state of a
+	 * book after the reset. If the books cannot be read, the log is dropped,
+	 * so that every replica gets the whole catalog instead.
+	 */
+	public synchronized void recordReset() {
+		resetTicket = ++ticket;
+		bookTickets.clear();
+		sequence++;
+
+		List<StockBook> books;
+
+		try {
+			books = stockManager.getBooks();
+		} catch (BookStoreException ex) {
+			changes.clear();
+			truncatedSequence = sequence;
+			return;
+		}
+
+		append(new Change(sequence, ALL_BOOKS, null));
+
+		for (StockBook book : books) {
+			bookTickets.put(book.getISBN(), resetTicket);
+			append(new Change(sequence, book.getISBN(), book));
+		}
+	}
+
+	/**
+	 * Gets the changes since the position of a replica, the whole catalog if
+	 * the log no longer has them. Every book appears once, in its latest
+	 * state.
+	 *
+	 * @param position
+	 *            the position of the replica
+	 * @return the changes
+	 * @throws BookStoreException
+	 *             if the catalog could not be read
+	 */
+	public synchronized BookStoreCatalogChanges getChangesSince(BookStoreCatalogChanges position)
+			throws BookStoreException {
+		long since = position.getSequence();
+
+		if (position.getEpoch() != epoch || since < truncatedSequence || since > sequence) {
+			return new BookStoreCatalogChanges(epoch, sequence, true, stockManager.getBooks(),
+					Collections.emptySet());
+		}
+
+		Map<Integer, StockBook> changedBooks = new HashMap<>();
+		Set<Integer> removedISBNs = new HashSet<>();
+		boolean reset = false;
+		Iterator<Change> iterator = changes.descendingIterator();
+		List<Change> newChanges = new ArrayList<>();
+
+		while (iterator.hasNext()) {
+			Change change = iterator.next();
+
+			if (change.sequence <= since) {
+				break;
+			}
+
+			newChanges.add(change);
+		}
+
+		for (int i = newChanges.size() - 1; i >= 0; i--) {
+			Change change = newChanges.get(i);
+
+			if (change.isbn == ALL_BOOKS) {
+				// Only the books added after removing all books are left.
+				changedBooks.clear();
+				removedISBNs.clear();
+				reset = true;
+			} else if (change.book == null) {
+				changedBooks.remove(change.isbn);
+				removedISBNs.add(change.isbn);
+			} else {
+				changedBooks.put(change.isbn, change.book);
+				removedISBNs.remove(change.isbn);
+			}
+		}
+
+		return new BookStoreCatalogChanges(epoch, sequence, reset, new ArrayList<>(changedBooks.values()),
+				reset ? Collections.emptySet() : removedISBNs);
+	}
+
+	/**
+	 * Gets the epoch of the log.
+	 *
+	 * @return the epoch
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Gets the sequence number of the last change.
+	 *
+	 * @return the sequence number
+	 */
+	public synchronized long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Appends the books read by a record under the next sequence number,
+	 * except those a record with a later ticket has appended already.
+	 *
+	 * @param recordTicket
+	 *            the ticket of the record
+	 * @param books
+	 *            the books by ISBN, null if removed
+	 */
+	private synchronized void appendBooks(long recordTicket, Map<Integer, StockBook> books) {
+		if (recordTicket < resetTicket) {
+			return;
+		}
+
+		sequence++;
+
+		for (Map.Entry<Integer, StockBook> book : books.entrySet()) {
+			Long bookTicket = bookTickets.get(book.getKey());
+
+			if (bookTicket == null || bookTicket < recordTicket) {
+				bookTickets.put(book.getKey(), recordTicket);
+				append(new Change(sequence, book.getKey(), book.getValue()));
+			}
+		}
+	}
+
+	/**
+	 * Appends a change, dropping the oldest one if the log is full.
+	 *
+	 * @param change
+	 *            the change
+	 */
+	private void append(Change change) {
+		changes.addLast(change);
+
+		if (changes.size() > capacity) {
+			truncatedSequence = changes.removeFirst().sequence;
+		}
+	}
+
+	/**
+	 * {@link Change} is the change of one book, or the removal of all books
+	 * ahead of the changes of the books left.
+	 */
+	private static final class Change {
+
+		/** The sequence number. */
+		private final long sequence;
+
+		/** The ISBN, {@link BookStoreChangeLog#ALL_BOOKS} for all books. */
+		private final int isbn;
+
+		/** The state of the book, null if it was removed. */
+		private final StockBook book;
+
+		/**
+		 * Instantiates a new {@link Change}.
+		 *
+		 * @param sequence
+		 *            the sequence number
+		 * @param isbn
+		 *            the ISBN
+		 * @param book
+		 *            the state of the book, null if it was removed
+		 */
+		private Change(long sequence, int isbn, StockBook book) {
+			this.sequence = sequence;
+			this.isbn = isbn;
+			this.book = book;
+		}
+	}
+}
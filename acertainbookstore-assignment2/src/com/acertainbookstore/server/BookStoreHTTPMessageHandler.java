@@ -1,14 +1,37 @@
 package com.acertainbookstore.server;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
@@ -18,13 +41,20 @@ import com.acertainbookstore.business.StockBook;
 import com.acertainbookstore.utils.BookStoreKryoSerializer;
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.BookStoreSerializer;
+import com.acertainbookstore.interfaces.LockMonitored;
 import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.interfaces.VersionedCatalog;
+import com.acertainbookstore.server.BookStoreTrafficScheduler.TrafficClass;
 import com.acertainbookstore.utils.BookStoreXStreamSerializer;
+import com.acertainbookstore.utils.BookStoreBatchOperation;
+import com.acertainbookstore.utils.BookStoreCatalogChanges;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreMessageTag;
 import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreTracer;
 import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.VersionedBook;
 import com.esotericsoftware.kryo.io.Input;
 
 /**
@@ -33,6 +63,22 @@ import com.esotericsoftware.kryo.io.Input;
  * {@link BookStoreHTTPServerUtility}. It decodes the HTTP message and invokes
  * the {@link CertainBookStore} server API.
  * 
+ * When constructed with a store executor the handler runs in asynchronous
+ * mode: request bodies are read and responses written with the Servlet 3.1
+ * non-blocking I/O listeners, and the store operations are dispatched to the
+ * executor, so that slow clients do not pin the Jetty pool threads. With a
+ * {@link BookStoreTrafficScheduler} instead of a single executor, each
+ * traffic class runs on its own executor and requests beyond its queue limit
+ * are answered with 503 Service Unavailable.
+ * 
+ * With a {@link BookStoreAdmissionController}, requests over its adaptive
+ * concurrency limit are answered right away with 503 Service Unavailable and
+ * a Retry-After header, in every mode.
+ * 
+ * With a {@link BookStoreChangeLog}, the handler records the books touched by
+ * every write and serves them to the read-only replicas pulling
+ * {@link BookStoreMessageTag#GETCHANGES}.
+ * 
  * @see AbstractHandler
  * @see BookStoreHTTPServerUtility
  * @see CertainBookStore
@@ -44,19 +90,91 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	/** The stock manager. */
 	private StockManager stockManager = null;
 
+	/** The executor running the store operations in asynchronous mode. */
+	private ExecutorService storeExecutor = null;
+
+	/** The scheduler running the store operations by traffic class. */
+	private BookStoreTrafficScheduler trafficScheduler = null;
+
+	/** The admission controller, null to admit all requests. */
+	private volatile BookStoreAdmissionController admissionController = null;
+
+	/** The change log served to the replicas, null if not recorded. */
+	private volatile BookStoreChangeLog changeLog = null;
+
 	/** The serializer. */
 	private static ThreadLocal<BookStoreSerializer> serializer;
 
+	/**
+	 * The random prefix of the entity tags, so that tags issued before a
+	 * server restart never match the catalog versions after it.
+	 */
+	private final String entityTagPrefix = Long.toHexString(ThreadLocalRandom.current().nextLong());
+
+	/** The reads in flight, by read key. */
+	private final ConcurrentHashMap<ReadKey, CompletableFuture<byte[]>> inFlightReads = new ConcurrentHashMap<>();
+
+	/** The number of reads served by joining an identical read in flight. */
+	private final LongAdder coalescedReads = new LongAdder();
+
+	/** The request metrics. */
+	private final BookStoreRequestStats requestStats = new BookStoreRequestStats();
+
 	/**
 	 * Instantiates a new {@link BookStoreHTTPMessageHandler}.
 	 *
 	 * @param bookStore
 	 *            the book store
+	 * @param stockManager
+	 *            the stock manager
 	 */
 	public BookStoreHTTPMessageHandler(BookStore bookStore, StockManager stockManager) {
+		this(bookStore, stockManager, (ExecutorService) null);
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreHTTPMessageHandler}, which runs in
+	 * asynchronous mode if <code>storeExecutor</code> is not null.
+	 *
+	 * @param bookStore
+	 *            the book store
+	 * @param stockManager
+	 *            the stock manager
+	 * @param storeExecutor
+	 *            the executor running the store operations, or null to
+	 *            handle the requests on the Jetty pool threads
+	 */
+	public BookStoreHTTPMessageHandler(BookStore bookStore, StockManager stockManager, ExecutorService storeExecutor) {
 		this.bookStore = bookStore;
 		this.stockManager = stockManager;
+		this.storeExecutor = storeExecutor;
+		initSerializer();
+	}
 
+	/**
+	 * Instantiates a new {@link BookStoreHTTPMessageHandler} in asynchronous
+	 * mode, running the store operations on the executor of their traffic
+	 * class.
+	 *
+	 * @param bookStore
+	 *            the book store
+	 * @param stockManager
+	 *            the stock manager
+	 * @param trafficScheduler
+	 *            the scheduler running the store operations
+	 */
+	public BookStoreHTTPMessageHandler(BookStore bookStore, StockManager stockManager,
+			BookStoreTrafficScheduler trafficScheduler) {
+		this.bookStore = bookStore;
+		this.stockManager = stockManager;
+		this.trafficScheduler = trafficScheduler;
+		initSerializer();
+	}
+
+	/**
+	 * Sets up the type of serializer.
+	 */
+	private static void initSerializer() {
 		// Setup the type of serializer.
 		if (BookStoreConstants.BINARY_SERIALIZATION) {
 			serializer = ThreadLocal.withInitial(BookStoreKryoSerializer::new);
@@ -76,6 +194,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			throws IOException, ServletException {
 		BookStoreMessageTag messageTag;
 		String requestURI;
+		boolean stockRequest = false;
 
 		response.setStatus(HttpServletResponse.SC_OK);
 		requestURI = request.getRequestURI();
@@ -84,59 +203,57 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		if (!BookStoreUtility.isEmpty(requestURI) && requestURI.toLowerCase().startsWith("/stock")) {
 			// The request is from the store manager; more sophisticated.
 			// security features could be added here.
-			messageTag = BookStoreUtility.convertURItoMessageTag(requestURI.substring(6));
-		} else {
-			messageTag = BookStoreUtility.convertURItoMessageTag(requestURI);
+			requestURI = requestURI.substring(6);
+			stockRequest = true;
+		}
+
+		if (BookStoreConstants.STATS_PATH.equalsIgnoreCase(requestURI)) {
+			writeStats(request, response);
+			baseRequest.setHandled(true);
+			return;
+		}
+
+		messageTag = BookStoreUtility.convertURItoMessageTag(requestURI);
+
+		BookStoreAdmissionController admission = admissionController;
+		long admittedAt = 0;
+
+		if (messageTag != null && admission != null) {
+			admittedAt = admission.tryAcquire(messageTag);
+
+			if (admittedAt < 0) {
+				rejectOverloaded(messageTag, response);
+				baseRequest.setHandled(true);
+				return;
+			}
 		}
 
 		// The RequestURI before the switch.
 		if (messageTag == null) {
 			System.err.println("No message tag.");
+		} else if (trafficScheduler != null) {
+			handleAsync(messageTag, request, response,
+					trafficScheduler.getExecutor(TrafficClass.of(messageTag, stockRequest)), admission, admittedAt);
+		} else if (storeExecutor != null) {
+			handleAsync(messageTag, request, response, storeExecutor, admission, admittedAt);
 		} else {
-			switch (messageTag) {
-			case REMOVEBOOKS:
-				removeBooks(request, response);
-				break;
-
-			case REMOVEALLBOOKS:
-				removeAllBooks(response);
-				break;
-
-			case ADDBOOKS:
-				addBooks(request, response);
-				break;
-
-			case ADDCOPIES:
-				addCopies(request, response);
-				break;
-
-			case LISTBOOKS:
-				listBooks(response);
-				break;
-
-			case UPDATEEDITORPICKS:
-				updateEditorPicks(request, response);
-				break;
-
-			case BUYBOOKS:
-				buyBooks(request, response);
-				break;
-
-			case GETBOOKS:
-				getBooks(request, response);
-				break;
-
-			case GETEDITORPICKS:
-				getEditorPicks(request, response);
-				break;
-
-			case GETSTOCKBOOKSBYISBN:
-				getStockBooksByISBN(request, response);
-				break;
-
-			default:
-				System.err.println("Unsupported message tag.");
-				break;
+			try {
+				byte[] serializedRequestContent = null;
+
+				if (request.getContentLength() > 0) {
+					serializedRequestContent = getSerializedRequestContent(request);
+				}
+
+				byte[] serializedResponseContent = processMessage(messageTag, request, response,
+						serializedRequestContent);
+
+				if (serializedResponseContent != null) {
+					response.getOutputStream().write(serializedResponseContent);
+				}
+			} finally {
+				if (admission != null) {
+					admission.release(messageTag, admittedAt);
+				}
 			}
 		}
 
@@ -145,86 +262,467 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	}
 
 	/**
-	 * Gets the stock books by ISBN.
+	 * Handles the request asynchronously. The request content is read with a
+	 * {@link ReadListener}, the store operation runs on the executor and the
+	 * response is written with a {@link WriteListener}. A request rejected by
+	 * the executor is answered with 503 Service Unavailable. The admission of
+	 * the request is released once the store operation completes.
 	 *
+	 * @param messageTag
+	 *            the message tag
 	 * @param request
 	 *            the request
 	 * @param response
 	 *            the response
+	 * @param executor
+	 *            the executor running the store operation
+	 * @param admission
+	 *            the admission controller that admitted the request, may be
+	 *            null
+	 * @param admittedAt
+	 *            the admission time
 	 * @throws IOException
 	 *             Signals that an I/O exception has occurred.
 	 */
-	@SuppressWarnings("unchecked")
-	private void getStockBooksByISBN(HttpServletRequest request, HttpServletResponse response) throws IOException {
-		byte[] serializedRequestContent = getSerializedRequestContent(request);
+	private void handleAsync(BookStoreMessageTag messageTag, HttpServletRequest request, HttpServletResponse response,
+			ExecutorService executor, BookStoreAdmissionController admission, long admittedAt) throws IOException {
+		final AsyncContext asyncContext = request.startAsync();
+		final ServletInputStream in = request.getInputStream();
+		final ByteArrayOutputStream content = new ByteArrayOutputStream();
 
-		Set<Integer> isbnSet = (Set<Integer>) serializer.get().deserialize(serializedRequestContent);
-		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+		in.setReadListener(new ReadListener() {
+			private final byte[] buffer = new byte[4096];
 
-		try {
-			bookStoreResponse.setList(stockManager.getBooksByISBN(isbnSet));
-		} catch (BookStoreException ex) {
-			bookStoreResponse.setException(ex);
+			@Override
+			public void onDataAvailable() throws IOException {
+				while (in.isReady()) {
+					int length = in.read(buffer);
+
+					if (length < 0) {
+						return;
+					}
+
+					content.write(buffer, 0, length);
+				}
+			}
+
+			@Override
+			public void onAllDataRead() {
+				try {
+					executor.execute(() -> {
+						byte[] serializedResponseContent;
+
+						try {
+							serializedResponseContent = processMessage(messageTag, request, response,
+									content.size() > 0 ? content.toByteArray() : null);
+						} catch (IOException | RuntimeException ex) {
+							ex.printStackTrace();
+							response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+							asyncContext.complete();
+							return;
+						} finally {
+							if (admission != null) {
+								admission.release(messageTag, admittedAt);
+							}
+						}
+
+						writeAsync(asyncContext, response, serializedResponseContent);
+					});
+				} catch (RejectedExecutionException ex) {
+					// The queue of the traffic class is full.
+					if (admission != null) {
+						admission.abandon(messageTag);
+					}
+
+					rejectOverloaded(messageTag, response);
+					asyncContext.complete();
+				}
+			}
+
+			@Override
+			public void onError(Throwable ex) {
+				ex.printStackTrace();
+
+				if (admission != null) {
+					admission.abandon(messageTag);
+				}
+
+				asyncContext.complete();
+			}
+		});
+	}
+
+	/**
+	 * Answers a request the server has no capacity for with 503 Service
+	 * Unavailable and a Retry-After header. The request was not executed, so
+	 * the client can safely send it again.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @param response
+	 *            the response
+	 */
+	private void rejectOverloaded(BookStoreMessageTag messageTag, HttpServletResponse response) {
+		requestStats.recordError(messageTag);
+		response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		response.setHeader(HttpHeader.RETRY_AFTER.asString(),
+				Integer.toString(BookStoreConstants.OVERLOAD_RETRY_AFTER_SECONDS));
+	}
+
+	/**
+	 * Writes the serialized response content with a {@link WriteListener} and
+	 * completes the asynchronous request once the content has been flushed.
+	 *
+	 * @param asyncContext
+	 *            the async context
+	 * @param response
+	 *            the response
+	 * @param serializedResponseContent
+	 *            the serialized response content, may be null
+	 */
+	private void writeAsync(AsyncContext asyncContext, HttpServletResponse response, byte[] serializedResponseContent) {
+		if (serializedResponseContent == null) {
+			asyncContext.complete();
+			return;
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		try {
+			final ServletOutputStream out = response.getOutputStream();
+
+			out.setWriteListener(new WriteListener() {
+				private boolean written = false;
+
+				@Override
+				public void onWritePossible() throws IOException {
+					while (out.isReady()) {
+						if (written) {
+							asyncContext.complete();
+							return;
+						}
+
+						written = true;
+						out.write(serializedResponseContent);
+					}
+				}
+
+				@Override
+				public void onError(Throwable ex) {
+					ex.printStackTrace();
+					asyncContext.complete();
+				}
+			});
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			asyncContext.complete();
+		}
 	}
 
 	/**
-	 * Gets the editor picks.
+	 * Executes the message against the store and serializes the response,
+	 * recording the request in the metrics and as a flight recorder event,
+	 * and tracing it under the request ID sent by the client. The response
+	 * echoes the request ID and carries the phase timings in a Server-Timing
+	 * header. Reads of a versioned store are
+	 * tagged with the catalog version, answered
+	 * with 304 Not Modified if the client has the current response, and
+	 * coalesced with the identical reads in flight.
 	 *
+	 * @param messageTag
+	 *            the message tag
 	 * @param request
 	 *            the request
 	 * @param response
 	 *            the response
+	 * @param serializedRequestContent
+	 *            the serialized request content, null if the request has no
+	 *            content
+	 * @return the serialized response content, or null if the message tag is
+	 *         not supported or the client already has the current response
 	 * @throws IOException
 	 *             Signals that an I/O exception has occurred.
 	 */
-	private void getEditorPicks(HttpServletRequest request, HttpServletResponse response) throws IOException {
-		String numBooksString = URLDecoder.decode(request.getParameter(BookStoreConstants.BOOK_NUM_PARAM), StandardCharsets.UTF_8);
-		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+	private byte[] processMessage(BookStoreMessageTag messageTag, HttpServletRequest request,
+			HttpServletResponse response, byte[] serializedRequestContent) throws IOException {
+		long startTime = System.nanoTime();
+		BookStoreRequestEvent event = new BookStoreRequestEvent();
+		event.begin();
+		byte[] serializedResponseContent = null;
+		String requestId = request.getHeader(BookStoreConstants.REQUEST_ID_HEADER);
+		String clientSendTime = request.getHeader(BookStoreConstants.CLIENT_SEND_TIME_HEADER);
 
-		try {
-			int numBooks = BookStoreUtility.convertStringToInt(numBooksString);
-			bookStoreResponse.setList(bookStore.getEditorPicks(numBooks));
-		} catch (BookStoreException ex) {
-			bookStoreResponse.setException(ex);
+		if (requestId == null) {
+			requestId = BookStoreTracer.newRequestId();
+		} else if (clientSendTime != null && BookStoreTracer.isEnabled()) {
+			// Network, Jetty queueing and reading the request content.
+			try {
+				BookStoreTracer.spanSince(requestId, "server.transit", Long.parseLong(clientSendTime), startTime);
+			} catch (NumberFormatException ex) {
+				System.err.println("Invalid client send time.");
+			}
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		response.setHeader(BookStoreConstants.REQUEST_ID_HEADER, requestId);
+
+		try {
+			serializedResponseContent = processVersionedMessage(messageTag, request, response,
+					serializedRequestContent, event);
+			return serializedResponseContent;
+		} catch (IOException | RuntimeException ex) {
+			requestStats.recordError(messageTag);
+			event.result = BookStoreRequestEvent.RESULT_FAILED;
+			throw ex;
+		} finally {
+			long endTime = System.nanoTime();
+			requestStats.recordRequest(messageTag, endTime - startTime);
+			BookStoreTracer.span(requestId, "server.handle", startTime, endTime);
+			response.setHeader(BookStoreConstants.SERVER_TIMING_HEADER, formatServerTiming(event, endTime - startTime));
+			event.end();
+
+			if (event.shouldCommit()) {
+				event.messageTag = messageTag.name();
+				event.requestSize = serializedRequestContent == null ? 0 : serializedRequestContent.length;
+				event.responseSize = serializedResponseContent == null ? 0 : serializedResponseContent.length;
+				event.commit();
+			}
+		}
 	}
 
 	/**
-	 * Gets the books.
+	 * Executes the message against the store and serializes the response,
+	 * tagging, revalidating and coalescing the reads of a versioned store.
 	 *
+	 * @param messageTag
+	 *            the message tag
 	 * @param request
 	 *            the request
 	 * @param response
 	 *            the response
+	 * @param serializedRequestContent
+	 *            the serialized request content, may be null
+	 * @param event
+	 *            the flight recorder event of the request
+	 * @return the serialized response content, or null if the message tag is
+	 *         not supported or the client already has the current response
 	 * @throws IOException
 	 *             Signals that an I/O exception has occurred.
 	 */
-	@SuppressWarnings("unchecked")
-	private void getBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
-		byte[] serializedRequestContent = getSerializedRequestContent(request);
+	private byte[] processVersionedMessage(BookStoreMessageTag messageTag, HttpServletRequest request,
+			HttpServletResponse response, byte[] serializedRequestContent, BookStoreRequestEvent event)
+			throws IOException {
+		VersionedCatalog catalog = getCatalog(messageTag);
 
-		Set<Integer> isbnSet = (Set<Integer>) serializer.get().deserialize(serializedRequestContent);
-		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+		if (catalog == null) {
+			return executeAndSerialize(messageTag, request, serializedRequestContent, event);
+		}
+
+		// The version is read before the store operation runs, so a concurrent
+		// update can only make it older than the content, never newer.
+		long catalogVersion = catalog.getCatalogVersion();
+
+		if (messageTag == BookStoreMessageTag.LISTBOOKS || messageTag == BookStoreMessageTag.GETEDITORPICKS) {
+			String entityTag = "\"" + entityTagPrefix + "-" + catalogVersion + "\"";
+			response.setHeader(HttpHeader.ETAG.asString(), entityTag);
+
+			if (entityTag.equals(request.getHeader(HttpHeader.IF_NONE_MATCH.asString()))) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				event.result = BookStoreRequestEvent.RESULT_NOT_MODIFIED;
+				return null;
+			}
+		}
+
+		ReadKey readKey = new ReadKey(messageTag, catalogVersion, request.getQueryString(), serializedRequestContent);
+		return executeCoalesced(readKey, messageTag, request, serializedRequestContent, event);
+	}
+
+	/**
+	 * Executes a read, sharing the execution and the serialized response with
+	 * the identical reads already in flight. Reads are only identical if they
+	 * saw the same catalog version on arrival, so a read never gets a response
+	 * computed before an update it could observe.
+	 *
+	 * @param readKey
+	 *            the read key
+	 * @param messageTag
+	 *            the message tag
+	 * @param request
+	 *            the request
+	 * @param serializedRequestContent
+	 *            the serialized request content, may be null
+	 * @param event
+	 *            the flight recorder event of the request
+	 * @return the serialized response content
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private byte[] executeCoalesced(ReadKey readKey, BookStoreMessageTag messageTag, HttpServletRequest request,
+			byte[] serializedRequestContent, BookStoreRequestEvent event) throws IOException {
+		CompletableFuture<byte[]> flight = new CompletableFuture<>();
+		CompletableFuture<byte[]> leader = inFlightReads.putIfAbsent(readKey, flight);
+
+		if (leader != null) {
+			coalescedReads.increment();
+
+			try {
+				byte[] serializedResponseContent = leader.join();
+				event.result = BookStoreRequestEvent.RESULT_COALESCED;
+				return serializedResponseContent;
+			} catch (CompletionException ex) {
+				throw new IOException(ex.getCause());
+			}
+		}
 
 		try {
-			bookStoreResponse.setList(bookStore.getBooks(isbnSet));
-		} catch (BookStoreException ex) {
-			bookStoreResponse.setException(ex);
+			byte[] serializedResponseContent = executeAndSerialize(messageTag, request, serializedRequestContent,
+					event);
+			flight.complete(serializedResponseContent);
+			return serializedResponseContent;
+		} finally {
+			if (!flight.isDone()) {
+				flight.completeExceptionally(new IOException("Coalesced read failed"));
+			}
+
+			inFlightReads.remove(readKey, flight);
+		}
+	}
+
+	/**
+	 * Deserializes the input value, executes the message against the store
+	 * and serializes the response.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @param request
+	 *            the request
+	 * @param serializedRequestContent
+	 *            the serialized request content, may be null
+	 * @param event
+	 *            the flight recorder event of the request
+	 * @return the serialized response content, or null if the message tag is
+	 *         not supported
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private byte[] executeAndSerialize(BookStoreMessageTag messageTag, HttpServletRequest request,
+			byte[] serializedRequestContent, BookStoreRequestEvent event) throws IOException {
+		Object inputValue = null;
+		long startTime = System.nanoTime();
+
+		if (messageTag == BookStoreMessageTag.GETEDITORPICKS) {
+			inputValue = URLDecoder.decode(request.getParameter(BookStoreConstants.BOOK_NUM_PARAM),
+					StandardCharsets.UTF_8);
+		} else if (serializedRequestContent != null) {
+			inputValue = serializer.get().deserialize(serializedRequestContent);
+		}
+
+		String requestId = request.getHeader(BookStoreConstants.REQUEST_ID_HEADER);
+		long executeTime = System.nanoTime();
+		requestStats.recordPhase(messageTag, BookStoreRequestStats.Phase.DESERIALIZE, executeTime - startTime);
+		event.deserializeTime = executeTime - startTime;
+		BookStoreTracer.span(requestId, "server.deserialize", startTime, executeTime);
+		long lockWaitNanos = getThreadLockWaitNanos();
+		BookStoreResponse bookStoreResponse = executeMessage(messageTag, inputValue);
+		long serializeTime = System.nanoTime();
+		requestStats.recordPhase(messageTag, BookStoreRequestStats.Phase.EXECUTE, serializeTime - executeTime);
+		event.executeTime = serializeTime - executeTime;
+		event.lockWaitTime = getThreadLockWaitNanos() - lockWaitNanos;
+
+		// The locks are taken as the operation starts, so the wait leads it.
+		BookStoreTracer.span(requestId, "server.lock", executeTime, executeTime + event.lockWaitTime);
+		BookStoreTracer.span(requestId, "server.execute", executeTime, serializeTime);
+
+		if (bookStoreResponse == null) {
+			System.err.println("Unsupported message tag.");
+			requestStats.recordError(messageTag);
+			event.result = BookStoreRequestEvent.RESULT_UNSUPPORTED;
+			return null;
+		}
+
+		if (bookStoreResponse.getException() != null) {
+			requestStats.recordError(messageTag);
+			event.result = BookStoreRequestEvent.RESULT_EXCEPTION;
+		} else {
+			event.result = BookStoreRequestEvent.RESULT_OK;
 		}
 
 		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		long endTime = System.nanoTime();
+		requestStats.recordPhase(messageTag, BookStoreRequestStats.Phase.SERIALIZE, endTime - serializeTime);
+		event.serializeTime = endTime - serializeTime;
+		BookStoreTracer.span(requestId, "server.serialize", serializeTime, endTime);
+		return serializedResponseContent;
 	}
 
 	/**
-	 * Buys books.
+	 * Gets the total time the current thread waited for the locks of the
+	 * stores, or 0 if the stores do not monitor their locks.
+	 *
+	 * @return the total wait in nanoseconds
+	 */
+	private long getThreadLockWaitNanos() {
+		long waitNanos = 0;
+
+		if (bookStore instanceof LockMonitored) {
+			waitNanos += ((LockMonitored) bookStore).getLockStats().getThreadWaitNanos();
+		}
+
+		if (stockManager != bookStore && stockManager instanceof LockMonitored) {
+			waitNanos += ((LockMonitored) stockManager).getLockStats().getThreadWaitNanos();
+		}
+
+		return waitNanos;
+	}
+
+	/**
+	 * Formats the phase timings of a request as a Server-Timing header value,
+	 * in milliseconds.
+	 *
+	 * @param event
+	 *            the flight recorder event holding the phase timings
+	 * @param totalNanos
+	 *            the time spent handling the request in nanoseconds
+	 * @return the header value
+	 */
+	private static String formatServerTiming(BookStoreRequestEvent event, long totalNanos) {
+		return String.format(Locale.ROOT,
+				"deserialize;dur=%.3f, lock;dur=%.3f, execute;dur=%.3f, serialize;dur=%.3f, total;dur=%.3f",
+				event.deserializeTime / 1e6, event.lockWaitTime / 1e6, event.executeTime / 1e6,
+				event.serializeTime / 1e6, totalNanos / 1e6);
+	}
+
+	/**
+	 * Gets the store serving a read message if it is versioned. The responses
+	 * to these reads are tagged with the catalog version and coalesced.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @return the versioned store, or null if the message is not a read or
+	 *         the store is not versioned
+	 */
+	private VersionedCatalog getCatalog(BookStoreMessageTag messageTag) {
+		Object store;
+
+		switch (messageTag) {
+		case LISTBOOKS:
+		case GETSTOCKBOOKSBYISBN:
+			store = stockManager;
+			break;
+
+		case GETBOOKS:
+		case GETEDITORPICKS:
+			store = bookStore;
+			break;
+
+		default:
+			return null;
+		}
+
+		return store instanceof VersionedCatalog ? (VersionedCatalog) store : null;
+	}
+
+	/**
+	 * Writes the request metrics, the lock contention metrics of the stores
+	 * and the activity of the traffic classes, as JSON or in the Prometheus text format if requested with the
+	 * format parameter.
 	 *
 	 * @param request
 	 *            the request
@@ -233,11 +731,417 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	 * @throws IOException
 	 *             Signals that an I/O exception has occurred.
 	 */
+	private void writeStats(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		StringBuilder stats = new StringBuilder();
+		Set<Object> stores = Collections.newSetFromMap(new IdentityHashMap<>());
+		stores.add(bookStore);
+		stores.add(stockManager);
+
+		if (BookStoreConstants.STATS_FORMAT_PROMETHEUS
+				.equalsIgnoreCase(request.getParameter(BookStoreConstants.STATS_FORMAT_PARAM))) {
+			response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+			stats.append(requestStats.toPrometheus());
+
+			for (Object store : stores) {
+				if (store instanceof LockMonitored) {
+					stats.append(((LockMonitored) store).getLockStats().toPrometheus(store.getClass().getSimpleName()));
+				}
+			}
+
+			if (trafficScheduler != null) {
+				stats.append(trafficScheduler.toPrometheus());
+			}
+
+			if (admissionController != null) {
+				stats.append(admissionController.toPrometheus());
+			}
+		} else {
+			response.setContentType("application/json; charset=utf-8");
+			stats.append("{\"operations\":").append(requestStats.toJson()).append(",\"locks\":{");
+			String separator = "";
+
+			for (Object store : stores) {
+				if (store instanceof LockMonitored) {
+					stats.append(separator).append('"').append(store.getClass().getSimpleName()).append("\":")
+							.append(((LockMonitored) store).getLockStats().toJson());
+					separator = ",";
+				}
+			}
+
+			stats.append('}');
+
+			if (trafficScheduler != null) {
+				stats.append(",\"trafficClasses\":").append(trafficScheduler.toJson());
+			}
+
+			if (admissionController != null) {
+				stats.append(",\"admission\":").append(admissionController.toJson());
+			}
+
+			stats.append('}');
+		}
+
+		response.getOutputStream().write(stats.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Sets the admission controller limiting the requests in flight.
+	 *
+	 * @param admissionController
+	 *            the admission controller, or null to admit all requests
+	 */
+	public void setAdmissionController(BookStoreAdmissionController admissionController) {
+		this.admissionController = admissionController;
+	}
+
+	/**
+	 * Sets the change log recording the writes for the replicas.
+	 *
+	 * @param changeLog
+	 *            the change log, or null to serve no replicas
+	 */
+	public void setChangeLog(BookStoreChangeLog changeLog) {
+		this.changeLog = changeLog;
+	}
+
+	/**
+	 * Gets the request metrics.
+	 *
+	 * @return the request metrics
+	 */
+	public BookStoreRequestStats getRequestStats() {
+		return requestStats;
+	}
+
+	/**
+	 * Gets the number of reads served by joining an identical read in flight.
+	 *
+	 * @return the number of coalesced reads
+	 */
+	public long getCoalescedReadCount() {
+		return coalescedReads.sum();
+	}
+
+	/**
+	 * Executes the message with its deserialized input value against the
+	 * store, and records the books a write may have changed in the change
+	 * log. Also used by {@link BookStoreTCPServer}, which shares the dispatch
+	 * of the HTTP handler.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @param inputValue
+	 *            the input value
+	 * @return the book store response, or null if the message tag is not
+	 *         supported
+	 */
+	BookStoreResponse executeMessage(BookStoreMessageTag messageTag, Object inputValue) {
+		BookStoreResponse bookStoreResponse = dispatchMessage(messageTag, inputValue);
+		BookStoreChangeLog log = changeLog;
+
+		// Failed writes are recorded too, a failed purchase counts sale misses.
+		if (log != null && bookStoreResponse != null) {
+			recordChanges(log, messageTag, inputValue);
+		}
+
+		return bookStoreResponse;
+	}
+
+	/**
+	 * Executes the message with its deserialized input value against the
+	 * store.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @param inputValue
+	 *            the input value
+	 * @return the book store response, or null if the message tag is not
+	 *         supported
+	 */
 	@SuppressWarnings("unchecked")
-	private void buyBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
-		byte[] serializedRequestContent = getSerializedRequestContent(request);
+	private BookStoreResponse dispatchMessage(BookStoreMessageTag messageTag, Object inputValue) {
+		switch (messageTag) {
+		case REMOVEBOOKS:
+			return removeBooks((Set<Integer>) inputValue);
+
+		case REMOVEALLBOOKS:
+			return removeAllBooks();
+
+		case ADDBOOKS:
+			return addBooks((Set<StockBook>) inputValue);
+
+		case ADDCOPIES:
+			return addCopies((Set<BookCopy>) inputValue);
+
+		case LISTBOOKS:
+			return listBooks();
+
+		case UPDATEEDITORPICKS:
+			return updateEditorPicks((Set<BookEditorPick>) inputValue);
+
+		case BUYBOOKS:
+			return buyBooks((Set<BookCopy>) inputValue);
+
+		case GETBOOKS:
+			return getBooks((Set<Integer>) inputValue);
+
+		case GETEDITORPICKS:
+			return getEditorPicks((String) inputValue);
+
+		case GETSTOCKBOOKSBYISBN:
+			return getStockBooksByISBN((Set<Integer>) inputValue);
+
+		case BATCH:
+			return batch((List<BookStoreBatchOperation>) inputValue);
+
+		case REVALIDATEBOOKS:
+			return revalidateBooks((Map<Integer, Long>) inputValue);
+
+		case GETCHANGES:
+			return getChanges((BookStoreCatalogChanges) inputValue);
+
+		default:
+			return null;
+		}
+	}
 
-		Set<BookCopy> bookCopiesToBuy = (Set<BookCopy>) serializer.get().deserialize(serializedRequestContent);
+	/**
+	 * Records the books a write may have changed in the change log. The
+	 * operations of a batch are recorded one by one as they execute.
+	 *
+	 * @param log
+	 *            the change log
+	 * @param messageTag
+	 *            the message tag
+	 * @param inputValue
+	 *            the input value
+	 */
+	@SuppressWarnings("unchecked")
+	private static void recordChanges(BookStoreChangeLog log, BookStoreMessageTag messageTag, Object inputValue) {
+		List<Integer> isbns = new ArrayList<>();
+
+		switch (messageTag) {
+		case REMOVEALLBOOKS:
+			log.recordReset();
+			return;
+
+		case ADDBOOKS:
+			if (inputValue != null) {
+				for (StockBook book : (Set<StockBook>) inputValue) {
+					isbns.add(book.getISBN());
+				}
+			}
+			break;
+
+		case ADDCOPIES:
+		case BUYBOOKS:
+			if (inputValue != null) {
+				for (BookCopy bookCopy : (Set<BookCopy>) inputValue) {
+					isbns.add(bookCopy.getISBN());
+				}
+			}
+			break;
+
+		case UPDATEEDITORPICKS:
+			if (inputValue != null) {
+				for (BookEditorPick editorPick : (Set<BookEditorPick>) inputValue) {
+					isbns.add(editorPick.getISBN());
+				}
+			}
+			break;
+
+		case REMOVEBOOKS:
+			if (inputValue != null) {
+				isbns.addAll((Set<Integer>) inputValue);
+			}
+			break;
+
+		default:
+			return;
+		}
+
+		log.recordChanged(isbns);
+	}
+
+	/**
+	 * Gets the changes of the catalog since the position of a replica.
+	 *
+	 * @param position
+	 *            the position of the replica
+	 * @return the book store response, listing the changes
+	 */
+	private BookStoreResponse getChanges(BookStoreCatalogChanges position) {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+		BookStoreChangeLog log = changeLog;
+
+		try {
+			if (position == null) {
+				throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			}
+
+			if (log == null) {
+				throw new BookStoreException(BookStoreConstants.CHANGE_LOG_DISABLED);
+			}
+
+			bookStoreResponse.setList(Collections.singletonList(log.getChangesSince(position)));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		return bookStoreResponse;
+	}
+
+	/**
+	 * Executes the operations of a batch in order. Every operation gets its
+	 * own response, so a failing operation does not affect the others.
+	 *
+	 * @param operations
+	 *            the operations
+	 * @return the book store response, listing one response per operation
+	 */
+	private BookStoreResponse batch(List<BookStoreBatchOperation> operations) {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		if (operations == null) {
+			bookStoreResponse.setException(new BookStoreException(BookStoreConstants.NULL_INPUT));
+			return bookStoreResponse;
+		}
+
+		List<BookStoreResponse> operationResponses = new ArrayList<>(operations.size());
+
+		for (BookStoreBatchOperation operation : operations) {
+			BookStoreResponse operationResponse = null;
+			BookStoreMessageTag messageTag = operation.getMessageTag();
+
+			try {
+				if (messageTag != null && messageTag != BookStoreMessageTag.BATCH) {
+					operationResponse = executeMessage(messageTag, operation.getInputValue());
+				}
+			} catch (ClassCastException ex) {
+				operationResponse = new BookStoreResponse();
+				operationResponse.setException(new BookStoreException(ex));
+			}
+
+			if (operationResponse == null) {
+				operationResponse = new BookStoreResponse();
+				operationResponse.setException(new BookStoreException("Unsupported message tag: " + messageTag));
+			}
+
+			operationResponses.add(operationResponse);
+		}
+
+		bookStoreResponse.setList(operationResponses);
+		return bookStoreResponse;
+	}
+
+	/**
+	 * Gets the stock books by ISBN.
+	 *
+	 * @param isbnSet
+	 *            the ISBN set
+	 * @return the book store response
+	 */
+	private BookStoreResponse getStockBooksByISBN(Set<Integer> isbnSet) {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			bookStoreResponse.setList(stockManager.getBooksByISBN(isbnSet));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		return bookStoreResponse;
+	}
+
+	/**
+	 * Gets the editor picks.
+	 *
+	 * @param numBooksString
+	 *            the number of books
+	 * @return the book store response
+	 */
+	private BookStoreResponse getEditorPicks(String numBooksString) {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			int numBooks = BookStoreUtility.convertStringToInt(numBooksString);
+			bookStoreResponse.setList(bookStore.getEditorPicks(numBooks));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		return bookStoreResponse;
+	}
+
+	/**
+	 * Revalidates books cached by a client. The client sends the versions of
+	 * its copies, 0 for books it does not have; only the books whose current
+	 * version, as issued by the store, differs are returned, together with
+	 * their version.
+	 *
+	 * @param versionStamps
+	 *            the version stamps of the client by ISBN
+	 * @return the book store response, listing the changed books as
+	 *         {@link VersionedBook}
+	 */
+	private BookStoreResponse revalidateBooks(Map<Integer, Long> versionStamps) {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		if (versionStamps == null) {
+			bookStoreResponse.setException(new BookStoreException(BookStoreConstants.NULL_INPUT));
+			return bookStoreResponse;
+		}
+
+		if (!(bookStore instanceof VersionedCatalog)) {
+			bookStoreResponse.setException(new BookStoreException(BookStoreConstants.VERSIONS_NOT_SUPPORTED));
+			return bookStoreResponse;
+		}
+
+		try {
+			List<VersionedBook> changedBooks = new ArrayList<>();
+			VersionedCatalog catalog = (VersionedCatalog) bookStore;
+
+			for (VersionedBook book : catalog.getVersionedBooks(new HashSet<>(versionStamps.keySet()))) {
+				if (book.getVersion() != versionStamps.get(book.getBook().getISBN())) {
+					changedBooks.add(book);
+				}
+			}
+
+			bookStoreResponse.setList(changedBooks);
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		return bookStoreResponse;
+	}
+
+	/**
+	 * Gets the books.
+	 *
+	 * @param isbnSet
+	 *            the ISBN set
+	 * @return the book store response
+	 */
+	private BookStoreResponse getBooks(Set<Integer> isbnSet) {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			bookStoreResponse.setList(bookStore.getBooks(isbnSet));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		return bookStoreResponse;
+	}
+
+	/**
+	 * Buys books.
+	 *
+	 * @param bookCopiesToBuy
+	 *            the book copies to buy
+	 * @return the book store response
+	 */
+	private BookStoreResponse buyBooks(Set<BookCopy> bookCopiesToBuy) {
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
@@ -246,26 +1150,17 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		return bookStoreResponse;
 	}
 
 	/**
 	 * Updates editor picks.
 	 *
-	 * @param request
-	 *            the request
-	 * @param response
-	 *            the response
-	 * @throws IOException
-	 *             Signals that an I/O exception has occurred.
+	 * @param mapEditorPicksValues
+	 *            the editor picks
+	 * @return the book store response
 	 */
-	@SuppressWarnings("unchecked")
-	private void updateEditorPicks(HttpServletRequest request, HttpServletResponse response) throws IOException {
-		byte[] serializedRequestContent = getSerializedRequestContent(request);
-
-		Set<BookEditorPick> mapEditorPicksValues = (Set<BookEditorPick>) serializer.get()
-				.deserialize(serializedRequestContent);
+	private BookStoreResponse updateEditorPicks(Set<BookEditorPick> mapEditorPicksValues) {
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
@@ -274,19 +1169,15 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		return bookStoreResponse;
 	}
 
 	/**
 	 * Lists the books.
 	 *
-	 * @param response
-	 *            the response
-	 * @throws IOException
-	 *             Signals that an I/O exception has occurred.
+	 * @return the book store response
 	 */
-	private void listBooks(HttpServletResponse response) throws IOException {
+	private BookStoreResponse listBooks() {
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 		try {
 			bookStoreResponse.setList(stockManager.getBooks());
@@ -294,25 +1185,17 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		return bookStoreResponse;
 	}
 
 	/**
 	 * Adds the copies.
 	 *
-	 * @param request
-	 *            the request
-	 * @param response
-	 *            the response
-	 * @throws IOException
-	 *             Signals that an I/O exception has occurred.
+	 * @param listBookCopies
+	 *            the book copies
+	 * @return the book store response
 	 */
-	@SuppressWarnings("unchecked")
-	private void addCopies(HttpServletRequest request, HttpServletResponse response) throws IOException {
-		byte[] serializedRequestContent = getSerializedRequestContent(request);
-
-		Set<BookCopy> listBookCopies = (Set<BookCopy>) serializer.get().deserialize(serializedRequestContent);
+	private BookStoreResponse addCopies(Set<BookCopy> listBookCopies) {
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
@@ -321,25 +1204,17 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		return bookStoreResponse;
 	}
 
 	/**
 	 * Adds the books.
 	 *
-	 * @param request
-	 *            the request
-	 * @param response
-	 *            the response
-	 * @throws IOException
-	 *             Signals that an I/O exception has occurred.
+	 * @param newBooks
+	 *            the new books
+	 * @return the book store response
 	 */
-	@SuppressWarnings("unchecked")
-	private void addBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
-		byte[] serializedRequestContent = getSerializedRequestContent(request);
-
-		Set<StockBook> newBooks = (Set<StockBook>) serializer.get().deserialize(serializedRequestContent);
+	private BookStoreResponse addBooks(Set<StockBook> newBooks) {
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
@@ -348,19 +1223,15 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		return bookStoreResponse;
 	}
 
 	/**
 	 * Removes all books.
 	 *
-	 * @param response
-	 *            the response
-	 * @throws IOException
-	 *             Signals that an I/O exception has occurred.
+	 * @return the book store response
 	 */
-	private void removeAllBooks(HttpServletResponse response) throws IOException {
+	private BookStoreResponse removeAllBooks() {
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
@@ -369,25 +1240,17 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		return bookStoreResponse;
 	}
 
 	/**
 	 * Removes the books.
 	 *
-	 * @param request
-	 *            the request
-	 * @param response
-	 *            the response
-	 * @throws IOException
-	 *             Signals that an I/O exception has occurred.
+	 * @param bookSet
+	 *            the ISBNs of the books to remove
+	 * @return the book store response
 	 */
-	@SuppressWarnings("unchecked")
-	private void removeBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
-		byte[] serializedRequestContent = getSerializedRequestContent(request);
-
-		Set<Integer> bookSet = (Set<Integer>) serializer.get().deserialize(serializedRequestContent);
+	private BookStoreResponse removeBooks(Set<Integer> bookSet) {
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
@@ -396,8 +1259,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		return bookStoreResponse;
 	}
 
 	/**
@@ -413,4 +1275,72 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		in.close();
 		return serializedRequestContent;
 	}
+
+	/**
+	 * {@link ReadKey} identifies a read by its message, its request content
+	 * and the catalog version it saw on arrival.
+	 */
+	private static final class ReadKey {
+
+		/** The message tag. */
+		private final BookStoreMessageTag messageTag;
+
+		/** The catalog version. */
+		private final long catalogVersion;
+
+		/** The query string, may be null. */
+		private final String queryString;
+
+		/** The serialized request content, may be null. */
+		private final byte[] content;
+
+		/**
+		 * Instantiates a new {@link ReadKey}.
+		 *
+		 * @param messageTag
+		 *            the message tag
+		 * @param catalogVersion
+		 *            the catalog version
+		 * @param queryString
+		 *            the query string, may be null
+		 * @param content
+		 *            the serialized request content, may be null
+		 */
+		private ReadKey(BookStoreMessageTag messageTag, long catalogVersion, String queryString, byte[] content) {
+			this.messageTag = messageTag;
+			this.catalogVersion = catalogVersion;
+			this.queryString = queryString;
+			this.content = content;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Object#hashCode()
+		 */
+		@Override
+		public int hashCode() {
+			return 31 * Objects.hash(messageTag, catalogVersion, queryString) + Arrays.hashCode(content);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+
+			if (!(obj instanceof ReadKey)) {
+				return false;
+			}
+
+			ReadKey other = (ReadKey) obj;
+			return messageTag == other.messageTag && catalogVersion == other.catalogVersion
+					&& Objects.equals(queryString, other.queryString) && Arrays.equals(content, other.content);
+		}
+	}
 }
@@ -1,7 +1,19 @@
 package com.acertainbookstore.server;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.acertainbookstore.business.DeterministicConcurrentCertainBookStore;
+import com.acertainbookstore.business.OptimisticConcurrentCertainBookStore;
+import com.acertainbookstore.business.PersistentCatalogCertainBookStore;
+import com.acertainbookstore.business.ReplicaCertainBookStore;
 import com.acertainbookstore.business.SingleLockConcurrentCertainBookStore;
 import com.acertainbookstore.business.TwoLevelLockingConcurrentCertainBookStore;
+import com.acertainbookstore.client.BookStoreHTTPProxy;
+import com.acertainbookstore.client.StockManagerHTTPProxy;
+import com.acertainbookstore.interfaces.StockManager;
 
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import com.acertainbookstore.utils.BookStoreConstants;
@@ -16,6 +28,9 @@ public class BookStoreHTTPServer {
 	private static final int DEFAULT_PORT = 8081;
 	private static final int MIN_THREADPOOL_SIZE = 10;
 	private static final int MAX_THREADPOOL_SIZE = 100;
+
+	/** The number of threads running store operations in asynchronous mode. */
+	private static final int STORE_EXECUTOR_SIZE = 100;
 	
 	/** The constant, defining which locking scheme implementation to use
 	 *  true - single lock 
@@ -39,17 +54,88 @@ public class BookStoreHTTPServer {
 		int listenOnPort = DEFAULT_PORT;
 		
 		BookStoreHTTPMessageHandler handler = null;
+		StockManager stockManager = null;
+
+		// In asynchronous mode the store operations run on their own executor
+		// instead of the Jetty pool threads.
+		ExecutorService storeExecutor = null;
+
+		// With traffic classes, purchases, browsing and stock management each
+		// run on their own executor, so one cannot starve the others.
+		BookStoreTrafficScheduler trafficScheduler = null;
+
+		// With virtual threads every request gets its own thread, so requests
+		// blocked on store locks do not hold back the others.
+		if (Boolean.parseBoolean(System.getProperty(BookStoreConstants.PROPERTY_KEY_SERVER_VIRTUAL_THREADS))) {
+			storeExecutor = BookStoreHTTPServerUtility.newThreadPerTaskExecutor();
+		} else if (Boolean.parseBoolean(System.getProperty(BookStoreConstants.PROPERTY_KEY_SERVER_TRAFFIC_CLASSES))) {
+			trafficScheduler = new BookStoreTrafficScheduler();
+		} else if (Boolean.parseBoolean(System.getProperty(BookStoreConstants.PROPERTY_KEY_SERVER_ASYNC))) {
+			storeExecutor = Executors.newFixedThreadPool(STORE_EXECUTOR_SIZE);
+		}
 		
-		if (SINGLE_LOCK) {
+		// A replica serves the reads from its own copy of the catalog of the
+		// primary it follows.
+		String primaryAddress = System.getProperty(BookStoreConstants.PROPERTY_KEY_REPLICA_OF);
+
+		if (primaryAddress != null) {
+			ReplicaCertainBookStore bookStore;
+
+			try {
+				bookStore = startReplica(primaryAddress);
+			} catch (Exception ex) {
+				System.err.println("Could not start the replica: " + ex);
+				return;
+			}
+
+			handler = trafficScheduler != null
+					? new BookStoreHTTPMessageHandler(bookStore, bookStore, trafficScheduler)
+					: new BookStoreHTTPMessageHandler(bookStore, bookStore, storeExecutor);
+		} else if (Boolean.parseBoolean(System.getProperty(BookStoreConstants.PROPERTY_KEY_DETERMINISTIC))) {
+			DeterministicConcurrentCertainBookStore bookStore = new DeterministicConcurrentCertainBookStore();
+			handler = trafficScheduler != null
+					? new BookStoreHTTPMessageHandler(bookStore, bookStore, trafficScheduler)
+					: new BookStoreHTTPMessageHandler(bookStore, bookStore, storeExecutor);
+			stockManager = bookStore;
+		} else if (Boolean.parseBoolean(System.getProperty(BookStoreConstants.PROPERTY_KEY_OPTIMISTIC))) {
+			OptimisticConcurrentCertainBookStore bookStore = new OptimisticConcurrentCertainBookStore();
+			handler = trafficScheduler != null
+					? new BookStoreHTTPMessageHandler(bookStore, bookStore, trafficScheduler)
+					: new BookStoreHTTPMessageHandler(bookStore, bookStore, storeExecutor);
+			stockManager = bookStore;
+		} else if (Boolean.parseBoolean(System.getProperty(BookStoreConstants.PROPERTY_KEY_PERSISTENT_CATALOG))) {
+			PersistentCatalogCertainBookStore bookStore = new PersistentCatalogCertainBookStore();
+			handler = trafficScheduler != null
+					? new BookStoreHTTPMessageHandler(bookStore, bookStore, trafficScheduler)
+					: new BookStoreHTTPMessageHandler(bookStore, bookStore, storeExecutor);
+			stockManager = bookStore;
+		} else if (SINGLE_LOCK) {
 			SingleLockConcurrentCertainBookStore bookStore = new SingleLockConcurrentCertainBookStore();
 			/* we pass bookStore to BookStoreHTTPMessageHandler constructor twice, 
 			 * since it implements both interfaces: BookStore and StockManager */
-			handler = new BookStoreHTTPMessageHandler(bookStore, bookStore);
+			handler = trafficScheduler != null
+					? new BookStoreHTTPMessageHandler(bookStore, bookStore, trafficScheduler)
+					: new BookStoreHTTPMessageHandler(bookStore, bookStore, storeExecutor);
+			stockManager = bookStore;
 		} else {
 			TwoLevelLockingConcurrentCertainBookStore bookStore = new TwoLevelLockingConcurrentCertainBookStore();
-			handler = new BookStoreHTTPMessageHandler(bookStore, bookStore);
+			handler = trafficScheduler != null
+					? new BookStoreHTTPMessageHandler(bookStore, bookStore, trafficScheduler)
+					: new BookStoreHTTPMessageHandler(bookStore, bookStore, storeExecutor);
+			stockManager = bookStore;
 		}		
+
+		// A primary records its writes for the replicas following it.
+		if (stockManager != null
+				&& Boolean.parseBoolean(System.getProperty(BookStoreConstants.PROPERTY_KEY_SERVER_CHANGE_LOG))) {
+			handler.setChangeLog(new BookStoreChangeLog(stockManager));
+		}
 		
+		// Requests over the adaptive concurrency limit are shed with 503.
+		if (Boolean.parseBoolean(System.getProperty(BookStoreConstants.PROPERTY_KEY_SERVER_ADMISSION_CONTROL))) {
+			handler.setAdmissionController(new BookStoreAdmissionController());
+		}
+
 		String serverPortString = System.getProperty(BookStoreConstants.PROPERTY_KEY_SERVER_PORT);
 
 		if (serverPortString != null) {
@@ -60,7 +146,50 @@ public class BookStoreHTTPServer {
 			}
 		}
 
+		// The binary TCP server runs next to the HTTP server when a port is
+		// given for it.
+		String tcpPortString = System.getProperty(BookStoreConstants.PROPERTY_KEY_SERVER_TCP_PORT);
+
+		if (tcpPortString != null) {
+			try {
+				ExecutorService workers = storeExecutor != null ? storeExecutor
+						: Executors.newFixedThreadPool(MAX_THREADPOOL_SIZE);
+				new BookStoreTCPServer(Integer.parseInt(tcpPortString), handler, workers).start();
+			} catch (NumberFormatException | IOException ex) {
+				System.err.println("Could not start the TCP server: " + ex);
+			}
+		}
+
 		QueuedThreadPool threadpool = new QueuedThreadPool(MAX_THREADPOOL_SIZE, MIN_THREADPOOL_SIZE);
 		BookStoreHTTPServerUtility.createServer(listenOnPort, handler, threadpool);
 	}
+
+	/**
+	 * Starts a read-only replica of a primary. The replica maps the snapshot
+	 * file, shared by the replicas of the host, and follows the changes of
+	 * the primary. Writes are forwarded to the primary if requested, and
+	 * rejected otherwise.
+	 *
+	 * @param primaryAddress
+	 *            the address of the primary
+	 * @return the replica store
+	 * @throws Exception
+	 *             if the snapshot could not be loaded
+	 */
+	private static ReplicaCertainBookStore startReplica(String primaryAddress) throws Exception {
+		BookStoreReplicator replicator = new BookStoreReplicator(primaryAddress, Paths.get(System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_SNAPSHOT_FILE, BookStoreConstants.DEFAULT_SNAPSHOT_FILE)));
+		BookStoreHTTPProxy primaryBookStore = null;
+		StockManagerHTTPProxy primaryStockManager = null;
+
+		if (Boolean.parseBoolean(System.getProperty(BookStoreConstants.PROPERTY_KEY_REPLICA_FORWARD_WRITES))) {
+			primaryBookStore = new BookStoreHTTPProxy(primaryAddress);
+			primaryStockManager = new StockManagerHTTPProxy(primaryAddress + "/stock");
+		}
+
+		ReplicaCertainBookStore bookStore = new ReplicaCertainBookStore(replicator.openSnapshot(), primaryBookStore,
+				primaryStockManager);
+		replicator.follow(bookStore, BookStoreConstants.REPLICA_POLL_MILLISECS);
+		return bookStore;
+	}
 }
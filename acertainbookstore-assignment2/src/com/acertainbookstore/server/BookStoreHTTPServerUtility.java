@@ -3,6 +3,8 @@ package com.acertainbookstore.server;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
@@ -14,6 +16,9 @@ import org.eclipse.jetty.util.thread.QueuedThreadPool;
  */
 public class BookStoreHTTPServerUtility {
 
+	/** The number of platform threads used when virtual threads are not available. */
+	public static final int FALLBACK_POOL_SIZE = 200;
+
 	/**
 	 * Prevents the instantiation of a new {@link BookStoreHTTPServerUtility}.
 	 */
@@ -31,6 +36,31 @@ public class BookStoreHTTPServerUtility {
 	 * @return true, if successful
 	 */
 	public static void createServer(int port, AbstractHandler handler, QueuedThreadPool threadpool) {
+		try {
+			Server server = startServer(port, handler, threadpool);
+			server.join();
+		} catch (Exception ex) {
+			System.err.println(ex.getStackTrace());
+		}
+
+	}
+
+	/**
+	 * Creates and starts a server on the port without blocking the calling
+	 * thread.
+	 *
+	 * @param port
+	 *            the port
+	 * @param handler
+	 *            the handler
+	 * @param threadpool
+	 *            the thread pool, or null to use the Jetty default
+	 * @return the started server
+	 * @throws Exception
+	 *             if the server fails to start
+	 */
+	public static Server startServer(int port, AbstractHandler handler, QueuedThreadPool threadpool)
+			throws Exception {
 		Server server = null;
 		if (threadpool != null) {
 			server = new Server(threadpool);
@@ -45,13 +75,48 @@ public class BookStoreHTTPServerUtility {
 			server.setHandler(handler);
 		}
 
+		server.start();
+		return server;
+	}
+
+	/**
+	 * Checks if the JVM supports virtual threads (Java 21 and later).
+	 *
+	 * @return true, if virtual threads are available
+	 */
+	public static boolean isVirtualThreadAvailable() {
 		try {
-			server.start();
-			server.join();
-		} catch (Exception ex) {
-			System.err.println(ex.getStackTrace());
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Creates an executor that runs every task on its own new virtual thread.
+	 * On a JVM without virtual threads it warns and falls back to a pool of
+	 * {@link #FALLBACK_POOL_SIZE} platform threads, as one platform thread per
+	 * in-flight request does not scale.
+	 *
+	 * Whether requests pin their carrier threads is checked by running the
+	 * server on Java 21 with -Djdk.tracePinnedThreads=full.
+	 *
+	 * @return the thread-per-task executor
+	 */
+	public static ExecutorService newThreadPerTaskExecutor() {
+		if (isVirtualThreadAvailable()) {
+			try {
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException ex) {
+				ex.printStackTrace();
+			}
 		}
 
+		System.err.println("WARNING: virtual threads are not available on Java "
+				+ System.getProperty("java.specification.version") + ", falling back to a pool of "
+				+ FALLBACK_POOL_SIZE + " platform threads");
+		return Executors.newFixedThreadPool(FALLBACK_POOL_SIZE);
 	}
 
 	/**
@@ -0,0 +1,175 @@
+package com.acertainbookstore.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.client.HttpClient;
+
+import com.acertainbookstore.business.BookStoreSnapshot;
+import com.acertainbookstore.business.ReplicaCertainBookStore;
+import com.acertainbookstore.interfaces.BookStoreSerializer;
+import com.acertainbookstore.utils.BookStoreCatalogChanges;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreKryoSerializer;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreRequest;
+import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.BookStoreXStreamSerializer;
+
+/**
+ * {@link BookStoreReplicator} keeps the copy of the catalog of a
+ * {@link ReplicaCertainBookStore} up to date with its primary. It maps the
+ * snapshot file, first writing it from the catalog of the primary if no
+ * replica of the host did so yet, and then pulls the changes of the primary
+ * at a fixed delay. A reset, sent when the primary no longer has the changes
+ * the replica needs, is written to the snapshot file and mapped in turn, so
+ * that the overlay of the replica stays small.
+ */
+public class BookStoreReplicator {
+
+	/** The address of the primary. */
+	private final String primaryAddress;
+
+	/** The snapshot file. */
+	private final Path snapshotFile;
+
+	/** The client. */
+	private final HttpClient client;
+
+	/** The serializer, only used by the replication thread. */
+	private final BookStoreSerializer serializer;
+
+	/** The replication thread. */
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "bookstore-replicator");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Instantiates a new {@link BookStoreReplicator}.
+	 *
+	 * @param primaryAddress
+	 *            the address of the primary
+	 * @param snapshotFile
+	 *            the snapshot file, shared by the replicas of the host
+	 * @throws Exception
+	 *             if the client could not be started
+	 */
+	public BookStoreReplicator(String primaryAddress, Path snapshotFile) throws Exception {
+		this.primaryAddress = primaryAddress;
+		this.snapshotFile = snapshotFile;
+
+		if (BookStoreConstants.BINARY_SERIALIZATION) {
+			serializer = new BookStoreKryoSerializer();
+		} else {
+			serializer = new BookStoreXStreamSerializer();
+		}
+
+		client = new HttpClient();
+		client.start();
+	}
+
+	/**
+	 * Maps the snapshot file, writing it from the catalog of the primary if
+	 * it does not exist yet.
+	 *
+	 * @return the snapshot
+	 * @throws BookStoreException
+	 *             if the catalog of the primary could not be read
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public BookStoreSnapshot openSnapshot() throws BookStoreException, IOException {
+		if (!Files.exists(snapshotFile)) {
+			writeSnapshot(pullChanges(new BookStoreCatalogChanges(0, 0)));
+		}
+
+		return BookStoreSnapshot.open(snapshotFile);
+	}
+
+	/**
+	 * Starts pulling the changes of the primary into a replica store.
+	 *
+	 * @param store
+	 *            the replica store
+	 * @param pollMillis
+	 *            the delay between two pulls in milliseconds
+	 */
+	public void follow(ReplicaCertainBookStore store, long pollMillis) {
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				pullInto(store);
+			} catch (BookStoreException | IOException | RuntimeException ex) {
+				// The primary may be restarting; try again at the next pull.
+				System.err.println("Could not pull the changes of the primary: " + ex);
+			}
+		}, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Pulls the changes of the primary into a replica store once.
+	 *
+	 * @param store
+	 *            the replica store
+	 * @throws BookStoreException
+	 *             if the changes could not be pulled
+	 * @throws IOException
+	 *             if a reset could not be written to the snapshot file
+	 */
+	public void pullInto(ReplicaCertainBookStore store) throws BookStoreException, IOException {
+		BookStoreCatalogChanges changes = pullChanges(
+				new BookStoreCatalogChanges(store.getEpoch(), store.getSequence()));
+
+		if (changes.isReset()) {
+			writeSnapshot(changes);
+			store.load(BookStoreSnapshot.open(snapshotFile));
+		} else if (changes.getSequence() != store.getSequence()) {
+			store.apply(changes);
+		}
+	}
+
+	/**
+	 * Stops pulling changes and stops the client.
+	 *
+	 * @throws Exception
+	 *             if the client could not be stopped
+	 */
+	public void stop() throws Exception {
+		scheduler.shutdownNow();
+		client.stop();
+	}
+
+	/**
+	 * Pulls the changes since a position from the primary.
+	 *
+	 * @param position
+	 *            the position of the copy of the catalog
+	 * @return the changes
+	 * @throws BookStoreException
+	 *             if the changes could not be pulled
+	 */
+	private BookStoreCatalogChanges pullChanges(BookStoreCatalogChanges position) throws BookStoreException {
+		String urlString = primaryAddress + "/" + BookStoreMessageTag.GETCHANGES;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, position);
+		return (BookStoreCatalogChanges) BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer)
+				.getList().get(0);
+	}
+
+	/**
+	 * Writes the catalog of a reset to the snapshot file.
+	 *
+	 * @param changes
+	 *            the reset
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void writeSnapshot(BookStoreCatalogChanges changes) throws IOException {
+		BookStoreSnapshot.write(snapshotFile, changes.getEpoch(), changes.getSequence(), changes.getChangedBooks());
+	}
+}
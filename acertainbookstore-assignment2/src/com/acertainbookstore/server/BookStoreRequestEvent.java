@@ -0,0 +1,81 @@
+package com.acertainbookstore.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * {@link BookStoreRequestEvent} is the Java Flight Recorder event of a request
+ * handled by the {@link BookStoreHTTPMessageHandler}. Its duration is the
+ * whole request; the phase timings are 0 for the requests that did not run
+ * the phase, like the reads served by a coalesced read or with 304 Not
+ * Modified.
+ */
+@Name("com.acertainbookstore.Request")
+@Label("Bookstore Request")
+@Category({ "Bookstore", "Server" })
+@Description("A request handled by the bookstore HTTP message handler")
+@StackTrace(false)
+final class BookStoreRequestEvent extends Event {
+
+	/** The result of a request answered with the response of its operation. */
+	static final String RESULT_OK = "ok";
+
+	/** The result of a request whose operation threw a bookstore exception. */
+	static final String RESULT_EXCEPTION = "exception";
+
+	/** The result of a request answered with 304 Not Modified. */
+	static final String RESULT_NOT_MODIFIED = "not modified";
+
+	/** The result of a read answered by an identical read in flight. */
+	static final String RESULT_COALESCED = "coalesced";
+
+	/** The result of a request with an unsupported message tag. */
+	static final String RESULT_UNSUPPORTED = "unsupported";
+
+	/** The result of a request that failed with an I/O or runtime error. */
+	static final String RESULT_FAILED = "failed";
+
+	/** The message tag. */
+	@Label("Message Tag")
+	String messageTag;
+
+	/** The size of the request content. */
+	@Label("Request Size")
+	@DataAmount
+	long requestSize;
+
+	/** The size of the response content. */
+	@Label("Response Size")
+	@DataAmount
+	long responseSize;
+
+	/** The result. */
+	@Label("Result")
+	String result;
+
+	/** The time spent deserializing the input value. */
+	@Label("Deserialize Time")
+	@Timespan
+	long deserializeTime;
+
+	/** The time spent executing the operation against the store. */
+	@Label("Execute Time")
+	@Timespan
+	long executeTime;
+
+	/** The time the operation waited for the store locks. */
+	@Label("Lock Wait Time")
+	@Timespan
+	long lockWaitTime;
+
+	/** The time spent serializing the response. */
+	@Label("Serialize Time")
+	@Timespan
+	long serializeTime;
+}
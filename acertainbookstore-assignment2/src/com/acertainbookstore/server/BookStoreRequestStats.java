@@ -0,0 +1,272 @@
+package com.acertainbookstore.server;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.ConcurrentLatencyHistogram;
+import com.acertainbookstore.utils.LatencyHistogram;
+
+/**
+ * {@link BookStoreRequestStats} holds the request metrics of the
+ * {@link BookStoreHTTPMessageHandler} by {@link BookStoreMessageTag}: the
+ * number of requests and errors, and latency histograms of the whole request
+ * and of its deserialize, execute and serialize phases. Recording is
+ * lock-free, so the metrics can stay on in production.
+ *
+ * The metrics are rendered as JSON or in the Prometheus text exposition
+ * format, with latencies in microseconds and seconds respectively.
+ */
+public class BookStoreRequestStats {
+
+	/** The quantiles reported for every latency histogram. */
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	/** The JSON names of the quantiles. */
+	private static final String[] QUANTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+	/**
+	 * {@link Phase} is a part of the handling of a request.
+	 */
+	public enum Phase {
+
+		/** The whole request, from its content to its serialized response. */
+		TOTAL,
+
+		/** The deserialization of the input value. */
+		DESERIALIZE,
+
+		/** The execution against the store. */
+		EXECUTE,
+
+		/** The serialization of the response. */
+		SERIALIZE;
+	}
+
+	/** The metrics by message tag. */
+	private final Map<BookStoreMessageTag, OperationStats> operations = new EnumMap<>(BookStoreMessageTag.class);
+
+	/**
+	 * Instantiates a new {@link BookStoreRequestStats}.
+	 */
+	public BookStoreRequestStats() {
+		for (BookStoreMessageTag messageTag : BookStoreMessageTag.values()) {
+			operations.put(messageTag, new OperationStats());
+		}
+	}
+
+	/**
+	 * Records a handled request and its latency.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @param latencyNanos
+	 *            the latency in nanoseconds
+	 */
+	public void recordRequest(BookStoreMessageTag messageTag, long latencyNanos) {
+		OperationStats stats = operations.get(messageTag);
+		stats.requests.increment();
+		stats.latencies.get(Phase.TOTAL).record(latencyNanos);
+	}
+
+	/**
+	 * Records the latency of a phase of a request.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @param phase
+	 *            the phase
+	 * @param latencyNanos
+	 *            the latency in nanoseconds
+	 */
+	public void recordPhase(BookStoreMessageTag messageTag, Phase phase, long latencyNanos) {
+		operations.get(messageTag).latencies.get(phase).record(latencyNanos);
+	}
+
+	/**
+	 * Records a request that failed or was answered with an exception.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 */
+	public void recordError(BookStoreMessageTag messageTag) {
+		operations.get(messageTag).errors.increment();
+	}
+
+	/**
+	 * Gets the number of handled requests.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @return the number of requests
+	 */
+	public long getRequestCount(BookStoreMessageTag messageTag) {
+		return operations.get(messageTag).requests.sum();
+	}
+
+	/**
+	 * Gets the number of requests that failed or were answered with an
+	 * exception.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @return the number of errors
+	 */
+	public long getErrorCount(BookStoreMessageTag messageTag) {
+		return operations.get(messageTag).errors.sum();
+	}
+
+	/**
+	 * Gets a snapshot of the latencies of a phase.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @param phase
+	 *            the phase
+	 * @return the latency histogram
+	 */
+	public LatencyHistogram getLatencies(BookStoreMessageTag messageTag, Phase phase) {
+		return operations.get(messageTag).latencies.get(phase).snapshot();
+	}
+
+	/**
+	 * Renders the metrics of the operations that had requests as a JSON
+	 * object keyed by message tag.
+	 *
+	 * @return the JSON object
+	 */
+	public String toJson() {
+		StringBuilder json = new StringBuilder("{");
+		String separator = "";
+
+		for (BookStoreMessageTag messageTag : operations.keySet()) {
+			long requests = getRequestCount(messageTag);
+
+			if (requests == 0) {
+				continue;
+			}
+
+			json.append(separator).append('"').append(messageTag).append("\":{\"requests\":").append(requests)
+					.append(",\"errors\":").append(getErrorCount(messageTag)).append(",\"latencyMicros\":{");
+			separator = "";
+
+			for (Phase phase : Phase.values()) {
+				LatencyHistogram histogram = getLatencies(messageTag, phase);
+				json.append(separator).append('"').append(phase.name().toLowerCase(Locale.ROOT))
+						.append("\":{\"count\":").append(histogram.getTotalCount()).append(",\"mean\":")
+						.append(toMicros(histogram.getMean()));
+
+				for (int i = 0; i < QUANTILES.length; i++) {
+					json.append(",\"").append(QUANTILE_NAMES[i]).append("\":")
+							.append(toMicros(histogram.getPercentile(QUANTILES[i])));
+				}
+
+				json.append(",\"max\":").append(toMicros(histogram.getMax())).append('}');
+				separator = ",";
+			}
+
+			json.append("}}");
+			separator = ",";
+		}
+
+		return json.append("}").toString();
+	}
+
+	/**
+	 * Renders the metrics of the operations that had requests in the
+	 * Prometheus text exposition format.
+	 *
+	 * @return the metrics
+	 */
+	public String toPrometheus() {
+		StringBuilder requests = new StringBuilder(
+				"# HELP bookstore_requests_total The number of handled requests.\n"
+						+ "# TYPE bookstore_requests_total counter\n");
+		StringBuilder errors = new StringBuilder(
+				"# HELP bookstore_request_errors_total The number of failed requests.\n"
+						+ "# TYPE bookstore_request_errors_total counter\n");
+		StringBuilder latencies = new StringBuilder(
+				"# HELP bookstore_request_duration_seconds The request latency by phase.\n"
+						+ "# TYPE bookstore_request_duration_seconds summary\n");
+
+		for (BookStoreMessageTag messageTag : operations.keySet()) {
+			long requestCount = getRequestCount(messageTag);
+
+			if (requestCount == 0) {
+				continue;
+			}
+
+			String operation = "operation=\"" + messageTag + "\"";
+			requests.append("bookstore_requests_total{").append(operation).append("} ").append(requestCount)
+					.append('\n');
+			errors.append("bookstore_request_errors_total{").append(operation).append("} ")
+					.append(getErrorCount(messageTag)).append('\n');
+
+			for (Phase phase : Phase.values()) {
+				LatencyHistogram histogram = getLatencies(messageTag, phase);
+				String labels = operation + ",phase=\"" + phase.name().toLowerCase(Locale.ROOT) + "\"";
+
+				for (double quantile : QUANTILES) {
+					latencies.append("bookstore_request_duration_seconds{").append(labels).append(",quantile=\"")
+							.append(quantile).append("\"} ")
+							.append(toSeconds(histogram.getPercentile(quantile))).append('\n');
+				}
+
+				latencies.append("bookstore_request_duration_seconds_sum{").append(labels).append("} ")
+						.append(toSeconds(histogram.getMean() * histogram.getTotalCount())).append('\n');
+				latencies.append("bookstore_request_duration_seconds_count{").append(labels).append("} ")
+						.append(histogram.getTotalCount()).append('\n');
+			}
+		}
+
+		return requests.append(errors).append(latencies).toString();
+	}
+
+	/**
+	 * Converts nanoseconds to microseconds.
+	 *
+	 * @param nanos
+	 *            the nanoseconds
+	 * @return the microseconds, rounded to a tenth
+	 */
+	private static double toMicros(double nanos) {
+		return Math.round(nanos / 100.0) / 10.0;
+	}
+
+	/**
+	 * Converts nanoseconds to seconds.
+	 *
+	 * @param nanos
+	 *            the nanoseconds
+	 * @return the seconds
+	 */
+	private static double toSeconds(double nanos) {
+		return nanos / 1e9;
+	}
+
+	/**
+	 * {@link OperationStats} holds the metrics of one message tag.
+	 */
+	private static final class OperationStats {
+
+		/** The number of requests. */
+		private final LongAdder requests = new LongAdder();
+
+		/** The number of errors. */
+		private final LongAdder errors = new LongAdder();
+
+		/** The latencies by phase. */
+		private final Map<Phase, ConcurrentLatencyHistogram> latencies = new EnumMap<>(Phase.class);
+
+		/**
+		 * Instantiates a new {@link OperationStats}.
+		 */
+		private OperationStats() {
+			for (Phase phase : Phase.values()) {
+				latencies.put(phase, new ConcurrentLatencyHistogram());
+			}
+		}
+	}
+}
@@ -0,0 +1,404 @@
+package com.acertainbookstore.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+import com.acertainbookstore.interfaces.BookStoreSerializer;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreKryoSerializer;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreTCPFrame;
+import com.acertainbookstore.utils.BookStoreXStreamSerializer;
+
+/**
+ * {@link BookStoreTCPServer} serves the bookstore over the length-prefixed
+ * binary protocol of {@link BookStoreTCPFrame}, next to the HTTP server. A
+ * single selector thread accepts connections and reads request frames; the
+ * requests are executed on the worker executor through the dispatch of the
+ * {@link BookStoreHTTPMessageHandler}, so both servers share the same
+ * {@link BookStore} and {@link StockManager} implementations.
+ *
+ * Responses are written back in completion order, not request order; the
+ * client matches them to its requests by the request ID.
+ *
+ * @see BookStoreTCPFrame
+ */
+public class BookStoreTCPServer implements Runnable {
+
+	/** The port. */
+	private final int port;
+
+	/** The handler executing the messages. */
+	private final BookStoreHTTPMessageHandler handler;
+
+	/** The executor running the requests. */
+	private final ExecutorService workers;
+
+	/** The connections with responses waiting to be written. */
+	private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+	/** The serializer. */
+	private final ThreadLocal<BookStoreSerializer> serializer;
+
+	/** The selector. */
+	private Selector selector;
+
+	/** The server channel. */
+	private ServerSocketChannel serverChannel;
+
+	/** Whether the server is running. */
+	private volatile boolean running = false;
+
+	/**
+	 * Instantiates a new {@link BookStoreTCPServer}.
+	 *
+	 * @param port
+	 *            the port
+	 * @param handler
+	 *            the handler executing the messages
+	 * @param workers
+	 *            the executor running the requests
+	 */
+	public BookStoreTCPServer(int port, BookStoreHTTPMessageHandler handler, ExecutorService workers) {
+		this.port = port;
+		this.handler = handler;
+		this.workers = workers;
+
+		// Setup the type of serializer.
+		if (BookStoreConstants.BINARY_SERIALIZATION) {
+			serializer = ThreadLocal.withInitial(BookStoreKryoSerializer::new);
+		} else {
+			serializer = ThreadLocal.withInitial(BookStoreXStreamSerializer::new);
+		}
+	}
+
+	/**
+	 * Binds the port and starts the selector thread.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void start() throws IOException {
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		running = true;
+
+		Thread selectorThread = new Thread(this, "bookstore-tcp-" + port);
+		selectorThread.start();
+	}
+
+	/**
+	 * Stops the server and closes all its connections.
+	 */
+	public void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				selector.select();
+
+				Connection connection;
+
+				while ((connection = pendingWrites.poll()) != null) {
+					if (connection.key.isValid()) {
+						connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					}
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					try {
+						if (key.isAcceptable()) {
+							accept();
+						} else {
+							if (key.isReadable()) {
+								read((Connection) key.attachment());
+							}
+
+							if (key.isValid() && key.isWritable()) {
+								write((Connection) key.attachment());
+							}
+						}
+					} catch (IOException ex) {
+						// The client went away; drop the connection.
+						key.cancel();
+						key.channel().close();
+					}
+				}
+			}
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Accepts a new connection.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+
+		if (channel == null) {
+			return;
+		}
+
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+
+		Connection connection = new Connection(channel);
+		connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+	}
+
+	/**
+	 * Reads as many request frames as are available and dispatches them.
+	 *
+	 * @param connection
+	 *            the connection
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void read(Connection connection) throws IOException {
+		while (true) {
+			ByteBuffer buffer = connection.frame == null ? connection.length : connection.frame;
+			int bytesRead = connection.channel.read(buffer);
+
+			if (bytesRead < 0) {
+				throw new IOException("Connection closed");
+			}
+
+			if (buffer.hasRemaining()) {
+				return;
+			}
+
+			if (connection.frame == null) {
+				connection.length.flip();
+				int frameLength = connection.length.getInt();
+				connection.length.clear();
+
+				if (BookStoreTCPFrame.isInvalidFrameLength(frameLength, BookStoreTCPFrame.REQUEST_HEADER_SIZE)) {
+					throw new IOException("Invalid frame length " + frameLength);
+				}
+
+				connection.frame = ByteBuffer.allocate(frameLength);
+			} else {
+				connection.frame.flip();
+				dispatch(connection, connection.frame);
+				connection.frame = null;
+			}
+		}
+	}
+
+	/**
+	 * Executes a request frame on the workers and queues its response.
+	 *
+	 * @param connection
+	 *            the connection
+	 * @param frame
+	 *            the request frame, positioned after the length field
+	 */
+	private void dispatch(Connection connection, ByteBuffer frame) {
+		long requestId = frame.getLong();
+		int tagOrdinal = frame.getInt();
+		byte[] payload = BookStoreTCPFrame.getPayload(frame);
+
+		workers.execute(() -> {
+			byte[] serializedResponse;
+
+			try {
+				serializedResponse = serializer.get().serialize(execute(tagOrdinal, payload));
+			} catch (IOException | RuntimeException ex) {
+				ex.printStackTrace();
+				serializedResponse = serializeError(ex);
+			}
+
+			if (serializedResponse == null) {
+				// No response can be sent; closing the connection fails the
+				// pending calls of the client instead of leaving them waiting.
+				closeConnection(connection);
+				return;
+			}
+
+			connection.writes.add(BookStoreTCPFrame.encodeResponse(requestId, serializedResponse));
+			pendingWrites.add(connection);
+			selector.wakeup();
+		});
+	}
+
+	/**
+	 * Serializes an error response for a response that could not be
+	 * serialized.
+	 *
+	 * @param ex
+	 *            the serialization failure
+	 * @return the serialized error response, or null if it cannot be
+	 *         serialized either
+	 */
+	private byte[] serializeError(Exception ex) {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+		bookStoreResponse.setException(new BookStoreException("The response could not be serialized: " + ex));
+
+		try {
+			return serializer.get().serialize(bookStoreResponse);
+		} catch (IOException | RuntimeException serializeEx) {
+			return null;
+		}
+	}
+
+	/**
+	 * Closes a connection from a worker. The socket of a registered channel
+	 * is only closed once the selector drops its key, so the selector is
+	 * woken up to do so.
+	 *
+	 * @param connection
+	 *            the connection
+	 */
+	private void closeConnection(Connection connection) {
+		try {
+			connection.key.cancel();
+			connection.channel.close();
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+
+		selector.wakeup();
+	}
+
+	/**
+	 * Executes a request.
+	 *
+	 * @param tagOrdinal
+	 *            the ordinal of the message tag
+	 * @param payload
+	 *            the serialized input value, may be null
+	 * @return the book store response
+	 */
+	private BookStoreResponse execute(int tagOrdinal, byte[] payload) {
+		BookStoreMessageTag[] messageTags = BookStoreMessageTag.values();
+		BookStoreResponse bookStoreResponse = null;
+
+		try {
+			if (tagOrdinal >= 0 && tagOrdinal < messageTags.length) {
+				Object inputValue = payload == null ? null : serializer.get().deserialize(payload);
+				bookStoreResponse = handler.executeMessage(messageTags[tagOrdinal], inputValue);
+			}
+		} catch (IOException | RuntimeException ex) {
+			bookStoreResponse = new BookStoreResponse();
+			bookStoreResponse.setException(new BookStoreException(ex));
+		}
+
+		if (bookStoreResponse == null) {
+			bookStoreResponse = new BookStoreResponse();
+			bookStoreResponse.setException(new BookStoreException("Unsupported message tag."));
+		}
+
+		return bookStoreResponse;
+	}
+
+	/**
+	 * Writes the queued response frames of a connection.
+	 *
+	 * @param connection
+	 *            the connection
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void write(Connection connection) throws IOException {
+		ByteBuffer head;
+
+		while ((head = connection.writes.peek()) != null) {
+			connection.channel.write(head);
+
+			if (head.hasRemaining()) {
+				// The socket buffer is full; wait for the next OP_WRITE.
+				return;
+			}
+
+			connection.writes.poll();
+		}
+
+		connection.key.interestOps(SelectionKey.OP_READ);
+
+		// A worker may have queued a frame after the loop ended.
+		if (!connection.writes.isEmpty()) {
+			connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Closes the selector and all channels.
+	 */
+	private void close() {
+		try {
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+
+			selector.close();
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * {@link Connection} holds the read and write state of a client
+	 * connection.
+	 */
+	private static final class Connection {
+
+		/** The channel. */
+		private final SocketChannel channel;
+
+		/** The buffer of the length field being read. */
+		private final ByteBuffer length = ByteBuffer.allocate(BookStoreTCPFrame.LENGTH_FIELD_SIZE);
+
+		/** The frame being read, null while reading the length field. */
+		private ByteBuffer frame = null;
+
+		/** The response frames waiting to be written. */
+		private final Queue<ByteBuffer> writes = new ConcurrentLinkedQueue<>();
+
+		/** The selection key. */
+		private SelectionKey key;
+
+		/**
+		 * Instantiates a new {@link Connection}.
+		 *
+		 * @param channel
+		 *            the channel
+		 */
+		private Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package com.acertainbookstore.server;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.acertainbookstore.utils.BookStoreMessageTag;
+
+/**
+ * {@link BookStoreTrafficScheduler} runs the store operations of the
+ * asynchronous {@link BookStoreHTTPMessageHandler} on one executor per
+ * {@link TrafficClass}, each with its own number of threads and queue limit.
+ * A burst of one class only fills its own queue, and is rejected once the
+ * queue is full, while the other classes keep their threads.
+ *
+ * The checkout threads are reserved for purchases, so buyBooks always gets
+ * their share of the store however busy browsing and stock management are.
+ * Capping the concurrency of the other classes also bounds the number of
+ * their operations queued on the fair store locks ahead of a purchase.
+ */
+public class BookStoreTrafficScheduler {
+
+	/** The system property prefix of the traffic class settings. */
+	private static final String PROPERTY_PREFIX = "trafficclass.";
+
+	/** The system property suffix of the number of threads of a class. */
+	private static final String PROPERTY_SUFFIX_THREADS = ".threads";
+
+	/** The system property suffix of the queue limit of a class. */
+	private static final String PROPERTY_SUFFIX_QUEUE = ".queue";
+
+	/** The time idle threads are kept in seconds. */
+	private static final long KEEP_ALIVE_SECONDS = 60;
+
+	/**
+	 * {@link TrafficClass} is a class of requests sharing an executor.
+	 */
+	public enum TrafficClass {
+
+		/** The purchases, alone or in the batches of the customer proxy. */
+		CHECKOUT(20, 1000),
+
+		/** The other customer requests. */
+		BROWSE(60, 1000),
+
+		/** The stock manager requests. */
+		STOCK(10, 100);
+
+		/** The default number of threads. */
+		private final int defaultThreads;
+
+		/** The default queue limit. */
+		private final int defaultQueueLimit;
+
+		/**
+		 * Instantiates a new {@link TrafficClass}.
+		 *
+		 * @param defaultThreads
+		 *            the default number of threads
+		 * @param defaultQueueLimit
+		 *            the default queue limit
+		 */
+		TrafficClass(int defaultThreads, int defaultQueueLimit) {
+			this.defaultThreads = defaultThreads;
+			this.defaultQueueLimit = defaultQueueLimit;
+		}
+
+		/**
+		 * Gets the traffic class of a request.
+		 *
+		 * @param messageTag
+		 *            the message tag
+		 * @param stockRequest
+		 *            whether the request was sent to the stock manager path
+		 * @return the traffic class
+		 */
+		public static TrafficClass of(BookStoreMessageTag messageTag, boolean stockRequest) {
+			if (stockRequest) {
+				return STOCK;
+			}
+
+			switch (messageTag) {
+			case BUYBOOKS:
+			case BATCH:
+				return CHECKOUT;
+
+			default:
+				return BROWSE;
+			}
+		}
+	}
+
+	/** The executors by traffic class. */
+	private final Map<TrafficClass, ThreadPoolExecutor> executors = new EnumMap<>(TrafficClass.class);
+
+	/** The number of rejected requests by traffic class. */
+	private final Map<TrafficClass, LongAdder> rejections = new EnumMap<>(TrafficClass.class);
+
+	/**
+	 * Instantiates a new {@link BookStoreTrafficScheduler} with the default
+	 * sizes, overridden by the <code>trafficclass.&lt;class&gt;.threads</code>
+	 * and <code>trafficclass.&lt;class&gt;.queue</code> system properties.
+	 */
+	public BookStoreTrafficScheduler() {
+		this(new EnumMap<>(TrafficClass.class), new EnumMap<>(TrafficClass.class));
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreTrafficScheduler}. The classes
+	 * missing from the maps get the sizes of the system properties, or the
+	 * defaults.
+	 *
+	 * @param threads
+	 *            the number of threads by traffic class
+	 * @param queueLimits
+	 *            the queue limits by traffic class
+	 */
+	public BookStoreTrafficScheduler(Map<TrafficClass, Integer> threads, Map<TrafficClass, Integer> queueLimits) {
+		for (TrafficClass trafficClass : TrafficClass.values()) {
+			String name = trafficClass.name().toLowerCase(Locale.ROOT);
+			int classThreads = threads.getOrDefault(trafficClass,
+					Integer.getInteger(PROPERTY_PREFIX + name + PROPERTY_SUFFIX_THREADS, trafficClass.defaultThreads));
+			int queueLimit = queueLimits.getOrDefault(trafficClass, Integer
+					.getInteger(PROPERTY_PREFIX + name + PROPERTY_SUFFIX_QUEUE, trafficClass.defaultQueueLimit));
+
+			LongAdder rejected = new LongAdder();
+			AtomicInteger threadNumber = new AtomicInteger();
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(classThreads, classThreads, KEEP_ALIVE_SECONDS,
+					TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueLimit),
+					runnable -> new Thread(runnable, "bookstore-" + name + "-" + threadNumber.incrementAndGet()),
+					(runnable, pool) -> {
+						rejected.increment();
+						throw new RejectedExecutionException(trafficClass + " queue is full");
+					});
+			executor.allowCoreThreadTimeOut(true);
+
+			executors.put(trafficClass, executor);
+			rejections.put(trafficClass, rejected);
+		}
+	}
+
+	/**
+	 * Gets the executor of a traffic class. It throws a
+	 * {@link RejectedExecutionException} when its queue is full.
+	 *
+	 * @param trafficClass
+	 *            the traffic class
+	 * @return the executor
+	 */
+	public ExecutorService getExecutor(TrafficClass trafficClass) {
+		return executors.get(trafficClass);
+	}
+
+	/**
+	 * Gets the number of requests of a traffic class rejected because its
+	 * queue was full.
+	 *
+	 * @param trafficClass
+	 *            the traffic class
+	 * @return the number of rejected requests
+	 */
+	public long getRejectedCount(TrafficClass trafficClass) {
+		return rejections.get(trafficClass).sum();
+	}
+
+	/**
+	 * Stops all executors.
+	 */
+	public void shutdown() {
+		for (ExecutorService executor : executors.values()) {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Renders the size, activity and rejections of every traffic class as
+	 * JSON.
+	 *
+	 * @return the JSON object
+	 */
+	public String toJson() {
+		StringBuilder json = new StringBuilder("{");
+		String separator = "";
+
+		for (Map.Entry<TrafficClass, ThreadPoolExecutor> entry : executors.entrySet()) {
+			ThreadPoolExecutor executor = entry.getValue();
+			json.append(separator).append('"').append(entry.getKey()).append("\":{\"threads\":")
+					.append(executor.getMaximumPoolSize()).append(",\"active\":").append(executor.getActiveCount())
+					.append(",\"queued\":").append(executor.getQueue().size()).append(",\"queueLimit\":")
+					.append(executor.getQueue().size() + executor.getQueue().remainingCapacity())
+					.append(",\"completed\":").append(executor.getCompletedTaskCount()).append(",\"rejected\":")
+					.append(getRejectedCount(entry.getKey())).append('}');
+			separator = ",";
+		}
+
+		return json.append("}").toString();
+	}
+
+	/**
+	 * Renders the activity and rejections of every traffic class in the
+	 * Prometheus text exposition format.
+	 *
+	 * @return the metrics
+	 */
+	public String toPrometheus() {
+		StringBuilder active = new StringBuilder(
+				"# HELP bookstore_traffic_class_active_threads The threads running a request.\n"
+						+ "# TYPE bookstore_traffic_class_active_threads gauge\n");
+		StringBuilder queued = new StringBuilder(
+				"# HELP bookstore_traffic_class_queued_requests The requests waiting for a thread.\n"
+						+ "# TYPE bookstore_traffic_class_queued_requests gauge\n");
+		StringBuilder rejected = new StringBuilder(
+				"# HELP bookstore_traffic_class_rejected_total The requests rejected with a full queue.\n"
+						+ "# TYPE bookstore_traffic_class_rejected_total counter\n");
+
+		for (Map.Entry<TrafficClass, ThreadPoolExecutor> entry : executors.entrySet()) {
+			String labels = "{class=\"" + entry.getKey() + "\"} ";
+			active.append("bookstore_traffic_class_active_threads").append(labels)
+					.append(entry.getValue().getActiveCount()).append('\n');
+			queued.append("bookstore_traffic_class_queued_requests").append(labels)
+					.append(entry.getValue().getQueue().size()).append('\n');
+			rejected.append("bookstore_traffic_class_rejected_total").append(labels)
+					.append(getRejectedCount(entry.getKey())).append('\n');
+		}
+
+		return active.append(queued).append(rejected).toString();
+	}
+}
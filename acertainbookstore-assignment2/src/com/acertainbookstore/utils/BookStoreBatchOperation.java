@@ -0,0 +1,47 @@
+package com.acertainbookstore.utils;
+
+/**
+ * {@link BookStoreBatchOperation} is the data structure that encapsulates one
+ * operation of a {@link BookStoreMessageTag#BATCH} request, i.e., the message
+ * tag and the input value that would otherwise be sent in its own HTTP
+ * request.
+ */
+public final class BookStoreBatchOperation {
+
+	/** The message tag. */
+	private final BookStoreMessageTag messageTag;
+
+	/** The input value. */
+	private final Object inputValue;
+
+	/**
+	 * Instantiates a new {@link BookStoreBatchOperation}.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @param inputValue
+	 *            the input value
+	 */
+	public BookStoreBatchOperation(BookStoreMessageTag messageTag, Object inputValue) {
+		this.messageTag = messageTag;
+		this.inputValue = inputValue;
+	}
+
+	/**
+	 * Gets the message tag.
+	 *
+	 * @return the message tag
+	 */
+	public BookStoreMessageTag getMessageTag() {
+		return messageTag;
+	}
+
+	/**
+	 * Gets the input value.
+	 *
+	 * @return the input value
+	 */
+	public Object getInputValue() {
+		return inputValue;
+	}
+}
@@ -0,0 +1,47 @@
+package com.acertainbookstore.utils;
+
+/**
+ * {@link BookStoreCachedResponse} is the last serialized response a client
+ * received for a URL, together with the entity tag the server sent with it.
+ * The client sends the entity tag back with the next request for the URL and
+ * reuses the content if the server answers that it has not been modified.
+ */
+public final class BookStoreCachedResponse {
+
+	/** The entity tag. */
+	private final String entityTag;
+
+	/** The serialized response content. */
+	private final byte[] content;
+
+	/**
+	 * Instantiates a new {@link BookStoreCachedResponse}.
+	 *
+	 * @param entityTag
+	 *            the entity tag
+	 * @param content
+	 *            the serialized response content
+	 */
+	public BookStoreCachedResponse(String entityTag, byte[] content) {
+		this.entityTag = entityTag;
+		this.content = content;
+	}
+
+	/**
+	 * Gets the entity tag.
+	 *
+	 * @return the entity tag
+	 */
+	public String getEntityTag() {
+		return entityTag;
+	}
+
+	/**
+	 * Gets the serialized response content.
+	 *
+	 * @return the content
+	 */
+	public byte[] getContent() {
+		return content;
+	}
+}
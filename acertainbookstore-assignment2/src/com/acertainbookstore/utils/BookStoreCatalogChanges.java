@@ -0,0 +1,119 @@
+package com.acertainbookstore.utils;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import com.acertainbookstore.business.StockBook;
+
+/**
+ * {@link BookStoreCatalogChanges} is the data structure exchanged by a
+ * read-only replica and its primary in a
+ * {@link BookStoreMessageTag#GETCHANGES} request. The replica sends the
+ * position of its copy of the catalog, i.e., the epoch of the change log of
+ * the primary and the sequence number of the last change it applied. The
+ * primary answers with the current state of the books changed since, and the
+ * ISBNs of the books removed since, at a new position.
+ *
+ * If the primary no longer has the changes since the position of the
+ * replica, e.g., because it restarted, the answer is a reset: the whole
+ * catalog, replacing the copy of the replica.
+ */
+public final class BookStoreCatalogChanges {
+
+	/** The epoch of the change log. */
+	private final long epoch;
+
+	/** The sequence number of the last change. */
+	private final long sequence;
+
+	/** Whether the books replace the whole catalog. */
+	private final boolean reset;
+
+	/** The current state of the changed books. */
+	private final List<StockBook> changedBooks;
+
+	/** The ISBNs of the removed books. */
+	private final Set<Integer> removedISBNs;
+
+	/**
+	 * Instantiates a new {@link BookStoreCatalogChanges} naming the position
+	 * of a copy of the catalog, as sent by a replica.
+	 *
+	 * @param epoch
+	 *            the epoch of the change log, 0 if unknown
+	 * @param sequence
+	 *            the sequence number of the last change applied
+	 */
+	public BookStoreCatalogChanges(long epoch, long sequence) {
+		this(epoch, sequence, false, Collections.emptyList(), Collections.emptySet());
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreCatalogChanges}.
+	 *
+	 * @param epoch
+	 *            the epoch of the change log
+	 * @param sequence
+	 *            the sequence number of the last change
+	 * @param reset
+	 *            whether the books replace the whole catalog
+	 * @param changedBooks
+	 *            the current state of the changed books
+	 * @param removedISBNs
+	 *            the ISBNs of the removed books
+	 */
+	public BookStoreCatalogChanges(long epoch, long sequence, boolean reset, List<StockBook> changedBooks,
+			Set<Integer> removedISBNs) {
+		this.epoch = epoch;
+		this.sequence = sequence;
+		this.reset = reset;
+		this.changedBooks = changedBooks;
+		this.removedISBNs = removedISBNs;
+	}
+
+	/**
+	 * Gets the epoch of the change log.
+	 *
+	 * @return the epoch
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Gets the sequence number of the last change.
+	 *
+	 * @return the sequence number
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Checks whether the books replace the whole catalog.
+	 *
+	 * @return true, if the changes are a reset
+	 */
+	public boolean isReset() {
+		return reset;
+	}
+
+	/**
+	 * Gets the current state of the changed books.
+	 *
+	 * @return the changed books
+	 */
+	public List<StockBook> getChangedBooks() {
+		return changedBooks;
+	}
+
+	/**
+	 * Gets the ISBNs of the removed books.
+	 *
+	 * @return the removed ISBNs
+	 */
+	public Set<Integer> getRemovedISBNs() {
+		return removedISBNs;
+	}
+}
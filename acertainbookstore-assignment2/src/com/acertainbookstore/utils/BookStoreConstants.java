@@ -19,6 +19,27 @@ public final class BookStoreConstants {
 	/** The Constant BOOK_NUM_PARAM. */
 	public static final String BOOK_NUM_PARAM = "number_of_books";
 
+	/** The Constant STATS_PATH of the request metrics endpoint. */
+	public static final String STATS_PATH = "/stats";
+
+	/** The Constant STATS_FORMAT_PARAM selecting the metrics format. */
+	public static final String STATS_FORMAT_PARAM = "format";
+
+	/** The Constant STATS_FORMAT_PROMETHEUS for the Prometheus text format. */
+	public static final String STATS_FORMAT_PROMETHEUS = "prometheus";
+
+	/** The header carrying the ID of a request, echoed in the response. */
+	public static final String REQUEST_ID_HEADER = "X-Request-Id";
+
+	/** The header carrying the time a client sent a request, in epoch microseconds. */
+	public static final String CLIENT_SEND_TIME_HEADER = "X-Client-Send-Time";
+
+	/** The header carrying the server-side timing breakdown of a request. */
+	public static final String SERVER_TIMING_HEADER = "Server-Timing";
+
+	/** The seconds an overloaded server asks clients to wait before retrying. */
+	public static final int OVERLOAD_RETRY_AFTER_SECONDS = 1;
+
 	/** The Constant XMLSTRINGLEN_PARAM. */
 	public static final String XMLSTRINGLEN_PARAM = "len";
 
@@ -54,15 +75,75 @@ public final class BookStoreConstants {
 	/** The Constant NULL_INPUT. */
 	public static final String NULL_INPUT = "null input parameters";
 
+	/** The Constant READ_ONLY_REPLICA when a replica rejects a write. */
+	public static final String READ_ONLY_REPLICA = "This server is a read-only replica";
+
+	/** The Constant VERSIONS_NOT_SUPPORTED when a store issues no book versions. */
+	public static final String VERSIONS_NOT_SUPPORTED = "This server does not issue book versions";
+
+	/** The Constant CHANGE_LOG_DISABLED when a server has no change log. */
+	public static final String CHANGE_LOG_DISABLED = "This server does not record changes for replicas";
+
+	/** The Constant STORE_STOPPED when a stopped store is asked to write. */
+	public static final String STORE_STOPPED = "The store is stopped";
+
 	/** The Constant PROPERTY_KEY_LOCAL_TEST. */
 	public static final String PROPERTY_KEY_LOCAL_TEST = "localtest";
 	
 	/** The Constant PROPERTY_KEY_SINGLE_LOCK. */
 	public static final String PROPERTY_KEY_SINGLE_LOCK = "singlelock";
 
+	/** The Constant PROPERTY_KEY_DETERMINISTIC. */
+	public static final String PROPERTY_KEY_DETERMINISTIC = "deterministic";
+
+	/** The Constant PROPERTY_KEY_OPTIMISTIC. */
+	public static final String PROPERTY_KEY_OPTIMISTIC = "optimistic";
+
+	/** The Constant PROPERTY_KEY_PERSISTENT_CATALOG. */
+	public static final String PROPERTY_KEY_PERSISTENT_CATALOG = "persistentcatalog";
+
 	/** The Constant PROPERTY_KEY_SERVER_PORT. */
 	public static final String PROPERTY_KEY_SERVER_PORT = "port";
 
+	/** The Constant PROPERTY_KEY_SERVER_ASYNC. */
+	public static final String PROPERTY_KEY_SERVER_ASYNC = "async";
+
+	/** The Constant PROPERTY_KEY_SERVER_VIRTUAL_THREADS. */
+	public static final String PROPERTY_KEY_SERVER_VIRTUAL_THREADS = "virtualthreads";
+
+	/** The Constant PROPERTY_KEY_SERVER_TRAFFIC_CLASSES. */
+	public static final String PROPERTY_KEY_SERVER_TRAFFIC_CLASSES = "trafficclasses";
+
+	/** The Constant PROPERTY_KEY_SERVER_ADMISSION_CONTROL. */
+	public static final String PROPERTY_KEY_SERVER_ADMISSION_CONTROL = "admissioncontrol";
+
+	/** The Constant PROPERTY_KEY_SERVER_CHANGE_LOG. */
+	public static final String PROPERTY_KEY_SERVER_CHANGE_LOG = "changelog";
+
+	/** The Constant PROPERTY_KEY_REPLICA_OF naming the primary of a replica. */
+	public static final String PROPERTY_KEY_REPLICA_OF = "replicaof";
+
+	/** The Constant PROPERTY_KEY_SNAPSHOT_FILE. */
+	public static final String PROPERTY_KEY_SNAPSHOT_FILE = "snapshotfile";
+
+	/** The Constant PROPERTY_KEY_REPLICA_FORWARD_WRITES. */
+	public static final String PROPERTY_KEY_REPLICA_FORWARD_WRITES = "replicaforwardwrites";
+
+	/** The default snapshot file of the replicas. */
+	public static final String DEFAULT_SNAPSHOT_FILE = "bookstore.snapshot";
+
+	/** The delay between two pulls of the changes of a replica. */
+	public static final long REPLICA_POLL_MILLISECS = 100;
+
+	/** The Constant PROPERTY_KEY_SERVER_TCP_PORT. */
+	public static final String PROPERTY_KEY_SERVER_TCP_PORT = "tcpport";
+
+	/** The Constant PROPERTY_KEY_LOCK_STATS. */
+	public static final String PROPERTY_KEY_LOCK_STATS = "lockstats";
+
+	/** The Constant PROPERTY_KEY_TRACE_FILE. */
+	public static final String PROPERTY_KEY_TRACE_FILE = "tracefile";
+
 	/** The Constant EPSILON used for floating point number comparison */
 	public static final float EPSILON = 0.000001F;
 
@@ -34,5 +34,14 @@ public enum BookStoreMessageTag {
 	REMOVEBOOKS,
 
 	/** The tag for the get stock books by ISBN message. */
-	GETSTOCKBOOKSBYISBN;
+	GETSTOCKBOOKSBYISBN,
+
+	/** The tag for the batch message carrying an ordered list of messages. */
+	BATCH,
+
+	/** The tag for the message revalidating cached books by version stamp. */
+	REVALIDATEBOOKS,
+
+	/** The tag for the message getting the catalog changes for a replica. */
+	GETCHANGES;
 }
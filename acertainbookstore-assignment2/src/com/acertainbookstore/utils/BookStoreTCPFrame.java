@@ -0,0 +1,110 @@
+package com.acertainbookstore.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link BookStoreTCPFrame} implements the framing of the binary TCP protocol
+ * spoken by the {@link BookStoreTCPServer} and the {@link BookStoreTCPProxy}.
+ *
+ * Every frame starts with its length (an int counting the bytes after the
+ * length field) followed by the request ID (a long), which lets a client
+ * multiplex many in-flight requests over one connection. Request frames
+ * then carry the ordinal of the {@link BookStoreMessageTag} (an int) and the
+ * serialized input value, response frames the serialized
+ * {@link BookStoreResponse}. An empty payload stands for a null value.
+ */
+public final class BookStoreTCPFrame {
+
+	/** The size of the length field. */
+	public static final int LENGTH_FIELD_SIZE = Integer.BYTES;
+
+	/** The size of the request header after the length field. */
+	public static final int REQUEST_HEADER_SIZE = Long.BYTES + Integer.BYTES;
+
+	/** The size of the response header after the length field. */
+	public static final int RESPONSE_HEADER_SIZE = Long.BYTES;
+
+	/** The maximum frame length accepted, guarding against corrupt input. */
+	public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+	/**
+	 * Prevents the instantiation of a new {@link BookStoreTCPFrame}.
+	 */
+	private BookStoreTCPFrame() {
+		// Prevent instantiation.
+	}
+
+	/**
+	 * Encodes a request frame.
+	 *
+	 * @param requestId
+	 *            the request ID
+	 * @param messageTag
+	 *            the message tag
+	 * @param payload
+	 *            the serialized input value, may be null
+	 * @return the frame, ready to be written
+	 */
+	public static ByteBuffer encodeRequest(long requestId, BookStoreMessageTag messageTag, byte[] payload) {
+		int payloadLength = payload == null ? 0 : payload.length;
+		ByteBuffer frame = ByteBuffer.allocate(LENGTH_FIELD_SIZE + REQUEST_HEADER_SIZE + payloadLength);
+		frame.putInt(REQUEST_HEADER_SIZE + payloadLength);
+		frame.putLong(requestId);
+		frame.putInt(messageTag.ordinal());
+
+		if (payload != null) {
+			frame.put(payload);
+		}
+
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Encodes a response frame.
+	 *
+	 * @param requestId
+	 *            the request ID
+	 * @param payload
+	 *            the serialized response
+	 * @return the frame, ready to be written
+	 */
+	public static ByteBuffer encodeResponse(long requestId, byte[] payload) {
+		ByteBuffer frame = ByteBuffer.allocate(LENGTH_FIELD_SIZE + RESPONSE_HEADER_SIZE + payload.length);
+		frame.putInt(RESPONSE_HEADER_SIZE + payload.length);
+		frame.putLong(requestId);
+		frame.put(payload);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Checks if a frame length read from the wire is invalid.
+	 *
+	 * @param frameLength
+	 *            the frame length
+	 * @param headerSize
+	 *            the header size of the expected frame type
+	 * @return true, if the frame length is invalid
+	 */
+	public static boolean isInvalidFrameLength(int frameLength, int headerSize) {
+		return frameLength < headerSize || frameLength > MAX_FRAME_LENGTH;
+	}
+
+	/**
+	 * Gets the remaining bytes of a frame as the payload.
+	 *
+	 * @param frame
+	 *            the frame, positioned after the header
+	 * @return the payload, or null if the payload is empty
+	 */
+	public static byte[] getPayload(ByteBuffer frame) {
+		if (!frame.hasRemaining()) {
+			return null;
+		}
+
+		byte[] payload = new byte[frame.remaining()];
+		frame.get(payload);
+		return payload;
+	}
+}
@@ -0,0 +1,160 @@
+package com.acertainbookstore.utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link BookStoreTraceMerger} merges the trace files written by the
+ * {@link BookStoreTracer} of clients and servers into one timeline per
+ * request: the spans of each request sorted by start, with their offset from
+ * the first span and their duration in milliseconds. Requests are printed in
+ * start order, or the slowest first if <code>-Dtrace.top=N</code> asks for
+ * the N slowest only.
+ *
+ * Usage: BookStoreTraceMerger traceFile...
+ */
+public final class BookStoreTraceMerger {
+
+	/** The property limiting the output to the slowest requests. */
+	private static final String PROPERTY_KEY_TOP = "trace.top";
+
+	/**
+	 * Prevents the instantiation of a new {@link BookStoreTraceMerger}.
+	 */
+	private BookStoreTraceMerger() {
+		// Prevent instances from being created.
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            the trace files
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("Usage: BookStoreTraceMerger traceFile...");
+			return;
+		}
+
+		Map<String, List<Span>> spansByRequest = new HashMap<>();
+
+		for (String traceFile : args) {
+			for (String line : Files.readAllLines(Paths.get(traceFile), StandardCharsets.UTF_8)) {
+				String[] fields = line.split("\t");
+
+				if (fields.length < 4) {
+					continue;
+				}
+
+				spansByRequest.computeIfAbsent(fields[0], requestId -> new ArrayList<>())
+						.add(new Span(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+								fields.length > 4 ? fields[4] : ""));
+			}
+		}
+
+		List<Timeline> timelines = new ArrayList<>();
+
+		for (Map.Entry<String, List<Span>> request : spansByRequest.entrySet()) {
+			timelines.add(new Timeline(request.getKey(), request.getValue()));
+		}
+
+		String top = System.getProperty(PROPERTY_KEY_TOP);
+
+		if (top == null) {
+			timelines.sort(Comparator.comparingLong(timeline -> timeline.start));
+		} else {
+			timelines.sort(Comparator.comparingLong((Timeline timeline) -> timeline.end - timeline.start).reversed());
+			timelines = timelines.subList(0, Math.min(timelines.size(), Integer.parseInt(top)));
+		}
+
+		for (Timeline timeline : timelines) {
+			System.out.printf("%s  %.3f ms%n", timeline.requestId, (timeline.end - timeline.start) / 1000.0);
+
+			for (Span span : timeline.spans) {
+				System.out.printf("  +%9.3f ms %9.3f ms  %-20s %s%n", (span.start - timeline.start) / 1000.0,
+						span.duration / 1000.0, span.name, span.thread);
+			}
+		}
+	}
+
+	/**
+	 * {@link Span} is a span read from a trace file.
+	 */
+	private static final class Span {
+
+		/** The name. */
+		private final String name;
+
+		/** The start in epoch microseconds. */
+		private final long start;
+
+		/** The duration in microseconds. */
+		private final long duration;
+
+		/** The thread. */
+		private final String thread;
+
+		/**
+		 * Instantiates a new {@link Span}.
+		 *
+		 * @param name
+		 *            the name
+		 * @param start
+		 *            the start in epoch microseconds
+		 * @param duration
+		 *            the duration in microseconds
+		 * @param thread
+		 *            the thread
+		 */
+		private Span(String name, long start, long duration, String thread) {
+			this.name = name;
+			this.start = start;
+			this.duration = duration;
+			this.thread = thread;
+		}
+	}
+
+	/**
+	 * {@link Timeline} is the sorted spans of a request.
+	 */
+	private static final class Timeline {
+
+		/** The request ID. */
+		private final String requestId;
+
+		/** The spans sorted by start. */
+		private final List<Span> spans;
+
+		/** The start of the first span in epoch microseconds. */
+		private final long start;
+
+		/** The end of the last span in epoch microseconds. */
+		private final long end;
+
+		/**
+		 * Instantiates a new {@link Timeline}.
+		 *
+		 * @param requestId
+		 *            the request ID
+		 * @param spans
+		 *            the spans
+		 */
+		private Timeline(String requestId, List<Span> spans) {
+			spans.sort(Comparator.comparingLong(span -> span.start));
+			this.requestId = requestId;
+			this.spans = spans;
+			this.start = spans.get(0).start;
+			this.end = spans.stream().mapToLong(span -> span.start + span.duration).max().getAsLong();
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package com.acertainbookstore.utils;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link BookStoreTracer} writes the spans of the traced requests to the local
+ * trace file named by the <code>tracefile</code> system property, one span per
+ * line: the request ID, the span name, the start in epoch microseconds, the
+ * duration in microseconds and the thread, separated by tabs. Clients and
+ * servers write their own files, which {@link BookStoreTraceMerger} merges
+ * into per-request timelines by request ID.
+ *
+ * Span times are taken with {@link System#nanoTime()} and converted to epoch
+ * microseconds from the wall clock read once at startup, so spans of one
+ * process never go backwards and spans of processes on the same host line up
+ * to within the precision of the wall clock. Without the property, no spans
+ * are written.
+ */
+public final class BookStoreTracer {
+
+	/** The wall clock at startup in epoch microseconds. */
+	private static final long BASE_EPOCH_MICROS = System.currentTimeMillis() * 1000;
+
+	/** The monotonic clock at startup in nanoseconds. */
+	private static final long BASE_NANOS = System.nanoTime();
+
+	/**
+	 * The random prefix of the request IDs, so that the IDs of different
+	 * clients do not collide.
+	 */
+	private static final String REQUEST_ID_PREFIX = Long.toHexString(ThreadLocalRandom.current().nextLong());
+
+	/** The sequence number of the last request ID. */
+	private static final AtomicLong lastRequestId = new AtomicLong();
+
+	/** The trace file writer, null if tracing is disabled. */
+	private static final Writer traceWriter = openTraceWriter();
+
+	/**
+	 * The lock of the trace file writer; not a monitor, so that a virtual
+	 * thread writing a span does not pin its carrier thread.
+	 */
+	private static final ReentrantLock writeLock = new ReentrantLock();
+
+	/**
+	 * Prevents the instantiation of a new {@link BookStoreTracer}.
+	 */
+	private BookStoreTracer() {
+		// Prevent instances from being created.
+	}
+
+	/**
+	 * Checks whether spans are written to a trace file.
+	 *
+	 * @return true, if tracing is enabled
+	 */
+	public static boolean isEnabled() {
+		return traceWriter != null;
+	}
+
+	/**
+	 * Creates a new request ID.
+	 *
+	 * @return the request ID
+	 */
+	public static String newRequestId() {
+		return REQUEST_ID_PREFIX + "-" + lastRequestId.incrementAndGet();
+	}
+
+	/**
+	 * Converts a {@link System#nanoTime()} reading to epoch microseconds.
+	 *
+	 * @param nanoTime
+	 *            the nano time
+	 * @return the time in epoch microseconds
+	 */
+	public static long toEpochMicros(long nanoTime) {
+		return BASE_EPOCH_MICROS + (nanoTime - BASE_NANOS) / 1000;
+	}
+
+	/**
+	 * Gets the current time in epoch microseconds.
+	 *
+	 * @return the current time in epoch microseconds
+	 */
+	public static long currentTimeMicros() {
+		return toEpochMicros(System.nanoTime());
+	}
+
+	/**
+	 * Writes a span of a request to the trace file, if tracing is enabled.
+	 *
+	 * @param requestId
+	 *            the request ID, the span is dropped if null
+	 * @param name
+	 *            the span name
+	 * @param startNanos
+	 *            the start, as a {@link System#nanoTime()} reading
+	 * @param endNanos
+	 *            the end, as a {@link System#nanoTime()} reading
+	 */
+	public static void span(String requestId, String name, long startNanos, long endNanos) {
+		if (traceWriter != null && requestId != null) {
+			write(requestId, name, toEpochMicros(startNanos), (endNanos - startNanos) / 1000);
+		}
+	}
+
+	/**
+	 * Writes a span of a request that started in another process to the
+	 * trace file, if tracing is enabled.
+	 *
+	 * @param requestId
+	 *            the request ID, the span is dropped if null
+	 * @param name
+	 *            the span name
+	 * @param startEpochMicros
+	 *            the start in epoch microseconds
+	 * @param endNanos
+	 *            the end, as a {@link System#nanoTime()} reading
+	 */
+	public static void spanSince(String requestId, String name, long startEpochMicros, long endNanos) {
+		if (traceWriter != null && requestId != null) {
+			write(requestId, name, startEpochMicros, toEpochMicros(endNanos) - startEpochMicros);
+		}
+	}
+
+	/**
+	 * Flushes the spans written so far to the trace file.
+	 */
+	public static void flush() {
+		if (traceWriter != null) {
+			writeLock.lock();
+			try {
+				traceWriter.flush();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			} finally {
+				writeLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Writes a span line.
+	 *
+	 * @param requestId
+	 *            the request ID
+	 * @param name
+	 *            the span name
+	 * @param startMicros
+	 *            the start in epoch microseconds
+	 * @param durationMicros
+	 *            the duration in microseconds
+	 */
+	private static void write(String requestId, String name, long startMicros, long durationMicros) {
+		String line = requestId + '\t' + name + '\t' + startMicros + '\t' + durationMicros + '\t'
+				+ Thread.currentThread().getName() + '\n';
+
+		writeLock.lock();
+		try {
+			traceWriter.write(line);
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Opens the trace file named by the system property, appending to it, and
+	 * flushes it when the JVM exits.
+	 *
+	 * @return the trace file writer, or null if tracing is disabled
+	 */
+	private static Writer openTraceWriter() {
+		String traceFile = System.getProperty(BookStoreConstants.PROPERTY_KEY_TRACE_FILE);
+
+		if (BookStoreUtility.isEmpty(traceFile)) {
+			return null;
+		}
+
+		try {
+			Writer writer = new BufferedWriter(new FileWriter(traceFile, true));
+			Runtime.getRuntime().addShutdownHook(new Thread(BookStoreTracer::flush));
+			return writer;
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			return null;
+		}
+	}
+}
@@ -1,15 +1,24 @@
 package com.acertainbookstore.utils;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.api.ContentProvider;
 import org.eclipse.jetty.client.api.ContentResponse;
 import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
 import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.http.HttpStatus;
 
 import com.acertainbookstore.client.BookStoreClientConstants;
 import com.acertainbookstore.interfaces.BookStoreSerializer;
@@ -149,7 +158,8 @@ public final class BookStoreUtility {
 	}
 
 	/**
-	 * Perform HTTP exchange.
+	 * Perform HTTP exchange. A request rejected by an overloaded server is
+	 * sent again after a backoff.
 	 *
 	 * @param client
 	 *            the client
@@ -163,7 +173,315 @@ public final class BookStoreUtility {
 	 */
 	public static BookStoreResponse performHttpExchange(HttpClient client, BookStoreRequest bookStoreRequest,
 			BookStoreSerializer serializer) throws BookStoreException {
+		String requestId = BookStoreTracer.newRequestId();
+		ContentResponse response = sendHttpRequest(client, bookStoreRequest, serializer, requestId, null);
+		return decodeResponse(requestId, response.getContent(), serializer);
+	}
+
+	/**
+	 * Perform a conditional HTTP exchange. If a response for the URL has been
+	 * cached, its entity tag is sent in an If-None-Match header and the cached
+	 * content is reused when the server answers 304 Not Modified. A successful
+	 * response carrying an ETag header replaces the cached one. A request
+	 * rejected by an overloaded server is sent again after a backoff.
+	 *
+	 * @param client
+	 *            the client
+	 * @param bookStoreRequest
+	 *            the book store request
+	 * @param serializer
+	 *            the serializer
+	 * @param cachedResponses
+	 *            the cached responses by URL
+	 * @return the book store response
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public static BookStoreResponse performConditionalHttpExchange(HttpClient client,
+			BookStoreRequest bookStoreRequest, BookStoreSerializer serializer,
+			Map<String, BookStoreCachedResponse> cachedResponses) throws BookStoreException {
+		String url = bookStoreRequest.getURLString();
+		BookStoreCachedResponse cachedResponse = cachedResponses.get(url);
+		String requestId = BookStoreTracer.newRequestId();
+		ContentResponse response = sendHttpRequest(client, bookStoreRequest, serializer, requestId,
+				cachedResponse == null ? null : cachedResponse.getEntityTag());
+
+		if (cachedResponse != null && response.getStatus() == HttpStatus.NOT_MODIFIED_304) {
+			return decodeResponse(requestId, cachedResponse.getContent(), serializer);
+		}
+
+		byte[] content = response.getContent();
+		BookStoreResponse bookStoreResponse = decodeResponse(requestId, content, serializer);
+		String entityTag = response.getHeaders().get(HttpHeader.ETAG);
+
+		// Only successful responses are cached, decodeResponse throws otherwise.
+		if (entityTag != null) {
+			cachedResponses.put(url, new BookStoreCachedResponse(entityTag, content));
+		}
+
+		return bookStoreResponse;
+	}
+
+	/**
+	 * Perform HTTP exchange without blocking the calling thread. The returned
+	 * future is completed from a client thread once the response has arrived,
+	 * exceptionally with a {@link BookStoreException} on failure.
+	 *
+	 * @param client
+	 *            the client
+	 * @param bookStoreRequest
+	 *            the book store request
+	 * @param serializer
+	 *            the serializer, per thread since the response is
+	 *            deserialized on a client thread
+	 * @return the future book store response
+	 */
+	public static CompletableFuture<BookStoreResponse> performHttpExchangeAsync(HttpClient client,
+			BookStoreRequest bookStoreRequest, ThreadLocal<BookStoreSerializer> serializer) {
+		return sendHttpRequestAsync(client, bookStoreRequest, serializer).thenCompose(bookStoreResponse -> {
+			BookStoreException exception = bookStoreResponse.getException();
+			return exception == null ? CompletableFuture.completedFuture(bookStoreResponse) : failedFuture(exception);
+		});
+	}
+
+	/**
+	 * Sends an HTTP request without blocking the calling thread. Unlike
+	 * {@link #performHttpExchangeAsync}, the returned future only fails if the
+	 * exchange itself fails; an exception raised by the server is returned in
+	 * the response. Cancelling the future aborts the request. A request
+	 * rejected by an overloaded server is sent again after a backoff, from a
+	 * scheduler thread of the client.
+	 *
+	 * @param client
+	 *            the client
+	 * @param bookStoreRequest
+	 *            the book store request
+	 * @param serializer
+	 *            the serializer, per thread since the response is
+	 *            deserialized on a client thread
+	 * @return the future book store response
+	 */
+	public static CompletableFuture<BookStoreResponse> sendHttpRequestAsync(HttpClient client,
+			BookStoreRequest bookStoreRequest, ThreadLocal<BookStoreSerializer> serializer) {
+		CompletableFuture<BookStoreResponse> future = new CompletableFuture<>();
+		AtomicReference<Request> currentRequest = new AtomicReference<>();
+
+		future.whenComplete((bookStoreResponse, ex) -> {
+			Request request = currentRequest.get();
+
+			if (future.isCancelled() && request != null) {
+				request.abort(ex);
+			}
+		});
+
+		sendHttpRequestAsync(client, bookStoreRequest, serializer, BookStoreTracer.newRequestId(), 0, future,
+				currentRequest);
+		return future;
+	}
+
+	/**
+	 * Sends an attempt of an HTTP request without blocking the calling thread.
+	 *
+	 * @param client
+	 *            the client
+	 * @param bookStoreRequest
+	 *            the book store request
+	 * @param serializer
+	 *            the serializer
+	 * @param requestId
+	 *            the request ID, the same for all attempts
+	 * @param attempt
+	 *            the number of attempts rejected so far
+	 * @param future
+	 *            the future book store response
+	 * @param currentRequest
+	 *            the HTTP request of the current attempt, aborted if the
+	 *            future is cancelled
+	 */
+	private static void sendHttpRequestAsync(HttpClient client, BookStoreRequest bookStoreRequest,
+			ThreadLocal<BookStoreSerializer> serializer, String requestId, int attempt,
+			CompletableFuture<BookStoreResponse> future, AtomicReference<Request> currentRequest) {
+		Request request;
+
+		try {
+			request = newHttpRequest(client, bookStoreRequest, serializer.get(), requestId);
+		} catch (BookStoreException ex) {
+			future.completeExceptionally(ex);
+			return;
+		}
+
+		currentRequest.set(request);
+
+		// The future may have been cancelled during the backoff.
+		if (future.isDone()) {
+			return;
+		}
+
+		long sendTime = System.nanoTime();
+
+		request.send(new BufferingResponseListener() {
+			@Override
+			public void onComplete(Result result) {
+				BookStoreTracer.span(requestId, "client.exchange", sendTime, System.nanoTime());
+
+				if (result.isFailed()) {
+					future.completeExceptionally(new BookStoreException(
+							BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION, result.getFailure()));
+					return;
+				}
+
+				if (result.getResponse().getStatus() == HttpStatus.SERVICE_UNAVAILABLE_503) {
+					try {
+						long backoffMillis = getOverloadBackoffMillis(
+								result.getResponse().getHeaders().get(HttpHeader.RETRY_AFTER), attempt);
+						client.getScheduler().schedule(() -> sendHttpRequestAsync(client, bookStoreRequest,
+								serializer, requestId, attempt + 1, future, currentRequest), backoffMillis,
+								TimeUnit.MILLISECONDS);
+					} catch (BookStoreException ex) {
+						future.completeExceptionally(ex);
+					}
+
+					return;
+				}
+
+				try {
+					future.complete(deserializeResponse(requestId, getContent(), serializer.get()));
+				} catch (BookStoreException ex) {
+					future.completeExceptionally(ex);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Creates a future that is already completed with the exception.
+	 *
+	 * @param <T>
+	 *            the result type
+	 * @param ex
+	 *            the exception
+	 * @return the failed future
+	 */
+	public static <T> CompletableFuture<T> failedFuture(BookStoreException ex) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		future.completeExceptionally(ex);
+		return future;
+	}
+
+	/**
+	 * Sends an HTTP request and waits for its response. A request rejected
+	 * with 503 Service Unavailable was not executed, so it is sent again after
+	 * the backoff of {@link #getOverloadBackoffMillis}.
+	 *
+	 * @param client
+	 *            the client
+	 * @param bookStoreRequest
+	 *            the book store request
+	 * @param serializer
+	 *            the serializer
+	 * @param requestId
+	 *            the request ID, the same for all attempts
+	 * @param entityTag
+	 *            the entity tag to send in an If-None-Match header, may be
+	 *            null
+	 * @return the HTTP response
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private static ContentResponse sendHttpRequest(HttpClient client, BookStoreRequest bookStoreRequest,
+			BookStoreSerializer serializer, String requestId, String entityTag) throws BookStoreException {
+		for (int attempt = 0;; attempt++) {
+			Request request = newHttpRequest(client, bookStoreRequest, serializer, requestId);
+
+			if (entityTag != null) {
+				request.header(HttpHeader.IF_NONE_MATCH, entityTag);
+			}
+
+			ContentResponse response;
+			long sendTime = System.nanoTime();
+
+			try {
+				response = request.send();
+			} catch (InterruptedException ex) {
+				throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
+			} catch (TimeoutException ex) {
+				throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_TIMEOUT, ex);
+			} catch (ExecutionException ex) {
+				throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION, ex);
+			} finally {
+				BookStoreTracer.span(requestId, "client.exchange", sendTime, System.nanoTime());
+			}
+
+			if (response.getStatus() != HttpStatus.SERVICE_UNAVAILABLE_503) {
+				return response;
+			}
+
+			long backoffMillis = getOverloadBackoffMillis(response.getHeaders().get(HttpHeader.RETRY_AFTER),
+					attempt);
+
+			try {
+				Thread.sleep(backoffMillis);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
+			}
+		}
+	}
+
+	/**
+	 * Gets the time to wait before sending again a request rejected by an
+	 * overloaded server. The Retry-After of the server is doubled with every
+	 * rejected attempt and a random jitter of up to half of it is added, so
+	 * that the rejected clients do not all come back at once.
+	 *
+	 * @param retryAfter
+	 *            the Retry-After header in seconds, may be null
+	 * @param attempt
+	 *            the number of attempts rejected before this one
+	 * @return the backoff in milliseconds
+	 * @throws BookStoreException
+	 *             if the request was rejected too many times
+	 */
+	private static long getOverloadBackoffMillis(String retryAfter, int attempt) throws BookStoreException {
+		if (attempt >= BookStoreClientConstants.CLIENT_MAX_OVERLOAD_RETRIES) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_SERVER_OVERLOADED);
+		}
+
+		long retryAfterMillis = BookStoreConstants.OVERLOAD_RETRY_AFTER_SECONDS * 1000L;
+
+		if (retryAfter != null) {
+			try {
+				retryAfterMillis = Long.parseLong(retryAfter.trim()) * 1000;
+			} catch (NumberFormatException ex) {
+				// An HTTP date; fall back to the default.
+			}
+		}
+
+		long backoffMillis = Math.min(BookStoreClientConstants.CLIENT_MAX_OVERLOAD_BACKOFF_MILLISECS,
+				retryAfterMillis << attempt);
+		return backoffMillis + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+	}
+
+	/**
+	 * Creates the HTTP request for a book store request, tagged with its
+	 * request ID and the client send time for tracing.
+	 *
+	 * @param client
+	 *            the client
+	 * @param bookStoreRequest
+	 *            the book store request
+	 * @param serializer
+	 *            the serializer
+	 * @param requestId
+	 *            the request ID
+	 * @return the HTTP request
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private static Request newHttpRequest(HttpClient client, BookStoreRequest bookStoreRequest,
+			BookStoreSerializer serializer, String requestId) throws BookStoreException {
 		Request request;
+		long startTime = System.nanoTime();
 
 		switch (bookStoreRequest.getMethod()) {
 		case GET:
@@ -185,26 +503,31 @@ public final class BookStoreUtility {
 			throw new IllegalArgumentException("HTTP Method not supported.");
 		}
 
-		ContentResponse response;
-
-		try {
-			response = request.send();
-		} catch (InterruptedException ex) {
-			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
-		} catch (TimeoutException ex) {
-			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_TIMEOUT, ex);
-		} catch (ExecutionException ex) {
-			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION, ex);
-		}
-
-		BookStoreResponse bookStoreResponse;
-
-		try {
-			bookStoreResponse = (BookStoreResponse) serializer.deserialize(response.getContent());
-		} catch (IOException ex) {
-			throw new BookStoreException("Deserialization error", ex);
-		}
+		long sendTime = System.nanoTime();
+		BookStoreTracer.span(requestId, "client.serialize", startTime, sendTime);
+		request.header(BookStoreConstants.REQUEST_ID_HEADER, requestId);
+		request.header(BookStoreConstants.CLIENT_SEND_TIME_HEADER,
+				Long.toString(BookStoreTracer.toEpochMicros(sendTime)));
+		return request;
+	}
 
+	/**
+	 * Deserializes the content of an HTTP response and throws the exception
+	 * it carries, if any.
+	 *
+	 * @param requestId
+	 *            the request ID
+	 * @param content
+	 *            the response content
+	 * @param serializer
+	 *            the serializer
+	 * @return the book store response
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private static BookStoreResponse decodeResponse(String requestId, byte[] content,
+			BookStoreSerializer serializer) throws BookStoreException {
+		BookStoreResponse bookStoreResponse = deserializeResponse(requestId, content, serializer);
 		BookStoreException exception = bookStoreResponse.getException();
 
 		if (exception != null) {
@@ -213,4 +536,30 @@ public final class BookStoreUtility {
 
 		return bookStoreResponse;
 	}
+
+	/**
+	 * Deserializes the content of an HTTP response.
+	 *
+	 * @param requestId
+	 *            the request ID
+	 * @param content
+	 *            the response content
+	 * @param serializer
+	 *            the serializer
+	 * @return the book store response
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private static BookStoreResponse deserializeResponse(String requestId, byte[] content,
+			BookStoreSerializer serializer) throws BookStoreException {
+		long startTime = System.nanoTime();
+
+		try {
+			return (BookStoreResponse) serializer.deserialize(content);
+		} catch (IOException | RuntimeException ex) {
+			throw new BookStoreException("Deserialization error", ex);
+		} finally {
+			BookStoreTracer.span(requestId, "client.deserialize", startTime, System.nanoTime());
+		}
+	}
 }
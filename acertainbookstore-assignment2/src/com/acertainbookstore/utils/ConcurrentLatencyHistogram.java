@@ -0,0 +1,54 @@
+package com.acertainbookstore.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link ConcurrentLatencyHistogram} records latencies from many threads
+ * without locking, in the bucket layout of {@link LatencyHistogram}.
+ * Percentiles are read from a {@link LatencyHistogram} snapshot; a snapshot
+ * taken while values are recorded may miss some of them but is never
+ * corrupt.
+ */
+public class ConcurrentLatencyHistogram {
+
+	/** The counts by bucket index. */
+	private final AtomicLongArray counts = new AtomicLongArray(LatencyHistogram.BUCKET_COUNT);
+
+	/** The sum of the recorded values. */
+	private final LongAdder sum = new LongAdder();
+
+	/** The largest recorded value. */
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param latencyNanos
+	 *            the latency in nanoseconds, negative values are recorded as 0
+	 */
+	public void record(long latencyNanos) {
+		long value = Math.max(0, latencyNanos);
+		counts.incrementAndGet(LatencyHistogram.indexOf(value));
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * Takes a snapshot of the recorded values.
+	 *
+	 * @return the snapshot
+	 */
+	public LatencyHistogram snapshot() {
+		long[] bucketCounts = new long[counts.length()];
+
+		for (int i = 0; i < bucketCounts.length; i++) {
+			bucketCounts[i] = counts.get(i);
+		}
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.add(bucketCounts, sum.sum(), max.get());
+		return histogram;
+	}
+}
@@ -0,0 +1,194 @@
+package com.acertainbookstore.utils;
+
+/**
+ * {@link LatencyHistogram} records latencies in nanoseconds in log-linear
+ * buckets: every power of two is split into 32 equal sub-buckets, so a
+ * reported percentile is within about 3% of the exact value while the
+ * histogram keeps a fixed size whatever the number of samples.
+ *
+ * A histogram is not thread-safe; every worker records into its own and the
+ * histograms are merged once the run is over. Values recorded concurrently go
+ * to a {@link ConcurrentLatencyHistogram}, which takes snapshots of this type.
+ */
+public class LatencyHistogram {
+
+	/** The number of bits used for the sub-buckets of a power of two. */
+	private static final int SUB_BUCKET_BITS = 5;
+
+	/** The number of sub-buckets of a power of two. */
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+	/** The number of buckets. */
+	static final int BUCKET_COUNT = Long.SIZE * SUB_BUCKET_COUNT;
+
+	/** The counts by bucket index. */
+	private final long[] counts = new long[BUCKET_COUNT];
+
+	/** The number of recorded values. */
+	private long totalCount = 0;
+
+	/** The sum of the recorded values. */
+	private long sum = 0;
+
+	/** The largest recorded value. */
+	private long max = 0;
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param latencyNanos
+	 *            the latency in nanoseconds, negative values are recorded as 0
+	 */
+	public void record(long latencyNanos) {
+		record(latencyNanos, 1);
+	}
+
+	/**
+	 * Records a latency several times.
+	 *
+	 * @param latencyNanos
+	 *            the latency in nanoseconds, negative values are recorded as 0
+	 * @param count
+	 *            the number of times
+	 */
+	public void record(long latencyNanos, long count) {
+		if (count <= 0) {
+			return;
+		}
+
+		long value = Math.max(0, latencyNanos);
+		counts[indexOf(value)] += count;
+		totalCount += count;
+		sum += value * count;
+		max = Math.max(max, value);
+	}
+
+	/**
+	 * Adds the values recorded by another histogram.
+	 *
+	 * @param other
+	 *            the other histogram
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+
+		totalCount += other.totalCount;
+		sum += other.sum;
+		max = Math.max(max, other.max);
+	}
+
+	/**
+	 * Adds values recorded elsewhere with the same bucket layout.
+	 *
+	 * @param bucketCounts
+	 *            the counts by bucket index
+	 * @param valueSum
+	 *            the sum of the values
+	 * @param maxValue
+	 *            the largest value
+	 */
+	void add(long[] bucketCounts, long valueSum, long maxValue) {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += bucketCounts[i];
+			totalCount += bucketCounts[i];
+		}
+
+		sum += valueSum;
+		max = Math.max(max, maxValue);
+	}
+
+	/**
+	 * Gets the number of recorded values.
+	 *
+	 * @return the total count
+	 */
+	public long getTotalCount() {
+		return totalCount;
+	}
+
+	/**
+	 * Gets the mean of the recorded values.
+	 *
+	 * @return the mean in nanoseconds, 0 if the histogram is empty
+	 */
+	public double getMean() {
+		return totalCount == 0 ? 0 : (double) sum / totalCount;
+	}
+
+	/**
+	 * Gets the largest recorded value.
+	 *
+	 * @return the max in nanoseconds
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Gets the value below which the given fraction of the recorded values
+	 * lie, as the middle of its bucket.
+	 *
+	 * @param quantile
+	 *            the quantile between 0 and 1
+	 * @return the percentile in nanoseconds, 0 if the histogram is empty
+	 */
+	public long getPercentile(double quantile) {
+		if (totalCount == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * totalCount));
+		long seen = 0;
+
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+
+			if (seen >= rank) {
+				long lowest = lowestValueOf(i);
+				long highest = Math.min(max, lowestValueOf(i + 1) - 1);
+				return lowest + (highest - lowest) / 2;
+			}
+		}
+
+		return max;
+	}
+
+	/**
+	 * Gets the bucket index of a value. Values below the sub-bucket count have
+	 * their own bucket; larger values share a bucket with the values having
+	 * the same magnitude and the same leading bits.
+	 *
+	 * @param value
+	 *            the value
+	 * @return the bucket index
+	 */
+	static int indexOf(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+		return ((shift + 1) << SUB_BUCKET_BITS) + subBucket;
+	}
+
+	/**
+	 * Gets the lowest value of a bucket.
+	 *
+	 * @param index
+	 *            the bucket index
+	 * @return the lowest value
+	 */
+	private static long lowestValueOf(int index) {
+		int bucket = index >>> SUB_BUCKET_BITS;
+		int subBucket = index & (SUB_BUCKET_COUNT - 1);
+
+		if (bucket == 0) {
+			return subBucket;
+		}
+
+		return ((long) (SUB_BUCKET_COUNT + subBucket)) << (bucket - 1);
+	}
+}
@@ -0,0 +1,48 @@
+package com.acertainbookstore.utils;
+
+import com.acertainbookstore.business.Book;
+
+/**
+ * {@link VersionedBook} pairs a {@link Book} with the version issued by the
+ * store, which changes whenever the book is modified, cf.
+ * {@link com.acertainbookstore.interfaces.VersionedCatalog#getVersionedBooks(java.util.Set)}.
+ */
+public final class VersionedBook {
+
+	/** The book. */
+	private final Book book;
+
+	/** The version stamp. */
+	private final long version;
+
+	/**
+	 * Instantiates a new {@link VersionedBook}.
+	 *
+	 * @param book
+	 *            the book
+	 * @param version
+	 *            the version stamp
+	 */
+	public VersionedBook(Book book, long version) {
+		this.book = book;
+		this.version = version;
+	}
+
+	/**
+	 * Gets the book.
+	 *
+	 * @return the book
+	 */
+	public Book getBook() {
+		return book;
+	}
+
+	/**
+	 * Gets the version stamp.
+	 *
+	 * @return the version stamp
+	 */
+	public long getVersion() {
+		return version;
+	}
+}